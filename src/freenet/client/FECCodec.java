@@ -43,11 +43,23 @@ public abstract class FECCodec {
     public abstract void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
             int blockLength);
 
+    /** Implementation used for ONION_STANDARD, if not OnionFECCodec. */
+    private static volatile FECCodec onionStandardCodec;
+
+    /** Use a different but compatible implementation for ONION_STANDARD, e.g. a TableFECCodec.
+     * It will be shared between callers, so must be thread-safe.
+     * @param codec The codec, or null to go back to a new OnionFECCodec each time. */
+    public static void setOnionStandardCodec(FECCodec codec) {
+        onionStandardCodec = codec;
+    }
+
     public static FECCodec getInstance(SplitfileAlgorithm splitfileType) {
         switch(splitfileType) {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
+            FECCodec codec = onionStandardCodec;
+            if(codec != null) return codec;
             return new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
@@ -0,0 +1,430 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import com.onionnetworks.fec.FECMath;
+
+import freenet.support.LRUMap;
+
+/**
+ * Pure Java FEC codec producing exactly the same check blocks (and decoding the same data) as
+ * OnionFECCodec, i.e. Rizzo's Vandermonde code over GF(2^8), but faster, and able to split a
+ * single encode or decode across several threads.
+ *
+ * Both encoding and decoding come down to multiplying a matrix of coefficients by the input
+ * blocks. OnionFECCodec does one output block at a time, reading all of the input for each. We
+ * compute all the outputs in one pass over the inputs instead, a stripe of a few kilobytes at a
+ * time, so each input stripe is read from memory once and the stripes in use stay in cache.
+ *
+ * The inner loop works on 8 bytes at a time in a long. Multiplying by a constant c in GF(2^8) is
+ * linear over GF(2), so c*x is the XOR of c*2^b for each bit b set in x. Masking out bit b of
+ * every byte of a long leaves each byte 0 or 1, and an ordinary multiply of that by the byte
+ * c*2^b can't carry between bytes, so 8 shifts, masks and multiplies give 8 products at once,
+ * with no table lookups in the inner loop. The masks are shared between 4 output blocks.
+ *
+ * The field tables are built from the same polynomial as the onion code, and the encode matrix
+ * comes from FECMath itself, so the check blocks are bit for bit the same.
+ */
+public class TableFECCodec extends OnionFECCodec {
+
+    /** x^8 + x^4 + x^3 + x^2 + 1, as used by the onion code. */
+    private static final int POLYNOMIAL = 0x11D;
+    /** EXP[i] = alpha^i, doubled up so that EXP[LOG[a] + LOG[b]] needs no modulus. */
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = x;
+            EXP[i+255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) x ^= POLYNOMIAL;
+        }
+    }
+
+    /** Number of longs in the stripe of each block processed together. The scratch buffers are
+     * (inputs + outputs) * STRIPE_WORDS longs per thread, so up to 256K for 256 blocks. */
+    static final int STRIPE_WORDS = 128;
+    /** Output blocks processed together for each input stripe. */
+    private static final int OUTPUTS_PER_PASS = 4;
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    private static final FECMath fecMath = new FECMath(8);
+
+    private final Executor executor;
+    private final int threads;
+
+    /** Do everything on the calling thread. */
+    public TableFECCodec() {
+        this(null, 1);
+    }
+
+    /** @param executor Used to run the parts of each encode or decode beyond the first; the
+     * calling thread runs the first itself. Can be null if threads is 1.
+     * @param threads Number of parts to split each encode or decode into, by block range. */
+    public TableFECCodec(Executor executor, int threads) {
+        if(threads < 1) throw new IllegalArgumentException();
+        if(threads > 1 && executor == null) throw new IllegalArgumentException();
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    static int mul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException();
+        return EXP[255 - LOG[a]];
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++)
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+        // Which check block stands in for each missing data block. Any k blocks determine the
+        // data, so the choice doesn't affect the result; take the first ones, as OnionFECCodec.
+        int[] blockNumbers = new int[k];
+        int missing = 0;
+        int check = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) {
+                blockNumbers[i] = i;
+                continue;
+            }
+            while(check < checkBlocks.length && !checkBlocksPresent[check]) check++;
+            if(check == checkBlocks.length)
+                throw new IllegalArgumentException("Not enough blocks to decode");
+            if(checkBlocks[check].length != blockLength) throw new IllegalArgumentException();
+            blockNumbers[i] = k + check++;
+            missing++;
+        }
+        if(missing == 0) return;
+        char[] encodeMatrix = getEncodeMatrix(k, n);
+        // Each block we have is a row of the encode matrix times the data. Invert the matrix of
+        // those rows to get the data from the blocks we have.
+        int[][] matrix = new int[k][k];
+        for(int i=0;i<k;i++) {
+            if(blockNumbers[i] < k)
+                matrix[i][i] = 1;
+            else
+                for(int j=0;j<k;j++)
+                    matrix[i][j] = encodeMatrix[blockNumbers[i]*k + j];
+        }
+        invert(matrix);
+        byte[][] inputs = new byte[k][];
+        for(int i=0;i<k;i++)
+            inputs[i] = blockNumbers[i] < k ? dataBlocks[i] : checkBlocks[blockNumbers[i]-k];
+        byte[][] outputs = new byte[missing][];
+        int[][] coefficients = new int[missing][];
+        int x = 0;
+        for(int i=0;i<k;i++) {
+            if(blockNumbers[i] < k) continue;
+            outputs[x] = dataBlocks[i];
+            coefficients[x++] = matrix[i];
+        }
+        multiply(coefficients, inputs, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        char[] encodeMatrix = getEncodeMatrix(k, n);
+        byte[][] outputs = new byte[mustEncode][];
+        int[][] coefficients = new int[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            outputs[x] = checkBlocks[i];
+            int[] row = new int[k];
+            for(int j=0;j<k;j++)
+                row[j] = encodeMatrix[(i+k)*k + j];
+            coefficients[x++] = row;
+        }
+        multiply(coefficients, dataBlocks, outputs, blockLength);
+    }
+
+    /** Invert a square matrix over GF(2^8) in place, by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular, i.e. the blocks given are not
+     * independent. */
+    static void invert(int[][] matrix) {
+        int k = matrix.length;
+        int[][] result = new int[k][k];
+        for(int i=0;i<k;i++) result[i][i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && matrix[pivot][col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                int[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+                t = result[pivot]; result[pivot] = result[col]; result[col] = t;
+            }
+            int[] row = matrix[col];
+            int[] resultRow = result[col];
+            int scale = inverse(row[col]);
+            if(scale != 1) {
+                for(int j=0;j<k;j++) {
+                    row[j] = mul(scale, row[j]);
+                    resultRow[j] = mul(scale, resultRow[j]);
+                }
+            }
+            for(int i=0;i<k;i++) {
+                int factor = matrix[i][col];
+                if(i == col || factor == 0) continue;
+                int[] other = matrix[i];
+                int[] otherResult = result[i];
+                for(int j=0;j<k;j++) {
+                    other[j] ^= mul(factor, row[j]);
+                    otherResult[j] ^= mul(factor, resultRow[j]);
+                }
+            }
+        }
+        for(int i=0;i<k;i++) matrix[i] = result[i];
+    }
+
+    /** Set outputs[i] to the sum over j of coefficients[i][j] * inputs[j], splitting the block
+     * range between threads. */
+    private void multiply(final int[][] coefficients, final byte[][] inputs,
+            final byte[][] outputs, final int blockLength) {
+        final long[][] constants = constants(coefficients, inputs.length);
+        int words = blockLength / 8;
+        int parts = Math.min(threads, (words + STRIPE_WORDS - 1) / STRIPE_WORDS);
+        if(parts <= 1) {
+            multiply(constants, coefficients, inputs, outputs, 0, blockLength);
+            return;
+        }
+        // Split on stripe boundaries; the last part gets any odd bytes at the end.
+        int stripes = (words + STRIPE_WORDS - 1) / STRIPE_WORDS;
+        final CountDownLatch done = new CountDownLatch(parts - 1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        int end = blockLength;
+        for(int part=parts-1;part>0;part--) {
+            final int start = (int)((long)stripes * part / parts) * STRIPE_WORDS * 8;
+            final int partEnd = end;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        multiply(constants, coefficients, inputs, outputs, start, partEnd);
+                    } catch (RuntimeException e) {
+                        synchronized(failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            });
+            end = start;
+        }
+        multiply(constants, coefficients, inputs, outputs, 0, end);
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        synchronized(failure) {
+            if(failure[0] != null) throw failure[0];
+        }
+    }
+
+    /** @return For each output and input, c * 2^b for b = 0..7, where c is the coefficient. */
+    private static long[][] constants(int[][] coefficients, int inputCount) {
+        long[][] constants = new long[coefficients.length][inputCount * 8];
+        for(int i=0;i<coefficients.length;i++) {
+            for(int j=0;j<inputCount;j++) {
+                int c = coefficients[i][j];
+                for(int b=0;b<8;b++)
+                    constants[i][j*8+b] = mul(c, 1 << b);
+            }
+        }
+        return constants;
+    }
+
+    /** Compute bytes start (a multiple of 8) to end of the outputs. */
+    private static void multiply(long[][] constants, int[][] coefficients, byte[][] inputs,
+            byte[][] outputs, int start, int end) {
+        int inputCount = inputs.length;
+        int outputCount = outputs.length;
+        long[][] in = new long[inputCount][STRIPE_WORDS];
+        long[][] out = new long[outputCount][STRIPE_WORDS];
+        int words = (end - start) / 8;
+        for(int offset = start; words > 0; ) {
+            int count = Math.min(words, STRIPE_WORDS);
+            for(int j=0;j<inputCount;j++)
+                pack(inputs[j], offset, in[j], count);
+            for(int i=0;i<outputCount;i++) {
+                long[] o = out[i];
+                for(int p=0;p<count;p++) o[p] = 0;
+            }
+            for(int j=0;j<inputCount;j++) {
+                int i = 0;
+                for(;i+OUTPUTS_PER_PASS<=outputCount;i+=OUTPUTS_PER_PASS)
+                    multiplyAdd4(in[j], count, constants, j*8, out, i);
+                for(;i<outputCount;i++)
+                    multiplyAdd(in[j], count, constants[i], j*8, out[i]);
+            }
+            for(int i=0;i<outputCount;i++)
+                unpack(out[i], outputs[i], offset, count);
+            offset += count * 8;
+            words -= count;
+        }
+        // Odd bytes at the end, one at a time.
+        for(int pos = start + ((end - start) & ~7); pos < end; pos++) {
+            for(int i=0;i<outputCount;i++) {
+                int[] row = coefficients[i];
+                int x = 0;
+                for(int j=0;j<inputCount;j++)
+                    x ^= mul(row[j], inputs[j][pos] & 0xFF);
+                outputs[i][pos] = (byte)x;
+            }
+        }
+    }
+
+    private static void multiplyAdd(long[] in, int count, long[] constants, int c, long[] out) {
+        long c0 = constants[c], c1 = constants[c+1], c2 = constants[c+2], c3 = constants[c+3],
+            c4 = constants[c+4], c5 = constants[c+5], c6 = constants[c+6], c7 = constants[c+7];
+        if((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) == 0) return;
+        for(int p=0;p<count;p++) {
+            long w = in[p];
+            out[p] ^= (w & LOW_BITS) * c0 ^ ((w >>> 1) & LOW_BITS) * c1 ^
+                ((w >>> 2) & LOW_BITS) * c2 ^ ((w >>> 3) & LOW_BITS) * c3 ^
+                ((w >>> 4) & LOW_BITS) * c4 ^ ((w >>> 5) & LOW_BITS) * c5 ^
+                ((w >>> 6) & LOW_BITS) * c6 ^ ((w >>> 7) & LOW_BITS) * c7;
+        }
+    }
+
+    /** As multiplyAdd, for outputs first to first+3, sharing the bit masks. */
+    private static void multiplyAdd4(long[] in, int count, long[][] constants, int c,
+            long[][] out, int first) {
+        long[] k0 = constants[first], k1 = constants[first+1], k2 = constants[first+2],
+            k3 = constants[first+3];
+        long a0 = k0[c], a1 = k0[c+1], a2 = k0[c+2], a3 = k0[c+3],
+            a4 = k0[c+4], a5 = k0[c+5], a6 = k0[c+6], a7 = k0[c+7];
+        long b0 = k1[c], b1 = k1[c+1], b2 = k1[c+2], b3 = k1[c+3],
+            b4 = k1[c+4], b5 = k1[c+5], b6 = k1[c+6], b7 = k1[c+7];
+        long d0 = k2[c], d1 = k2[c+1], d2 = k2[c+2], d3 = k2[c+3],
+            d4 = k2[c+4], d5 = k2[c+5], d6 = k2[c+6], d7 = k2[c+7];
+        long e0 = k3[c], e1 = k3[c+1], e2 = k3[c+2], e3 = k3[c+3],
+            e4 = k3[c+4], e5 = k3[c+5], e6 = k3[c+6], e7 = k3[c+7];
+        long[] o0 = out[first], o1 = out[first+1], o2 = out[first+2], o3 = out[first+3];
+        for(int p=0;p<count;p++) {
+            long w = in[p];
+            long x0 = w & LOW_BITS, x1 = (w >>> 1) & LOW_BITS, x2 = (w >>> 2) & LOW_BITS,
+                x3 = (w >>> 3) & LOW_BITS, x4 = (w >>> 4) & LOW_BITS, x5 = (w >>> 5) & LOW_BITS,
+                x6 = (w >>> 6) & LOW_BITS, x7 = (w >>> 7) & LOW_BITS;
+            o0[p] ^= x0*a0 ^ x1*a1 ^ x2*a2 ^ x3*a3 ^ x4*a4 ^ x5*a5 ^ x6*a6 ^ x7*a7;
+            o1[p] ^= x0*b0 ^ x1*b1 ^ x2*b2 ^ x3*b3 ^ x4*b4 ^ x5*b5 ^ x6*b6 ^ x7*b7;
+            o2[p] ^= x0*d0 ^ x1*d1 ^ x2*d2 ^ x3*d3 ^ x4*d4 ^ x5*d5 ^ x6*d6 ^ x7*d7;
+            o3[p] ^= x0*e0 ^ x1*e1 ^ x2*e2 ^ x3*e3 ^ x4*e4 ^ x5*e5 ^ x6*e6 ^ x7*e7;
+        }
+    }
+
+    /** Byte order doesn't matter here as long as unpack() matches: every byte is a lane. */
+    private static void pack(byte[] buf, int offset, long[] words, int count) {
+        for(int p=0;p<count;p++, offset+=8) {
+            words[p] = (buf[offset] & 0xFFL) | (buf[offset+1] & 0xFFL) << 8 |
+                (buf[offset+2] & 0xFFL) << 16 | (buf[offset+3] & 0xFFL) << 24 |
+                (buf[offset+4] & 0xFFL) << 32 | (buf[offset+5] & 0xFFL) << 40 |
+                (buf[offset+6] & 0xFFL) << 48 | (buf[offset+7] & 0xFFL) << 56;
+        }
+    }
+
+    private static void unpack(long[] words, byte[] buf, int offset, int count) {
+        for(int p=0;p<count;p++, offset+=8) {
+            long w = words[p];
+            buf[offset] = (byte)w;
+            buf[offset+1] = (byte)(w >>> 8);
+            buf[offset+2] = (byte)(w >>> 16);
+            buf[offset+3] = (byte)(w >>> 24);
+            buf[offset+4] = (byte)(w >>> 32);
+            buf[offset+5] = (byte)(w >>> 40);
+            buf[offset+6] = (byte)(w >>> 48);
+            buf[offset+7] = (byte)(w >>> 56);
+        }
+    }
+
+    /** Cache of encode matrices by {k,n}. */
+    private synchronized static char[] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) + k;
+        SoftReference<char[]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(key);
+        if(ref != null) {
+            char[] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(key, ref);
+                return matrix;
+            }
+        }
+        char[] matrix = fecMath.createEncodeMatrix(k, n);
+        recentlyUsedMatrices.push(key, new SoftReference<char[]>(matrix));
+        return matrix;
+    }
+
+    private static final LRUMap<Integer, SoftReference<char[]>> recentlyUsedMatrices =
+        LRUMap.createSafeMap();
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        // Two int[k][k] for the inversion, and the constants.
+        long matrices = 2L*k*k*4 + (long)k*k*8*8;
+        return super.maxMemoryOverheadDecode(dataBlocks, checkBlocks) + matrices + scratch(k, k);
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        // The coefficients, and the constants.
+        long matrices = (long)dataBlocks*checkBlocks*(4+8*8);
+        return super.maxMemoryOverheadEncode(dataBlocks, checkBlocks) + matrices +
+            scratch(dataBlocks, checkBlocks);
+    }
+
+    private long scratch(int inputs, int outputs) {
+        return (long)threads * (inputs + outputs) * STRIPE_WORDS * 8;
+    }
+
+}
@@ -11,8 +11,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -53,6 +51,7 @@ import freenet.support.io.FileUtil;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.NullOutputStream;
 import freenet.support.io.ResumeFailedException;
+import freenet.support.io.RingBufferPipe;
 import freenet.support.io.StorageFormatException;
 
 /**
@@ -299,8 +298,9 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		RingBufferPipe pipe = new RingBufferPipe(DecompressorThreadManager.getBufferSize());
+		OutputStream dataOutput = pipe.getOutputStream();
+		InputStream dataInput = pipe.getInputStream();
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -326,13 +326,12 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
+				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen, context.mainExecutor);
 				dataInput = decompressorManager.execute();
 			}
 
@@ -0,0 +1,624 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/** Append-only alternative to rewriting client.dat on every checkpoint. Each checkpoint appends a
+ * record for every request whose serialized form has changed since it was last written, a record
+ * for every request which has gone away, and then a commit record (bandwidth stats and buckets to
+ * free), and syncs. On reading, only records up to the last valid commit count, so a checkpoint
+ * interrupted by a crash is ignored as a whole, as with a half written client.dat.
+ *
+ * Every record carries a checksum. When the file gets much bigger than the live records in it,
+ * it is compacted off-thread by copying the live records (no serialization) to a new file,
+ * which then replaces it. The previous file is kept as the .bak, just as client.dat.bak is.
+ *
+ * Requests are identified by opaque keys (the serialized RequestIdentifier). Only used for
+ * unencrypted client.dat; the encrypted buckets can't be appended to.
+ */
+class ClientLayerJournal {
+
+    private static final long MAGIC = 0x6c9ad3e71f2a5b04L;
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 32;
+
+    static final byte RECORD_PUT = 1;
+    static final byte RECORD_REMOVE = 2;
+    static final byte RECORD_COMMIT = 3;
+
+    /** Type, key length, payload length. */
+    private static final int RECORD_HEADER_LENGTH = 1 + 2 + 4;
+    private static final int MAX_KEY_LENGTH = 4096;
+    /** Don't compact files smaller than this. */
+    static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+    /** Compact when the file is this many times the size of the live records. */
+    static final int COMPACT_RATIO = 2;
+
+    private final File file;
+    private final File backupFile;
+    private final File rewriteFile;
+    private final File compactFile;
+    private final ChecksumChecker checker;
+
+    /** Where the latest record for each request is. */
+    private final Map<ByteArrayWrapper, Entry> live = new HashMap<ByteArrayWrapper, Entry>();
+    /** Where the latest record for each request is, as of the last commit. This is what a reader
+     * would see, so it is what compaction copies. */
+    private final Map<ByteArrayWrapper, Entry> committed = new HashMap<ByteArrayWrapper, Entry>();
+    /** Changes since the last commit, to apply to committed on commit. Null means removed. */
+    private final Map<ByteArrayWrapper, Entry> uncommitted = new HashMap<ByteArrayWrapper, Entry>();
+    private Entry lastCommit;
+    /** Total length of the live records. */
+    private long liveLength;
+    private byte[] salt;
+    private FileOutputStream fos;
+    private OutputStream os;
+    /** Current length of the file being written. */
+    private long length;
+    /** Length of the header, i.e. offset of the first record. */
+    private long headerLength;
+    /** True if writing a complete new file, which will replace the old one on commit. */
+    private boolean rewriting;
+    private boolean compacting;
+    /** Incremented whenever we switch files, so an unfinished compaction knows to give up. */
+    private int generation;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(ClientLayerJournal.class);
+    }
+
+    /** A record in the file. Immutable. */
+    private static class Entry {
+        final long offset;
+        final int length;
+        /** Fingerprint of the payload, for a PUT. */
+        final long digest;
+        Entry(long offset, int length, long digest) {
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    ClientLayerJournal(File file, ChecksumChecker checker) {
+        this.file = file;
+        this.backupFile = new File(file.getPath() + ".bak");
+        this.rewriteFile = new File(file.getPath() + ".tmp");
+        this.compactFile = new File(file.getPath() + ".compact");
+        this.checker = checker;
+    }
+
+    File getFilename() {
+        return file;
+    }
+
+    File getBackupFilename() {
+        return backupFile;
+    }
+
+    /** @return All the files we might create. */
+    File[] getAllFilenames() {
+        return new File[] { file, backupFile, rewriteFile, compactFile };
+    }
+
+    /** @return True if we can append to the current file. If not, call startRewrite(). */
+    synchronized boolean isOpen() {
+        return os != null && !rewriting;
+    }
+
+    synchronized long length() {
+        return length;
+    }
+
+    synchronized long liveLength() {
+        return liveLength;
+    }
+
+    synchronized int size() {
+        return live.size();
+    }
+
+    /** Start writing a complete new file. Every request will need to be put() again. The new file
+     * replaces the old one when commit() is called. */
+    synchronized void startRewrite(byte[] salt) throws IOException {
+        closeStreams();
+        generation++;
+        live.clear();
+        committed.clear();
+        uncommitted.clear();
+        liveLength = 0;
+        lastCommit = null;
+        this.salt = salt.clone();
+        rewriting = true;
+        fos = new FileOutputStream(rewriteFile);
+        os = new BufferedOutputStream(fos);
+        headerLength = length = writeHeader(os, this.salt);
+    }
+
+    /** @return The length of the header. */
+    private long writeHeader(OutputStream out, byte[] salt) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeLong(MAGIC);
+        dos.writeInt(VERSION);
+        checker.writeAndChecksum(dos, salt, 0, salt.length);
+        dos.flush();
+        return 8 + 4 + salt.length + checker.checksumLength();
+    }
+
+    /** Write a request, unless exactly the same data was written last time.
+     * @return True if we wrote anything. */
+    synchronized boolean put(byte[] key, byte[] payload) throws IOException {
+        checkOpen();
+        ByteArrayWrapper k = new ByteArrayWrapper(key);
+        long digest = fingerprint(payload);
+        Entry old = live.get(k);
+        if(old != null && old.digest == digest && old.length == recordLength(key, payload))
+            return false;
+        Entry e = append(RECORD_PUT, key, payload, digest);
+        live.put(k, e);
+        uncommitted.put(k, e);
+        liveLength += e.length;
+        if(old != null) liveLength -= old.length;
+        return true;
+    }
+
+    /** Write a removal record for every request we have which isn't in keys.
+     * @return The number of requests removed. */
+    synchronized int retainOnly(Set<ByteArrayWrapper> keys) throws IOException {
+        checkOpen();
+        int removed = 0;
+        for(Iterator<Map.Entry<ByteArrayWrapper, Entry>> i = live.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<ByteArrayWrapper, Entry> e = i.next();
+            if(keys.contains(e.getKey())) continue;
+            append(RECORD_REMOVE, e.getKey().get(), new byte[0], 0);
+            liveLength -= e.getValue().length;
+            uncommitted.put(e.getKey(), null);
+            i.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    /** Finish a checkpoint: write the commit record and sync. If we were writing a new file, it
+     * replaces the old one, which becomes the backup. */
+    synchronized void commit(byte[] payload) throws IOException {
+        checkOpen();
+        lastCommit = append(RECORD_COMMIT, new byte[0], payload, 0);
+        os.flush();
+        fos.getFD().sync();
+        for(Map.Entry<ByteArrayWrapper, Entry> e : uncommitted.entrySet()) {
+            if(e.getValue() == null)
+                committed.remove(e.getKey());
+            else
+                committed.put(e.getKey(), e.getValue());
+        }
+        uncommitted.clear();
+        if(rewriting) {
+            os.close();
+            os = null;
+            fos = null;
+            if(file.exists() && !FileUtil.renameTo(file, backupFile))
+                throw new IOException("Unable to rename "+file+" to "+backupFile);
+            if(!FileUtil.renameTo(rewriteFile, file))
+                throw new IOException("Unable to rename "+rewriteFile+" to "+file);
+            rewriting = false;
+            openForAppend();
+        }
+    }
+
+    /** @return True if the file has grown so much that it should be compacted. */
+    synchronized boolean shouldCompact() {
+        if(compacting || !isOpen()) return false;
+        return length > MIN_COMPACT_LENGTH && length - headerLength > liveLength * COMPACT_RATIO;
+    }
+
+    /** Stop writing. The next checkpoint will need to call startRewrite(). */
+    synchronized void close() {
+        closeStreams();
+        generation++;
+        live.clear();
+        committed.clear();
+        uncommitted.clear();
+        liveLength = 0;
+        lastCommit = null;
+        rewriting = false;
+    }
+
+    private void closeStreams() {
+        Closer.close(os);
+        Closer.close(fos);
+        os = null;
+        fos = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if(os == null) throw new IOException("Journal not open");
+    }
+
+    private void openForAppend() throws IOException {
+        fos = new FileOutputStream(file, true);
+        os = new BufferedOutputStream(fos);
+    }
+
+    /** Only used to tell whether a request has changed, not for integrity, so it just needs to be
+     * fast, and unlikely to be the same for the old and new versions of a request. Much cheaper
+     * than a cryptographic hash, which would cost more than writing the request. */
+    private static long fingerprint(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        Adler32 adler = new Adler32();
+        adler.update(payload, 0, payload.length);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    private int recordLength(byte[] key, byte[] payload) {
+        return RECORD_HEADER_LENGTH + key.length + payload.length + checker.checksumLength();
+    }
+
+    private Entry append(byte type, byte[] key, byte[] payload, long digest) throws IOException {
+        byte[] record = makeRecord(type, key, payload);
+        os.write(record);
+        Entry e = new Entry(length, record.length, digest);
+        length += record.length;
+        return e;
+    }
+
+    private byte[] makeRecord(byte type, byte[] key, byte[] payload) {
+        if(key.length > MAX_KEY_LENGTH) throw new IllegalArgumentException("Key too long");
+        byte[] record = new byte[recordLength(key, payload)];
+        int dataLength = record.length - checker.checksumLength();
+        record[0] = type;
+        record[1] = (byte) (key.length >> 8);
+        record[2] = (byte) key.length;
+        System.arraycopy(key, 0, record, 3, key.length);
+        putInt(record, 3 + key.length, payload.length);
+        System.arraycopy(payload, 0, record, RECORD_HEADER_LENGTH + key.length, payload.length);
+        byte[] checksum = checker.generateChecksum(record, 0, dataLength);
+        System.arraycopy(checksum, 0, record, dataLength, checksum.length);
+        return record;
+    }
+
+    /** Big-endian, as DataInputStream.readInt() reads it. */
+    private static void putInt(byte[] buf, int offset, int x) {
+        buf[offset] = (byte) (x >> 24);
+        buf[offset + 1] = (byte) (x >> 16);
+        buf[offset + 2] = (byte) (x >> 8);
+        buf[offset + 3] = (byte) x;
+    }
+
+    /** Rewrite the file with only the live records, and replace the current file with it. Slow,
+     * so should be run off-thread; checkpoints can carry on meanwhile. Doesn't serialize
+     * anything, just copies the latest committed record for each request and the last commit,
+     * followed by everything written after the last commit, so a checkpoint which was in progress
+     * is still only valid once its own commit record has been written.
+     * @return False if we gave up because the file was switched, e.g. by a rewrite. */
+    boolean compact() throws IOException {
+        List<Entry> toCopy;
+        Entry commit;
+        long end;
+        int startGeneration;
+        byte[] salt;
+        synchronized(this) {
+            if(compacting || !isOpen() || lastCommit == null) return false;
+            os.flush();
+            compacting = true;
+            toCopy = new ArrayList<Entry>(committed.values());
+            commit = lastCommit;
+            end = lastCommit.offset + lastCommit.length;
+            startGeneration = generation;
+            salt = this.salt;
+        }
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        FileOutputStream newFOS = null;
+        boolean success = false;
+        try {
+            // Read in file order.
+            Collections.sort(toCopy, new Comparator<Entry>() {
+
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return Long.compare(e1.offset, e2.offset);
+                }
+
+            });
+            raf = new RandomAccessFile(file, "r");
+            newFOS = new FileOutputStream(compactFile);
+            OutputStream newOS = new BufferedOutputStream(newFOS);
+            Map<Entry, Long> newOffsets = new IdentityHashMap<Entry, Long>();
+            long newLength = writeHeader(newOS, salt);
+            toCopy.add(commit);
+            for(Entry e : toCopy) {
+                byte[] record = new byte[e.length];
+                raf.seek(e.offset);
+                raf.readFully(record);
+                int dataLength = record.length - checker.checksumLength();
+                if(!checker.checkChecksum(record, 0, dataLength,
+                        Arrays.copyOfRange(record, dataLength, record.length))) {
+                    // Will be written again at the next checkpoint.
+                    Logger.error(this, "Checksum failed compacting "+file+" at "+e.offset);
+                    if(e == commit) throw new IOException("Checksum failed on last commit");
+                    continue;
+                }
+                newOS.write(record);
+                newOffsets.put(e, newLength);
+                newLength += record.length;
+            }
+            synchronized(this) {
+                if(generation != startGeneration || !isOpen()) return false;
+                // Copy whatever has been written since we started.
+                os.flush();
+                long tailStart = newLength;
+                byte[] buf = new byte[FileUtil.BUFFER_SIZE];
+                raf.seek(end);
+                for(long remaining = length - end; remaining > 0;) {
+                    int read = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if(read <= 0) throw new EOFException();
+                    newOS.write(buf, 0, read);
+                    remaining -= read;
+                }
+                newLength += length - end;
+                newOS.flush();
+                newFOS.getFD().sync();
+                newOS.close();
+                newFOS = null;
+                raf.close();
+                raf = null;
+                closeStreams();
+                if(!FileUtil.renameTo(file, backupFile)) {
+                    openForAppend();
+                    throw new IOException("Unable to rename "+file+" to "+backupFile);
+                }
+                if(!FileUtil.renameTo(compactFile, file)) {
+                    FileUtil.renameTo(backupFile, file);
+                    openForAppend();
+                    throw new IOException("Unable to rename "+compactFile+" to "+file);
+                }
+                // Translate the offsets. The maps share entries, and must still do afterwards.
+                Map<Entry, Entry> moved = new IdentityHashMap<Entry, Entry>();
+                for(Iterator<Map.Entry<ByteArrayWrapper, Entry>> i = live.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<ByteArrayWrapper, Entry> e = i.next();
+                    Entry m = move(e.getValue(), end, tailStart, newOffsets, moved);
+                    if(m == null) {
+                        // Skipped because corrupt, so write it again next time.
+                        liveLength -= e.getValue().length;
+                        i.remove();
+                    } else {
+                        e.setValue(m);
+                    }
+                }
+                moveAll(committed, end, tailStart, newOffsets, moved);
+                moveAll(uncommitted, end, tailStart, newOffsets, moved);
+                lastCommit = move(lastCommit, end, tailStart, newOffsets, moved);
+                long oldLength = length;
+                length = newLength;
+                openForAppend();
+                success = true;
+                Logger.normal(this, "Compacted "+file+" from "+oldLength+" to "+newLength+" bytes in "+
+                        (System.currentTimeMillis() - start)+"ms");
+                return true;
+            }
+        } finally {
+            Closer.close(raf);
+            Closer.close(newFOS);
+            if(!success) compactFile.delete();
+            synchronized(this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /** Translate the offsets in committed or uncommitted, dropping any which weren't copied. */
+    private static void moveAll(Map<ByteArrayWrapper, Entry> map, long end, long tailStart,
+            Map<Entry, Long> newOffsets, Map<Entry, Entry> moved) {
+        for(Iterator<Map.Entry<ByteArrayWrapper, Entry>> i = map.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<ByteArrayWrapper, Entry> e = i.next();
+            if(e.getValue() == null) continue;
+            Entry m = move(e.getValue(), end, tailStart, newOffsets, moved);
+            if(m == null)
+                i.remove();
+            else
+                e.setValue(m);
+        }
+    }
+
+    /** @param moved Entries already translated, so the same entry always becomes the same new
+     * entry. */
+    private static Entry move(Entry e, long end, long tailStart, Map<Entry, Long> newOffsets,
+            Map<Entry, Entry> moved) {
+        Entry m = moved.get(e);
+        if(m != null) return m;
+        if(e.offset >= end) {
+            m = new Entry(e.offset - end + tailStart, e.length, e.digest);
+        } else {
+            Long offset = newOffsets.get(e);
+            if(offset == null) return null;
+            m = new Entry(offset, e.length, e.digest);
+        }
+        moved.put(e, m);
+        return m;
+    }
+
+    /** A committed request in a journal being read. */
+    static class Record {
+        final byte[] key;
+        final long payloadOffset;
+        final int payloadLength;
+        Record(byte[] key, long payloadOffset, int payloadLength) {
+            this.key = key;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /** The committed contents of a journal. Payloads are read on demand, so close() it when
+     * done. */
+    static class Contents {
+        /** Null if the checksum failed. */
+        final byte[] salt;
+        /** The latest version of each request, in the order they were first written. */
+        final List<Record> requests;
+        /** Payload of the last commit record. */
+        final byte[] commit;
+        /** True if we found a bad record. Anything after it is lost. */
+        final boolean damaged;
+        private final RandomAccessFile raf;
+
+        Contents(byte[] salt, List<Record> requests, byte[] commit, boolean damaged,
+                RandomAccessFile raf) {
+            this.salt = salt;
+            this.requests = requests;
+            this.commit = commit;
+            this.damaged = damaged;
+            this.raf = raf;
+        }
+
+        byte[] readPayload(Record r) throws IOException {
+            byte[] buf = new byte[r.payloadLength];
+            raf.seek(r.payloadOffset);
+            raf.readFully(buf);
+            return buf;
+        }
+
+        void close() {
+            Closer.close(raf);
+        }
+    }
+
+    /** Read a journal. Checks every record, but only keeps the payloads of the latest committed
+     * version of each request, and the last commit.
+     * @throws IOException If the file can't be read at all, or isn't a journal. */
+    static Contents read(File file, ChecksumChecker checker) throws IOException {
+        long fileLength = file.length();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        LinkedHashMap<ByteArrayWrapper, Record> committed = new LinkedHashMap<ByteArrayWrapper, Record>();
+        List<Record> pending = new ArrayList<Record>();
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] commit = null;
+        boolean damaged = false;
+        int checksumLength = checker.checksumLength();
+        try {
+            if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+            if(dis.readInt() != VERSION) throw new IOException("Bad version");
+            try {
+                checker.readAndChecksum(dis, salt, 0, salt.length);
+            } catch (ChecksumFailedException e) {
+                salt = null;
+            }
+            long offset = 8 + 4 + SALT_LENGTH + checksumLength;
+            while(true) {
+                int type = dis.read();
+                if(type == -1) break;
+                byte[] record;
+                int keyLength;
+                int payloadLength;
+                try {
+                    keyLength = dis.readUnsignedShort();
+                    if(keyLength > MAX_KEY_LENGTH) {
+                        damaged = true;
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    dis.readFully(key);
+                    payloadLength = dis.readInt();
+                    if(payloadLength < 0) {
+                        damaged = true;
+                        break;
+                    }
+                    if(payloadLength > fileLength - offset) {
+                        // Truncated, as below.
+                        if(logMINOR) Logger.minor(ClientLayerJournal.class, "Truncated record in "+file);
+                        break;
+                    }
+                    record = new byte[RECORD_HEADER_LENGTH + keyLength + payloadLength + checksumLength];
+                    record[0] = (byte) type;
+                    record[1] = (byte) (keyLength >> 8);
+                    record[2] = (byte) keyLength;
+                    System.arraycopy(key, 0, record, 3, keyLength);
+                    putInt(record, 3 + keyLength, payloadLength);
+                    dis.readFully(record, RECORD_HEADER_LENGTH + keyLength, payloadLength + checksumLength);
+                } catch (EOFException e) {
+                    // Truncated, probably by a crash.
+                    if(logMINOR) Logger.minor(ClientLayerJournal.class, "Truncated record in "+file);
+                    // Anything after the last commit is ignored anyway.
+                    break;
+                }
+                int dataLength = record.length - checksumLength;
+                if(!checker.checkChecksum(record, 0, dataLength,
+                        Arrays.copyOfRange(record, dataLength, record.length))) {
+                    Logger.error(ClientLayerJournal.class, "Checksum failed in "+file+" at "+offset);
+                    damaged = true;
+                    break;
+                }
+                byte[] key = Arrays.copyOfRange(record, 3, 3 + keyLength);
+                long payloadOffset = offset + RECORD_HEADER_LENGTH + keyLength;
+                offset += record.length;
+                switch(type) {
+                case RECORD_PUT:
+                    pending.add(new Record(key, payloadOffset, payloadLength));
+                    break;
+                case RECORD_REMOVE:
+                    pending.add(new Record(key, -1, 0));
+                    break;
+                case RECORD_COMMIT:
+                    for(Record r : pending) {
+                        ByteArrayWrapper k = new ByteArrayWrapper(r.key);
+                        if(r.payloadOffset < 0)
+                            committed.remove(k);
+                        else
+                            committed.put(k, r);
+                    }
+                    pending.clear();
+                    commit = Arrays.copyOfRange(record, RECORD_HEADER_LENGTH + keyLength, dataLength);
+                    break;
+                default:
+                    Logger.error(ClientLayerJournal.class, "Unknown record type "+type+" in "+file);
+                    damaged = true;
+                    break;
+                }
+                if(damaged) break;
+            }
+        } finally {
+            dis.close();
+        }
+        if(commit == null) damaged = true;
+        if(!pending.isEmpty())
+            Logger.normal(ClientLayerJournal.class, "Ignoring "+pending.size()+" uncommitted records at the end of "+file);
+        return new Contents(salt, new ArrayList<Record>(committed.values()), commit, damaged,
+                new RandomAccessFile(file, "r"));
+    }
+
+}
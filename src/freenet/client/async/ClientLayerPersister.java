@@ -14,8 +14,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
@@ -27,7 +29,9 @@ import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -35,6 +39,7 @@ import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
@@ -76,6 +81,11 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 
  * SCHEMA MIGRATION: Note that changing classes that are Serializable can result in restarting 
  * downloads or losing uploads.
+ * 
+ * JOURNAL: Optionally, rather than rewriting client.dat on every checkpoint, we append only the 
+ * requests which have changed to client.dat.journal. See ClientLayerJournal. We still serialize
+ * every request on every checkpoint, to find out which have changed, but we don't checksum or
+ * write the unchanged ones.
  * @author toad
  */
 public class ClientLayerPersister extends PersistentJobRunnerImpl {
@@ -100,6 +110,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Non-null if we are writing unencrypted, so can use a journal. */
+    private ClientLayerJournal journal;
+    /** If true, we have switched to writing encrypted, and the (unencrypted) journal files must be
+     * securely deleted once client.dat.crypt has been written. */
+    private boolean deleteJournalAfterSuccessfulWrite;
+    private volatile boolean useJournal;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
@@ -146,6 +162,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournalFiles(dir, baseName);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -172,7 +189,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     }
     
     private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
-        File f = makeFilename(dir, baseName, backup, encrypted);
+        deleteFile(makeFilename(dir, baseName, backup, encrypted));
+    }
+    
+    private void deleteJournalFiles(File dir, String baseName) {
+        if(journal != null) journal.close();
+        for(File f : makeJournal(dir, baseName).getAllFilenames())
+            deleteFile(f);
+    }
+    
+    private void deleteFile(File f) {
         try {
             FileUtil.secureDelete(f);
         } catch (IOException e) {
@@ -194,6 +220,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        setJournal(writeEncrypted ? null : makeJournal(dir, baseName));
+        deleteJournalAfterSuccessfulWrite = writeEncrypted;
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -225,15 +253,36 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             if(clientDatCryptExists || clientDatBakCryptExists)
                 throw new MasterKeysWrongPasswordException();
         }
+        ClientLayerJournal loadJournal = makeJournal(dir, baseName);
+        boolean journalExists = loadJournal.getFilename().exists();
+        boolean journalBackupExists = loadJournal.getBackupFilename().exists();
+        // The journal is always unencrypted, and is deleted when we switch to writing encrypted.
+        // If an encrypted client.dat was written after it anyway (e.g. we crashed before deleting
+        // it), the journal is out of date, so ignore it.
+        long journalModified = Math.max(loadJournal.getFilename().lastModified(), 
+                loadJournal.getBackupFilename().lastModified());
+        long cryptModified = Math.max(clientDatCrypt.lastModified(), clientDatBakCrypt.lastModified());
+        if((journalExists || journalBackupExists) && cryptModified > journalModified) {
+            System.err.println("Ignoring old unencrypted journal as "+clientDatCrypt+" is newer");
+            journalExists = false;
+            journalBackupExists = false;
+        }
         boolean failedSerialize = false;
         PartialLoad loaded = new PartialLoad();
-        if(clientDatExists) {
+        // If the journal exists, it is newer than client.dat.
+        if(journalExists) {
+            innerLoadJournal(loaded, loadJournal.getFilename(), noSerialize, context, requestStarters);
+        }
+        if(journalBackupExists && loaded.needsMore()) {
+            innerLoadJournal(loaded, loadJournal.getBackupFilename(), noSerialize, context, requestStarters);
+        }
+        if(clientDatExists && (!journalExists || loaded.needsMore())) {
             innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
             innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
         }
-        if(clientDatBakExists) {
+        if(clientDatBakExists && (!journalExists || loaded.needsMore())) {
             innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
         }
         if(clientDatBakCryptExists && loaded.needsMore()) {
@@ -246,6 +295,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        setJournal(writeEncrypted ? null : loadJournal);
+        if(writeEncrypted && (loadJournal.getFilename().exists() || loadJournal.getBackupFilename().exists()))
+            deleteJournalAfterSuccessfulWrite = true;
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -339,6 +391,23 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
                 
     }
+    
+    private ClientLayerJournal makeJournal(File parent, String baseName) {
+        return new ClientLayerJournal(new File(parent, baseName + ".journal"), checker);
+    }
+    
+    /** Caller must hold serializeCheckpoints. The first checkpoint after this rewrites the whole
+     * journal. */
+    private void setJournal(ClientLayerJournal newJournal) {
+        if(journal != null) journal.close();
+        journal = newJournal;
+    }
+    
+    /** Whether to append changed requests to client.dat.journal rather than rewriting client.dat
+     * on every checkpoint. Takes effect at the next checkpoint. Ignored if writing encrypted. */
+    public void setUseJournal(boolean useJournal) {
+        this.useJournal = useJournal;
+    }
 
     private enum RequestLoadStatus {
         // In order of preference, best first.
@@ -458,7 +527,6 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
             RequestIdentifier reqID = readRequestIdentifier(ois);
             if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
                 Logger.warning(this, "Not reading request because already have it");
@@ -466,62 +534,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 skipChecksummedObject(ois, length); // Recovery data
                 continue;
             }
-            try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
-            } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
-            }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                }
-            } else {
-                skipChecksummedObject(ois, length);
-            }
+            readRequest(loaded, reqID, ois, length, noSerialize);
         }
         if(latest) {
             try {
@@ -535,6 +548,125 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         fis = null;
     }
 
+    /** Read a request and its recovery data, which follow its RequestIdentifier. */
+    private void readRequest(PartialLoad loaded, RequestIdentifier reqID, InputStream is, 
+            long length, boolean noSerialize) throws IOException {
+        ClientRequest request = null;
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(is, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                        }
+                    }
+                }
+            } else
+                skipChecksummedObject(is, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
+            try {
+                ClientRequest restored = readRequestFromRecoveryData(is, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            }
+        } else {
+            skipChecksummedObject(is, length);
+        }
+    }
+
+    /** Load from a journal. Only the latest committed version of each request is read. */
+    private void innerLoadJournal(PartialLoad loaded, File file, boolean noSerialize, 
+            ClientContext context, RequestStarterGroup requestStarters) {
+        ClientLayerJournal.Contents contents = null;
+        try {
+            boolean latest = !noSerialize && !loaded.doneSomething();
+            contents = ClientLayerJournal.read(file, checker);
+            byte[] salt = contents.salt;
+            if(salt != null) {
+                loaded.setSalt(salt);
+            } else {
+                Logger.error(this, "Unable to read global salt (checksum failed)");
+                salt = new byte[32];
+            }
+            requestStarters.setGlobalSalt(salt);
+            if(contents.damaged) {
+                Logger.error(this, "Journal "+file+" is damaged, will try the backup");
+                System.err.println("Journal "+file+" is damaged, will try the backup");
+                loaded.setSomethingFailed();
+            }
+            for(ClientLayerJournal.Record record : contents.requests) {
+                RequestIdentifier reqID = null;
+                try {
+                    reqID = new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(record.key)));
+                } catch (IOException e) {
+                    Logger.error(this, "Failed to parse RequestIdentifier in spite of valid checksum (probably a bug): "+e, e);
+                }
+                if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+                    Logger.warning(this, "Not reading request because already have it");
+                    continue;
+                }
+                byte[] payload = contents.readPayload(record);
+                readRequest(loaded, reqID, new ByteArrayInputStream(payload), payload.length, noSerialize);
+            }
+            if(latest && contents.commit != null) {
+                try {
+                    readStatsAndBuckets(new ObjectInputStream(new ByteArrayInputStream(contents.commit)), 
+                            contents.commit.length, context);
+                } catch (Throwable t) {
+                    Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error(this, "Failed to load persistent requests from "+file+" : "+e, e);
+            System.err.println("Failed to load persistent requests from "+file+" : "+e);
+            e.printStackTrace();
+            loaded.setSomethingFailed();
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to load persistent requests from "+file+" : "+t, t);
+            System.err.println("Failed to load persistent requests from "+file+" : "+t);
+            t.printStackTrace();
+            loaded.setSomethingFailed();
+        } finally {
+            if(contents != null) contents.close();
+        }
+    }
+
     private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
         PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
         this.bandwidthStatsPutter.addFrom(storedStatsPutter);
@@ -557,21 +689,136 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        if(useJournal && journal != null) {
+            if(saveJournal(shutdown)) {
+                deleteAfterSuccessfulWrites();
+                // Keep client.dat until the journal has a backup too.
+                if(journal.getBackupFilename().exists()) {
+                    writeToFilename.delete();
+                    writeToBackupFilename.delete();
+                }
+            }
+            return;
+        }
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
         }
         if(innerSave(shutdown)) {
-            if(deleteAfterSuccessfulWrite != null) {
-                deleteAfterSuccessfulWrite.delete();
-                deleteAfterSuccessfulWrite = null;
+            deleteAfterSuccessfulWrites();
+            if(journal != null && journal.getFilename().exists()) {
+                // Switched back from the journal.
+                journal.close();
+                for(File f : journal.getAllFilenames())
+                    f.delete();
             }
-            if(otherDeleteAfterSuccessfulWrite != null) {
-                otherDeleteAfterSuccessfulWrite.delete();
-                otherDeleteAfterSuccessfulWrite = null;
+            if(deleteJournalAfterSuccessfulWrite) {
+                // Switched to writing encrypted, don't leave the queue on disk unencrypted.
+                deleteJournalFiles(dir, baseName);
+                deleteJournalAfterSuccessfulWrite = false;
             }
         }
     }
     
+    private void deleteAfterSuccessfulWrites() {
+        if(deleteAfterSuccessfulWrite != null) {
+            deleteAfterSuccessfulWrite.delete();
+            deleteAfterSuccessfulWrite = null;
+        }
+        if(otherDeleteAfterSuccessfulWrite != null) {
+            otherDeleteAfterSuccessfulWrite.delete();
+            otherDeleteAfterSuccessfulWrite = null;
+        }
+    }
+    
+    /** Append the requests which have changed since the last checkpoint to the journal, or write
+     * all of them if it's the first time. */
+    private boolean saveJournal(boolean shutdown) {
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        try {
+            long start = System.currentTimeMillis();
+            if(!journal.isOpen())
+                journal.startRewrite(salt);
+            ClientRequest[] requests = getRequests();
+            if(shutdown) onShutdown(requests);
+            Set<ByteArrayWrapper> keys = new HashSet<ByteArrayWrapper>();
+            int written = 0;
+            for(ClientRequest req : requests) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(baos);
+                req.getRequestIdentifier().writeTo(dos);
+                dos.close();
+                byte[] key = baos.toByteArray();
+                keys.add(new ByteArrayWrapper(key));
+                baos = new ByteArrayOutputStream();
+                writeChecksummedObject(baos, req, req.toString());
+                writeRecoveryData(baos, req);
+                if(journal.put(key, baos.toByteArray()))
+                    written++;
+            }
+            int removed = journal.retainOnly(keys);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            writeStatsAndBuckets(oos, buckets);
+            oos.close();
+            journal.commit(baos.toByteArray());
+            Logger.normal(this, "Saved "+written+" of "+requests.length+" requests and removed "+removed+
+                    " to "+journal.getFilename()+" in "+(System.currentTimeMillis() - start)+"ms");
+            persistentTempFactory.finishDelayedFree(buckets);
+            if(journal.shouldCompact()) compactJournal(journal);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            // Start again from scratch next time.
+            journal.close();
+            return false;
+        }
+    }
+    
+    private void compactJournal(final ClientLayerJournal journal) {
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    // The old file is still valid.
+                    Logger.error(this, "Failed to compact "+journal.getFilename()+" : "+e, e);
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.LOW_PRIORITY;
+            }
+            
+        }, "Compact "+journal.getFilename());
+    }
+    
+    private void onShutdown(ClientRequest[] requests) {
+        for(ClientRequest req : requests) {
+            if(req == null) continue;
+            try {
+                req.onShutdown(getClientContext());
+            } catch (Throwable t) {
+                Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+            }
+        }
+    }
+    
+    private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+    }
+    
     private boolean innerSave(boolean shutdown) {
         DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
         OutputStream fos = null;
@@ -583,16 +830,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             oos.writeInt(VERSION);
             checker.writeAndChecksum(oos, salt);
             ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
+            if(shutdown) onShutdown(requests);
             oos.writeInt(requests.length);
             for(ClientRequest req : requests) {
                 // Write the request identifier so we can skip reading the request if we already have it.
@@ -604,15 +842,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 // just a single splitfile.
                 writeRecoveryData(oos, req);
             }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
-            }
+            writeStatsAndBuckets(oos, buckets);
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
@@ -632,7 +862,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +879,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -666,7 +896,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -681,7 +911,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,8 +928,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
-        long length = is.readLong();
+    private void skipChecksummedObject(InputStream is, long totalLength) throws IOException {
+        long length = new DataInputStream(is).readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
@@ -743,6 +973,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     }
 
     public synchronized File getWriteFilename() {
+        ClientLayerJournal journal = this.journal;
+        if(useJournal && journal != null && writeToFilename != null)
+            return journal.getFilename();
         return writeToFilename;
     }
 
@@ -757,6 +990,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournalFiles(dir, baseName);
         }
     }
 
@@ -765,6 +999,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToFilename = null;
             writeToBackupFilename = null;
             writeToBucket = null;
+            setJournal(null);
         }
         super.disableWrite();
     }
@@ -0,0 +1,20 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * A KeyListener which can list the keys it wants, so KeyListenerTracker can find it through
+ * its KeyListenerIndex, rather than asking it about every key that passes through the node.
+ */
+interface IndexedKeyListener extends KeyListener {
+
+	/**
+	 * @return KeyListenerIndex.fingerprint() of each key we want, salted by the KeyListenerTracker
+	 * we are registered with, or null if we don't know them yet. In that case we are asked about
+	 * every key, until we call KeyListenerTracker.indexPendingKeys(). Must not change after it
+	 * has been returned.
+	 */
+	int[] getKeyFingerprints();
+
+}
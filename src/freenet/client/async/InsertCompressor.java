@@ -1,5 +1,9 @@
 package freenet.client.async;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,8 +24,10 @@ import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.MultiCodecCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 
 /**
@@ -47,6 +53,10 @@ public class InsertCompressor implements CompressJob {
 	private static volatile boolean logMINOR;
 	private final long generateHashes;
 	private final boolean pre1254;
+	/** Don't bother checking whether smaller files are worth compressing. */
+	static final long MIN_SAMPLE_SIZE = 4*1024*1024;
+	private static final int SAMPLES = 8;
+	private static final int SAMPLE_SIZE = 65536;
 	
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -100,108 +110,125 @@ public class InsertCompressor implements CompressJob {
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
+			if(origSize >= MIN_SAMPLE_SIZE && looksIncompressible(origSize)) {
+				if(logMINOR) Logger.minor(this, "Not compressing "+this+" : samples didn't compress");
+				if(generateHashes != 0) hashes = hash(origSize);
+			} else if(comps.length > 1 && context.rc.tryAcquireCodecSlots(comps.length - 1)) {
 				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = null;
-					OutputStream os = null;
+					for(COMPRESSOR_TYPE comp : comps)
+						onStartCompression(comp, context);
 					MultiHashInputStream hasher = null;
+					InputStream is = null;
 					try {
 						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+						if(generateHashes != 0)
 							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize);
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						} catch (CompressionOutputSizeException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
+						MultiCodecCompressor compressor = new MultiCodecCompressor(comps, bucketFactory, 
+								context.mainExecutor, minSize, CHKBlock.DATA_LENGTH);
+						int chosen = compressor.compress(is, origSize);
+						if(chosen >= 0) {
+							bestCodec = comps[chosen];
+							bestCompressedData = compressor.getBestData();
 						}
 						if(hasher != null) {
+							// Stops early if all the codecs are cancelled.
+							hasher.skip(Long.MAX_VALUE);
 							hashes = hasher.getResults();
-							first = false;
 						}
 					} finally {
 						Closer.close(is);
-						Closer.close(os);
 					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
+				} finally {
+					context.rc.releaseCodecSlots(comps.length - 1);
+				}
+			} else {
+				boolean first = true;
+				for (final COMPRESSOR_TYPE comp : comps) {
+					boolean shouldFreeOnFinally = true;
+					RandomAccessBucket result = null;
+					try {
 						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize "
-											   + minSize);
+							Logger.minor(this, "Attempt to compress using " + comp);
+						// Only produce if we are compressing *the original data*
+						onStartCompression(comp, context);
 
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
+						InputStream is = null;
+						OutputStream os = null;
+						MultiHashInputStream hasher = null;
+						try {
+							is = origData.getInputStream();
+							result = bucketFactory.makeBucket(-1);
+							os = result.getOutputStream();
+							if(first && generateHashes != 0) {
+								if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+								is = hasher = new MultiHashInputStream(is, generateHashes);
+							}
+							try {
+								comp.compress(is, os, origSize, bestCompressedDataSize);
+							} catch (RuntimeException e) {
+								// ArithmeticException has been seen in bzip2 codec.
+								Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+								// Try the next one
+								// RuntimeException is iffy, so lets not try the hasher.
+								continue;
+							} catch (CompressionOutputSizeException e) {
+								if(hasher != null) {
+									is.skip(Long.MAX_VALUE);
+									hashes = hasher.getResults();
+									first = false;
+								}
+								continue; // try next compressor type
+							}
+							if(hasher != null) {
+								hashes = hasher.getResults();
+								first = false;
+							}
+						} finally {
+							Closer.close(is);
+							Closer.close(os);
+						}
+						long resultSize = result.size();
+						long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
+						// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+						if(resultSize <= minSize) {
+							if(logMINOR)
+								Logger.minor(this, "New size " + resultSize + " smaller then minSize "
+												   + minSize);
+
+							bestCodec = comp;
+							if(bestCompressedData != null && bestCompressedData != origData)
+								// Don't need to removeFrom() : we haven't stored it.
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							shouldFreeOnFinally = false;
+							break;
+						}
+						if(resultNumberOfBlocks < bestNumberOfBlocks) {
+							if(logMINOR)
+								Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
+							if(bestCompressedData != null && bestCompressedData != origData)
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							bestCodec = comp;
+							shouldFreeOnFinally = false;
+						}
+					} catch (PersistenceDisabledException e) {
+					    if(!context.jobRunner.shuttingDown())
+					        Logger.error(this, "Database disabled compressing data", new Exception("error"));
+						shouldFreeOnFinally = true;
+						if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
 							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
+					} finally {
+						if(shouldFreeOnFinally && (result != null) && result != origData)
+							result.free();
 					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
 				}
-			}
 			
+			}
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 			
 			if(persistent) {
@@ -248,6 +275,66 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	/**
+	 * Compress a few samples spread across the data. Data that is already compressed (video,
+	 * audio, archives) won't shrink at all, and then none of the codecs will get the whole file
+	 * below its original size either, so there is no point spending hours finding that out.
+	 * @return True if none of the samples got any smaller.
+	 */
+	private boolean looksIncompressible(long origSize) throws IOException {
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(origData.getInputStream());
+			byte[] sample = new byte[SAMPLE_SIZE];
+			long gap = (origSize - SAMPLES * SAMPLE_SIZE) / (SAMPLES - 1);
+			for(int i=0;i<SAMPLES;i++) {
+				if(i > 0) FileUtil.skipFully(is, gap);
+				new DataInputStream(is).readFully(sample);
+				ByteArrayOutputStream os = new ByteArrayOutputStream(SAMPLE_SIZE);
+				try {
+					COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(sample), os, SAMPLE_SIZE, SAMPLE_SIZE - 1);
+					return false;
+				} catch (CompressionOutputSizeException e) {
+					// Try the next one.
+				}
+			}
+			return true;
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private HashResult[] hash(long origSize) throws IOException {
+		MultiHashInputStream hasher = null;
+		try {
+			hasher = new MultiHashInputStream(origData.getInputStream(), generateHashes);
+			hasher.skip(origSize);
+			return hasher.getResults();
+		} finally {
+			Closer.close(hasher);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
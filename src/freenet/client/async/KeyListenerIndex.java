@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.List;
+
+/**
+ * Finds the KeyListener's which may want a key, from a 32-bit fingerprint of the salted key,
+ * without asking every listener. An open addressing hash table with linear probing: each slot
+ * holds a fingerprint and a listener, and a fingerprint may appear several times, once for each
+ * listener which wants it. About 11 bytes per key at the maximum load factor.
+ *
+ * A fingerprint can match keys which the listener doesn't want (other keys with the same
+ * fingerprint, or keys which have been found since), so callers must still ask the listeners
+ * returned. Listeners are only removed as a whole, when they are unregistered.
+ *
+ * LOCKING: Not thread-safe, KeyListenerTracker synchronizes.
+ */
+final class KeyListenerIndex {
+
+	private static final int MIN_CAPACITY = 64;
+
+	private int[] fingerprints;
+	/** null means the slot is empty. */
+	private KeyListener[] listeners;
+	private int mask;
+	private int size;
+
+	KeyListenerIndex() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/** The salted key is already a salted hash, so any 32 bits of it are as good as any others. */
+	static int fingerprint(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xFF) << 24) | ((saltedKey[1] & 0xFF) << 16) |
+			((saltedKey[2] & 0xFF) << 8) | (saltedKey[3] & 0xFF);
+	}
+
+	private void allocate(int capacity) {
+		fingerprints = new int[capacity];
+		listeners = new KeyListener[capacity];
+		mask = capacity - 1;
+	}
+
+	/** @return The number of (fingerprint, listener) pairs. */
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return listeners.length;
+	}
+
+	/** Add a listener's keys. Duplicate fingerprints for the same listener are only added once. */
+	void add(KeyListener listener, int[] keys) {
+		ensureCapacity(size + keys.length);
+		for(int fp : keys)
+			insert(fp, listener);
+	}
+
+	private void insert(int fp, KeyListener listener) {
+		int i = fp & mask;
+		while(listeners[i] != null) {
+			if(fingerprints[i] == fp && listeners[i] == listener) return;
+			i = (i + 1) & mask;
+		}
+		fingerprints[i] = fp;
+		listeners[i] = listener;
+		size++;
+	}
+
+	/** Remove a listener's keys.
+	 * @param keys The same fingerprints that were passed to add(). */
+	void remove(KeyListener listener, int[] keys) {
+		for(int fp : keys) {
+			int i = fp & mask;
+			while(listeners[i] != null) {
+				if(fingerprints[i] == fp && listeners[i] == listener) {
+					delete(i);
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+		if(size * 8 < listeners.length && listeners.length > MIN_CAPACITY)
+			resize(Math.max(MIN_CAPACITY, tableSizeFor(size)));
+	}
+
+	/** Empty a slot, moving later entries in the same run back so lookups still find them. */
+	private void delete(int hole) {
+		int i = hole;
+		while(true) {
+			i = (i + 1) & mask;
+			if(listeners[i] == null) break;
+			int home = fingerprints[i] & mask;
+			// Move the entry back if its home slot is not between the hole and where it is now.
+			boolean stays = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+			if(!stays) {
+				fingerprints[hole] = fingerprints[i];
+				listeners[hole] = listeners[i];
+				hole = i;
+			}
+		}
+		fingerprints[hole] = 0;
+		listeners[hole] = null;
+		size--;
+	}
+
+	/** Add every listener which has the fingerprint to the list, if it isn't in it already. */
+	void get(int fp, List<KeyListener> matches) {
+		int i = fp & mask;
+		while(listeners[i] != null) {
+			if(fingerprints[i] == fp && !matches.contains(listeners[i]))
+				matches.add(listeners[i]);
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void ensureCapacity(int needed) {
+		// Load factor at most 3/4.
+		if(needed <= listeners.length - (listeners.length >> 2)) return;
+		resize(tableSizeFor(needed));
+	}
+
+	/** @return A power of two with room for this many entries at a load factor of at most 1/2. */
+	private static int tableSizeFor(int entries) {
+		int capacity = Integer.highestOneBit(Math.max(entries, 1)) << 2;
+		return Math.max(MIN_CAPACITY, capacity);
+	}
+
+	private void resize(int capacity) {
+		int[] oldFingerprints = fingerprints;
+		KeyListener[] oldListeners = listeners;
+		allocate(capacity);
+		size = 0;
+		for(int i=0;i<oldListeners.length;i++) {
+			if(oldListeners[i] != null)
+				insert(oldFingerprints[i], oldListeners[i]);
+		}
+	}
+
+}
@@ -7,7 +7,9 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import freenet.crypt.RandomSource;
 import freenet.crypt.SHA256;
@@ -29,6 +31,10 @@ import freenet.support.Logger.LogLevel;
  * <p>The queue of requests to run, and the algorithm to choose which to start, is in
  * @see ClientRequestSchedulerSelector .</p>
  * 
+ * <p>Listeners which can list their keys (IndexedKeyListener's) are found through a
+ * KeyListenerIndex, so checking a key costs the same however many downloads are queued. Others,
+ * and any beyond MAX_INDEXED_KEYS, are asked about every key.</p>
+ * 
  * PERSISTENCE: This class is NOT serialized, it is recreated on every startup, and downloads are
  * re-registered with this class (for KeyListeners) and downloads and uploads are re-registered 
  * with the ClientRequestSelector.
@@ -62,6 +68,14 @@ class KeyListenerTracker implements KeySalter {
 	protected final ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	private final ArrayList<KeyListener> keyListeners;
+	/** The listeners which are not in the index, and must be asked about every key. */
+	private final ArrayList<KeyListener> unindexedListeners;
+	/** The keys of listeners which are in the index, by listener. */
+	private final Map<KeyListener, int[]> indexedListeners;
+	private final KeyListenerIndex index;
+	/** Limit on the keys in the index. Each costs around 11 bytes in the index, plus 4 bytes kept
+	 * by the listener. Listeners which would take us over the limit are asked about every key. */
+	static final int MAX_INDEXED_KEYS = 4*1024*1024;
 
 	final boolean persistent;
 	
@@ -75,6 +89,9 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		unindexedListeners = new ArrayList<KeyListener>();
+		indexedListeners = new HashMap<KeyListener, int[]>();
+		index = new KeyListenerIndex();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -102,15 +119,55 @@ class KeyListenerTracker implements KeySalter {
 			if(keyListeners.contains(listener))
 				return;
 			keyListeners.add(listener);
+			if(!addToIndex(listener))
+				unindexedListeners.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
 	}
 	
+	/** A registered listener which didn't know its keys when it was registered now does. */
+	void indexPendingKeys(KeyListener listener) {
+		synchronized (this) {
+			if(indexedListeners.containsKey(listener) || !keyListeners.contains(listener))
+				return;
+			if(addToIndex(listener))
+				unindexedListeners.remove(listener);
+		}
+		if (logMINOR)
+			Logger.minor(this, "Indexed keys for "+listener+" : "+index.size()+" keys in index");
+	}
+	
+	/** @return True if the listener's keys are now in the index. */
+	private synchronized boolean addToIndex(KeyListener listener) {
+		if(!(listener instanceof IndexedKeyListener)) return false;
+		int[] keys;
+		try {
+			keys = ((IndexedKeyListener) listener).getKeyFingerprints();
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in getKeyFingerprints callback for %s", listener), t);
+			return false;
+		}
+		if(keys == null) return false;
+		if(index.size() + keys.length > MAX_INDEXED_KEYS) {
+			if (logMINOR)
+				Logger.minor(this, "Not indexing "+keys.length+" keys for "+listener+" : index is full");
+			return false;
+		}
+		index.add(listener, keys);
+		indexedListeners.put(listener, keys);
+		return true;
+	}
+	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			int[] keys = indexedListeners.remove(listener);
+			if(keys != null)
+				index.remove(listener, keys);
+			else
+				unindexedListeners.remove(listener);
 		}
 		listener.onRemove();
 		if (logMINOR)
@@ -201,13 +258,9 @@ class KeyListenerTracker implements KeySalter {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
-			try {
-				if (listener.probablyWantKey(key, saltedKey)) {
-					return true;
-				}
-			} catch (Throwable t) {
-				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+		for (KeyListener listener : candidates(saltedKey)) {
+			if (probablyWantKey(listener, key, saltedKey)) {
+				return true;
 			}
 		}
 		return false;
@@ -303,18 +356,40 @@ class KeyListenerTracker implements KeySalter {
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
-				try {
-					if (!listener.probablyWantKey(key, saltedKey)) {
-						continue;
-					}
-				} catch (Throwable t) {
-					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
-					continue;
+			for (KeyListener listener : candidates(saltedKey)) {
+				if (probablyWantKey(listener, key, saltedKey)) {
+					matches.add(listener);
 				}
-				matches.add(listener);
 			}
 		}
 		return matches;
 	}
+	
+	/** @return The listeners which might want the key: those the index finds, and those not in
+	 * the index. */
+	private synchronized List<KeyListener> candidates(byte[] saltedKey) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>(unindexedListeners.size() + 4);
+		index.get(KeyListenerIndex.fingerprint(saltedKey), candidates);
+		candidates.addAll(unindexedListeners);
+		return candidates;
+	}
+	
+	private boolean probablyWantKey(KeyListener listener, Key key, byte[] saltedKey) {
+		try {
+			return listener.probablyWantKey(key, saltedKey);
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+			return false;
+		}
+	}
+	
+	/** @return The number of keys in the index. */
+	synchronized int countIndexedKeys() {
+		return index.size();
+	}
+	
+	/** @return The number of listeners which are asked about every key. */
+	synchronized int countUnindexedListeners() {
+		return unindexedListeners.size();
+	}
 }
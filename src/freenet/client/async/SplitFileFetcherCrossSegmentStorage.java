@@ -117,6 +117,11 @@ public class SplitFileFetcherCrossSegmentStorage {
                 return prio;
             }
             
+            @Override
+            public double getCompletion() {
+                return parent.getCompletion();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
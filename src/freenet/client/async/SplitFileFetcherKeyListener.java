@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -18,11 +19,12 @@ import freenet.keys.NodeCHK;
 import freenet.node.SendableGet;
 import freenet.support.BinaryBloomFilter;
 import freenet.support.BloomFilter;
+import freenet.support.BloomFilter.Hashing;
 import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexedKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -57,12 +59,20 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private final CountingBloomFilter filter;
     /** The per-segment bloom filters, containing the keys for each segment. These are not changed. */
     private final BinaryBloomFilter[] segmentFilters;
+    /** How the filters choose bit positions. Downloads stored before VERSION 2 use RANDOM. */
+    private final Hashing hashing;
     private boolean finishedSetup;
     private final boolean persistent;
     /** Does the main bloom filter need writing? */
     private boolean dirty;
     private transient boolean mustRegenerateMainFilter;
     private transient boolean mustRegenerateSegmentFilters;
+    /** Fingerprints of the globally salted keys, for KeyListenerTracker's index. Not stored, so
+     * when resuming they are only known once SplitFileFetcherStorage has read the keys again. */
+    private transient int[] keyFingerprints = new int[0];
+    private transient int keyFingerprintCount;
+    /** True once keyFingerprints contains every key. */
+    private transient boolean haveAllKeyFingerprints;
     
     /** Create a set of bloom filters for a new download.
      * @throws FetchException */
@@ -82,6 +92,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         this.storage = storage;
         this.localSalt = localSalt;
         this.persistent = persistent;
+        this.hashing = Hashing.DOUBLE;
         int mainElementsPerKey = DEFAULT_MAIN_BLOOM_ELEMENTS_PER_KEY;
         mainBloomK = (int) (mainElementsPerKey * 0.7);
         long elementsLong = origSize * mainElementsPerKey;
@@ -110,21 +121,23 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, hashing);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, hashing);
         filter.setWarnOnRemoveFromEmpty();
     }
     
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
-            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
+            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt,
+            Hashing hashing) 
     throws IOException, StorageFormatException {
         this.storage = storage;
         this.fetcher = callback;
         this.persistent = persistent;
+        this.hashing = hashing;
         localSalt = new byte[32];
         dis.readFully(localSalt);
         mainBloomFilterSizeBytes = dis.readInt();
@@ -158,7 +171,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, hashing);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
@@ -173,7 +186,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, hashing);
         filter.setWarnOnRemoveFromEmpty();
     }
 
@@ -184,10 +197,11 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     synchronized void addKey(Key key, int segNo, KeySalter salter) {
         if(finishedSetup && !(mustRegenerateMainFilter || mustRegenerateSegmentFilters)) 
             throw new IllegalStateException();
+        byte[] saltedKey = salter.saltKey(key);
         if(mustRegenerateMainFilter || !finishedSetup) {
-            byte[] saltedKey = salter.saltKey(key);
             filter.addKey(saltedKey);
         }
+        addKeyFingerprint(saltedKey);
         if(mustRegenerateSegmentFilters || !finishedSetup) {
             byte[] localSalted = localSaltKey(key);
             segmentFilters[segNo].addKey(localSalted);
@@ -198,6 +212,26 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     
     synchronized void finishedSetup() {
         finishedSetup = true;
+        addedAllKeyFingerprints();
+    }
+
+    /** Add a key to the list for KeyListenerTracker's index, without changing the filters. */
+    synchronized void addKeyFingerprint(byte[] saltedKey) {
+        if(haveAllKeyFingerprints) return;
+        if(keyFingerprintCount == keyFingerprints.length)
+            keyFingerprints = Arrays.copyOf(keyFingerprints, Math.max(64, keyFingerprintCount * 2));
+        keyFingerprints[keyFingerprintCount++] = KeyListenerIndex.fingerprint(saltedKey);
+    }
+
+    synchronized void addedAllKeyFingerprints() {
+        if(haveAllKeyFingerprints) return;
+        keyFingerprints = Arrays.copyOf(keyFingerprints, keyFingerprintCount);
+        haveAllKeyFingerprints = true;
+    }
+
+    @Override
+    public synchronized int[] getKeyFingerprints() {
+        return haveAllKeyFingerprints ? keyFingerprints : null;
     }
 
     private byte[] localSaltKey(Key key) {
@@ -359,6 +393,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         mustRegenerateMainFilter = false;
         mustRegenerateSegmentFilters = false;
         finishedSetup = true;
+        addedAllKeyFingerprints();
     }
 
 }
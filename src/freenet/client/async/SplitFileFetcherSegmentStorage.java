@@ -295,6 +295,11 @@ public class SplitFileFetcherSegmentStorage {
                 return prio;
             }
             
+            @Override
+            public double getCompletion() {
+                return parent.getCompletion();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
@@ -14,6 +14,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FailureCodeTracker;
@@ -38,6 +39,7 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
+import freenet.support.BloomFilter.Hashing;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.RandomArrayIterator;
@@ -87,6 +89,8 @@ import freenet.support.math.MersenneTwister;
  * the block store and key list, which happens routinely when FEC decoding.
  * 
  * BLOOM FILTERS: Main bloom filter. Segment bloom filters.
+ * - Version 1 files use BloomFilter.Hashing.RANDOM, version 2 files use Hashing.DOUBLE. Old files
+ * are not converted, their filters are used as they are until the download finishes.
  * 
  * ORIGINAL METADATA: For extra robustness, keep the full original metadata.
  * 
@@ -137,6 +141,9 @@ public class SplitFileFetcherStorage {
     final boolean completeViaTruncation;
     /** The segments */
     final SplitFileFetcherSegmentStorage[] segments;
+    /** Segments which have decoded, for getCompletion(). Not locked so FEC jobs can read it
+     * whatever locks the caller holds. */
+    private final AtomicInteger segmentsSucceeded = new AtomicInteger();
     /** The cross-segments. Null if no cross-segments. */
     final SplitFileFetcherCrossSegmentStorage[] crossSegments;
     /** Random iterator for segment selection. LOCKING: must synchronize on the iterator. */
@@ -220,8 +227,8 @@ public class SplitFileFetcherStorage {
     static final long HAS_CHECKED_DATASTORE_FLAG = 1;
     /** Fixed value posted at the end of the file (if plaintext!) */
     static final long END_MAGIC = 0x28b32d99416eb6efL;
-    /** Current format version */
-    static final int VERSION = 1;
+    /** Current format version. 2 changed the Bloom filter hashing. */
+    static final int VERSION = 2;
     
     /** List of segments we need to tryStartDecode() on because their metadata was corrupted on
      * startup. */
@@ -649,7 +656,7 @@ public class SplitFileFetcherStorage {
         raf.pread(rafLength-12, versionBuf, 0, 4);
         dis = new DataInputStream(new ByteArrayInputStream(versionBuf));
         int version = dis.readInt();
-        if(version != 1)
+        if(version != 1 && version != VERSION)
             throw new StorageFormatException("Wrong version "+version);
         // 2 bytes: Checksum type
         byte[] checksumTypeBuf = new byte[2];
@@ -827,7 +834,8 @@ public class SplitFileFetcherStorage {
             for(int i=0;i<crossSegments;i++) {
                 this.crossSegments[i] = new SplitFileFetcherCrossSegmentStorage(this, i, dis);
             }
-            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt);
+            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt, 
+                    version == 1 ? Hashing.RANDOM : Hashing.DOUBLE);
         } catch (IOException e) {
             // We are reading from an array! Bad as written perhaps?
             throw new StorageFormatException("Cannot read basic settings even though passed checksum: "+e, e);
@@ -852,6 +860,8 @@ public class SplitFileFetcherStorage {
                     segmentsToTryDecode = new ArrayList<SplitFileFetcherSegmentStorage>();
                 segmentsToTryDecode.add(segment);
             }
+            if(segment.hasSucceeded())
+                segmentsSucceeded.incrementAndGet();
         }
         for(int i=0;i<segments.length;i++) {
             SplitFileFetcherSegmentStorage segment = segments[i];
@@ -975,6 +985,7 @@ public class SplitFileFetcherStorage {
                             }
                         }
                         keyListener.addedAllKeys();
+                        indexKeys(salt);
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
@@ -994,9 +1005,48 @@ public class SplitFileFetcherStorage {
             }
             return false;
         }
+        if(keyListener.getKeyFingerprints() == null) {
+            try {
+                this.jobRunner.queue(new PersistentJob() {
+
+                    @Override
+                    public boolean run(ClientContext context) {
+                        KeySalter salt = fetcher.getSalter();
+                        for(SplitFileFetcherSegmentStorage segment : segments) {
+                            try {
+                                SplitFileSegmentKeys keys = segment.readSegmentKeys();
+                                for(int j=0;j<keys.totalKeys();j++)
+                                    keyListener.addKeyFingerprint(salt.saltKey(keys.getKey(j, null, false).getNodeKey(false)));
+                            } catch (IOException e) {
+                                // We'll find out properly when we try to fetch or decode.
+                                Logger.error(this, "Unable to read keys for index for "+SplitFileFetcherStorage.this+" : "+e, e);
+                                return false;
+                            } catch (ChecksumFailedException e) {
+                                Logger.error(this, "Unable to read keys for index for "+SplitFileFetcherStorage.this+" : "+e, e);
+                                return false;
+                            }
+                        }
+                        keyListener.addedAllKeyFingerprints();
+                        indexKeys(salt);
+                        return false;
+                    }
+                    
+                }, NativeThread.LOW_PRIORITY);
+            } catch (PersistenceDisabledException e) {
+                // Ignore.
+            }
+        }
         return true;
     }
     
+    /** Now that the key listener knows all its keys, tell the tracker it is registered with, so
+     * it can find it by key. Until then it is asked about every key. The global salter is the
+     * tracker. */
+    private void indexKeys(KeySalter salt) {
+        if(salt instanceof KeyListenerTracker)
+            ((KeyListenerTracker) salt).indexPendingKeys(keyListener);
+    }
+    
     OutputStream checksumOutputStream(OutputStream os) {
         return checksumChecker.checksumWriter(os);
     }
@@ -1127,10 +1177,17 @@ public class SplitFileFetcherStorage {
         return fetcher.getPriorityClass();
     }
 
+    /** @return Roughly how far through the download we are, from 0.0 to 1.0, going by how many
+     * segments have decoded. Used to decode segments for nearly finished downloads first. */
+    double getCompletion() {
+        return Math.min(1.0, segmentsSucceeded.get() / (double) segments.length);
+    }
+
     /** A segment successfully completed. 
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        segmentsSucceeded.incrementAndGet();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
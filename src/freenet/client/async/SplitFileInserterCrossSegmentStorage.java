@@ -165,6 +165,11 @@ public class SplitFileInserterCrossSegmentStorage {
                 return prio;
             }
             
+            @Override
+            public double getCompletion() {
+                return parent.getCompletion();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
@@ -409,6 +409,11 @@ public class SplitFileInserterSegmentStorage {
                 return prio;
             }
             
+            @Override
+            public double getCompletion() {
+                return parent.getCompletion();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
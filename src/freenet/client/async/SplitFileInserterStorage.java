@@ -11,6 +11,7 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.ClientMetadata;
@@ -105,6 +106,9 @@ public class SplitFileInserterStorage {
 
     final SplitFileInserterSegmentStorage[] segments;
     final SplitFileInserterCrossSegmentStorage[] crossSegments;
+    /** Segments which have encoded, for getCompletion(). Not locked so FEC jobs can read it
+     * whatever locks the caller holds. */
+    private final AtomicInteger segmentsEncoded = new AtomicInteger();
 
     /** Random iterator for segment selection. LOCKING: cooldownLock must be held. */
     private final RandomArrayIterator<SplitFileInserterSegmentStorage> randomSegmentIterator;
@@ -1107,7 +1111,8 @@ public class SplitFileInserterStorage {
         }
         for(SplitFileInserterSegmentStorage segment : segments)
             segment.checkKeys();
-        Logger.normal(this, "Starting splitfile, "+countEncodedSegments()+"/"+segments.length+" segments encoded on "+this);
+        segmentsEncoded.set(countEncodedSegments());
+        Logger.normal(this, "Starting splitfile, "+segmentsEncoded.get()+"/"+segments.length+" segments encoded on "+this);
         if(crossSegments != null)
             Logger.normal(this, "Starting splitfile, "+countEncodedCrossSegments()+"/"+crossSegments.length+" cross-segments encoded on "+this);
         if(startSegments) {
@@ -1118,6 +1123,12 @@ public class SplitFileInserterStorage {
         }
     }
 
+    /** @return Roughly how far through encoding we are, from 0.0 to 1.0, going by how many
+     * segments have encoded. Used to encode segments for nearly finished inserts first. */
+    double getCompletion() {
+        return Math.min(1.0, segmentsEncoded.get() / (double) segments.length);
+    }
+
     public int countEncodedSegments() {
         int total = 0;
         for(SplitFileInserterSegmentStorage segment : segments) {
@@ -1183,6 +1194,7 @@ public class SplitFileInserterStorage {
      * @param completed
      */
     public void onFinishedEncoding(final SplitFileInserterSegmentStorage completed) {
+        segmentsEncoded.incrementAndGet();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
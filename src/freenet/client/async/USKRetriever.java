@@ -5,9 +5,8 @@ package freenet.client.async;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -32,6 +31,7 @@ import freenet.support.io.Closer;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
+import freenet.support.io.RingBufferPipe;
 
 /**
  * Poll a USK, and when a new slot is found, fetch it. 
@@ -131,16 +131,17 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		InputStream pipeIn = null;
+		OutputStream pipeOut = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
+				RingBufferPipe pipe = new RingBufferPipe(DecompressorThreadManager.getBufferSize());
+				pipeIn = pipe.getInputStream();
+				pipeOut = pipe.getOutputStream();
+				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen, context.mainExecutor);
 				pipeIn = decompressorManager.execute();
 				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 				worker.start();
@@ -256,7 +256,23 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 			Bucket output = null;
 			InputStream is = null;
 			OutputStream os = null;
+			FilteredContentCache filteredCache = tracker.filteredContentCache;
+			FilteredContentCache.Key cacheKey = null;
 			try {
+				if(filteredCache != null) {
+					cacheKey = new FilteredContentCache.Key(uri, fullMimeType, fctx.charset, result.alreadyFiltered);
+					try {
+						output = filteredCache.get(cacheKey, context.tempBucketFactory);
+					} catch (IOException e) {
+						Logger.normal(this, "Failed reading filtered data from cache, filtering again: "+e, e);
+					}
+					if(output != null) {
+						this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
+						output = null;
+						return true;
+					}
+				}
+				long invalidations = filteredCache == null ? 0 : filteredCache.getInvalidations();
 				output = context.tempBucketFactory.makeBucket(-1);
 				is = data.getInputStream();
 				os = output.getOutputStream();
@@ -265,6 +281,13 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				is = null;
 				os.close();
 				os = null;
+				if(filteredCache != null) {
+					try {
+						filteredCache.put(cacheKey, output, data.size(), invalidations, context.tempBucketFactory);
+					} catch (IOException e) {
+						Logger.normal(this, "Failed caching filtered data: "+e, e);
+					}
+				}
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
 				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
 				output = null;
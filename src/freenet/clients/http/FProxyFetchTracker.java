@@ -35,12 +35,20 @@ public class FProxyFetchTracker implements Runnable {
 	private final RequestClient rc;
 	private boolean queuedJob;
 	private boolean requeue;
+	/** Filtered copies of pages found in the download cache. Null if there isn't one. */
+	final FilteredContentCache filteredContentCache;
 
-	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc,
+			FilteredContentCache filteredContentCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		this.filteredContentCache = filteredContentCache;
+	}
+
+	public FilteredContentCache getFilteredContentCache() {
+		return filteredContentCache;
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
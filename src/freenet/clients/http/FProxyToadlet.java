@@ -1116,7 +1116,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		core.random.nextBytes(random);
 
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), server.getFilteredContentCache());
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
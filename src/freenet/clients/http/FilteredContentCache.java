@@ -0,0 +1,241 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
+
+/**
+ * Keeps the output of the content filter for pages which fproxy found in the download cache, so
+ * viewing the same page or style sheet again doesn't run the filter again. Entries are kept in
+ * temp buckets, and the least recently used are dropped when the total size goes over the limit.
+ * Freenet keys don't change, so an entry only needs to be dropped when something which affects
+ * the filter changes: the filter settings or the link filter exceptions, see clear().
+ *
+ * Callers get a copy of the cached data, because fproxy frees the data when it is done with it.
+ *
+ * LOCKING: Synchronized on this, including while copying data in and out, so a bucket is never
+ * freed while it is being copied.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Entries bigger than the maximum size divided by this aren't cached, so one big page can't
+	 * push out everything else. */
+	static final int MAX_ENTRY_DIVISOR = 4;
+
+	private final LRUMap<Key, Entry> entries = new LRUMap<Key, Entry>();
+	private long maxSize;
+	private long size;
+	private long hits;
+	private long misses;
+	private long bytesSaved;
+	private long evictions;
+	private long invalidations;
+
+	/** Everything which the filter's output depends on, apart from the filter settings. */
+	static final class Key {
+
+		final FreenetURI uri;
+		final String mimeType;
+		final String charset;
+		/** If the data was already filtered when it was downloaded, it is filtered again, which
+		 * might not give exactly the same result as filtering the original. */
+		final boolean alreadyFiltered;
+		private final int hashCode;
+
+		Key(FreenetURI uri, String mimeType, String charset, boolean alreadyFiltered) {
+			this.uri = uri;
+			this.mimeType = mimeType;
+			this.charset = charset;
+			this.alreadyFiltered = alreadyFiltered;
+			int hash = uri.hashCode();
+			hash = hash * 31 + mimeType.hashCode();
+			hash = hash * 31 + (charset == null ? 0 : charset.hashCode());
+			hashCode = hash * 2 + (alreadyFiltered ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && alreadyFiltered == k.alreadyFiltered &&
+				uri.equals(k.uri) && mimeType.equals(k.mimeType) &&
+				(charset == null ? k.charset == null : charset.equals(k.charset));
+		}
+
+		@Override
+		public String toString() {
+			return uri+":"+mimeType+":"+charset+(alreadyFiltered ? ":refiltered" : "");
+		}
+
+	}
+
+	private static final class Entry {
+
+		final Bucket data;
+		/** The size of the data before it was filtered. */
+		final long originalSize;
+
+		Entry(Bucket data, long originalSize) {
+			this.data = data;
+			this.originalSize = originalSize;
+		}
+
+	}
+
+	/** @param maxSize The maximum total size of the filtered data. 0 disables the cache. */
+	public FilteredContentCache(long maxSize) {
+		if(maxSize < 0) throw new IllegalArgumentException();
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Look up the filtered data.
+	 * @param bf Where to put the copy.
+	 * @return A copy of the filtered data, which the caller must free, or null if it isn't cached.
+	 * @throws IOException If copying the data failed. The entry is dropped.
+	 */
+	synchronized Bucket get(Key key, BucketFactory bf) throws IOException {
+		Entry entry = entries.get(key);
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(entry.data.size());
+			BucketTools.copy(entry.data, copy);
+		} catch (IOException e) {
+			Closer.close(copy);
+			remove(key, entry);
+			throw e;
+		}
+		entries.push(key, entry);
+		hits++;
+		bytesSaved += entry.originalSize;
+		if(logMINOR) Logger.minor(this, "Hit for "+key);
+		return copy;
+	}
+
+	/**
+	 * Cache a copy of the filtered data, if it is small enough.
+	 * @param filtered The filtered data. Not freed or changed.
+	 * @param originalSize The size of the data before it was filtered.
+	 * @param invalidations getInvalidations() from before the data was filtered. If the cache
+	 * has been cleared since, the data may have been filtered with the old settings, so it isn't
+	 * cached.
+	 * @param bf Where to put the copy.
+	 */
+	synchronized void put(Key key, Bucket filtered, long originalSize, long invalidations,
+			BucketFactory bf) throws IOException {
+		if(invalidations != this.invalidations) return;
+		long length = filtered.size();
+		if(length > maxSize / MAX_ENTRY_DIVISOR) return;
+		Entry old = entries.get(key);
+		if(old != null) remove(key, old);
+		Bucket copy = bf.makeBucket(length);
+		try {
+			BucketTools.copy(filtered, copy);
+		} catch (IOException e) {
+			copy.free();
+			throw e;
+		}
+		copy.setReadOnly();
+		entries.push(key, new Entry(copy, originalSize));
+		size += length;
+		shrink();
+	}
+
+	/** Drop the least recently used entries until we are within the maximum size. */
+	private void shrink() {
+		while(size > maxSize) {
+			Key evict = entries.peekKey();
+			remove(evict, entries.get(evict));
+			evictions++;
+		}
+	}
+
+	private void remove(Key key, Entry entry) {
+		entries.removeKey(key);
+		size -= entry.data.size();
+		entry.data.free();
+	}
+
+	/** Drop everything, because something which affects the filter's output has changed. */
+	public synchronized void clear() {
+		invalidations++;
+		if(logMINOR) Logger.minor(this, "Clearing "+entries.size()+" entries");
+		while(!entries.isEmpty())
+			entries.popValue().data.free();
+		size = 0;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		if(maxSize < 0) throw new IllegalArgumentException();
+		this.maxSize = maxSize;
+		shrink();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return The total size of the data which didn't need to be filtered again. */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** @return How many times the cache has been cleared. */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+}
@@ -720,6 +720,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 							NodeNeedRestartException {
 						if(val < -1) throw new InvalidConfigValueException("-1 = disabled, 0+ = set a minimum interval"); // FIXME l10n
 						HTMLFilter.metaRefreshSamePageMinInterval = val;
+						filteredContentCache.clear();
 					}
 		}, false);
 		HTMLFilter.metaRefreshSamePageMinInterval = Math.max(-1, fproxyConfig.getInt("metaRefreshSamePageInterval"));
@@ -738,6 +739,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 							NodeNeedRestartException {
 						if(val < -1) throw new InvalidConfigValueException("-1 = disabled, 0+ = set a minimum interval"); // FIXME l10n
 						HTMLFilter.metaRefreshRedirectMinInterval = val;
+						filteredContentCache.clear();
 					}
 		}, false);
 		HTMLFilter.metaRefreshRedirectMinInterval = Math.max(-1, fproxyConfig.getInt("metaRefreshRedirectInterval"));
@@ -746,6 +748,25 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				configItemOrder++, true, false, "SimpleToadletServer.refilterPolicy", "SimpleToadletServer.refilterPolicyLong", new ReFilterCallback());
 		
 		this.refilterPolicy = REFILTER_POLICY.valueOf(fproxyConfig.getString("refilterPolicy"));
+
+		fproxyConfig.register("filteredContentCacheSize", "16MiB", configItemOrder++, true, false,
+				"SimpleToadletServer.filteredContentCacheSize", "SimpleToadletServer.filteredContentCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return filteredContentCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("filteredContentCacheSizeMustBePositive"));
+						filteredContentCache.setMaxSize(val);
+					}
+		}, true);
+		long filteredContentCacheSize = fproxyConfig.getLong("filteredContentCacheSize");
+		if(filteredContentCacheSize < 0) filteredContentCacheSize = 0;
+		filteredContentCache = new FilteredContentCache(filteredContentCacheSize);
 		
 		// Network seclevel not physical seclevel because bad filtering can cause network level anonymity breaches.
 		SimpleToadletServer.isPanicButtonToBeShown = fproxyConfig.getBoolean("showPanicButton");
@@ -891,6 +912,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			else toadlets.addLast(te);
 			t.container = this;
 		}
+		// Might change which links are excepted from the filter.
+		filteredContentCache.clear();
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
 		}
@@ -916,6 +939,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if(e.menu != null && e.name != null) {
 				pageMaker.removeNavigationLink(e.menu, e.name);
 			}
+			filteredContentCache.clear();
 		}
 	}
 	
@@ -1196,6 +1220,13 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	}
 	
 	private REFILTER_POLICY refilterPolicy;
+	/** Filtered pages from the download cache. Cleared when the filter settings or the link filter
+	 * exceptions change. */
+	private final FilteredContentCache filteredContentCache;
+
+	public FilteredContentCache getFilteredContentCache() {
+		return filteredContentCache;
+	}
 
 	@Override
 	public REFILTER_POLICY getReFilterPolicy() {
@@ -43,10 +43,13 @@ import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
+import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
+import freenet.support.io.DirectMemoryArena;
 import freenet.support.io.NativeThread;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -437,6 +440,9 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			HTMLNode fecJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawFECJobsBox(fecJobsInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -633,6 +639,8 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
+		double[] jobWaitTimesByPriority = stats.getJobWaitTimesByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -640,12 +648,54 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("jobWaitTime"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null) {
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
+				row.addChild("td", fix1p1.format(jobWaitTimesByPriority[i]));
+			}
+		}
+	}
+
+	private void drawFECJobsBox(HTMLNode node) {
+		MemoryLimitedJobRunner runner = core.memoryLimitedJobRunner;
+		node.addChild("div", "class", "infobox-header", l10n("fecJobsTitle"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		HTMLNode list = content.addChild("ul");
+		list.addChild("li", l10n("fecJobsMemory", new String[] { "used", "capacity" },
+				new String[] { SizeUtil.formatSize(runner.getUsed(), true), SizeUtil.formatSize(runner.getCapacity(), true) }));
+		list.addChild("li", l10n("fecJobsThreads", new String[] { "running", "max" },
+				new String[] { Integer.toString(runner.getRunningThreads()), Integer.toString(runner.getMaxThreads()) }));
+		list.addChild("li", l10n("fecJobsQueued", "count", Integer.toString(runner.getQueuedJobs())));
+		list.addChild("li", l10n("fecJobsHeapLimited", "count", Long.toString(runner.getHeapLimited())));
+
+		long[] waitTimes = runner.getWaitTimes();
+		long[] runTimes = runner.getRunTimes();
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("fecJobsTime"));
+		row.addChild("th", l10n("fecJobsWaited"));
+		row.addChild("th", l10n("fecJobsRan"));
+		for(int i=0;i<waitTimes.length;i++) {
+			if(waitTimes[i] == 0 && runTimes[i] == 0) continue;
+			row = table.addChild("tr");
+			// Bucket i is up to 2^i milliseconds, the last bucket is everything longer.
+			String time;
+			if(i == waitTimes.length - 1)
+				time = "> " + TimeUtil.formatTime(1L << (i - 1), 2, true);
+			else
+				time = "< " + TimeUtil.formatTime(1L << i, 2, true);
+			row.addChild("td", time);
+			row.addChild("td", Long.toString(waitTimes[i]));
+			row.addChild("td", Long.toString(runTimes[i]));
 		}
 	}
 
@@ -1025,6 +1075,16 @@ public class StatisticsToadlet extends Toadlet {
 			peerStatsList.addChild("li", l10n("maxTotalPeers")+": "+om.getNumberOfConnectedPeersToAimIncludingDarknet());
 			peerStatsList.addChild("li", l10n("maxOpennetPeers")+": "+om.getNumberOfConnectedPeersToAim());
 		}
+		if(advancedModeEnabled) {
+			PeerManager pm = node.peers;
+			peerStatsList.addChild("li", l10n("peersFileWrites",
+					new String[] { "writes", "bytes", "unchanged", "coalesced" },
+					new String[] { Long.toString(pm.getPeersFileWrites()), SizeUtil.formatSize(pm.getPeersFileBytesWritten()),
+						Long.toString(pm.getPeersFileUnchanged()), Long.toString(pm.getPeersFileUrgentWritesCoalesced()) }));
+			peerStatsList.addChild("li", l10n("peersFileNoderefs",
+					new String[] { "exported", "reused" },
+					new String[] { Long.toString(pm.getPeersFileNoderefsExported()), Long.toString(pm.getPeersFileNoderefsReused()) }));
+		}
 	}
 
 	private static String l10n(String key) {
@@ -1278,6 +1338,24 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		DirectMemoryArena arena = core.tempBucketFactory.getArena();
+		if(arena != null) {
+			overviewList.addChild("li", "RAMBucketDirectMemory:\u00a0" + SizeUtil.formatSize(arena.getBytesInUse())+ " / "+ SizeUtil.formatSize(arena.getBytesAllocated())+
+					"\u00a0(" + fix3p1pct.format(arena.getOccupancy()) + "), fragmentation\u00a0" + fix3p1pct.format(arena.getFragmentation()) + ", failures\u00a0" + arena.getFailures());
+		}
+		overviewList.addChild("li", "pooledFiles:\u00a0" + PooledFileRandomAccessBuffer.getOpenFDs() + " / " + PooledFileRandomAccessBuffer.getMaxOpenFDs() + "\u00a0open, " + PooledFileRandomAccessBuffer.getFileOpens() + "\u00a0opens");
+		overviewList.addChild("li", "RAMBucketMigrations:\u00a0" + core.tempBucketFactory.getMigrations() + "\u00a0(" + SizeUtil.formatSize(core.tempBucketFactory.getBytesMigrated()) + ")");
+		FProxyToadlet fproxy = core.getFProxy();
+		FilteredContentCache filteredCache = fproxy == null ? null : fproxy.fetchTracker.getFilteredContentCache();
+		if(filteredCache != null) {
+			long hits = filteredCache.getHits();
+			long lookups = hits + filteredCache.getMisses();
+			overviewList.addChild("li", "filteredPageCache:\u00a0" + SizeUtil.formatSize(filteredCache.getSize()) + " / " + SizeUtil.formatSize(filteredCache.getMaxSize()) +
+					",\u00a0" + filteredCache.getEntries() + "\u00a0pages, hits\u00a0" + hits + " / " + lookups +
+					(lookups == 0 ? "" : "\u00a0(" + fix3p1pct.format(((double) hits) / lookups) + ")") +
+					", saved\u00a0" + SizeUtil.formatSize(filteredCache.getBytesSaved()) + " filtering, evictions\u00a0" + filteredCache.getEvictions() +
+					", invalidations\u00a0" + filteredCache.getInvalidations());
+		}
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
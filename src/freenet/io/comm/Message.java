@@ -19,21 +19,17 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -68,9 +64,16 @@ public class Message {
 	}
 
 	private final MessageType _spec;
+	private final MessageCodec _codec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive fields, unboxed, in the slots allocated by the MessageCodec. Float's and
+	 * double's are stored as their raw bits. */
+	private final long[] _primitives;
+	/** Bit i is set if primitive slot i has been set. */
+	private long _primitivesSet;
+	/** All other fields, null if not set. */
+	private final Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +110,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m._codec.decodeFields(m, bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -158,6 +153,9 @@ public class Message {
 	private Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
+		_codec = spec.getCodec();
+		_primitives = new long[_codec.primitiveCount];
+		_objects = new Object[_codec.objectCount];
 		if (source == null) {
 			_internal = true;
 			_sourceRef = null;
@@ -172,9 +170,12 @@ public class Message {
 	/** Drops sub-messages, and makes it locally originated */
 	private Message(Message m) {
 		_spec = m._spec;
+		_codec = m._codec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +184,80 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The primitive slot for the field if it is set and of the given kind, otherwise 
+	 * -1. The getters fall back to the boxed value in that case, so they throw the same 
+	 * exceptions as they did when the payload was a HashMap. */
+	private int setPrimitive(String key, int kind) {
+		int field = _codec.fieldIndex(key);
+		if(field < 0 || _codec.kind(field) != kind) return -1;
+		int slot = _codec.slot(field);
+		if((_primitivesSet & (1L << slot)) == 0) return -1;
+		return slot;
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_BOOLEAN);
+		if(slot >= 0) return _primitives[slot] != 0;
+		return (Boolean) getObject(key);
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_BYTE);
+		if(slot >= 0) return (byte) _primitives[slot];
+		return (Byte) getObject(key);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_SHORT);
+		if(slot >= 0) return (short) _primitives[slot];
+		return (Short) getObject(key);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_INT);
+		if(slot >= 0) return (int) _primitives[slot];
+		return (Integer) getObject(key);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_LONG);
+		if(slot >= 0) return _primitives[slot];
+		return (Long) getObject(key);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_DOUBLE);
+		if(slot >= 0) return Double.longBitsToDouble(_primitives[slot]);
+		return (Double) getObject(key);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int slot = setPrimitive(key, MessageCodec.KIND_FLOAT);
+		if(slot >= 0) return Float.intBitsToFloat((int) _primitives[slot]);
+		return (Float) getObject(key);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
+	/** @return The value of the field, boxed if necessary, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int field = _codec.fieldIndex(key);
+		if(field < 0) return null;
+		int kind = _codec.kind(field);
+		int slot = _codec.slot(field);
+		if(kind == MessageCodec.KIND_OBJECT) return _objects[slot];
+		if((_primitivesSet & (1L << slot)) == 0) return null;
+		return MessageCodec.fromPrimitive(kind, _primitives[slot]);
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,34 +265,52 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** Set a primitive field without boxing. Returns false if the field isn't of that kind, in 
+	 * which case the caller falls back to set(String, Object), which will complain. */
+	private boolean setPrimitive(String key, int kind, long value) {
+		int field = _codec.fieldIndex(key);
+		if(field < 0 || _codec.kind(field) != kind) return false;
+		setPrimitiveSlot(_codec.slot(field), value);
+		return true;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if(!setPrimitive(key, MessageCodec.KIND_BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if(!setPrimitive(key, MessageCodec.KIND_BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if(!setPrimitive(key, MessageCodec.KIND_SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if(!setPrimitive(key, MessageCodec.KIND_INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if(!setPrimitive(key, MessageCodec.KIND_LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if(!setPrimitive(key, MessageCodec.KIND_DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if(!setPrimitive(key, MessageCodec.KIND_FLOAT, Float.floatToRawIntBits(f)))
+			set(key, Float.valueOf(f));
 	}
 
+	/** @throws IncorrectTypeException If the value is null or of the wrong type, leaving the
+	 * field as it was. A field can't be unset. */
 	public void set(String key, Object value) {
 		if (!_spec.checkType(key, value)) {
 			if (value == null) {
@@ -267,7 +318,35 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int field = _codec.fieldIndex(key);
+		int kind = _codec.kind(field);
+		if(kind == MessageCodec.KIND_OBJECT)
+			_objects[_codec.slot(field)] = value;
+		else
+			setPrimitiveSlot(_codec.slot(field), MessageCodec.toPrimitive(kind, value));
+	}
+
+	long getPrimitiveSlot(int slot) {
+		return _primitives[slot];
+	}
+
+	void setPrimitiveSlot(int slot, long value) {
+		_primitives[slot] = value;
+		_primitivesSet |= (1L << slot);
+	}
+
+	Object getObjectSlot(int slot) {
+		return _objects[slot];
+	}
+
+	boolean isSlotSet(int kind, int slot) {
+		if(kind == MessageCodec.KIND_OBJECT)
+			return _objects[slot] != null;
+		return (_primitivesSet & (1L << slot)) != 0;
+	}
+
+	List<Message> getSubMessages() {
+		return _subMessages;
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,37 +356,28 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
-		}
-
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
-			}
-		}
-
-		byte[] buf = baos.toByteArray();
+		byte[] buf = new byte[_codec.encodedLength(this, includeSubMessages)];
+		_codec.encode(this, ByteBuffer.wrap(buf), includeSubMessages);
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
 
+	/** @return The number of bytes encodeToPacket() or encodeToPacket(ByteBuffer) will write. */
+	public int getEncodedLength() {
+		return _codec.encodedLength(this, true);
+	}
+
+	/**
+	 * Encode the message, including sub-messages, into a caller-supplied buffer, avoiding the
+	 * intermediate byte[]. The format is identical to encodeToPacket(): always big-endian,
+	 * whatever the buffer's byte order.
+	 * @throws java.nio.BufferOverflowException If there isn't enough space. See
+	 * getEncodedLength().
+	 */
+	public void encodeToPacket(ByteBuffer buf) {
+		_codec.encode(this, buf, true);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder(1000);
@@ -315,7 +385,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +405,33 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int field = _codec.fieldIndex(fieldName);
+		if(field < 0) return false;
+		return isSlotSet(_codec.kind(field), _codec.slot(field));
+	}
+
+	/** @return True if the field is set and equal to the given value. Doesn't box primitive
+	 * fields unless they are floating point, where we need Float/Double.equals() semantics. */
+	public boolean fieldEquals(String fieldName, Object value) {
+		int field = _codec.fieldIndex(fieldName);
+		if(field < 0) return false;
+		int kind = _codec.kind(field);
+		int slot = _codec.slot(field);
+		if(!isSlotSet(kind, slot)) return false;
+		switch(kind) {
+		case MessageCodec.KIND_OBJECT:
+			return value.equals(_objects[slot]);
+		case MessageCodec.KIND_FLOAT:
+		case MessageCodec.KIND_DOUBLE:
+			return value.equals(MessageCodec.fromPrimitive(kind, _primitives[slot]));
+		default:
+			if(value.getClass() != _codec.getSpec().typeOf(fieldName)) return false;
+			return MessageCodec.toPrimitive(kind, value) == _primitives[slot];
+		}
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
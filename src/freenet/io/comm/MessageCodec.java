@@ -0,0 +1,441 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import freenet.io.WritableToDataOutputStream;
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Encoder and decoder for a single MessageType, compiled from its ordered fields.
+ *
+ * Each field gets a fixed slot in the Message: primitive fields (boolean, byte, short, int, long,
+ * float, double) are kept unboxed in a long[], everything else in an Object[]. Encoding writes
+ * straight into a ByteBuffer, in exactly the same format as the old
+ * Serializer/DataOutputStream path, so nodes running either can talk to each other.
+ *
+ * Created lazily by MessageType.getCodec(), after all the fields have been added.
+ */
+public final class MessageCodec {
+
+	static final int KIND_BOOLEAN = 0;
+	static final int KIND_BYTE = 1;
+	static final int KIND_SHORT = 2;
+	static final int KIND_INT = 3;
+	static final int KIND_LONG = 4;
+	static final int KIND_FLOAT = 5;
+	static final int KIND_DOUBLE = 6;
+	static final int KIND_OBJECT = 7;
+
+	/** The bitmask of set primitive fields is a long. */
+	static final int MAX_PRIMITIVE_FIELDS = 64;
+
+	private final MessageType spec;
+	private final int specID;
+	/** Field names, types and kinds, in the order they are written. */
+	private final String[] names;
+	private final Class<?>[] types;
+	private final int[] kinds;
+	/** Index into Message._primitives or Message._objects depending on the kind. */
+	private final int[] slots;
+	private final HashMap<String, Integer> fieldIndexes;
+	final int primitiveCount;
+	final int objectCount;
+
+	MessageCodec(MessageType spec) {
+		this.spec = spec;
+		this.specID = spec.getName().hashCode();
+		List<String> ordered = spec.getOrderedFields();
+		int count = ordered.size();
+		names = new String[count];
+		types = new Class<?>[count];
+		kinds = new int[count];
+		slots = new int[count];
+		fieldIndexes = new HashMap<String, Integer>(count * 2);
+		int primitives = 0;
+		int objects = 0;
+		int i = 0;
+		for(String name : ordered) {
+			Class<?> type = spec.typeOf(name);
+			names[i] = name;
+			types[i] = type;
+			kinds[i] = kindOf(type);
+			if(kinds[i] == KIND_OBJECT)
+				slots[i] = objects++;
+			else
+				slots[i] = primitives++;
+			fieldIndexes.put(name, i);
+			i++;
+		}
+		if(primitives > MAX_PRIMITIVE_FIELDS)
+			throw new IllegalStateException("Too many primitive fields in "+spec.getName()+": "+primitives);
+		primitiveCount = primitives;
+		objectCount = objects;
+	}
+
+	private static int kindOf(Class<?> type) {
+		if(type == Boolean.class) return KIND_BOOLEAN;
+		if(type == Byte.class) return KIND_BYTE;
+		if(type == Short.class) return KIND_SHORT;
+		if(type == Integer.class) return KIND_INT;
+		if(type == Long.class) return KIND_LONG;
+		if(type == Float.class) return KIND_FLOAT;
+		if(type == Double.class) return KIND_DOUBLE;
+		return KIND_OBJECT;
+	}
+
+	public MessageType getSpec() {
+		return spec;
+	}
+
+	/** @return The ordinal of the field, or -1 if the message type does not have it. */
+	public int fieldIndex(String name) {
+		Integer i = fieldIndexes.get(name);
+		return i == null ? -1 : i.intValue();
+	}
+
+	public int fieldCount() {
+		return names.length;
+	}
+
+	String fieldName(int field) {
+		return names[field];
+	}
+
+	int kind(int field) {
+		return kinds[field];
+	}
+
+	int slot(int field) {
+		return slots[field];
+	}
+
+	/** Convert a boxed value to how it is stored in a primitive slot. */
+	static long toPrimitive(int kind, Object value) {
+		switch(kind) {
+		case KIND_BOOLEAN:
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		case KIND_BYTE:
+			return ((Byte) value).byteValue();
+		case KIND_SHORT:
+			return ((Short) value).shortValue();
+		case KIND_INT:
+			return ((Integer) value).intValue();
+		case KIND_LONG:
+			return ((Long) value).longValue();
+		case KIND_FLOAT:
+			return Float.floatToRawIntBits(((Float) value).floatValue());
+		case KIND_DOUBLE:
+			return Double.doubleToRawLongBits(((Double) value).doubleValue());
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/** Box a value stored in a primitive slot. */
+	static Object fromPrimitive(int kind, long value) {
+		switch(kind) {
+		case KIND_BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case KIND_BYTE:
+			return Byte.valueOf((byte) value);
+		case KIND_SHORT:
+			return Short.valueOf((short) value);
+		case KIND_INT:
+			return Integer.valueOf((int) value);
+		case KIND_LONG:
+			return Long.valueOf(value);
+		case KIND_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		case KIND_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * @return The exact number of bytes encode() will write for the message.
+	 * @throws IllegalStateException If a field is not set.
+	 */
+	public int encodedLength(Message m, boolean includeSubMessages) {
+		int length = 4; // Spec ID
+		for(int i=0;i<names.length;i++) {
+			checkSet(m, i);
+			switch(kinds[i]) {
+			case KIND_BOOLEAN:
+			case KIND_BYTE:
+				length += 1;
+				break;
+			case KIND_SHORT:
+				length += 2;
+				break;
+			case KIND_INT:
+			case KIND_FLOAT:
+				length += 4;
+				break;
+			case KIND_LONG:
+			case KIND_DOUBLE:
+				length += 8;
+				break;
+			default:
+				length += objectLength(m.getObjectSlot(slots[i]));
+			}
+		}
+		if(includeSubMessages) {
+			List<Message> subMessages = m.getSubMessages();
+			if(subMessages != null) {
+				for(Message sub : subMessages)
+					length += 2 + sub.getSpec().getCodec().encodedLength(sub, false);
+			}
+		}
+		return length;
+	}
+
+	private void checkSet(Message m, int field) {
+		if(!m.isSlotSet(kinds[field], slots[field]))
+			throw new IllegalStateException("Field "+names[field]+" not set in "+m);
+	}
+
+	/**
+	 * Encode a message into the caller's buffer, starting at its position. The format is the
+	 * same as Message.encodeToPacket(), which like DataOutputStream is big-endian, whatever
+	 * the buffer's byte order. The buffer's order is left as it was.
+	 * @throws java.nio.BufferOverflowException If the buffer is too small. Use encodedLength()
+	 * to size it.
+	 * @throws IllegalStateException If a field is not set.
+	 */
+	public void encode(Message m, ByteBuffer buf, boolean includeSubMessages) {
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		try {
+			encodeBigEndian(m, buf, includeSubMessages);
+		} finally {
+			buf.order(order);
+		}
+	}
+
+	private void encodeBigEndian(Message m, ByteBuffer buf, boolean includeSubMessages) {
+		buf.putInt(specID);
+		for(int i=0;i<names.length;i++) {
+			checkSet(m, i);
+			int slot = slots[i];
+			switch(kinds[i]) {
+			case KIND_BOOLEAN:
+				buf.put((byte) (m.getPrimitiveSlot(slot) != 0 ? 1 : 0));
+				break;
+			case KIND_BYTE:
+				buf.put((byte) m.getPrimitiveSlot(slot));
+				break;
+			case KIND_SHORT:
+				buf.putShort((short) m.getPrimitiveSlot(slot));
+				break;
+			case KIND_INT:
+				buf.putInt((int) m.getPrimitiveSlot(slot));
+				break;
+			case KIND_LONG:
+				buf.putLong(m.getPrimitiveSlot(slot));
+				break;
+			case KIND_FLOAT:
+				// Same as DataOutputStream.writeFloat(), which collapses NaN's.
+				buf.putInt(Float.floatToIntBits(Float.intBitsToFloat((int) m.getPrimitiveSlot(slot))));
+				break;
+			case KIND_DOUBLE:
+				buf.putLong(Double.doubleToLongBits(Double.longBitsToDouble(m.getPrimitiveSlot(slot))));
+				break;
+			default:
+				writeObject(m.getObjectSlot(slot), buf);
+			}
+		}
+		if(includeSubMessages) {
+			List<Message> subMessages = m.getSubMessages();
+			if(subMessages != null) {
+				for(Message sub : subMessages) {
+					MessageCodec codec = sub.getSpec().getCodec();
+					int lengthPos = buf.position();
+					buf.putShort((short) 0);
+					codec.encodeBigEndian(sub, buf, false);
+					buf.putShort(lengthPos, (short) (buf.position() - lengthPos - 2));
+				}
+			}
+		}
+	}
+
+	/** Read the fields of a message (after the spec ID) into the given message. Sub-messages are
+	 * handled by the caller. */
+	void decodeFields(Message m, ByteBufferInputStream bb) throws IOException {
+		for(int i=0;i<names.length;i++) {
+			int slot = slots[i];
+			switch(kinds[i]) {
+			case KIND_BOOLEAN:
+				// Using readByte() instead of readBoolean() because values other than 0 or 1
+				// indicate problems: only 0 and 1 are written.
+				byte bool = bb.readByte();
+				if(bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: " + bool);
+				m.setPrimitiveSlot(slot, bool);
+				break;
+			case KIND_BYTE:
+				m.setPrimitiveSlot(slot, bb.readByte());
+				break;
+			case KIND_SHORT:
+				m.setPrimitiveSlot(slot, bb.readShort());
+				break;
+			case KIND_INT:
+				m.setPrimitiveSlot(slot, bb.readInt());
+				break;
+			case KIND_LONG:
+				m.setPrimitiveSlot(slot, bb.readLong());
+				break;
+			case KIND_FLOAT:
+				m.setPrimitiveSlot(slot, bb.readInt());
+				break;
+			case KIND_DOUBLE:
+				m.setPrimitiveSlot(slot, bb.readLong());
+				break;
+			default:
+				Object o;
+				if(types[i] == LinkedList.class) // Special handling for LinkedList to deal with element type
+					o = Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(names[i]), bb);
+				else
+					o = Serializer.readFromDataInputStream(types[i], bb);
+				// Check the type, e.g. Key.read() can return either kind of key.
+				m.set(names[i], o);
+			}
+		}
+	}
+
+	/** Mirrors Serializer.writeToDataOutputStream(), which dispatches on the class of the value
+	 * rather than the declared type of the field. */
+	private static void writeObject(Object object, ByteBuffer buf) {
+		Class<?> type = object.getClass();
+		if (type == Long.class) {
+			buf.putLong((Long) object);
+		} else if (type == Boolean.class) {
+			buf.put((byte) (((Boolean) object) ? 1 : 0));
+		} else if (type == Integer.class) {
+			buf.putInt((Integer) object);
+		} else if (type == Short.class) {
+			buf.putShort((Short) object);
+		} else if (type == Double.class) {
+			buf.putLong(Double.doubleToLongBits((Double) object));
+		} else if (type == Float.class) {
+			buf.putInt(Float.floatToIntBits((Float) object));
+		} else if (object instanceof WritableToDataOutputStream) {
+			try {
+				((WritableToDataOutputStream) object).writeToDataOutputStream(
+						new DataOutputStream(new ByteBufferOutputStream(buf)));
+			} catch (IOException e) {
+				// Impossible, ByteBufferOutputStream doesn't throw.
+				throw new IllegalStateException(e);
+			}
+		} else if (type == String.class) {
+			String s = (String) object;
+			buf.putInt(s.length());
+			for (int x = 0; x < s.length(); x++)
+				buf.putChar(s.charAt(x));
+		} else if (type == LinkedList.class) {
+			LinkedList<?> ll = (LinkedList<?>) object;
+			synchronized (ll) {
+				buf.putInt(ll.size());
+				for (Object o : ll)
+					writeObject(o, buf);
+			}
+		} else if (type == Byte.class) {
+			buf.put((Byte) object);
+		} else if (type == double[].class) {
+			final double[] array = (double[]) object;
+			if (array.length > 255) {
+				throw new IllegalArgumentException("Cannot serialize an array of more than 255 doubles; attempted to " +
+				                                   "serialize " + array.length + ".");
+			}
+			buf.put((byte) array.length);
+			for (double element : array)
+				buf.putLong(Double.doubleToLongBits(element));
+		} else if (type == float[].class) {
+			final float[] array = (float[]) object;
+			buf.putShort((short) array.length);
+			for (float element : array)
+				buf.putInt(Float.floatToIntBits(element));
+		} else {
+			throw new RuntimeException("Unrecognised field type: " + type);
+		}
+	}
+
+	private static int objectLength(Object object) {
+		Class<?> type = object.getClass();
+		if (type == Long.class || type == Double.class) {
+			return 8;
+		} else if (type == Boolean.class || type == Byte.class) {
+			return 1;
+		} else if (type == Integer.class || type == Float.class) {
+			return 4;
+		} else if (type == Short.class) {
+			return 2;
+		} else if (type == ShortBuffer.class) {
+			return 2 + ((ShortBuffer) object).getLength();
+		} else if (type == Buffer.class) {
+			return 4 + ((Buffer) object).getLength();
+		} else if (object instanceof WritableToDataOutputStream) {
+			// Peer's, keys etc. Not common enough to be worth duplicating their formats here.
+			DataOutputStream dos = new DataOutputStream(new NullOutputStream());
+			try {
+				((WritableToDataOutputStream) object).writeToDataOutputStream(dos);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return dos.size();
+		} else if (type == String.class) {
+			return 4 + ((String) object).length() * 2;
+		} else if (type == LinkedList.class) {
+			LinkedList<?> ll = (LinkedList<?>) object;
+			int length = 4;
+			synchronized (ll) {
+				for (Object o : ll)
+					length += objectLength(o);
+			}
+			return length;
+		} else if (type == double[].class) {
+			return 1 + 8 * ((double[]) object).length;
+		} else if (type == float[].class) {
+			return 2 + 4 * ((float[]) object).length;
+		} else {
+			throw new RuntimeException("Unrecognised field type: " + type);
+		}
+	}
+
+	/** Writes to a ByteBuffer. Only used for the rarer Writable field types. */
+	private static final class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
+
+	}
+
+}
@@ -19,8 +19,11 @@
 
 package freenet.io.comm;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.node.PrioRunnable;
 import freenet.support.Executor;
@@ -59,6 +62,8 @@ public final class MessageFilter {
     private AsyncMessageFilterCallback _callback;
     private ByteCounter _ctr;
     private boolean _setTimeout = false;
+    /** Threads blocked in waitUntilDone(). Usually there is at most one. Null if none. */
+    private List<Thread> _waiters;
 
     private MessageFilter() {
         _timeoutFromWait = true;
@@ -124,6 +129,10 @@ public final class MessageFilter {
 		return this;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
 	public MessageFilter setSource(PeerContext source) {
 		_source = source;
 		if(source != null)
@@ -174,6 +183,14 @@ public final class MessageFilter {
 		return this;
 	}
 
+	/** @return The value the given field must have, or null if the filter doesn't check it. */
+	Object getFieldValue(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i >= 0 ? _fields.get(i) : null;
+		}
+	}
+
 	/**
 	 * Modifies the filter so that it returns true if either it or the filter in the argument returns true.
 	 * Multiple combinations must be nested: such as filter1.or(filter2.or(filter3))).
@@ -224,12 +241,8 @@ public final class MessageFilter {
 		}
 		synchronized (_fields) {
 			for (int i = 0; i < _fieldNames.size(); i++) {
-				final String fieldName = _fieldNames.get(i);
-				if (!m.isSet(fieldName)) {
-					return resultNoMatch;
-				}
-				final Object fieldValue = _fields.get(i);
-				if (!fieldValue.equals(m.getFromPayload(fieldName))) {
+				// Compares unboxed where possible, and fails if the field isn't set.
+				if (!m.fieldEquals(_fieldNames.get(i), _fields.get(i))) {
 					return resultNoMatch;
 				}
 			}
@@ -252,6 +265,16 @@ public final class MessageFilter {
 	    return _droppedConnection;
 	}
 	
+	/** @return True if this filter or one or()'ed to it has passed its timeout, in which case
+	 * match() would say it has timed out for any message it doesn't match. Unlike timedOut(),
+	 * doesn't ask the callback. */
+	boolean timeoutPassed(long time) {
+		for(MessageFilter f = this; f != null; f = f._or) {
+			if(f._timeout < time) return true;
+		}
+		return false;
+	}
+
 	boolean reallyTimedOut(long time) {
 		if(_callback != null && _callback.shouldTimeout())
 			_timeout = -1; // timeout immediately
@@ -281,6 +304,50 @@ public final class MessageFilter {
         // Avoid race conditions where it is removed from the filter list because of a timeout but not woken up.
         _matched = true;
         notifyAll();
+        wakeWaiter();
+    }
+
+    /** Called with (this) held whenever something a waiter might be waiting for changes. */
+    private void wakeWaiter() {
+        if(_waiters == null) return;
+        for(Thread waiter : _waiters)
+            LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Block until the filter is matched, the connection is dropped or restarted, or it times
+     * out. Used by MessageCore.waitFor(). We park rather than wait() on the filter, so that a
+     * virtual thread waiting here doesn't pin its carrier thread. Returns early, clearing the
+     * interrupt flag, if the thread is interrupted, as wait() would have.
+     * @param now The current time.
+     */
+    void waitUntilDone(long now) {
+        Thread current = Thread.currentThread();
+        synchronized(this) {
+            if(_waiters == null) _waiters = new ArrayList<Thread>(1);
+            _waiters.add(current);
+        }
+        try {
+            while(true) {
+                long wait;
+                synchronized(this) {
+                    // Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
+                    if(matched() || droppedConnection() != null || reallyTimedOut(now))
+                        return;
+                    wait = getTimeout() - now;
+                }
+                if(wait <= 0) return;
+                LockSupport.parkNanos(this, MILLISECONDS.toNanos(wait));
+                // parkNanos() returns immediately while the interrupt flag is set.
+                if(Thread.interrupted()) return;
+                now = System.currentTimeMillis();
+            }
+        } finally {
+            synchronized(this) {
+                _waiters.remove(current);
+                if(_waiters.isEmpty()) _waiters = null;
+            }
+        }
     }
 
     public long getInitialTimeout() {
@@ -309,6 +376,10 @@ public final class MessageFilter {
     		or.clearMatched();
     }
 
+    MessageFilter getOr() {
+        return _or;
+    }
+
     public void clearOr() {
         _or = null;
     }
@@ -336,6 +407,7 @@ public final class MessageFilter {
     		cb = _callback;
     		_droppedConnection = ctx;
     		notifyAll();
+    		wakeWaiter();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -371,6 +443,7 @@ public final class MessageFilter {
     		_droppedConnection = ctx;
     		cb = _callback;
     		notifyAll();
+    		wakeWaiter();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -440,6 +513,7 @@ public final class MessageFilter {
 		final AsyncMessageFilterCallback cb;
 		synchronized(this) {
 			notifyAll();
+			wakeWaiter();
 			cb = _callback;
 		}
 		if(cb != null) {
@@ -0,0 +1,396 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * Index of the pending MessageFilter's in MessageCore, keyed by message type, source and UID.
+ *
+ * Previously MessageCore kept a single list sorted by timeout, and checked every incoming message
+ * against every filter in it. Here, each filter is filed under the (type, source, uid) of itself
+ * and of every filter or()'ed to it, with null standing for "any" where the filter doesn't set
+ * that part. An incoming message is then only checked against the buckets it could possibly
+ * match. Within and across buckets filters are visited in the same order as the old list (by
+ * timeout when added, then by order of addition), so the filter that gets the message is the
+ * same as before. Filters which have timed out are removed on every message, whether or not
+ * they could match it, as they were from the old list.
+ *
+ * Not thread-safe: MessageCore synchronizes on the index, which also protects _unclaimed.
+ */
+class MessageFilterIndex implements Iterable<MessageFilter> {
+
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(MessageFilterIndex.class);
+	}
+
+	/** Bits for the wildcard patterns. A pattern says which parts of the key are set. */
+	private static final int HAS_TYPE = 1;
+	private static final int HAS_SOURCE = 2;
+	private static final int HAS_UID = 4;
+	private static final int PATTERNS = 8;
+
+	/** Every filter, for removal and for periodic scans. */
+	private final HashMap<MessageFilter, Entry> byFilter = new HashMap<MessageFilter, Entry>();
+	/** Every filter, by the earliest timeout of it and the filters or()'ed to it, so the timed
+	 * out ones come first. */
+	private final TreeSet<Entry> byExpiry = new TreeSet<Entry>(EXPIRY_ORDER);
+	/** Filters by key. Each bucket is sorted in the same order as the old filter list. */
+	private final HashMap<Key, TreeSet<Entry>> byKey = new HashMap<Key, TreeSet<Entry>>();
+	/** Number of keys currently indexed for each pattern. Lets us skip lookups for patterns that
+	 * nobody uses, e.g. most filters set type, source and UID. */
+	private final int[] patternCounts = new int[PATTERNS];
+	/** Tie-breaker for equal timeouts: later additions go after earlier ones. */
+	private long counter;
+
+	private static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Object uid;
+		final int hashCode;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type == null ? 0 : type.hashCode();
+			h = h * 31 + (source == null ? 0 : source.hashCode());
+			h = h * 31 + (uid == null ? 0 : uid.hashCode());
+			hashCode = h;
+		}
+
+		int pattern() {
+			return (type == null ? 0 : HAS_TYPE) | (source == null ? 0 : HAS_SOURCE) |
+				(uid == null ? 0 : HAS_UID);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(k.hashCode != hashCode) return false;
+			if(type == null ? k.type != null : !type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			if(uid == null ? k.uid != null : !uid.equals(k.uid)) return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The timeout when the filter was added. The old list was sorted by this too. */
+		final long timeout;
+		/** The earliest timeout of the filter and those or()'ed to it, when it was added. */
+		final long expiry;
+		final long seq;
+		final Key[] keys;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			long expiry = timeout;
+			for(MessageFilter f = filter.getOr(); f != null; f = f.getOr())
+				expiry = Math.min(expiry, f.getTimeout());
+			this.expiry = expiry;
+			this.seq = seq;
+			this.keys = keysFor(filter);
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout < e.timeout) return -1;
+			if(timeout > e.timeout) return 1;
+			if(seq < e.seq) return -1;
+			if(seq > e.seq) return 1;
+			return 0;
+		}
+
+	}
+
+	private static final Comparator<Entry> EXPIRY_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.expiry < b.expiry) return -1;
+			if(a.expiry > b.expiry) return 1;
+			if(a.seq < b.seq) return -1;
+			if(a.seq > b.seq) return 1;
+			return 0;
+		}
+
+	};
+
+	/** The distinct keys for a filter and everything or()'ed to it. */
+	private static Key[] keysFor(MessageFilter filter) {
+		ArrayList<Key> keys = new ArrayList<Key>(1);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key k = new Key(f.getType(), f.getSource(), f.getFieldValue(DMT.UID));
+			if(!keys.contains(k)) keys.add(k);
+		}
+		return keys.toArray(new Key[keys.size()]);
+	}
+
+	/** Add a filter. If it is already present it will be re-added at its new position. */
+	void add(MessageFilter filter) {
+		Entry old = byFilter.get(filter);
+		if(old != null) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!");
+			removeEntry(old);
+		}
+		Entry e = new Entry(filter, counter++);
+		byFilter.put(filter, e);
+		byExpiry.add(e);
+		for(Key k : e.keys) {
+			TreeSet<Entry> bucket = byKey.get(k);
+			if(bucket == null) {
+				bucket = new TreeSet<Entry>();
+				byKey.put(k, bucket);
+				patternCounts[k.pattern()]++;
+			}
+			bucket.add(e);
+		}
+		if(logDEBUG) Logger.debug(this, "Added "+filter+" with "+e.keys.length+" keys");
+	}
+
+	/** @return True if the filter was present. */
+	boolean remove(MessageFilter filter) {
+		Entry e = byFilter.remove(filter);
+		if(e == null) return false;
+		unindex(e);
+		return true;
+	}
+
+	private void removeEntry(Entry e) {
+		byFilter.remove(e.filter);
+		unindex(e);
+	}
+
+	/** Remove from everything but byFilter. */
+	private void unindex(Entry e) {
+		byExpiry.remove(e);
+		for(Key k : e.keys) {
+			TreeSet<Entry> bucket = byKey.get(k);
+			if(bucket == null) continue;
+			bucket.remove(e);
+			if(bucket.isEmpty()) {
+				byKey.remove(k);
+				patternCounts[k.pattern()]--;
+			}
+		}
+	}
+
+	boolean contains(MessageFilter filter) {
+		return byFilter.containsKey(filter);
+	}
+
+	int size() {
+		return byFilter.size();
+	}
+
+	/**
+	 * Find the filter which gets a message, and remove it. Filters which are timed out, or which
+	 * have already been matched (which shouldn't happen), are removed too, just as when we
+	 * scanned the whole list.
+	 * @param m The message.
+	 * @param now The current time.
+	 * @param timedOut Timed out filters will be added to this list. The caller must call
+	 * onTimedOut() on them after releasing the lock.
+	 * @return The first filter that matched, or null.
+	 */
+	MessageFilter removeFirstMatch(Message m, long now, List<MessageFilter> timedOut) {
+		removeTimedOut(now, timedOut);
+		TreeSet<Entry>[] buckets = candidateBuckets(m);
+		if(buckets == null) return null;
+		ArrayList<Entry> toRemove = null;
+		MessageFilter match = null;
+		Iterator<Entry> it = buckets.length == 1 ? buckets[0].iterator() : new MergingIterator(buckets);
+		while(it.hasNext()) {
+			Entry e = it.next();
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				if(toRemove == null) toRemove = new ArrayList<Entry>();
+				toRemove.add(e);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				if(toRemove == null) toRemove = new ArrayList<Entry>();
+				toRemove.add(e);
+				timedOut.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				match = f;
+				if(toRemove == null) toRemove = new ArrayList<Entry>(1);
+				toRemove.add(e);
+				break; // Only one match permitted per message
+			} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
+		}
+		if(toRemove != null) {
+			for(Entry e : toRemove)
+				removeEntry(e);
+		}
+		return match;
+	}
+
+	/** Remove the filters which have timed out, including those which couldn't match the
+	 * message. They are first in byExpiry, so this only looks at the ones it removes, and at
+	 * any whose timeout has been put back since they were added. */
+	private void removeTimedOut(long now, List<MessageFilter> timedOut) {
+		ArrayList<Entry> toRemove = null;
+		for(Entry e : byExpiry) {
+			if(e.expiry >= now) break;
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+			} else if(f.timeoutPassed(now)) {
+				timedOut.add(f);
+			} else continue;
+			if(toRemove == null) toRemove = new ArrayList<Entry>();
+			toRemove.add(e);
+		}
+		if(toRemove != null) {
+			for(Entry e : toRemove)
+				removeEntry(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private TreeSet<Entry>[] candidateBuckets(Message m) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getObject(DMT.UID) : null;
+		TreeSet<Entry> first = null;
+		ArrayList<TreeSet<Entry>> more = null;
+		for(int pattern = 0; pattern < PATTERNS; pattern++) {
+			if(patternCounts[pattern] == 0) continue;
+			if((pattern & HAS_SOURCE) != 0 && source == null) continue;
+			if((pattern & HAS_UID) != 0 && uid == null) continue;
+			Key k = new Key((pattern & HAS_TYPE) != 0 ? type : null,
+					(pattern & HAS_SOURCE) != 0 ? source : null,
+					(pattern & HAS_UID) != 0 ? uid : null);
+			TreeSet<Entry> bucket = byKey.get(k);
+			if(bucket == null) continue;
+			if(first == null)
+				first = bucket;
+			else {
+				if(more == null) more = new ArrayList<TreeSet<Entry>>(PATTERNS);
+				more.add(bucket);
+			}
+		}
+		if(first == null) return null;
+		if(more == null) return new TreeSet[] { first };
+		TreeSet<Entry>[] ret = new TreeSet[more.size()+1];
+		ret[0] = first;
+		for(int i=0;i<more.size();i++)
+			ret[i+1] = more.get(i);
+		return ret;
+	}
+
+	/** Walks several buckets in the global order. A filter filed under more than one of the
+	 * buckets is only returned once: its entries compare equal, so they come out together. */
+	private static class MergingIterator implements Iterator<Entry> {
+
+		private final Iterator<Entry>[] iterators;
+		private final Entry[] heads;
+		private Entry last;
+		private Entry next;
+
+		@SuppressWarnings("unchecked")
+		MergingIterator(TreeSet<Entry>[] buckets) {
+			iterators = new Iterator[buckets.length];
+			heads = new Entry[buckets.length];
+			for(int i=0;i<buckets.length;i++) {
+				iterators[i] = buckets[i].iterator();
+				heads[i] = iterators[i].hasNext() ? iterators[i].next() : null;
+			}
+			next = advance();
+		}
+
+		private Entry advance() {
+			while(true) {
+				int best = -1;
+				for(int i=0;i<heads.length;i++) {
+					if(heads[i] == null) continue;
+					if(best == -1 || heads[i].compareTo(heads[best]) < 0)
+						best = i;
+				}
+				if(best == -1) return null;
+				Entry e = heads[best];
+				heads[best] = iterators[best].hasNext() ? iterators[best].next() : null;
+				if(e == last) continue;
+				last = e;
+				return e;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry next() {
+			if(next == null) throw new NoSuchElementException();
+			Entry ret = next;
+			next = advance();
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/** Iterates over all filters in no particular order. remove() is supported. */
+	@Override
+	public Iterator<MessageFilter> iterator() {
+		return new Iterator<MessageFilter>() {
+
+			final Iterator<Map.Entry<MessageFilter, Entry>> it = byFilter.entrySet().iterator();
+			Entry last;
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public MessageFilter next() {
+				last = it.next().getValue();
+				return last.filter;
+			}
+
+			@Override
+			public void remove() {
+				if(last == null) throw new IllegalStateException();
+				it.remove();
+				unindex(last);
+				last = null;
+			}
+
+		};
+	}
+
+}
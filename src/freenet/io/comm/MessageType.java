@@ -40,6 +40,9 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Created on first use, after which no more fields can be added. Volatile as getCodec()
+	 * reads it without the lock. */
+	private volatile MessageCodec codec;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -68,6 +71,10 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		synchronized(this) {
+			if(codec != null)
+				throw new IllegalStateException("Cannot add field "+name+" to "+_name+" after it has been used");
+		}
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
 	}
@@ -165,6 +172,18 @@ public class MessageType {
 		return length;
 	}
 
+	/** @return The compiled encoder/decoder for this message type. Fields cannot be added
+	 * after this has been called, so don't create any Message's before the type is complete. */
+	public MessageCodec getCodec() {
+		MessageCodec c = codec;
+		if(c != null) return c;
+		synchronized(this) {
+			if(codec == null)
+				codec = new MessageCodec(this);
+			return codec;
+		}
+	}
+
 	public boolean isLossyPacketMessage() {
 		return isLossyPacketMessage;
 	}
@@ -0,0 +1,239 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+
+import freenet.node.Node;
+import freenet.support.Logger;
+
+/**
+ * UdpSocketHandler using a non-blocking DatagramChannel.
+ *
+ * Receiving: we wait on a Selector, and when woken up read as many datagrams as are available,
+ * up to RECEIVE_BATCH, into a fixed set of buffers, before passing them to the IncomingPacketFilter
+ * one after another with the same timestamp. So a busy node does one wakeup for many packets
+ * rather than one per packet.
+ *
+ * Sending: packets sent by the PacketSender are queued, and sent together when it calls
+ * flushSends() at the end of its round, or when SEND_BATCH have accumulated. Packets from any other
+ * thread (e.g. replies to handshakes from the receive thread) are sent immediately, as before. If
+ * the socket's send buffer is full, the rest of the batch stays queued until the next flush, rather
+ * than blocking the PacketSender.
+ */
+public class NioUdpSocketHandler extends UdpSocketHandler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(NioUdpSocketHandler.class);
+	}
+
+	/** Maximum number of datagrams to read per wakeup. */
+	static final int RECEIVE_BATCH = 32;
+	/** Maximum number of datagrams to queue before sending them without waiting for the flush. */
+	static final int SEND_BATCH = 32;
+	/** Maximum time to wait in select(), so we notice shutdown even if we miss the wakeup. */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	/** Receive buffers, reused for every batch. The IncomingPacketFilter must copy anything it
+	 * wants to keep, just as with the single buffer used by UdpSocketHandler. */
+	private final ByteBuffer[] receiveBuffers;
+	private final InetSocketAddress[] receiveSources;
+	/** Packets waiting for flushSends(). Also the lock for sending. */
+	private final ArrayList<QueuedPacket> sendQueue = new ArrayList<QueuedPacket>(SEND_BATCH);
+	/** The thread whose packets are queued, i.e. the one that calls flushSends(). */
+	private volatile Thread batchingThread;
+	private volatile boolean closing;
+	/** True if the last batch was full, so there are probably more packets waiting and we can
+	 * skip the select(). */
+	private boolean moreWaiting;
+
+	private static class QueuedPacket {
+		final byte[] data;
+		final Peer destination;
+		final InetSocketAddress address;
+
+		QueuedPacket(byte[] data, Peer destination, InetSocketAddress address) {
+			this.data = data;
+			this.destination = destination;
+			this.address = address;
+		}
+	}
+
+	public NioUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		super(openSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+		channel = getSocket().getChannel();
+		try {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			getSocket().close();
+			throw toSocketException(e);
+		}
+		receiveBuffers = new ByteBuffer[RECEIVE_BATCH];
+		receiveSources = new InetSocketAddress[RECEIVE_BATCH];
+		for(int i=0;i<RECEIVE_BATCH;i++)
+			receiveBuffers[i] = ByteBuffer.allocate(MAX_RECEIVE_SIZE);
+	}
+
+	private static DatagramSocket openSocket(int listenPort, InetAddress bindto) throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(bindto, listenPort));
+			return channel.socket();
+		} catch (IOException e) {
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// Ignore
+				}
+			}
+			throw toSocketException(e);
+		}
+	}
+
+	private static SocketException toSocketException(IOException e) {
+		if(e instanceof SocketException) return (SocketException) e;
+		SocketException se = new SocketException(e.toString());
+		se.initCause(e);
+		return se;
+	}
+
+	@Override
+	void runLoop() {
+		while (isActive() && !closing) {
+			try {
+				int count = receiveBatch();
+				if(count > 0) {
+					long now = System.currentTimeMillis();
+					for(int i=0;i<count;i++) {
+						ByteBuffer buf = receiveBuffers[i];
+						InetSocketAddress source = receiveSources[i];
+						processPacket(buf.array(), buf.arrayOffset(), buf.position(),
+								source.getAddress(), source.getPort(), now);
+					}
+				}
+			} catch (Throwable t) {
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
+			}
+		}
+	}
+
+	/** Wait for packets and read as many as are available, up to RECEIVE_BATCH.
+	 * @return The number of packets read into receiveBuffers. */
+	private int receiveBatch() {
+		try {
+			if(!moreWaiting) {
+				selector.select(SELECT_TIMEOUT);
+				selector.selectedKeys().clear();
+			}
+			int count = 0;
+			while(count < RECEIVE_BATCH) {
+				ByteBuffer buf = receiveBuffers[count];
+				buf.clear();
+				InetSocketAddress source = (InetSocketAddress) channel.receive(buf);
+				if(source == null) break;
+				receiveSources[count] = source;
+				countReceived(source.getAddress(), source.getPort(), buf.position());
+				count++;
+			}
+			moreWaiting = count == RECEIVE_BATCH;
+			if(logMINOR && count > 0) Logger.minor(this, "Received "+count+" packets");
+			return count;
+		} catch (ClosedSelectorException e) {
+			if (closing) return 0;
+			throw e;
+		} catch (IOException e) {
+			if (!isActive() || closing) { // closed, just return silently
+				return 0;
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	void send(byte[] blockToSend, Peer destination, InetAddress address, int port) {
+		QueuedPacket packet = new QueuedPacket(blockToSend, destination, new InetSocketAddress(address, port));
+		boolean flush;
+		synchronized(sendQueue) {
+			sendQueue.add(packet);
+			flush = Thread.currentThread() != batchingThread || sendQueue.size() >= SEND_BATCH;
+		}
+		if(flush) sendQueued();
+	}
+
+	/**
+	 * Send everything queued by the PacketSender. The thread that calls this is taken to be the
+	 * PacketSender: its packets will be queued until the next call.
+	 */
+	@Override
+	public void flushSends() {
+		batchingThread = Thread.currentThread();
+		sendQueued();
+	}
+
+	private void sendQueued() {
+		synchronized(sendQueue) {
+			if(sendQueue.isEmpty()) return;
+			if(!isActive()) {
+				// Don't send anything after shutdown, see UdpSocketHandler.sendPacket().
+				sendQueue.clear();
+				return;
+			}
+			int sent = 0;
+			for(QueuedPacket packet : sendQueue) {
+				try {
+					if(channel.send(ByteBuffer.wrap(packet.data), packet.address) == 0) {
+						// Send buffer is full. Try again on the next flush.
+						if(logMINOR) Logger.minor(this, "Send buffer full, "+(sendQueue.size()-sent)+" packets still queued");
+						break;
+					}
+					countSent(packet.destination, packet.address.getAddress(), packet.address.getPort(), packet.data.length);
+				} catch (IOException e) {
+					sendFailed(packet.destination, packet.address.getAddress(), e);
+				}
+				sent++;
+			}
+			if(sent == sendQueue.size())
+				sendQueue.clear();
+			else
+				sendQueue.subList(0, sent).clear();
+		}
+	}
+
+	@Override
+	public void close() {
+		closing = true;
+		selector.wakeup();
+		super.close();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		synchronized(sendQueue) {
+			sendQueue.clear();
+		}
+	}
+
+}
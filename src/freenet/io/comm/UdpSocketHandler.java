@@ -97,6 +97,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		private static int getFd(DatagramSocket s) {
 			int ret = -1;
 			try {
+				if(s.getChannel() != null) {
+					// Sockets opened via a DatagramChannel are adaptors, the fd lives on the channel.
+					Field f = s.getChannel().getClass().getDeclaredField("fdVal");
+					f.setAccessible(true);
+					return f.getInt(s.getChannel());
+				}
 				Method m = s.getClass().getDeclaredMethod("getImpl");
 				m.setAccessible(true);
 				DatagramSocketImpl impl = (DatagramSocketImpl)m.invoke(s);
@@ -127,6 +133,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/** @param sock The socket, already bound to listenPort on bindto. */
+	UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -137,7 +148,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -168,6 +179,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		lowLevelFilter = f;
 	}
 
+	DatagramSocket getSocket() {
+		return _sock;
+	}
+
 	public InetAddress getBindTo() {
 		return _bindTo;
 	}
@@ -218,7 +233,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void runLoop() {
+	/** Receive packets until we are closed. Overridden by batching handlers. */
+	void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -237,52 +253,58 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
+			processPacket(packet.getData(), packet.getOffset(), packet.getLength(),
+					packet.getAddress(), packet.getPort(), now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Pass a received packet to the low level filter. The buffer may be reused afterwards. */
+	void processPacket(byte[] data, int offset, int length, InetAddress address, int port, long now) {
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(address, port);
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
 				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
 		}
 	}
 
-	private static final int MAX_RECEIVE_SIZE = 1500;
+	static final int MAX_RECEIVE_SIZE = 1500;
+
+	/** Record a received packet in the bandwidth statistics. */
+	void countReceived(InetAddress address, int port, int length) {
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, port, getHeadersLength(address) + length, 0, isLocal);
+	}
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
+			countReceived(packet.getAddress(), packet.getPort(), packet.getLength());
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -328,25 +350,53 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
+		send(blockToSend, destination, address, port);
+	}
+
+	/** Actually send a packet, once the destination has been checked. Batching handlers may
+	 * queue it until flushSends(). */
+	void send(byte[] blockToSend, Peer destination, InetAddress address, int port) {
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
 		packet.setPort(port);
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			countSent(destination, address, port, blockToSend.length);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
-			}
+			sendFailed(destination, address, e);
+		}
+	}
+
+	/** Record a sent packet in the AddressTracker and the bandwidth statistics. */
+	void countSent(Peer destination, InetAddress address, int port, int length) {
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	void sendFailed(Peer destination, InetAddress address, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
 		}
 	}
 
+	/**
+	 * Send any packets which have been queued by sendPacket(). Called by the PacketSender once
+	 * per round, before it goes to sleep. This handler sends immediately so there is nothing to
+	 * do.
+	 */
+	public void flushSends() {
+		// Do nothing.
+	}
+
+	boolean isActive() {
+		return _active;
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
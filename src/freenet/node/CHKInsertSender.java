@@ -26,6 +26,7 @@ import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
+import freenet.support.WaitQueue;
 import freenet.support.io.NativeThread;
 
 public final class CHKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
@@ -111,7 +112,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		}
 		
 		void start() {
-			node.executor.execute(this, "CHKInsert-BackgroundTransfer for "+uid+" to "+pn.getPeer());
+			node.requestExecutor.execute(this, "CHKInsert-BackgroundTransfer for "+uid+" to "+pn.getPeer());
 		}
 		
 		@Override
@@ -137,7 +138,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized(backgroundTransfers) {
 				//transferSucceeded = success; //FIXME Don't used
 				completedTransfer = true;
-				backgroundTransfers.notifyAll();
+				transferWaiters.wakeAll();
 			}
 			if(!success) {
 				setTransferTimedOut();
@@ -202,7 +203,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized(backgroundTransfers) {
 				// Avoid "Unlocked handler but still routing to yet not reassigned".
 				if(!gotFatalTimeout) {
-					backgroundTransfers.notifyAll();
+					transferWaiters.wakeAll();
 				}
 			}
 			if(timeout && gotFatalTimeout) {
@@ -329,7 +330,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     }
 
 	void start() {
-		node.executor.execute(this, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
+		node.requestExecutor.execute(this, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
 	}
 
 	static boolean logMINOR;
@@ -363,6 +364,11 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     /** List of nodes we are waiting for either a transfer completion
      * notice or a transfer completion from. Also used as a sync object for waiting for transfer completion. */
     private List<BackgroundTransfer> backgroundTransfers;
+    /** Threads waiting for the background transfers. Parked rather than waiting on
+     * backgroundTransfers so a virtual thread doesn't pin its carrier. */
+    private final WaitQueue transferWaiters = new WaitQueue();
+    /** Threads waiting for the status or allTransfersCompleted to change. */
+    private final WaitQueue statusWaiters = new WaitQueue();
     
     /** Have all transfers completed and all nodes reported completion status? */
     private boolean allTransfersCompleted;
@@ -745,7 +751,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		BackgroundTransfer ac = new BackgroundTransfer(node, prb, tag);
 		synchronized(backgroundTransfers) {
 			backgroundTransfers.add(ac);
-			backgroundTransfers.notifyAll();
+			transferWaiters.wakeAll();
 		}
 		ac.start();
 		return ac;
@@ -764,14 +770,14 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     protected synchronized void forwardRejectedOverload() {
     	if(hasForwardedRejectedOverload) return;
     	hasForwardedRejectedOverload = true;
-   		notifyAll();
+   		statusWaiters.wakeAll();
 	}
 	
 	private void setTransferTimedOut() {
 		synchronized(this) {
 			if(!transferTimedOut) {
 				transferTimedOut = true;
-				notifyAll();
+				statusWaiters.wakeAll();
 			}
 		}
 	}
@@ -803,7 +809,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
                 status = code;
         	}
         	
-        	notifyAll();
+        	statusWaiters.wakeAll();
         	if(logMINOR) Logger.minor(this, "Set status code: "+getStatusString()+" on "+uid);
         }
 		
@@ -832,7 +838,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 				if(failedRecv)
 					status = RECEIVE_FAILED;
 				allTransfersCompleted = true;
-				notifyAll();
+				statusWaiters.wakeAll();
 			}
 		}
         	
@@ -871,7 +877,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     	if(logMINOR) Logger.minor(this, "Receive failed on "+this);
     	synchronized(backgroundTransfers) {
     		receiveFailed = true;
-    		backgroundTransfers.notifyAll();
+    		transferWaiters.wakeAll();
     		// Locking is safe as UIDTag always taken last.
     		for(BackgroundTransfer t : backgroundTransfers)
     			t.thisTag.handlingTimeout(t.pn);
@@ -883,7 +889,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     	synchronized(this) {
     		status = RECEIVE_FAILED;
     		allTransfersCompleted = true;
-    		notifyAll();
+    		statusWaiters.wakeAll();
     	}
     	// Do not call finish(), that can only be called on the main thread and it will block.
     }
@@ -936,7 +942,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			} finally {
 				synchronized(CHKInsertSender.this) {
 					allTransfersCompleted = true;
-					CHKInsertSender.this.notifyAll();
+					statusWaiters.wakeAll();
 				}
 			}
 		}
@@ -993,12 +999,9 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 					if(completedTransfers && completedNotifications) return !someFailed;
 					
 					if(logMINOR) Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="+completedNotifications); 
-					try {
-						backgroundTransfers.wait(SECONDS.toMillis(100));
-					} catch (InterruptedException e) {
-						// Ignore
-					}
-				}				
+					transferWaiters.add();
+				}
+				transferWaiters.park(backgroundTransfers, SECONDS.toMillis(100));
 			}
 		}
 
@@ -1008,14 +1011,35 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 	}
 
 	/** Block until status has been set to something other than NOT_FINISHED */
-	public synchronized void waitForStatus() {
-		while(status == NOT_FINISHED) {
-			try {
-				CHKInsertSender.this.wait(SECONDS.toMillis(100));
-			} catch (InterruptedException e) {
-				// Ignore
-			}
+	public void waitForStatus() {
+		while(!waitForStatus(SECONDS.toMillis(100))) {
+			// Ignore interrupts and carry on waiting.
+		}
+	}
+
+	/** Block until status has been set to something other than NOT_FINISHED, it might have
+	 * changed, the thread is interrupted, or the timeout has passed. Parks rather than waiting on
+	 * this so a virtual thread doesn't pin its carrier.
+	 * @return True if the status has been set. */
+	public boolean waitForStatus(long timeout) {
+		synchronized(this) {
+			if(status != NOT_FINISHED) return true;
+			statusWaiters.add();
+		}
+		statusWaiters.park(this, timeout);
+		return getStatus() != NOT_FINISHED;
+	}
+
+	/** Block until all transfers have completed, they might have, the thread is interrupted, or
+	 * the timeout has passed.
+	 * @return True if all transfers have completed. */
+	public boolean waitForCompletion(long timeout) {
+		synchronized(this) {
+			if(allTransfersCompleted) return true;
+			statusWaiters.add();
 		}
+		statusWaiters.park(this, timeout);
+		return completed();
 	}
 
 	public boolean anyTransfersFailed() {
@@ -1212,7 +1236,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 
 				synchronized(this) {
 					status = TIMED_OUT;
-					notifyAll();
+					statusWaiters.wakeAll();
 				}
 				
 				// Wait for the second timeout off-thread.
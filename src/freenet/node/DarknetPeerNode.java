@@ -325,7 +325,7 @@ public class DarknetPeerNode extends PeerNode {
 			isDisabled = false;
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public void disablePeer() {
@@ -337,7 +337,7 @@ public class DarknetPeerNode extends PeerNode {
 		}
 		stopARKFetcher();
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	@Override
@@ -356,7 +356,7 @@ public class DarknetPeerNode extends PeerNode {
 			stopARKFetcher();
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public synchronized boolean isListenOnly() {
@@ -377,7 +377,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(now);
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public void setIgnoreSourcePort(boolean setting) {
@@ -411,7 +411,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 
 	}
 
@@ -440,7 +440,7 @@ public class DarknetPeerNode extends PeerNode {
 		synchronized(this) {
 			allowLocalAddresses = setting;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public boolean readExtraPeerData() {
@@ -1737,7 +1737,7 @@ public class DarknetPeerNode extends PeerNode {
 		synchronized(this) {
 			trustLevel = trust;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	/** FIXME This should be the worse of our visibility for the peer and that which the peer has told us.
@@ -1757,7 +1757,7 @@ public class DarknetPeerNode extends PeerNode {
 			if(ourVisibility == visibility) return;
 			ourVisibility = visibility;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 		try {
 			sendVisibility();
 		} catch (NotConnectedException e) {
@@ -1779,7 +1779,7 @@ public class DarknetPeerNode extends PeerNode {
 			if(theirVisibility == v) return;
 			theirVisibility = v;
 		}
-		node.peers.writePeersDarknet();
+		node.peers.writePeers(this);
 	}
 
 	public synchronized FRIEND_VISIBILITY getTheirVisibility() {
@@ -1920,7 +1920,7 @@ public class DarknetPeerNode extends PeerNode {
 							synchronized(DarknetPeerNode.this) {
 								fullFieldSet = fs;
 							}
-							node.peers.writePeersDarknet();
+							node.peers.writePeers(DarknetPeerNode.this);
 						} else {
 							Logger.error(this, "Failed to receive noderef from "+DarknetPeerNode.this);
 						}
@@ -1973,6 +1973,6 @@ public class DarknetPeerNode extends PeerNode {
 
     @Override
     protected void writePeers() {
-        node.peers.writePeers(false);
+        node.peers.writePeers(this);
     }
 }
@@ -28,6 +28,7 @@ import freenet.support.ListUtils;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SerialExecutor;
+import freenet.support.StripedLRUMap;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
@@ -35,8 +36,8 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
-// lock only on cheap internal operations.
+// LOCKING: Always take the lock on the entriesByKey stripe first if you need both. Take the
+// FailureTableEntry lock only on cheap internal operations.
 
 /**
  * Tracks recently DNFed keys, where they were routed to, what the location was at the time, who requested them.
@@ -61,16 +62,21 @@ public class FailureTable {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUMap<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the main FT. */
-	private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. 
+	 * Striped by key so that requests for different keys don't contend: every routed request
+	 * touches this. Each stripe is bounded separately, so eviction is approximately LRU. */
+	private final StripedLRUMap<Key,FailureTableEntry> entriesByKey;
+	/** BlockOfferList by key. Striped like entriesByKey but locked separately, as it doesn't 
+	 * interact with the main FT. A BlockOfferList is protected by the lock on its stripe. */
+	private final StripedLRUMap<Key,BlockOfferList> blockOfferListByKey;
 	private final Node node;
 	
 	/** Maximum number of keys to track */
 	static final int MAX_ENTRIES = 20*1000;
 	/** Maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	/** Number of independently locked parts of the tables */
+	static final int STRIPES = 16;
 	/** Terminate a request if there was a DNF on the same key less than 10 minutes ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -90,8 +96,8 @@ public class FailureTable {
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
 
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
+		entriesByKey = new StripedLRUMap<Key,FailureTableEntry>(STRIPES, MAX_ENTRIES);
+		blockOfferListByKey = new StripedLRUMap<Key,BlockOfferList>(STRIPES, MAX_OFFERS);
 		this.node = node;
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
@@ -126,17 +132,18 @@ public class FailureTable {
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		LRUMap<Key,FailureTableEntry> entries = entriesByKey.stripe(key);
+		synchronized(entries) {
+			entry = entries.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			// Key by the entry's archival copy, so we don't keep the caller's key as well.
+			// Also trims the stripe.
+			entriesByKey.push(entry.key, entry);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
-
-			trimEntries(now);
 		}
 	}
 	
@@ -161,11 +168,14 @@ public class FailureTable {
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		LRUMap<Key,FailureTableEntry> entries = entriesByKey.stripe(key);
+		synchronized(entries) {
+			entry = entries.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			// Key by the entry's archival copy, so we don't keep the caller's key as well.
+			// Also trims the stripe.
+			entriesByKey.push(entry.key, entry);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -175,29 +185,23 @@ public class FailureTable {
 				entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
-			
-			trimEntries(now);
-		}
-	}
-	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
 		}
 	}
 
-	// LOCKING: Synchronized on FailureTable because we need to remove self in deleteOffer(). 
+	// LOCKING: Synchronized on the blockOfferListByKey stripe because we need to remove self in deleteOffer(). 
 	private final class BlockOfferList {
 		private BlockOffer[] offers;
 		final FailureTableEntry entry;
+		private final LRUMap<Key,BlockOfferList> stripe;
 		
 		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
+			this.stripe = blockOfferListByKey.stripe(entry.key);
 		}
 
 		public long expires() {
-			synchronized(blockOfferListByKey) {
+			synchronized(stripe) {
 				long last = 0;
 				for(BlockOffer offer: offers) {
 					if(offer.offeredTime > last) last = offer.offeredTime;
@@ -207,7 +211,7 @@ public class FailureTable {
 		}
 
 		public boolean isEmpty(long now) {
-			synchronized(blockOfferListByKey) {
+			synchronized(stripe) {
 				for(BlockOffer offer: offers) {
 					if(!offer.isExpired(now)) return false;
 				}
@@ -217,7 +221,7 @@ public class FailureTable {
 
 		public void deleteOffer(BlockOffer offer) {
 			if(logMINOR) Logger.minor(this, "Deleting "+offer+" from "+this);
-			synchronized(blockOfferListByKey) {
+			synchronized(stripe) {
 				int idx = -1;
 				final int offerLength = offers.length;
 				for(int i=0;i<offerLength;i++) {
@@ -231,13 +235,13 @@ public class FailureTable {
 					System.arraycopy(offers, idx + 1, newOffers, idx, offers.length - idx - 1);
 				offers = newOffers;
 				if(offers.length > 1) return;
-				blockOfferListByKey.removeKey(entry.key);
+				stripe.removeKey(entry.key);
 			}
 			node.clientCore.dequeueOfferedKey(entry.key);
 		}
 
 		public void addOffer(BlockOffer offer) {
-			synchronized(blockOfferListByKey) {
+			synchronized(stripe) {
 				offers = Arrays.copyOf(offers, offers.length+1);
 				offers[offers.length-1] = offer;
 			}
@@ -294,16 +298,15 @@ public class FailureTable {
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized(blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
-		}
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		blockOfferListByKey.removeKey(key);
+		LRUMap<Key,FailureTableEntry> entries = entriesByKey.stripe(key);
+		synchronized(entries) {
+			entry = entries.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
+			entries.removeKey(key);
 		}
 		if(logMINOR) Logger.minor(this, "Offering key");
 		if(!node.enableULPRDataPropagation) return;
@@ -325,13 +328,10 @@ public class FailureTable {
 		if(!node.enableULPRDataPropagation) return;
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 		offerExecutor.execute(new Runnable() {
 			@Override
@@ -359,14 +359,11 @@ public class FailureTable {
 		}
 		
 		// Re-check after potentially long disk I/O.
-		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 
 		/*
@@ -402,34 +399,29 @@ public class FailureTable {
 		boolean heAsked = entry.askedByPeer(peer, now);
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
-			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
-				}
-			}
-			return;
-		}
-		if(entry.isEmpty(now)) {
-			synchronized(this) {
+			if(entry.isEmpty(now))
 				entriesByKey.removeKey(key);
-			}
+			return;
 		}
+		if(entry.isEmpty(now))
+			entriesByKey.removeKey(key);
 		
 		// Valid offer.
 		
 		// Add to offers list
 		
-		synchronized(blockOfferListByKey) {			
+		LRUMap<Key,BlockOfferList> offers = blockOfferListByKey.stripe(key);
+		synchronized(offers) {
 			if(logMINOR) Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
+			BlockOfferList bl = offers.get(key);
 			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
 			if(bl == null) {
 				bl = new BlockOfferList(entry, offer);
 			} else {
 				bl.addOffer(offer);
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			offers.push(key, bl);
+			trimOffersList(offers, now);
 		}
 		
 		// Accept the offer.
@@ -443,14 +435,14 @@ public class FailureTable {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized(blockOfferListByKey) {
+	private void trimOffersList(LRUMap<Key,BlockOfferList> offers, long now) {
+		synchronized(offers) {
 			while(true) {
-				if(blockOfferListByKey.isEmpty()) return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
+				if(offers.isEmpty()) return;
+				BlockOfferList bl = offers.peekValue();
+				if(bl.isEmpty(now) || bl.expires() < now || offers.size() > blockOfferListByKey.maxSizePerStripe()) {
+					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+offers.size());
+					offers.popKey();
 				} else {
 					return;
 				}
@@ -655,18 +647,13 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized(blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
-		}
+		return blockOfferListByKey.get(key) != null;
 	}
 
 	public OfferList getOffers(Key key) {
 		if(!node.enableULPRDataPropagation) return null;
-		BlockOfferList bl;
-		synchronized(blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
-			if(bl == null) return null;
-		}
+		BlockOfferList bl = blockOfferListByKey.get(key);
+		if(bl == null) return null;
 		return new OfferList(bl);
 	}
 
@@ -678,9 +665,7 @@ public class FailureTable {
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if(!node.enablePerNodeFailureTables) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
-		}
+		return entriesByKey.get(key);
 	}
 	
 	public class FailureTableCleaner implements Runnable {
@@ -699,18 +684,14 @@ public class FailureTable {
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
-			}
-			for(FailureTableEntry entry: entries) {
+			for(FailureTableEntry entry: entriesByKey.values()) {
 				if(entry.cleanup()) {
-					synchronized(FailureTable.this) {
+					LRUMap<Key,FailureTableEntry> entries = entriesByKey.stripe(entry.key);
+					synchronized(entries) {
 						synchronized(entry) {
 						if(entry.isEmpty()) {
 							if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
-							entriesByKey.removeKey(entry.key);
+							entries.removeKey(entry.key);
 						}
 						}
 					}
@@ -722,21 +703,15 @@ public class FailureTable {
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) return false; // Nobody cares
-		}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) return false; // Nobody cares
 		return entry.othersWant(apartFrom);
 	}
         
         /** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) return htl;
-		}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) return htl;
 		return entry.minRequestorHTL(htl);
 	}
 }
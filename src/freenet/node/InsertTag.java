@@ -22,7 +22,11 @@ public class InsertTag extends UIDTag {
 	private boolean senderFinished;
 	
 	InsertTag(boolean ssk, START start, PeerNode source, boolean realTimeFlag, long uid, Node node) {
-		super(source, realTimeFlag, uid, node);
+		this(ssk, start, source, realTimeFlag, uid, node.tracker);
+	}
+	
+	InsertTag(boolean ssk, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
 		this.start = start;
 		this.ssk = ssk;
 	}
@@ -33,11 +37,16 @@ public class InsertTag extends UIDTag {
 	
 	public void finishedSender() {
 		boolean noRecordUnlock;
+		boolean canUnlock;
 		synchronized(this) {
 			senderFinished = true;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			updateCountsIfNeeded();
+			return;
+		}
 		innerUnlock(noRecordUnlock);
 	}
 
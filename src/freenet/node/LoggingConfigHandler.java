@@ -14,6 +14,7 @@ import freenet.config.OptionFormatException;
 import freenet.config.SubConfig;
 import freenet.support.Executor;
 import freenet.support.FileLoggerHook;
+import freenet.support.LogEventRing;
 import freenet.support.Logger;
 import freenet.support.LoggerHook;
 import freenet.support.LoggerHookChain;
@@ -53,6 +54,34 @@ public class LoggingConfigHandler {
 		}
 	}
 
+	private class FullPolicyCallback extends StringCallback implements EnumerableOptionCallback {
+		@Override
+		public String get() {
+			return asyncFullPolicy == null ? LogEventRing.FullPolicy.DROP.name() : asyncFullPolicy.name();
+		}
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			LogEventRing.FullPolicy policy;
+			try {
+				policy = LogEventRing.FullPolicy.valueOf(val.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new OptionFormatException("Must be DROP or BLOCK");
+			}
+			asyncFullPolicy = policy;
+			FileLoggerHook hook = fileLoggerHook;
+			if(hook != null) hook.setAsyncFullPolicy(policy);
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			LogEventRing.FullPolicy[] policies = LogEventRing.FullPolicy.values();
+			String[] values = new String[policies.length];
+			for(int i=0;i<policies.length;i++)
+				values[i] = policies[i].name();
+			return values;
+		}
+	}
+
 	protected static final String LOG_PREFIX = "freenet";
 	private final SubConfig config;
 	private FileLoggerHook fileLoggerHook;
@@ -62,6 +91,8 @@ public class LoggingConfigHandler {
 	private long maxCachedLogBytes;
 	private int maxCachedLogLines;
 	private long maxBacklogNotBusy;
+	private int asyncBufferSize;
+	private LogEventRing.FullPolicy asyncFullPolicy;
 	private final Executor executor;
 	
 	public LoggingConfigHandler(SubConfig loggingConfig, Executor executor) throws InvalidConfigValueException {
@@ -257,10 +288,45 @@ public class LoggingConfigHandler {
     	
 		maxBacklogNotBusy = config.getLong("maxBacklogNotBusy");
 		
+		config.register("asyncBufferSize", "0", 9, true, false, "LogConfigHandler.asyncBufferSize",
+				"LogConfigHandler.asyncBufferSizeLong",
+				new IntCallback() {
+					@Override
+					public Integer get() {
+						return asyncBufferSize;
+					}
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						checkAsyncBufferSize(val);
+						if(val == asyncBufferSize) return;
+						asyncBufferSize = val;
+						throw new NodeNeedRestartException("logger.asyncBufferSize");
+					}
+				}, false);
+		
+		asyncBufferSize = config.getInt("asyncBufferSize");
+		checkAsyncBufferSize(asyncBufferSize);
+		
+		config.register("asyncFullPolicy", "DROP", 10, true, false, "LogConfigHandler.asyncFullPolicy",
+				"LogConfigHandler.asyncFullPolicyLong",
+				new FullPolicyCallback());
+		
+		try {
+			asyncFullPolicy = LogEventRing.FullPolicy.valueOf(config.getString("asyncFullPolicy").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			asyncFullPolicy = LogEventRing.FullPolicy.DROP;
+		}
+		
 		if (loggingEnabled) enableLogger();
 		config.finishedInitialization();
 	}
 
+	private static void checkAsyncBufferSize(int size) throws InvalidConfigValueException {
+		if(size < 0) throw new InvalidConfigValueException("Must be >= 0");
+		if(size > LogEventRing.MAX_SIZE)
+			throw new InvalidConfigValueException("Must be <= "+LogEventRing.MAX_SIZE);
+	}
+
 	private final Object enableLoggerLock = new Object();
 	
 	/**
@@ -314,6 +380,8 @@ public class LoggingConfigHandler {
 			}
 			hook.setMaxListBytes(maxCachedLogBytes);
 			hook.setMaxBacklogNotBusy(maxBacklogNotBusy);
+			if(asyncBufferSize > 0)
+				hook.setAsync(asyncBufferSize, asyncFullPolicy);
 			fileLoggerHook = hook;
 			Logger.globalAddHook(hook);
 			hook.start();
@@ -137,6 +137,8 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
 import freenet.support.TokenBucket;
+import freenet.support.VirtualThreadExecutor;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -496,6 +498,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	/** Takes effect on restart. */
+	private boolean storeSaltHashSlotFilterMemoryMapped;
 	
 	/** Minimum total datastore size */
 	static final long MIN_STORE_SIZE = 32 * 1024 * 1024;
@@ -651,6 +655,10 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** Runs the blocking per-request senders and handlers. Either executor, or one which runs
+	 * them on virtual threads. */
+	public final Executor requestExecutor;
+	private boolean virtualThreadsForRequests;
 	public final PacketSender ps;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
@@ -1491,9 +1499,40 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
+		nodeConfig.register("virtualThreadsForRequests", false, sortOrder++, true, false,
+				"Node.virtualThreadsForRequests", "Node.virtualThreadsForRequestsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(Node.this) {
+							return virtualThreadsForRequests;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val && !VirtualThreadExecutor.isAvailable())
+							throw new InvalidConfigValueException(l10n("virtualThreadsNotAvailable"));
+						synchronized(Node.this) {
+							if(val == virtualThreadsForRequests) return;
+							virtualThreadsForRequests = val;
+						}
+						throw new NodeNeedRestartException("Need to restart to change virtualThreadsForRequests");
+					}
+
+		});
+		virtualThreadsForRequests = nodeConfig.getBoolean("virtualThreadsForRequests");
+		if(virtualThreadsForRequests && !VirtualThreadExecutor.isAvailable()) {
+			Logger.error(this, "Virtual threads are not available on Java "+System.getProperty("java.version")+", running requests on normal threads");
+			virtualThreadsForRequests = false;
+		}
+		requestExecutor = virtualThreadsForRequests ? new VirtualThreadExecutor() : executor;
+
 		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1986,6 +2025,28 @@ public class Node implements TimeSkewDetectorCallback {
 			
 		}, false);
 
+		nodeConfig.register("storeSaltHashSlotFilterMemoryMapped", false, sortOrder++, true, false,
+				"Node.storeSaltHashSlotFilterMemoryMapped", "Node.storeSaltHashSlotFilterMemoryMappedLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return storeSaltHashSlotFilterMemoryMapped;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val == storeSaltHashSlotFilterMemoryMapped) return;
+						// Slot filters opened after this, e.g. by changing the store type, must
+						// not be mapped until the restart.
+						storeSaltHashSlotFilterMemoryMapped = val;
+						throw new NodeNeedRestartException("Need to restart to change storeSaltHashSlotFilterMemoryMapped");
+					}
+
+		});
+
+		storeSaltHashSlotFilterMemoryMapped = nodeConfig.getBoolean("storeSaltHashSlotFilterMemoryMapped");
+		ResizablePersistentIntBuffer.setMemoryMapped(storeSaltHashSlotFilterMemoryMapped);
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -3895,7 +3956,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public boolean addPeerConnection(PeerNode pn) {
 		boolean retval = peers.addPeer(pn);
-		peers.writePeersUrgent(pn.isOpennet());
+		peers.writePeersUrgent(pn);
 		return retval;
 	}
 
@@ -12,6 +12,7 @@ import freenet.client.FetchContext;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
+import freenet.client.TableFECCodec;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
@@ -75,6 +76,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringArrCallback;
 import freenet.support.compress.Compressor;
+import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.compress.RealCompressor;
 import freenet.support.io.DiskSpaceCheckingRandomAccessBufferFactory;
 import freenet.support.io.FileUtil;
@@ -82,6 +84,7 @@ import freenet.support.io.FilenameGenerator;
 import freenet.support.io.MaybeEncryptedRandomAccessBufferFactory;
 import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 import freenet.support.io.PooledFileRandomAccessBufferFactory;
 import freenet.support.io.TempBucketFactory;
 import freenet.support.plugins.helpers1.WebInterfaceToadlet;
@@ -173,6 +176,9 @@ public class NodeClientCore implements Persistable {
 	
 	private boolean finishedInitStorage;
 	private boolean finishingInitStorage;
+	private boolean journalPersistentRequests;
+	private boolean useTableFECCodec;
+	private int fecThreadsPerJob;
 
 	NodeClientCore(Node node, Config config, SubConfig nodeConfig, SubConfig installConfig, int portNumber, int sortOrder, SimpleFieldSet oldConfig, SubConfig fproxyConfig, SimpleToadletServer toadlets, DatabaseKey databaseKey, MasterSecret persistentSecret) throws NodeInitException {
 		this.node = node;
@@ -418,6 +424,44 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("directMemoryTempBuckets", false, sortOrder++, true, false,
+				    "NodeClientCore.directMemoryTempBuckets",
+				    "NodeClientCore.directMemoryTempBucketsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory == null ? false
+										  : tempBucketFactory
+									.isUsingDirectMemory());
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory
+									  == null))
+							return;
+						tempBucketFactory.setUseDirectMemory(val);
+					}
+				});
+
+		nodeConfig.register("mapReadOnlyFiles", false, sortOrder++, true, false,
+				    "NodeClientCore.mapReadOnlyFiles",
+				    "NodeClientCore.mapReadOnlyFilesLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return PooledFileRandomAccessBuffer.isMappingReadOnly();
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						PooledFileRandomAccessBuffer.setMapReadOnly(val);
+					}
+				});
+		PooledFileRandomAccessBuffer.setMapReadOnly(nodeConfig.getBoolean("mapReadOnlyFiles"));
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +472,7 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setUseDirectMemory(nodeConfig.getBoolean("directMemoryTempBuckets"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -570,6 +615,111 @@ public class NodeClientCore implements Persistable {
 					    }
 
 				    }, true);
+		nodeConfig.register("journalPersistentRequests", false, sortOrder++, true, false,
+				    "NodeClientCore.journalPersistentRequests",
+				    "NodeClientCore.journalPersistentRequestsLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    synchronized (NodeClientCore.this) {
+							    return journalPersistentRequests;
+						    }
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    synchronized (NodeClientCore.this) {
+							    journalPersistentRequests = val;
+						    }
+						    clientLayerPersister.setUseJournal(val);
+					    }
+
+				    });
+		synchronized (this) {
+			journalPersistentRequests = nodeConfig.getBoolean("journalPersistentRequests");
+		}
+		clientLayerPersister.setUseJournal(nodeConfig.getBoolean("journalPersistentRequests"));
+		nodeConfig.register("useTableFECCodec", false, sortOrder++, true, false,
+				    "NodeClientCore.useTableFECCodec",
+				    "NodeClientCore.useTableFECCodecLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    synchronized (NodeClientCore.this) {
+							    return useTableFECCodec;
+						    }
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    synchronized (NodeClientCore.this) {
+							    useTableFECCodec = val;
+							    updateFECCodec();
+						    }
+					    }
+
+				    });
+		nodeConfig.register("fecThreadsPerJob", 1, sortOrder++, true, false,
+				    "NodeClientCore.fecThreadsPerJob",
+				    "NodeClientCore.fecThreadsPerJobLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    synchronized (NodeClientCore.this) {
+							    return fecThreadsPerJob;
+						    }
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("fecThreadsPerJobMustBe1Plus"));
+						    synchronized (NodeClientCore.this) {
+							    fecThreadsPerJob = val;
+							    updateFECCodec();
+						    }
+					    }
+
+				    }, false);
+		nodeConfig.register("decompressionBufferSize",
+				    SizeUtil.formatSizeWithoutSpace(DecompressorThreadManager.DEFAULT_BUFFER_SIZE),
+				    sortOrder++, true, false,
+				    "NodeClientCore.decompressionBufferSize",
+				    "NodeClientCore.decompressionBufferSizeLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return DecompressorThreadManager.getBufferSize();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException {
+						    if (val < 1024)
+							    throw new InvalidConfigValueException(
+									    l10n("decompressionBufferSizeTooSmall"));
+						    DecompressorThreadManager.setBufferSize(val);
+					    }
+
+				    }, true);
+		DecompressorThreadManager.setBufferSize(
+				Math.max(1024, nodeConfig.getInt("decompressionBufferSize")));
+		synchronized (this) {
+			useTableFECCodec = nodeConfig.getBoolean("useTableFECCodec");
+			fecThreadsPerJob = Math.max(1, nodeConfig.getInt("fecThreadsPerJob"));
+			updateFECCodec();
+		}
 		memoryLimitedJobRunner =
 				new MemoryLimitedJobRunner(
 						nodeConfig.getLong("memoryLimitedJobMemoryLimit"),
@@ -984,6 +1134,12 @@ public class NodeClientCore implements Persistable {
 	    }
     }
 
+	/** Called with (this) held when the FEC codec settings change. */
+	private void updateFECCodec() {
+		FECCodec.setOnionStandardCodec(useTableFECCodec ?
+				new TableFECCodec(node.executor, fecThreadsPerJob) : null);
+	}
+
     private static String l10n(String key) {
 		return NodeL10n.getBase().getString("NodeClientCore." + key);
 	}
@@ -1621,17 +1777,7 @@ public class NodeClientCore implements Persistable {
 				node.maxHTL(), uid, tag, null, headers, prb, false, canWriteClientCache, forkOnCacheable, preferInsert, ignoreLowBackoff, realTimeFlag);
 			boolean hasReceivedRejectedOverload = false;
 			// Wait for status
-			while(true) {
-				synchronized(is) {
-					if(is.getStatus() == CHKInsertSender.NOT_FINISHED)
-						try {
-							is.wait(SECONDS.toMillis(5));
-						} catch(InterruptedException e) {
-							// Ignore
-						}
-					if(is.getStatus() != CHKInsertSender.NOT_FINISHED)
-						break;
-				}
+			while(!is.waitForStatus(SECONDS.toMillis(5))) {
 				if((!hasReceivedRejectedOverload) && is.receivedRejectedOverload()) {
 					hasReceivedRejectedOverload = true;
 					requestStarters.rejectedOverload(false, true, realTimeFlag);
@@ -1639,16 +1785,7 @@ public class NodeClientCore implements Persistable {
 			}
 
 			// Wait for completion
-			while(true) {
-				synchronized(is) {
-					if(is.completed())
-						break;
-					try {
-						is.wait(SECONDS.toMillis(10));
-					} catch(InterruptedException e) {
-						// Go around again
-					}
-				}
+			while(!is.waitForCompletion(SECONDS.toMillis(10))) {
 				if(is.anyTransfersFailed() && (!hasReceivedRejectedOverload)) {
 					hasReceivedRejectedOverload = true; // not strictly true but same effect
 					requestStarters.rejectedOverload(false, true, realTimeFlag);
@@ -1745,17 +1882,7 @@ public class NodeClientCore implements Persistable {
 				node.maxHTL(), uid, tag, null, false, canWriteClientCache, false, forkOnCacheable, preferInsert, ignoreLowBackoff, realTimeFlag);
 			boolean hasReceivedRejectedOverload = false;
 			// Wait for status
-			while(true) {
-				synchronized(is) {
-					if(is.getStatus() == SSKInsertSender.NOT_FINISHED)
-						try {
-							is.wait(SECONDS.toMillis(5));
-						} catch(InterruptedException e) {
-							// Ignore
-						}
-					if(is.getStatus() != SSKInsertSender.NOT_FINISHED)
-						break;
-				}
+			while(!is.waitForStatus(SECONDS.toMillis(5))) {
 				if((!hasReceivedRejectedOverload) && is.receivedRejectedOverload()) {
 					hasReceivedRejectedOverload = true;
 					requestStarters.rejectedOverload(true, true, realTimeFlag);
@@ -1763,16 +1890,8 @@ public class NodeClientCore implements Persistable {
 			}
 
 			// Wait for completion
-			while(true) {
-				synchronized(is) {
-					if(is.getStatus() != SSKInsertSender.NOT_FINISHED)
-						break;
-					try {
-						is.wait(SECONDS.toMillis(10));
-					} catch(InterruptedException e) {
-						// Go around again
-					}
-				}
+			while(!is.waitForStatus(SECONDS.toMillis(10))) {
+				// Go around again
 			}
 
 			if(logMINOR)
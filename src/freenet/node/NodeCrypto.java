@@ -6,7 +6,9 @@ package freenet.node;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.zip.DeflaterOutputStream;
@@ -21,6 +23,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker.Status;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.NioUdpSocketHandler;
 import freenet.io.comm.Peer;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
@@ -104,7 +107,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = createSocketHandler(portNo, bindto.getAddress(), startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +121,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = createSocketHandler(port, bindto.getAddress(), startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -158,6 +161,13 @@ public class NodeCrypto {
 		}
 	}
 
+	private UdpSocketHandler createSocketHandler(int port, InetAddress bindto, long startupTime) throws SocketException {
+		if(config.useBatchedSocket())
+			return new NioUdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+		else
+			return new UdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+	}
+
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
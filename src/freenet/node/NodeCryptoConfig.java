@@ -54,6 +54,9 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** If true, use NioUdpSocketHandler, which receives and sends packets in batches. */
+	private boolean useBatchedSocket;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -240,6 +243,27 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+		
+		config.register("useBatchedSocket", false, sortOrder++, true, false, "Node.useBatchedSocket", "Node.useBatchedSocketLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(NodeCryptoConfig.this) {
+					return useBatchedSocket;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(NodeCryptoConfig.this) {
+					if(val == useBatchedSocket) return;
+					useBatchedSocket = val;
+				}
+				throw new NodeNeedRestartException("useBatchedSocket");
+			}
+		});
+		
+		useBatchedSocket = config.getBoolean("useBatchedSocket");
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			@Override
@@ -328,4 +352,8 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+	
+	public synchronized boolean useBatchedSocket() {
+		return useBatchedSocket;
+	}
 }
@@ -14,6 +14,7 @@ import java.util.UUID;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.JceLoader;
@@ -21,6 +22,8 @@ import freenet.crypt.RandomSource;
 import freenet.crypt.SSL;
 import freenet.crypt.Yarrow;
 import freenet.support.Executor;
+import freenet.support.api.BooleanCallback;
+import freenet.support.api.IntCallback;
 import freenet.support.JVMVersion;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -28,6 +31,7 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.io.NativeThread;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -62,6 +66,8 @@ public class NodeStarter implements WrapperListener {
 
 	private static boolean isTestingVM;
 	private static boolean isStarted;
+	private static boolean executorWorkStealing;
+	private static int executorMaxThreads;
 
 	/** If false, this is some sort of multi-node testing VM */
 	public synchronized static boolean isTestingVM() {
@@ -83,6 +89,64 @@ public class NodeStarter implements WrapperListener {
 		return this;
 	}
 
+	/** Create the executor for the whole node. This is needed before the node itself is
+	 * created, so it has its own config section, and changes need a restart. */
+	private static Executor createExecutor(SubConfig executorConfig) {
+		executorConfig.register("workStealing", false, 1, true, true, "NodeStarter.executorWorkStealing",
+				"NodeStarter.executorWorkStealingLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(NodeStarter.class) {
+							return executorWorkStealing;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(NodeStarter.class) {
+							if(val == executorWorkStealing) return;
+							executorWorkStealing = val;
+						}
+						throw new NodeNeedRestartException("Must restart to change the executor");
+					}
+
+				});
+		executorConfig.register("maxThreadsPerPriority", WorkStealingExecutor.DEFAULT_MAX_THREADS, 2, true, false,
+				"NodeStarter.executorMaxThreadsPerPriority", "NodeStarter.executorMaxThreadsPerPriorityLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						synchronized(NodeStarter.class) {
+							return executorMaxThreads;
+						}
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 1) throw new InvalidConfigValueException("Must be at least 1");
+						synchronized(NodeStarter.class) {
+							if(val == executorMaxThreads) return;
+							executorMaxThreads = val;
+						}
+						throw new NodeNeedRestartException("Must restart to change the executor");
+					}
+
+				}, false);
+		boolean workStealing = executorConfig.getBoolean("workStealing");
+		int maxThreads = Math.max(1, executorConfig.getInt("maxThreadsPerPriority"));
+		synchronized(NodeStarter.class) {
+			executorWorkStealing = workStealing;
+			executorMaxThreads = maxThreads;
+		}
+		executorConfig.finishedInitialization();
+		if(workStealing)
+			return new WorkStealingExecutor(maxThreads);
+		else
+			return new PooledExecutor();
+	}
+
 	/*---------------------------------------------------------------
 	 * WrapperListener Methods
 	 *-------------------------------------------------------------*/
@@ -137,7 +201,7 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		Executor executor = createExecutor(cfg.createSubConfig("executor"));
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +213,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).start();
+		else
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -32,6 +32,7 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -1924,6 +1925,21 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.executor.waitingThreads();
 	}
 
+	/** @return Jobs waiting for a thread by priority, or null if the executor doesn't queue. */
+	public int[] getQueuedJobsByPriority() {
+		if(node.executor instanceof WorkStealingExecutor)
+			return ((WorkStealingExecutor)node.executor).queuedJobs();
+		return null;
+	}
+
+	/** @return Average time jobs waited for a thread by priority, in milliseconds, or null if the
+	 * executor doesn't queue. */
+	public double[] getJobWaitTimesByPriority() {
+		if(node.executor instanceof WorkStealingExecutor)
+			return ((WorkStealingExecutor)node.executor).averageWaitTimes();
+		return null;
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -12,7 +12,11 @@ public class OfferReplyTag extends UIDTag {
 	final boolean ssk;
 	
 	public OfferReplyTag(boolean isSSK, PeerNode source, boolean realTimeFlag, long uid, Node node) {
-		super(source, realTimeFlag, uid, node);
+		this(isSSK, source, realTimeFlag, uid, node.tracker);
+	}
+	
+	OfferReplyTag(boolean isSSK, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
 		ssk = isSSK;
 	}
 
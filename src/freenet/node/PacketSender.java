@@ -459,6 +459,10 @@ public class PacketSender implements Runnable {
 				lastReportedNoPackets = now;
 			}
 
+		// Send anything the sockets have queued this round, whether or not we are going to sleep,
+		// so packets don't wait for a full batch under load.
+		flushSends(om);
+
 		if(sleepTime > 0) {
 			// Update logging only when have time to do so
 			try {
@@ -477,6 +481,11 @@ public class PacketSender implements Runnable {
 		}
 	}
 
+	private void flushSends(OpennetManager om) {
+		node.darknetCrypto.socket.flushSends();
+		if(om != null) om.crypto.socket.flushSends();
+	}
+
 	/** Wake up, and send any queued packets. */
 	void wakeUp() {
 		// Wake up if needed
@@ -2,11 +2,17 @@ package freenet.node;
 
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.support.Logger;
 
 public class PeerLocation {
 	
+	/** Incremented whenever any peer's location or peers' locations change, so that
+	 * RoutingIndex can tell when it is out of date. Always incremented with the changed
+	 * PeerLocation locked, so that once the new location can be read, so can the new count. */
+	private static final AtomicLong changes = new AtomicLong();
+
 	/** Current location in the keyspace, or -1 if it is unknown */
 	private double currentLocation;
 	/** Current sorted array of locations of our peer's peers. Must not be modified,
@@ -14,6 +20,9 @@ public class PeerLocation {
 	private double[] currentPeersLocation;
 	/** Time the location was set */
 	private long locSetTime;
+	/** Incremented whenever this peer's location or its peers' locations change, so that
+	 * RoutingIndex can update just the peers that have changed. */
+	private long version;
 
 	PeerLocation(String locationString) {
 		currentLocation = Location.getLocation(locationString);
@@ -98,6 +107,10 @@ public class PeerLocation {
 			currentLocation = newLoc;
 			currentPeersLocation = newPeersLocation;
 			locSetTime = System.currentTimeMillis();
+			if(anythingChanged) {
+				version++;
+				changes.incrementAndGet();
+			}
 		}
 		return anythingChanged;
 	}
@@ -107,10 +120,24 @@ public class PeerLocation {
 		if(!Location.equals(newLoc, currentLocation)) {
 			currentLocation = newLoc;
 			locSetTime = System.currentTimeMillis();
+			version++;
+			changes.incrementAndGet();
 		}
 		return oldLoc;
 	}
 
+	/** The number of changes to this peer's location or its peers' locations so far. Read it
+	 * before the locations: if they change in between, the next update will see a newer
+	 * version and read them again. */
+	synchronized long getVersion() {
+		return version;
+	}
+
+	/** The number of location changes so far, across all peers. */
+	static long changeCount() {
+		return changes.get();
+	}
+
 	/**
 	 * Finds the position of the first element in the sorted list greater than the given element,
 	 * or -1 if none.
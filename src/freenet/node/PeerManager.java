@@ -20,6 +20,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -72,14 +74,18 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** The locations of connectedPeers and their peers, sorted, for closerPeer(). Rebuilt
+	 * lazily when it is out of date. */
+	private volatile RoutingIndex routingIndex;
+	/** If false, closerPeer() always looks at every peer. For tests. */
+	boolean useRoutingIndex = true;
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
-        // FIXME MEMORY use a hash. Not hashCode() though.
         // FIXME Strip metadata, except for peer locations.
-        private String darknetPeersStringCache = null;
-        private String opennetPeersStringCache = null;
-        private String oldOpennetPeersStringCache = null;
+        private final PeersFile darknetPeersFile = new PeersFile();
+        private final PeersFile opennetPeersFile = new PeersFile();
+        private final PeersFile oldOpennetPeersFile = new PeersFile();
         private PeerManagerUserAlert ua;	// Peers stuff
 	/** age of oldest never connected peer (milliseconds) */
 	private long oldestNeverConnectedDarknetPeerAge;
@@ -108,17 +114,57 @@ public class PeerManager {
 	private volatile boolean shouldWritePeersDarknet = false;
 	private volatile boolean shouldWritePeersOpennet = false;
 	private static final long MIN_WRITEPEERS_DELAY = MINUTES.toMillis(5); // Urgent stuff calls write*PeersUrgent.
+	/** Urgent writes are delayed by this much, so that a burst of changes is written once. */
+	static final long URGENT_WRITEPEERS_DELAY = SECONDS.toMillis(2);
 	private final Runnable writePeersRunnable = new Runnable() {
 
 		@Override
 		public void run() {
 			try {
+				// Pick up any changes to the peers which weren't reported to us.
+				darknetPeersFile.forceRefresh();
+				opennetPeersFile.forceRefresh();
+				oldOpennetPeersFile.forceRefresh();
 				writePeersNow(false);
 			} finally {
 				node.getTicker().queueTimedJob(writePeersRunnable, MIN_WRITEPEERS_DELAY);
 			}
 		}
 	};
+	/** True if an urgent darknet write is queued and hasn't started yet. */
+	private final AtomicBoolean urgentWriteDarknetQueued = new AtomicBoolean();
+	/** True if an urgent opennet write is queued and hasn't started yet. */
+	private final AtomicBoolean urgentWriteOpennetQueued = new AtomicBoolean();
+	/** Urgent write requests which were merged into one already queued. */
+	private final AtomicLong urgentWritesCoalesced = new AtomicLong();
+	private final PrioRunnable writePeersDarknetUrgentRunnable = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			urgentWriteDarknetQueued.set(false);
+			writePeersDarknetNow(true);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
+	private final PrioRunnable writePeersOpennetUrgentRunnable = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			urgentWriteOpennetQueued.set(false);
+			writePeersOpennetNow(true);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
 	
 	protected void writePeersNow(boolean rotateBackups) {
 		writePeersDarknetNow(rotateBackups);
@@ -184,6 +230,10 @@ public class PeerManager {
 				// Ensure we're not waiting 5mins here
 				writePeersDarknet();
 				writePeersOpennet();
+				// Export every peer again, so the last write has up to date metadata.
+				darknetPeersFile.forceRefresh();
+				opennetPeersFile.forceRefresh();
+				oldOpennetPeersFile.forceRefresh();
 				writePeersNow(false);
 			}
 		});
@@ -703,14 +753,14 @@ public class PeerManager {
 						}
 						if(remove) {
 							if(removePeer(pn) && !pn.isSeed())
-								writePeersUrgent(pn.isOpennet());
+								writePeersUrgent(pn);
 						}
 					}
 				}, ctrDisconn);
 			} catch(NotConnectedException e) {
 				if(remove) {
 					if(pn.isDisconnecting() && removePeer(pn) && !pn.isSeed())
-						writePeersUrgent(pn.isOpennet());
+						writePeersUrgent(pn);
 				}
 				return;
 			}
@@ -723,7 +773,7 @@ public class PeerManager {
 							if(remove) {
 								if(removePeer(pn)) {
 									if(!pn.isSeed()) {
-										writePeersUrgent(pn.isOpennet());
+										writePeersUrgent(pn);
 									}
 								}
 							}
@@ -735,7 +785,7 @@ public class PeerManager {
 		} else {
 			if(remove) {
 				if(removePeer(pn) && !pn.isSeed())
-					writePeersUrgent(pn.isOpennet());
+					writePeersUrgent(pn);
 			}
 		}
 	}
@@ -982,7 +1032,40 @@ public class PeerManager {
 			excludeLocations.add(routedToNode.getLocation());
 		}
 
-		for(int i = 0; i < peers.length; i++) {
+		// If nothing can be timed out, and we don't need to know about the peers we don't pick, we
+		// only need to look at the closest peers: Go through them in order of distance using the
+		// routing index, until no peer we haven't looked at can be closer than the best
+		// non-backed-off peer we have found (or be within maxDistance or closer than us).
+		// Ties are only exact equality, so the loop below still picks the same peer.
+		RoutingIndex.Walk walk = null;
+		if(useRoutingIndex && addUnpickedLocsTo == null && (entry == null || ignoreTimeout))
+			walk = getRoutingIndex(peers).walk(target);
+		double stopDistance = ignoreSelf ? maxDistance : Math.min(maxDistance, maxDiff);
+
+		// What we found out about each peer we looked at. NaN means it was skipped or not
+		// looked at.
+		double[] diffs = new double[peers.length];
+		Arrays.fill(diffs, Double.NaN);
+		double[] realDiffs = new double[peers.length];
+		double[] usedLocs = new double[peers.length];
+		boolean[] directs = new boolean[peers.length];
+		boolean[] backedOffs = new boolean[peers.length];
+		long[] timeoutsFT = new long[peers.length];
+		boolean[] visited = walk == null ? null : new boolean[peers.length];
+
+		for(int x = 0; ; x++) {
+			int i;
+			if(walk == null) {
+				if(x == peers.length) break;
+				i = x;
+			} else {
+				// Below 2*Double.MIN_NORMAL, distances which aren't equal can still be tied.
+				if(stopDistance >= 4*Double.MIN_NORMAL && walk.lowerBound() > stopDistance) break;
+				i = walk.next();
+				if(i == -1) break;
+				if(visited[i]) continue;
+				visited[i] = true;
+			}
 			PeerNode p = peers[i];
 			if(routedTo.contains(p)) {
 				if(logMINOR)
@@ -1068,6 +1151,27 @@ public class PeerManager {
 					Logger.minor(this, "Ignoring, further than self >maxDiff=" + maxDiff);
 				continue;
 			}
+			boolean backedOff = p.isRoutingBackedOff(ignoreBackoffUnder, realTime);
+			diffs[i] = diff;
+			realDiffs[i] = realDiff;
+			usedLocs[i] = loc;
+			directs[i] = direct;
+			backedOffs[i] = backedOff;
+			timeoutsFT[i] = timeoutFT;
+			if(!backedOff && !timedOut)
+				stopDistance = Math.min(stopDistance, diff);
+		}
+
+		for(int i = 0; i < peers.length; i++) {
+			double diff = diffs[i];
+			if(Double.isNaN(diff)) continue;
+			PeerNode p = peers[i];
+			double realDiff = realDiffs[i];
+			double loc = usedLocs[i];
+			boolean direct = directs[i];
+			boolean backedOff = backedOffs[i];
+			long timeoutFT = timeoutsFT[i];
+			boolean timedOut = timeoutFT > now;
 			if(logMINOR)
 				Logger.minor(this, "p.loc=" + loc + ", target=" + target + ", d=" + Location.distance(loc, target) + " usedD=" + diff + " timedOut=" + timedOut + " for " + p.getPeer());
 			boolean chosen = false;
@@ -1078,7 +1182,6 @@ public class PeerManager {
 				if(logMINOR)
 					Logger.minor(this, "New best: " + diff + " (" + loc + " for " + p.getPeer());
 			}
-			boolean backedOff = p.isRoutingBackedOff(ignoreBackoffUnder, realTime);
 			if(backedOff && (diff < closestBackedOffDistance || (Math.abs(diff - closestBackedOffDistance) < Double.MIN_VALUE*2 && (direct || realDiff < closestRealBackedOffDistance))) && !timedOut) {
 				closestBackedOffDistance = diff;
 				closestBackedOff = p;
@@ -1248,6 +1351,19 @@ public class PeerManager {
 		return best;
 	}
 
+	/** Get the routing index for the given connectedPeers snapshot, updating it if the peers
+	 * or any of their locations have changed since it was built. */
+	RoutingIndex getRoutingIndex(PeerNode[] peers) {
+		RoutingIndex index = routingIndex;
+		long version = PeerLocation.changeCount();
+		if(index == null || index.peers != peers || index.version != version) {
+			// Racing updates are harmless, they will produce the same index.
+			index = index == null ? new RoutingIndex(peers, version) : index.update(peers, version);
+			routingIndex = index;
+		}
+		return index;
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
@@ -1376,43 +1492,65 @@ public class PeerManager {
 			writePeersDarknet();
 	}
 
+	/** Write the peers file containing the given peer soon, because its noderef has changed. */
+	void writePeers(PeerNode pn) {
+		if(pn.isOpennet()) {
+			opennetPeersFile.changed(pn);
+			oldOpennetPeersFile.changed(pn);
+			writePeersOpennet();
+		} else {
+			darknetPeersFile.changed(pn);
+			writePeersDarknet();
+		}
+	}
+
 	void writePeersUrgent(boolean opennet) {
 		if(opennet)
 			writePeersOpennetUrgent();
 		else
 			writePeersDarknetUrgent();
 	}
+
+	/** Write the peers file containing the given peer shortly, because it has been added, removed,
+	 * or changed in a way which matters. */
+	void writePeersUrgent(PeerNode pn) {
+		if(pn.isOpennet()) {
+			opennetPeersFile.changed(pn);
+			oldOpennetPeersFile.changed(pn);
+		} else
+			darknetPeersFile.changed(pn);
+		queueUrgentWrite(pn.isOpennet());
+	}
 	
 	void writePeersOpennetUrgent() {
-		node.executor.execute(new PrioRunnable() {
-
-			@Override
-			public void run() {
-				writePeersOpennetNow(true);
-			}
-
-			@Override
-			public int getPriority() {
-				return NativeThread.HIGH_PRIORITY;
-			}
-			
-		});
+		opennetPeersFile.changed(null);
+		oldOpennetPeersFile.changed(null);
+		queueUrgentWrite(true);
 	}
 
 	void writePeersDarknetUrgent() {
-		node.executor.execute(new PrioRunnable() {
-
-			@Override
-			public void run() {
-				writePeersDarknetNow(true);
-			}
+		darknetPeersFile.changed(null);
+		queueUrgentWrite(false);
+	}
 
-			@Override
-			public int getPriority() {
-				return NativeThread.HIGH_PRIORITY;
-			}
-			
-		});
+	/** Queue an urgent write, unless one is already queued, in which case it will include this
+	 * change, because it hasn't built the file yet. */
+	private void queueUrgentWrite(boolean opennet) {
+		AtomicBoolean queued;
+		PrioRunnable job;
+		if(opennet) {
+			writePeersOpennet();
+			queued = urgentWriteOpennetQueued;
+			job = writePeersOpennetUrgentRunnable;
+		} else {
+			writePeersDarknet();
+			queued = urgentWriteDarknetQueued;
+			job = writePeersDarknetUrgentRunnable;
+		}
+		if(queued.compareAndSet(false, true))
+			node.getTicker().queueTimedJob(job, URGENT_WRITEPEERS_DELAY);
+		else
+			urgentWritesCoalesced.incrementAndGet();
 	}
 
 	void writePeersDarknet() {
@@ -1424,35 +1562,45 @@ public class PeerManager {
 	}
 	
 	protected String getDarknetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers = myPeers();
-		for(PeerNode pn : peers) {
-			if(pn instanceof DarknetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
+		return darknetPeersFile.build(myPeers(), DarknetPeerNode.class);
 	}
 	
 	protected String getOpennetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers = myPeers();
-		for(PeerNode pn : peers) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
+		return opennetPeersFile.build(myPeers(), OpennetPeerNode.class);
 	}
 	
 	protected String getOldOpennetPeersString(OpennetManager om) {
-		StringBuilder sb = new StringBuilder();
-		for(PeerNode pn : om.getOldPeers()) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
+		return oldOpennetPeersFile.build(om.getOldPeers(), OpennetPeerNode.class);
+	}
+
+	/** @return The number of times the peers files have been written. */
+	public long getPeersFileWrites() {
+		return darknetPeersFile.getWrites() + opennetPeersFile.getWrites() + oldOpennetPeersFile.getWrites();
+	}
+
+	/** @return The total bytes written to the peers files. */
+	public long getPeersFileBytesWritten() {
+		return darknetPeersFile.getBytesWritten() + opennetPeersFile.getBytesWritten() + oldOpennetPeersFile.getBytesWritten();
+	}
+
+	/** @return The number of times a peers file didn't need writing because it hadn't changed. */
+	public long getPeersFileUnchanged() {
+		return darknetPeersFile.getUnchanged() + opennetPeersFile.getUnchanged() + oldOpennetPeersFile.getUnchanged();
+	}
+
+	/** @return The number of noderefs exported for the peers files. */
+	public long getPeersFileNoderefsExported() {
+		return darknetPeersFile.getExported() + opennetPeersFile.getExported() + oldOpennetPeersFile.getExported();
+	}
+
+	/** @return The number of noderefs written to the peers files without exporting them again. */
+	public long getPeersFileNoderefsReused() {
+		return darknetPeersFile.getReused() + opennetPeersFile.getReused() + oldOpennetPeersFile.getReused();
+	}
+
+	/** @return The number of urgent write requests merged into one which was already queued. */
+	public long getPeersFileUrgentWritesCoalesced() {
+		return urgentWritesCoalesced.get();
 	}
 	
 	private static final int BACKUPS_OPENNET = 1;
@@ -1465,8 +1613,8 @@ public class PeerManager {
 				newDarknetPeersString = getDarknetPeersString();
 		}
 		synchronized(writePeerFileSync) {
-			if(newDarknetPeersString != null && !newDarknetPeersString.equals(darknetPeersStringCache))
-				writePeersInner(darkFilename, darknetPeersStringCache = newDarknetPeersString, BACKUPS_DARKNET, rotateBackups);
+			if(newDarknetPeersString != null)
+				writePeersInner(darkFilename, newDarknetPeersString, darknetPeersFile, BACKUPS_DARKNET, rotateBackups);
 		}
 	}
 
@@ -1483,20 +1631,21 @@ public class PeerManager {
 			}
 		}
 		synchronized(writePeerFileSync) {
-			if(newOpennetPeersString != null && !newOpennetPeersString.equals(opennetPeersStringCache)) {
-				writePeersInner(openFilename, opennetPeersStringCache = newOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
+			if(newOpennetPeersString != null) {
+				writePeersInner(openFilename, newOpennetPeersString, opennetPeersFile, BACKUPS_OPENNET, rotateBackups);
 			}
-			if(newOldOpennetPeersString != null && !newOldOpennetPeersString.equals(oldOpennetPeersStringCache)) {
-				writePeersInner(oldOpennetPeersFilename, oldOpennetPeersStringCache = newOldOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
+			if(newOldOpennetPeersString != null) {
+				writePeersInner(oldOpennetPeersFilename, newOldOpennetPeersString, oldOpennetPeersFile, BACKUPS_OPENNET, rotateBackups);
 			}
 		}
 	}
 	
 	/**
 	 * Write the peers file to disk
+	 * @param file The cached noderefs the contents were built from, to record the write.
 	 * @param rotateBackups If true, rotate backups. If false, just clobber the latest file.
 	 */
-	private void writePeersInner(String filename, String sb, int maxBackups, boolean rotateBackups) {
+	private void writePeersInner(String filename, String sb, PeersFile file, int maxBackups, boolean rotateBackups) {
 		assert(maxBackups >= 1);
 		synchronized(writePeerFileSync) {
 			FileOutputStream fos = null;
@@ -1529,6 +1678,7 @@ public class PeerManager {
 				w.write(sb);
 				w.flush();
 				fos.getFD().sync();
+				long bytes = fos.getChannel().size();
 				w.close();
 				w = null;
 				
@@ -1549,6 +1699,10 @@ public class PeerManager {
 				} else {
 					FileUtil.renameTo(f, getBackupFilename(filename, 0));
 				}
+				file.written(bytes);
+				if(logMINOR)
+					Logger.minor(this, "Wrote "+bytes+" bytes to "+filename+": "+file.getWrites()+" writes, "+
+							file.getExported()+" noderefs exported, "+file.getReused()+" reused");
 			} catch(IOException e) {
 				try {
 					fos.close();
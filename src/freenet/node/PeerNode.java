@@ -76,6 +76,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
+import freenet.support.WaitQueue;
 import freenet.support.WeakHashSet;
 import freenet.support.math.MersenneTwister;
 import freenet.support.math.RunningAverage;
@@ -965,6 +966,12 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return location.getLocation();
 	}
 
+	/** @return A number which goes up whenever getLocation() or getPeersLocationArray()
+	 * changes. See PeerLocation.getVersion(). */
+	long getLocationVersion() {
+		return location.getVersion();
+	}
+
 	public boolean shouldBeExcludedFromPeerList() {
 		long now = System.currentTimeMillis();
 		synchronized(this) {
@@ -4520,6 +4527,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		private boolean failed;
 		private SlotWaiterFailedException fe;
 		final boolean realTime;
+		/** Threads in waitForAny(). */
+		private final WaitQueue waiters = new WaitQueue();
 		
 		// FIXME the counter is a quick hack to ensure that the original ordering is preserved
 		// even after failures (transfer failures, backoffs).
@@ -4611,7 +4620,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			if(!tag.addRoutedTo(peer, offeredKey)) {
 				Logger.normal(this, "onWaited for "+this+" added on "+tag+" but already added - race condition?");
 			}
-			notifyAll();
+			waiters.wakeAll();
 			// Because we are no longer in the slot queue we must remove it.
 			// If we want to wait for it again it must be re-queued.
 			PeerNode[] toUnreg = waitingFor.toArray(new PeerNode[waitingFor.size()]);
@@ -4647,7 +4656,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				failed = true;
 				fe = new SlotWaiterFailedException(peer, reallyFailed);
 				tag.clearWaitingForSlot();
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 		
@@ -4765,38 +4774,37 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				tag.clearWaitingForSlot();
 				return ret;
 			}
-			synchronized(this) {
-				if(logMINOR) Logger.minor(this, "Waiting for any node to wake up "+this+" : "+Arrays.toString(waitingFor.toArray())+" (for up to "+maxWait+"ms)");
-				long waitStart = System.currentTimeMillis();
-				long deadline = waitStart + maxWait;
-				boolean timedOut = false;
-				while(acceptedBy == null && (!waitingFor.isEmpty()) && !failed) {
-					try {
-						if(maxWait == Long.MAX_VALUE)
-							wait();
-						else {
-							int wait = (int)Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis());
-							if(wait > 0) wait(wait);
+			if(logMINOR) {
+				synchronized(this) {
+					Logger.minor(this, "Waiting for any node to wake up "+this+" : "+Arrays.toString(waitingFor.toArray())+" (for up to "+maxWait+"ms)");
+				}
+			}
+			long waitStart = System.currentTimeMillis();
+			long deadline = waitStart + maxWait;
+			boolean timedOut = false;
+			// Park rather than wait(), so a request on a virtual thread doesn't pin its carrier.
+			while(true) {
+				long wait = 0;
+				synchronized(this) {
+					if(shouldGrab()) break;
+					if(maxWait != Long.MAX_VALUE) {
+						wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) {
 							if(logMINOR) Logger.minor(this, "Maximum wait time exceeded on "+this);
-							if(shouldGrab()) {
-								// Race condition resulting in stalling
-								// All we have to do is break.
-								break;
-							} else {
-								// Bigger problem.
-								// No external entity called us, so waitingFor have not been unregistered.
-								timedOut = true;
-								all = waitingFor.toArray(new PeerNode[waitingFor.size()]);
-								waitingFor.clear();
-								break;
-								// Now no callers will succeed.
-								// But we still need to unregister the waitingFor's or they will stick around until they are matched, and then, if we are unlucky, will lock a slot on the RequestTag forever and thus cause a catastrophic stall of the whole peer.
-							}
+							// No external entity called us, so waitingFor have not been unregistered.
+							timedOut = true;
+							all = waitingFor.toArray(new PeerNode[waitingFor.size()]);
+							waitingFor.clear();
+							break;
+							// Now no callers will succeed.
+							// But we still need to unregister the waitingFor's or they will stick around until they are matched, and then, if we are unlucky, will lock a slot on the RequestTag forever and thus cause a catastrophic stall of the whole peer.
 						}
-					} catch (InterruptedException e) {
-						// Ignore
 					}
+					waiters.add();
 				}
+				waiters.park(this, wait);
+			}
+			synchronized(this) {
 				if(!timedOut) {
 					long waitEnd = System.currentTimeMillis();
 					if(waitEnd - waitStart > (realTime ? 6000 : 60000)) {
@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The serialized noderefs for one peers file, so that writing it only exports the peers which
+ * have changed since it was last written. The file itself is still written in full, in the same
+ * format, so tryReadPeers() and anything else reading it is unaffected.
+ *
+ * Peers which change without telling PeerManager are picked up by forceRefresh(), which the
+ * periodic write calls.
+ */
+final class PeersFile {
+
+	/** The noderef last exported for each peer in the file. */
+	private Map<PeerNode, String> noderefs = new HashMap<PeerNode, String>();
+	/** Peers which have changed since they were last exported. */
+	private Set<PeerNode> dirty = new HashSet<PeerNode>();
+	/** If true, export every peer next time. */
+	private boolean refreshAll = true;
+	/** What we last wrote, or tried to write. */
+	private String lastWritten;
+
+	private long writes;
+	private long bytesWritten;
+	private long unchanged;
+	private long exported;
+	private long reused;
+
+	/** A peer's noderef has changed. If null, we don't know which, so export them all. */
+	synchronized void changed(PeerNode pn) {
+		if(pn == null)
+			refreshAll = true;
+		else
+			dirty.add(pn);
+	}
+
+	/** Export every peer next time. */
+	synchronized void forceRefresh() {
+		refreshAll = true;
+	}
+
+	/**
+	 * Build the file contents for the given peers.
+	 * @param peers The peers, in order. Must not be modified.
+	 * @param type Only peers of this type go in the file.
+	 * @return The contents, or null if they are the same as what we last wrote.
+	 */
+	String build(PeerNode[] peers, Class<? extends PeerNode> type) {
+		Map<PeerNode, String> oldNoderefs;
+		Set<PeerNode> changed;
+		boolean all;
+		synchronized(this) {
+			// Peers which change after this point will be exported again next time.
+			oldNoderefs = noderefs;
+			changed = dirty;
+			all = refreshAll;
+			dirty = new HashSet<PeerNode>();
+			refreshAll = false;
+		}
+		Map<PeerNode, String> newNoderefs = new HashMap<PeerNode, String>(peers.length * 2);
+		StringBuilder sb = new StringBuilder();
+		int exportedCount = 0;
+		for(PeerNode pn : peers) {
+			if(!type.isInstance(pn)) continue;
+			String s = all || changed.contains(pn) ? null : oldNoderefs.get(pn);
+			if(s == null) {
+				s = pn.exportDiskFieldSet().toOrderedString();
+				exportedCount++;
+			}
+			newNoderefs.put(pn, s);
+			sb.append(s);
+		}
+		String contents = sb.toString();
+		synchronized(this) {
+			noderefs = newNoderefs;
+			exported += exportedCount;
+			reused += newNoderefs.size() - exportedCount;
+			if(contents.equals(lastWritten)) {
+				unchanged++;
+				return null;
+			}
+			lastWritten = contents;
+			return contents;
+		}
+	}
+
+	/** Record that we have written the contents returned by build(). */
+	synchronized void written(long bytes) {
+		writes++;
+		bytesWritten += bytes;
+	}
+
+	synchronized long getWrites() {
+		return writes;
+	}
+
+	synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/** @return The number of times the file didn't need writing because nothing had changed. */
+	synchronized long getUnchanged() {
+		return unchanged;
+	}
+
+	/** @return The number of noderefs exported from the peers. */
+	synchronized long getExported() {
+		return exported;
+	}
+
+	/** @return The number of noderefs written without exporting them again. */
+	synchronized long getReused() {
+		return reused;
+	}
+
+}
@@ -43,6 +43,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
+import freenet.support.WaitQueue;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MedianMeanRunningAverage;
 
@@ -179,7 +180,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     }
 
     public void start() {
-    	node.executor.execute(this, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+    	node.requestExecutor.execute(this, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
     }
     
     @Override
@@ -838,7 +839,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         		// FIXME we are also plotting to get rid of transfer cancels so maybe not?
         		synchronized(this) {
         			transferringFrom = pn;
-        			notifyAll();
+        			statusWaiters.wakeAll();
         		}
         		fireCHKTransferBegins();
 				
@@ -1089,7 +1090,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     			failNow = true;
     		if((!wasFork) && (this.prb == null || !this.prb.allReceivedAndNotAborted())) 
     			this.prb = prb;
-    		notifyAll();
+    		statusWaiters.wakeAll();
     	}
     	if(!wasFork)
     		// Don't fire transfer begins on a fork since we have not set headers or prb.
@@ -1470,7 +1471,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		synchronized (this) {
 			if(hasForwardedRejectedOverload) return;
 			hasForwardedRejectedOverload = true;
-			notifyAll();
+			statusWaiters.wakeAll();
 		}
 		fireReceivedRejectOverload();
 	}
@@ -1503,7 +1504,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
      * @return Bitmask indicating present situation. Can be fed back to this function,
      * if nonzero.
      */
-    public synchronized short waitUntilStatusChange(short mask) {
+    public short waitUntilStatusChange(short mask) {
     	if(mask == WAIT_ALL) throw new IllegalArgumentException("Cannot ignore all!");
     	while(true) {
     	long now = System.currentTimeMillis();
@@ -1511,36 +1512,37 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         while(true) {
         	short current = mask; // If any bits are set already, we ignore those states.
         	
-       		if(hasForwardedRejectedOverload)
-       			current |= WAIT_REJECTED_OVERLOAD;
-        	
-       		if(prb != null)
-       			current |= WAIT_TRANSFERRING_DATA;
-        	
-        	if(status != NOT_FINISHED || sentAbortDownstreamTransfers)
-        		current |= WAIT_FINISHED;
+        	synchronized(this) {
+        		if(hasForwardedRejectedOverload)
+        			current |= WAIT_REJECTED_OVERLOAD;
+        		
+        		if(prb != null)
+        			current |= WAIT_TRANSFERRING_DATA;
+        		
+        		if(status != NOT_FINISHED || sentAbortDownstreamTransfers)
+        			current |= WAIT_FINISHED;
+        		
+        		if(current != mask) return current;
+        		
+        		if(now >= deadline) {
+        			Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + " and there was no change.");
+        			break;
+        		}
+        		
+        		if(logMINOR) Logger.minor(this, "Waiting for status change on "+this+" current is "+current+" status is "+status);
+        		statusWaiters.add();
+        	}
+        	// Park rather than wait(), so a request on a virtual thread doesn't pin its carrier.
+        	// Interrupts are ignored.
+        	statusWaiters.park(this, deadline - now);
+        	now = System.currentTimeMillis(); // Is used in the next iteration so needed even without the logging
         	
-        	if(current != mask) return current;
-			
-            try {
-            	if(now >= deadline) {
-            		Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + " and there was no change.");
-            		break;
-            	}
-            	
-            	if(logMINOR) Logger.minor(this, "Waiting for status change on "+this+" current is "+current+" status is "+status);
-                wait(deadline - now);
-                now = System.currentTimeMillis(); // Is used in the next iteration so needed even without the logging
-                
-                if(now >= deadline) {
-                    Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + ", maybe nobody called notify()");
-                    // Normally we would break; here, but we give the function a change to succeed
-                    // in the next iteration and break in the above if(now >= deadline) if it
-                    // did not succeed. This makes the function work if notify() is not called.
-                }
-            } catch (InterruptedException e) {
-                // Ignore
-            }
+        	if(now >= deadline) {
+        		Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + ", maybe nobody called notify()");
+        		// Normally we would break; here, but we give the function a change to succeed
+        		// in the next iteration and break in the above if(now >= deadline) if it
+        		// did not succeed. This makes the function work if notify() is not called.
+        	}
         }
     	}
     }
@@ -1578,7 +1580,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
             status = code;
             if(status == SUCCESS)
             	successFrom = next;
-            notifyAll();
+            statusWaiters.wakeAll();
         }
         
     	boolean shouldUnlock = doOpennet && next != null;
@@ -1615,7 +1617,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		
 		synchronized(this) {
 			opennetFinished = true;
-			notifyAll();
+			statusWaiters.wakeAll();
 		}
 		
     }
@@ -1783,7 +1785,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 			synchronized(this) {
 				opennetTimedOut = true;
 				opennetFinished = true;
-				notifyAll();
+				statusWaiters.wakeAll();
 			}
 			// We need to wait.
 			try {
@@ -1799,7 +1801,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		} finally {
     		synchronized(this) {
     			opennetFinished = true;
-    			notifyAll();
+    			statusWaiters.wakeAll();
     		}
     	}
 		return false;
@@ -1813,13 +1815,17 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     /** Did we timeout waiting for opennet noderef? */
     private boolean opennetTimedOut;
     
+    /** Threads in waitUntilStatusChange() or waitForOpennetNoderef(). */
+    private final WaitQueue statusWaiters = new WaitQueue();
+    
     /** Opennet noderef from next node */
     private byte[] opennetNoderef;
     
     public byte[] waitForOpennetNoderef() throws WaitedTooLongForOpennetNoderefException {
-    	synchronized(this) {
-    		long startTime = System.currentTimeMillis();
-    		while(true) {
+    	long startTime = System.currentTimeMillis();
+    	while(true) {
+    		long waitTime;
+    		synchronized(this) {
     			if(opennetFinished) {
     				if(opennetTimedOut)
     					throw new WaitedTooLongForOpennetNoderefException();
@@ -1830,19 +1836,15 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     				opennetNoderef = null;
     				return ref;
     			}
-    			try {
-    				int waitTime = (int) Math.min(Integer.MAX_VALUE, OPENNET_TIMEOUT + startTime - System.currentTimeMillis());
-    				if(waitTime > 0) {
-    					wait(waitTime);
-    					continue;
-    				}
-				} catch (InterruptedException e) {
-					// Ignore
-					continue;
-				}
-				if(logMINOR) Logger.minor(this, "Took too long waiting for opennet ref on "+this);
-				return null;
+    			waitTime = OPENNET_TIMEOUT + startTime - System.currentTimeMillis();
+    			if(waitTime <= 0) {
+    				if(logMINOR) Logger.minor(this, "Took too long waiting for opennet ref on "+this);
+    				return null;
+    			}
+    			statusWaiters.add();
     		}
+    		// Interrupts are ignored.
+    		statusWaiters.park(this, waitTime);
     	}
     }
 
@@ -6,6 +6,8 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.client.async.RequestSelectionTreeNode;
@@ -18,6 +20,7 @@ import freenet.support.RandomGrabArrayItem;
 import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.TokenBucket;
 import freenet.support.Logger.LogLevel;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.RunningAverage;
 
 /**
@@ -76,6 +79,19 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
 	
+	/** Most requests we can start without waiting for the throttle, and so the most we start for
+	 * one load check. */
+	static final int MAX_TOKENS = 4;
+	/** Requests we may start now without waiting, building up at one per throttle delay. Only used
+	 * by the starter thread. */
+	private double tokens;
+	private long tokensUpdated;
+	/** Requests started, by priority class. */
+	private final AtomicLongArray started = new AtomicLongArray(NUMBER_OF_PRIORITY_CLASSES);
+	/** Milliseconds from choosing a request to starting it, by priority class. */
+	private final RunningAverage[] startLatency = new RunningAverage[NUMBER_OF_PRIORITY_CLASSES];
+	private final long createdTime = System.currentTimeMillis();
+	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, 
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
 		this.core = node;
@@ -87,6 +103,8 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		this.isInsert = isInsert;
 		this.isSSK = isSSK;
 		this.realTime = realTime;
+		for(int i=0;i<startLatency.length;i++)
+			startLatency[i] = new BootstrappingDecayingRunningAverage(0.0, 0.0, Double.MAX_VALUE, 100, null);
 	}
 
 	void setScheduler(RequestScheduler sched) {
@@ -106,8 +124,9 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	void realRun() {
 		ChosenBlock req = null;
-		// The last time at which we sent a request or decided not to
-		long cycleTime = System.currentTimeMillis();
+		// When we grabbed req.
+		long grabbed = 0;
+		tokensUpdated = System.currentTimeMillis();
 		while(true) {
 			// Allow 5 minutes before we start killing requests due to not connecting.
 			OpennetManager om;
@@ -125,26 +144,30 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			}
 			if(req == null) {
 				req = sched.grabRequest();
+				grabbed = System.currentTimeMillis();
 			}
 			if(req != null) {
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
-				if(!req.localRequestOnly) {
-					// Wait
-					long delay;
-					delay = throttle.getDelay();
-					if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
-					long sleepUntil = cycleTime + delay;
-					long now;
-					do {
-						now = System.currentTimeMillis();
-						if(now < sleepUntil)
-							try {
-								Thread.sleep(sleepUntil - now);
-								if(logMINOR) Logger.minor(this, "Slept: "+(sleepUntil-now)+"ms");
-							} catch (InterruptedException e) {
-								// Ignore
-							}
-					} while(now < sleepUntil);
+				assert(req.realTimeFlag == realTime);
+				if(req.localRequestOnly) {
+					stats.waitUntilNotOverloaded(isInsert);
+					start(req, grabbed);
+					req = null;
+					continue;
+				}
+				// Wait for a token.
+				long delay = throttle.getDelay();
+				if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
+				addTokens(System.currentTimeMillis(), delay);
+				if(tokens < 1.0) {
+					long sleep = (long) Math.ceil((1.0 - tokens) * delay);
+					try {
+						Thread.sleep(sleep);
+						if(logMINOR) Logger.minor(this, "Slept: "+sleep+"ms");
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					continue;
 				}
 //				if(!doAIMD) {
 //					// Arbitrary limit on number of local requests waiting for slots.
@@ -164,20 +187,27 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 //					// Note that while waitFor() is blocking, we need such a limit anyway.
 //					if(localRequestsWaitingForSlots > maxWaitingForSlots) continue;
 //				}
-				RejectReason reason;
-				assert(req.realTimeFlag == realTime);
-				if (!req.localRequestOnly) {
-					reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
-							Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
-					if(reason != null) {
-						if(logMINOR)
-							Logger.minor(this, "Not sending local request: "+reason);
-						// Wait one throttle-delay before trying again
-						cycleTime = System.currentTimeMillis();
-						continue; // Let local requests compete with all the others
-					}
-				} else {
-					stats.waitUntilNotOverloaded(isInsert);
+				// One load check for everything we start now.
+				RejectReason reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
+						Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
+				if(reason != null) {
+					if(logMINOR)
+						Logger.minor(this, "Not sending local request: "+reason);
+					// Wait one throttle-delay before trying again
+					tokens = 0.0;
+					continue; // Let local requests compete with all the others
+				}
+				// Start as many as we have tokens for, up to MAX_TOKENS.
+				while(true) {
+					start(req, grabbed);
+					tokens -= 1.0;
+					req = null;
+					if(tokens < 1.0) break;
+					req = sched.grabRequest();
+					if(req == null) break;
+					grabbed = System.currentTimeMillis();
+					// Handled next time round, it waits for load differently.
+					if(req.localRequestOnly) break;
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Waiting...");				
@@ -193,19 +223,56 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 						}
 					}
 				}
+				grabbed = System.currentTimeMillis();
 			}
-			if(req == null) continue;
-			if(!startRequest(req, logMINOR)) {
-				// Don't log if it's a cancelled transient request.
-				if(!((!req.isPersistent()) && req.isCancelled()))
-					Logger.normal(this, "No requests to start on "+req);
-			}
-			if(!req.localRequestOnly)
-				cycleTime = System.currentTimeMillis();
-			req = null;
 		}
 	}
 
+	/** Add a token for each throttle delay since we last did. At most MAX_TOKENS can build up, so
+	 * we can catch up after being held up, without a burst of requests after being idle. */
+	void addTokens(long now, long delay) {
+		if(now > tokensUpdated)
+			tokens = Math.min(MAX_TOKENS, tokens + (double) (now - tokensUpdated) / Math.max(1, delay));
+		tokensUpdated = now;
+	}
+
+	double getTokens() {
+		return tokens;
+	}
+
+	private void start(ChosenBlock req, long grabbed) {
+		if(!startRequest(req, logMINOR)) {
+			// Don't log if it's a cancelled transient request.
+			if(!((!req.isPersistent()) && req.isCancelled()))
+				Logger.normal(this, "No requests to start on "+req);
+			return;
+		}
+		reportStarted(req.getPriority(), System.currentTimeMillis() - grabbed);
+	}
+
+	void reportStarted(short priority, long latency) {
+		started.incrementAndGet(priority);
+		startLatency[priority].report(Math.max(0, latency));
+	}
+
+	/** @return The number of requests started at this priority since startup. */
+	public long getStarted(short priority) {
+		return started.get(priority);
+	}
+
+	/** @return The average number of requests started per second at this priority since startup. */
+	public double getStartsPerSecond(short priority) {
+		long elapsed = System.currentTimeMillis() - createdTime;
+		if(elapsed <= 0) return 0.0;
+		return started.get(priority) * 1000.0 / elapsed;
+	}
+
+	/** @return The average time in milliseconds from choosing a request at this priority to
+	 * starting it, over recent requests. */
+	public double getStartLatency(short priority) {
+		return startLatency[priority].currentValue();
+	}
+
 	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
 			req.onDumped();
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.text.DecimalFormat;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.config.Config;
@@ -334,8 +336,39 @@ public class RequestStarterGroup {
 		sb.append(" bw=");
 		sb.append(throttle.getRate());
 		sb.append("B/sec");
+		RequestStarter starter = getStarter(isSSK, isInsert, realTime);
+		DecimalFormat fix2p = new DecimalFormat("0.00");
+		for(short prio = RequestStarter.MAXIMUM_PRIORITY_CLASS; prio < RequestStarter.NUMBER_OF_PRIORITY_CLASSES; prio++) {
+			if(starter.getStarted(prio) == 0) continue;
+			sb.append(" p");
+			sb.append(prio);
+			sb.append(": ");
+			sb.append(fix2p.format(starter.getStartsPerSecond(prio)));
+			sb.append("/sec wait=");
+			sb.append(TimeUtil.formatTime((long)starter.getStartLatency(prio), 2, true));
+		}
 		return sb.toString();
 	}
+	
+	RequestStarter getStarter(boolean isSSK, boolean isInsert, boolean realTime) {
+		if(realTime) {
+			if(isSSK) {
+				if(isInsert) return sskInsertStarterRT;
+				else return sskRequestStarterRT;
+			} else {
+				if(isInsert) return chkInsertStarterRT;
+				else return chkRequestStarterRT;
+			}
+		} else {
+			if(isSSK) {
+				if(isInsert) return sskInsertStarterBulk;
+				else return sskRequestStarterBulk;
+			} else {
+				if(isInsert) return chkInsertStarterBulk;
+				else return chkRequestStarterBulk;
+			}
+		}
+	}
 
 	public String diagnosticThrottlesLine(boolean mode) {
 		StringBuilder sb = new StringBuilder();
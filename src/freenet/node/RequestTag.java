@@ -44,19 +44,28 @@ public class RequestTag extends UIDTag {
 	private NodeCHK key;
 
 	public RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, Node node) {
-		super(source, realTimeFlag, uid, node);
+		this(isSSK, start, source, realTimeFlag, uid, node.tracker);
+	}
+	
+	RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
 		this.start = start;
 		this.isSSK = isSSK;
 	}
 
 	public void setRequestSenderFinished(int status) {
 		boolean noRecordUnlock;
+		boolean canUnlock;
 		synchronized(this) {
 			if(status == RequestSender.NOT_FINISHED) throw new IllegalArgumentException();
 			requestSenderFinishedCode = status;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			updateCountsIfNeeded();
+			return;
+		}
 		innerUnlock(noRecordUnlock);
 	}
 
@@ -192,8 +201,12 @@ public class RequestTag extends UIDTag {
 	
 	private boolean completedDownstreamTransfers;
 
-	public synchronized void completedDownstreamTransfers() {
-		this.completedDownstreamTransfers = true;
+	public void completedDownstreamTransfers() {
+		synchronized(this) {
+			if(completedDownstreamTransfers) return;
+			this.completedDownstreamTransfers = true;
+		}
+		tracker.updateCounts(this);
 	}
 
 	@Override
@@ -219,6 +232,7 @@ public class RequestTag extends UIDTag {
 
 	public void finishedWaitingForOpennet(PeerNode next) {
 		boolean noRecordUnlock;
+		boolean canUnlock;
 		synchronized(this) {
 			if(waitingForOpennet == null) {
 				if(logMINOR) Logger.minor(this, "Not waiting for opennet!");
@@ -229,9 +243,13 @@ public class RequestTag extends UIDTag {
 				Logger.error(this, "Finished waiting for opennet on "+next+" but was waiting for "+got);
 			}
 			waitingForOpennet = null;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			updateCountsIfNeeded();
+			return;
+		}
 		innerUnlock(noRecordUnlock);
 	}
 	
@@ -4,6 +4,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -57,6 +58,11 @@ public class RequestTracker {
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
 	
+	/** Running totals for each overall running* map, so that shouldRejectRequest() doesn't 
+	 * need to go through every running request. Indexed by countsIndex(). LOCKING: Each is 
+	 * protected by the lock on the corresponding overall map. */
+	private final MapCounts[] runningCounts;
+	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
@@ -85,6 +91,9 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
+		runningCounts = new MapCounts[12];
+		for(int i=0;i<runningCounts.length;i++)
+			runningCounts[i] = new MapCounts();
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -137,6 +146,11 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			if(tag.counted == null) {
+				// Not already registered.
+				tag.counted = new TagCounts(tag);
+				getCounts(ssk, insert, offerReply, tag.realTimeFlag).add(tag.counted, 1);
+			}
 		}
 		return true;
 	}
@@ -189,8 +203,13 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				if(tag.counted != null) {
+					getCounts(ssk, insert, offerReply, tag.realTimeFlag).add(tag.counted, -1);
+					tag.counted = null;
+				}
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -223,6 +242,210 @@ public class RequestTracker {
 			return expectedTransfersIn;
 		}
 	}
+	
+	/** What a single running tag adds to the counts, as at the last time it was changed. The
+	 * expected transfers depend on the parameters to countRequests(), so we keep them for both 
+	 * values of ignoreLocalVsRemote ([0] is false, [1] is true), and [2] and [3] are the number
+	 * of transfers per insert for the same. This works because the expected transfers are 
+	 * linear in transfersPerInsert. Only the expected transfers for accepting requests are 
+	 * counted, not those for sending them. */
+	static class TagCounts {
+		final boolean wasLocal;
+		/** The effective source, which may be null even if it's remote. Note that this keeps
+		 * the PeerNode from being garbage collected while the request is running. */
+		final PeerNode source;
+		final boolean sourceRestarted;
+		final int[] transfersIn = new int[4];
+		final int[] transfersOut = new int[4];
+		
+		/** Caller must hold the lock on the overall map the tag is in. */
+		TagCounts(UIDTag tag) {
+			wasLocal = tag.wasLocal;
+			source = tag.getSource();
+			sourceRestarted = tag.countAsSourceRestarted();
+			for(int i=0;i<2;i++) {
+				boolean ignoreLocalVsRemote = i == 1;
+				transfersIn[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, true);
+				transfersIn[i+2] = tag.expectedTransfersIn(ignoreLocalVsRemote, 1, true) - transfersIn[i];
+				transfersOut[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, true);
+				transfersOut[i+2] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, true) - transfersOut[i];
+			}
+		}
+	}
+	
+	/** Running totals for a group of tags, with those for the source restarted tags in the 
+	 * group separately. */
+	static class RunningCounts {
+		private int total;
+		private final int[] transfersIn = new int[4];
+		private final int[] transfersOut = new int[4];
+		private int totalSR;
+		private final int[] transfersInSR = new int[4];
+		private final int[] transfersOutSR = new int[4];
+		
+		void add(TagCounts counts, int sign) {
+			total += sign;
+			for(int i=0;i<4;i++) {
+				transfersIn[i] += sign * counts.transfersIn[i];
+				transfersOut[i] += sign * counts.transfersOut[i];
+			}
+			if(counts.sourceRestarted) {
+				totalSR += sign;
+				for(int i=0;i<4;i++) {
+					transfersInSR[i] += sign * counts.transfersIn[i];
+					transfersOutSR[i] += sign * counts.transfersOut[i];
+				}
+			}
+		}
+		
+		boolean isEmpty() {
+			return total == 0;
+		}
+		
+		void addTo(CountedRequests counter, CountedRequests counterSR, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			counter.total += total;
+			counter.expectedTransfersIn += transfersIn[i] + transfersPerInsert * transfersIn[i+2];
+			counter.expectedTransfersOut += transfersOut[i] + transfersPerInsert * transfersOut[i+2];
+			if(counterSR != null) {
+				counterSR.total += totalSR;
+				counterSR.expectedTransfersIn += transfersInSR[i] + transfersPerInsert * transfersInSR[i+2];
+				counterSR.expectedTransfersOut += transfersOutSR[i] + transfersPerInsert * transfersOutSR[i+2];
+			}
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof RunningCounts)) return false;
+			RunningCounts c = (RunningCounts) o;
+			return total == c.total && totalSR == c.totalSR &&
+				Arrays.equals(transfersIn, c.transfersIn) && Arrays.equals(transfersOut, c.transfersOut) &&
+				Arrays.equals(transfersInSR, c.transfersInSR) && Arrays.equals(transfersOutSR, c.transfersOutSR);
+		}
+		
+		@Override
+		public int hashCode() {
+			return total;
+		}
+		
+		@Override
+		public String toString() {
+			return "total="+total+" in="+Arrays.toString(transfersIn)+" out="+Arrays.toString(transfersOut)+
+				" totalSR="+totalSR+" inSR="+Arrays.toString(transfersInSR)+" outSR="+Arrays.toString(transfersOutSR);
+		}
+	}
+	
+	/** Running totals for one of the overall running* maps: for the local requests, the 
+	 * remote requests, and the remote requests by their effective source. */
+	private static class MapCounts {
+		final RunningCounts local = new RunningCounts();
+		final RunningCounts remote = new RunningCounts();
+		final HashMap<PeerNode, RunningCounts> bySource = new HashMap<PeerNode, RunningCounts>();
+		
+		void add(TagCounts counts, int sign) {
+			if(counts.wasLocal) {
+				local.add(counts, sign);
+				return;
+			}
+			remote.add(counts, sign);
+			RunningCounts c = bySource.get(counts.source);
+			if(c == null) {
+				c = new RunningCounts();
+				bySource.put(counts.source, c);
+			}
+			c.add(counts, sign);
+			if(c.isEmpty()) bySource.remove(counts.source);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof MapCounts)) return false;
+			MapCounts c = (MapCounts) o;
+			return local.equals(c.local) && remote.equals(c.remote) && bySource.equals(c.bySource);
+		}
+		
+		@Override
+		public int hashCode() {
+			return local.hashCode() + remote.hashCode();
+		}
+		
+		@Override
+		public String toString() {
+			return "local: "+local+" remote: "+remote+" by source: "+bySource.size();
+		}
+	}
+	
+	private static int countsIndex(boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		int i = offer ? 4 : (insert ? 2 : 0);
+		if(ssk) i++;
+		if(realTimeFlag) i += 6;
+		return i;
+	}
+	
+	private MapCounts getCounts(boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		return runningCounts[countsIndex(ssk, insert, offer, realTimeFlag)];
+	}
+	
+	/** Called by the UIDTag when something has changed that affects how it is counted.
+	 * LOCKING: Must not be called with the tag locked, as we lock the map and then the tag. */
+	void updateCounts(UIDTag tag) {
+		boolean ssk = tag.isSSK();
+		boolean insert = tag.isInsert();
+		boolean offer = tag.isOfferReply();
+		HashMap<Long, ? extends UIDTag> map = getTracker(false, ssk, insert, offer, tag.realTimeFlag);
+		synchronized(map) {
+			// Not running yet, or finished.
+			if(tag.counted == null) return;
+			MapCounts counts = getCounts(ssk, insert, offer, tag.realTimeFlag);
+			counts.add(tag.counted, -1);
+			tag.counted = new TagCounts(tag);
+			counts.add(tag.counted, 1);
+		}
+	}
+	
+	/** Check the running counts against the tags actually running, logging an error and
+	 * fixing them if they are different. 
+	 * @return True if the counts were correct. */
+	boolean checkRunningCounts() {
+		boolean ok = true;
+		for(boolean realTimeFlag : new boolean[] { false, true }) {
+			for(boolean ssk : new boolean[] { false, true }) {
+				ok &= checkRunningCounts(getRequestTracker(ssk, false, realTimeFlag), false, ssk, false, realTimeFlag);
+				ok &= checkRunningCounts(getInsertTracker(ssk, false, realTimeFlag), false, ssk, true, realTimeFlag);
+				ok &= checkRunningCounts(getOfferTracker(ssk, realTimeFlag), true, ssk, false, realTimeFlag);
+			}
+		}
+		return ok;
+	}
+	
+	private boolean checkRunningCounts(HashMap<Long, ? extends UIDTag> map, boolean offer, boolean ssk, boolean insert, boolean realTimeFlag) {
+		synchronized(map) {
+			MapCounts recount = new MapCounts();
+			boolean ok = true;
+			for(UIDTag tag : map.values()) {
+				TagCounts counts = new TagCounts(tag);
+				recount.add(counts, 1);
+				if(tag.counted == null) {
+					Logger.error(this, "Running tag not counted: "+tag);
+					ok = false;
+				} else if(tag.counted.wasLocal != counts.wasLocal || tag.counted.source != counts.source ||
+						tag.counted.sourceRestarted != counts.sourceRestarted ||
+						!Arrays.equals(tag.counted.transfersIn, counts.transfersIn) ||
+						!Arrays.equals(tag.counted.transfersOut, counts.transfersOut)) {
+					Logger.error(this, "Tag changed without updating counts: "+tag);
+					ok = false;
+				}
+				tag.counted = counts;
+			}
+			int index = countsIndex(ssk, insert, offer, realTimeFlag);
+			if(!runningCounts[index].equals(recount)) {
+				Logger.error(this, "Running counts are wrong for ssk="+ssk+" insert="+insert+" offer="+offer+" realTime="+realTimeFlag+" : "+runningCounts[index]+" should be "+recount);
+				ok = false;
+			}
+			runningCounts[index] = recount;
+			return ok;
+		}
+	}
 
 	/** Count all requests running globally which match particular parameters.
 	 * @param local If true, only include requests which originated locally.
@@ -238,52 +461,26 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
+			MapCounts counts = getCounts(ssk, insert, offer, realTimeFlag);
+			if(local) {
+				counts.local.addTo(counter, counterSourceRestarted, transfersPerInsert, ignoreLocalVsRemote);
+				// There is no separate local map for offer replies, so we count all of them.
+				if(offer)
+					counts.remote.addTo(counter, counterSourceRestarted, transfersPerInsert, ignoreLocalVsRemote);
+			} else {
+				counts.remote.addTo(counter, counterSourceRestarted, transfersPerInsert, ignoreLocalVsRemote);
 			}
 		}
 	}
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: Requests accepted from a peer are counted as the tags change, so this is 
+	 * constant time. Requests routed to a peer are counted by going through all the running 
+	 * requests of the given type (local, ssk, etc). FIXME ideally we would countRequests for all
+	 * PeerNode's simultaneously when we need data on more than one.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -300,6 +497,10 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		if(!requestsToNode) {
+			countRequestsFrom(source, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+			return;
+		}
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
@@ -309,67 +510,49 @@ public class RequestTracker {
 			int count = 0;
 			int transfersOut = 0;
 			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			if(!requestsToNode) {
+			// hasSourceRestarted is irrelevant for requests *to* a node.
+			// FIXME improve efficiency!
+			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+				UIDTag tag = entry.getValue();
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				// Ordinary requests can be routed to an offered key.
+				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
+				if(tag.currentlyFetchingOfferedKeyFrom(source)) {
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+					count++;
+				} else if(tag.currentlyRoutingTo(source)) {
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+					count++;
+				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+			}
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
+			counter.total += count;
+			counter.expectedTransfersIn += transfersIn;
+			counter.expectedTransfersOut += transfersOut;
+		}
+	}
+	
+	private void countRequestsFrom(PeerNode source, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		synchronized(mapLock) {
+			MapCounts counts = getCounts(ssk, insert, offer, realTimeFlag);
+			if(local) {
 				// If a request is adopted by us as a result of a timeout, it can be in the
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
-				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					if(tag.getSource() == source) {
-						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-						count++;
-						transfersOut += out;
-						transfersIn += in;
-						if(counterSR != null && tag.countAsSourceRestarted()) {
-							countSR++;
-							transfersOutSR += out;
-							transfersInSR += in;
-						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
-				if(counterSR != null) {
-					counterSR.total += countSR;
-					counterSR.expectedTransfersIn += transfersInSR;
-					counterSR.expectedTransfersOut += transfersOutSR;
-				}
-			} else {
-				// hasSourceRestarted is irrelevant for requests *to* a node.
-				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					// Ordinary requests can be routed to an offered key.
-					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
+				if(source != null) return;
+				counts.local.addTo(counter, counterSR, transfersPerInsert, ignoreLocalVsRemote);
+				// There is no separate local map for offer replies.
+				if(!offer) return;
 			}
+			RunningCounts c = counts.bySource.get(source);
+			if(c != null)
+				c.addTo(counter, counterSR, transfersPerInsert, ignoreLocalVsRemote);
 		}
 	}
 	
@@ -390,34 +573,26 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		if(requestsToNode) return;
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
-				}
-			}
+			MapCounts counts = getCounts(ssk, insert, offer, realTimeFlag);
+			if(local && !counts.local.isEmpty())
+				counts.local.addTo(getCounter(counterMap, null), null, transfersPerInsert, ignoreLocalVsRemote);
+			// There is no separate local map for offer replies.
+			if(local && !offer) return;
+			for(Map.Entry<PeerNode, RunningCounts> entry : counts.bySource.entrySet())
+				entry.getValue().addTo(getCounter(counterMap, entry.getKey()), null, transfersPerInsert, ignoreLocalVsRemote);
+		}
+	}
+	
+	private static CountedRequests getCounter(Map<PeerNode, CountedRequests> counterMap, PeerNode source) {
+		CountedRequests counter = counterMap.get(source);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(source, counter);
 		}
+		return counter;
 	}
 	
 	public class WaitingForSlots {
@@ -537,6 +712,7 @@ public class RequestTracker {
 				checkUIDs(runningCHKPutUIDsBulk);
 				checkUIDs(runningSSKOfferReplyUIDsBulk);
 				checkUIDs(runningCHKOfferReplyUIDsBulk);
+				if(logMINOR) checkRunningCounts();
 			} finally {
 				ticker.queueTimedJob(this, SECONDS.toMillis(60));
 			}
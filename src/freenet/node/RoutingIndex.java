@@ -0,0 +1,238 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * The locations of our connected peers, and of their peers (FOAF), sorted by location, so that
+ * PeerManager.closerPeer() can look at the peers in order of distance from the target and stop
+ * as soon as no peer it hasn't looked at yet can be closer than the best one it has found.
+ *
+ * Immutable. When the connected peers change (connectedPeers is copy-on-write, so we just compare
+ * the array), or when any location changes, including swaps (see PeerLocation.changeCount()),
+ * PeerManager derives a new one with update(). Only the peers whose locations have changed
+ * (see PeerNode.getLocationVersion()) are read and sorted again; the others' entries are kept
+ * in order and merged with them.
+ */
+final class RoutingIndex {
+
+	/** Distances computed either side of the wrap-around at 0.0/1.0 may be out by a few ulps, so
+	 * we are conservative by this much when deciding that nothing else can be closer. */
+	static final double SLACK = 1e-12;
+
+	/** The connectedPeers array this was built from. */
+	final PeerNode[] peers;
+	/** PeerLocation.changeCount() before we read the locations. */
+	final long version;
+	/** The location of each peer. */
+	private final double[] loc;
+	/** PeerNode.getLocationVersion() of each peer, read before its locations. */
+	private final long[] versions;
+	/** Every valid location of a peer or of one of its peers, sorted. */
+	private final double[] locs;
+	/** For each entry in locs, the index of the peer in peers. */
+	private final int[] owners;
+	/** Peers without a valid location. We can't say how close they are, so visit them first. */
+	private final int[] unindexed;
+
+	RoutingIndex(PeerNode[] peers, long version) {
+		this(null, peers, version);
+	}
+
+	/** @param loc The location of each peer.
+	 * @param peersLocs The locations of each peer's peers, or null if unknown. */
+	RoutingIndex(PeerNode[] peers, long version, double[] loc, double[][] peersLocs) {
+		this(peers, version, loc, peersLocs, new long[loc.length], null, null);
+	}
+
+	/** Index the peers, reusing the entries of old for those whose locations haven't changed. */
+	private RoutingIndex(RoutingIndex old, PeerNode[] peers, long version) {
+		this(peers, version, new double[peers.length], new double[peers.length][],
+				new long[peers.length], old, old == null ? null : new int[peers.length]);
+	}
+
+	/**
+	 * @param loc The location of each peer. Filled in here for the peers we read.
+	 * @param peersLocs The locations of each peer's peers. Filled in here for the peers we read.
+	 * @param versions The location version of each peer. Filled in here if peers isn't null.
+	 * @param oldIndex Null, or space for the index in old.peers of each peer, or -1 if it has
+	 * changed since old was built.
+	 */
+	private RoutingIndex(PeerNode[] peers, long version, double[] loc, double[][] peersLocs,
+			long[] versions, RoutingIndex old, int[] oldIndex) {
+		this.peers = peers;
+		this.version = version;
+		this.loc = loc;
+		this.versions = versions;
+		// Which peers are unchanged since old, and where they were in it.
+		int[] newIndex = null;
+		if(oldIndex != null) {
+			newIndex = new int[old.peers.length];
+			Arrays.fill(newIndex, -1);
+			IdentityHashMap<PeerNode, Integer> oldPeers = null;
+			if(old.peers != peers) {
+				oldPeers = new IdentityHashMap<PeerNode, Integer>(old.peers.length * 2);
+				for(int j=0;j<old.peers.length;j++)
+					oldPeers.put(old.peers[j], j);
+			}
+			for(int i=0;i<peers.length;i++) {
+				int j = i;
+				if(oldPeers != null) {
+					Integer x = oldPeers.get(peers[i]);
+					j = x == null ? -1 : x;
+				}
+				versions[i] = peers[i].getLocationVersion();
+				if(j >= 0 && versions[i] == old.versions[j]) {
+					loc[i] = old.loc[j];
+					newIndex[j] = i;
+				} else
+					j = -1;
+				oldIndex[i] = j;
+			}
+		}
+		// Read the peers which are new or have changed.
+		int invalidCount = 0;
+		int count = 0;
+		for(int i=0;i<loc.length;i++) {
+			if(peers != null && (oldIndex == null || oldIndex[i] < 0)) {
+				if(oldIndex == null) versions[i] = peers[i].getLocationVersion();
+				loc[i] = peers[i].getLocation();
+				peersLocs[i] = peers[i].getPeersLocationArray();
+			}
+			if(!Location.isValid(loc[i])) invalidCount++;
+			if(oldIndex != null && oldIndex[i] >= 0) continue;
+			if(Location.isValid(loc[i])) count++;
+			if(peersLocs[i] != null) count += peersLocs[i].length;
+		}
+		unindexed = new int[invalidCount];
+		invalidCount = 0;
+		for(int i=0;i<loc.length;i++)
+			if(!Location.isValid(loc[i])) unindexed[invalidCount++] = i;
+		// Sort the locations we've read.
+		final double[] readLocs = new double[count];
+		int[] readOwners = new int[count];
+		int x = 0;
+		for(int i=0;i<loc.length;i++) {
+			if(oldIndex != null && oldIndex[i] >= 0) continue;
+			if(Location.isValid(loc[i])) {
+				readLocs[x] = loc[i];
+				readOwners[x++] = i;
+			}
+			if(peersLocs[i] != null)
+				for(double l : peersLocs[i]) {
+					readLocs[x] = l;
+					readOwners[x++] = i;
+				}
+		}
+		Integer[] order = new Integer[count];
+		for(int i=0;i<count;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(readLocs[a], readLocs[b]);
+			}
+		});
+		// Merge them with the old entries of the unchanged peers, which are already in order.
+		int kept = 0;
+		if(newIndex != null)
+			for(int owner : old.owners)
+				if(newIndex[owner] >= 0) kept++;
+		locs = new double[kept + count];
+		owners = new int[kept + count];
+		int a = 0; // Next old entry
+		int b = 0; // Next entry we've read
+		for(int i=0;i<locs.length;i++) {
+			if(newIndex != null)
+				while(a < old.locs.length && newIndex[old.owners[a]] < 0) a++;
+			if(newIndex != null && a < old.locs.length &&
+					(b == count || Double.compare(old.locs[a], readLocs[order[b]]) <= 0)) {
+				locs[i] = old.locs[a];
+				owners[i] = newIndex[old.owners[a++]];
+			} else {
+				locs[i] = readLocs[order[b]];
+				owners[i] = readOwners[order[b++]];
+			}
+		}
+	}
+
+	/** @return An index of the given connectedPeers snapshot, as of the given
+	 * PeerLocation.changeCount(). This one if nothing has changed. */
+	RoutingIndex update(PeerNode[] peers, long version) {
+		if(peers == this.peers && version == this.version) return this;
+		return new RoutingIndex(this, peers, version);
+	}
+
+	/** The number of locations indexed. */
+	int size() {
+		return locs.length;
+	}
+
+	Walk walk(double target) {
+		return new Walk(target);
+	}
+
+	/**
+	 * Goes through the peers in order of the distance of their closest location (their own or
+	 * one of their peers') from the target. A peer may be returned more than once, once for each
+	 * of its locations.
+	 */
+	final class Walk {
+
+		private final double target;
+		/** The next entry going up from the target. */
+		private int up;
+		/** The next entry going down from the target. */
+		private int down;
+		private double upDistance;
+		private double downDistance;
+		/** Entries between up and down inclusive, going up, that we haven't returned yet. */
+		private int remaining;
+		private int nextUnindexed;
+
+		private Walk(double target) {
+			this.target = target;
+			remaining = locs.length;
+			if(remaining == 0) return;
+			int i = Arrays.binarySearch(locs, target);
+			if(i < 0) i = -i - 1;
+			// Equal locations may be either side of i, and they are all at the same distance.
+			while(i > 0 && locs[i-1] == target) i--;
+			up = i % locs.length;
+			down = (i + locs.length - 1) % locs.length;
+			upDistance = Location.distance(locs[up], target);
+			downDistance = Location.distance(locs[down], target);
+		}
+
+		/** @return The index in peers of the next peer, or -1 if there are no more. */
+		int next() {
+			if(nextUnindexed < unindexed.length) return unindexed[nextUnindexed++];
+			if(remaining == 0) return -1;
+			int owner;
+			if(upDistance <= downDistance) {
+				owner = owners[up];
+				up = (up + 1) % locs.length;
+				upDistance = Location.distance(locs[up], target);
+			} else {
+				owner = owners[down];
+				down = (down + locs.length - 1) % locs.length;
+				downDistance = Location.distance(locs[down], target);
+			}
+			remaining--;
+			return owner;
+		}
+
+		/** @return A lower bound on the distance from the target of every location that next()
+		 * has not yet returned. */
+		double lowerBound() {
+			if(nextUnindexed < unindexed.length) return Double.NEGATIVE_INFINITY;
+			if(remaining == 0) return Double.POSITIVE_INFINITY;
+			return Math.min(upDistance, downDistance) - SLACK;
+		}
+
+	}
+
+}
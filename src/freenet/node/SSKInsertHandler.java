@@ -229,14 +229,7 @@ public class SSKInsertHandler implements PrioRunnable, ByteCounter {
         boolean receivedRejectedOverload = false;
         
         while(true) {
-            synchronized(sender) {
-                try {
-                	if(sender.getStatus() == SSKInsertSender.NOT_FINISHED)
-                		sender.wait(5000);
-                } catch (InterruptedException e) {
-                	// Ignore
-                }
-            }
+            sender.waitForStatus(5000);
 
             if((!receivedRejectedOverload) && sender.receivedRejectedOverload()) {
             	receivedRejectedOverload = true;
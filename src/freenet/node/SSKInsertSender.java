@@ -21,6 +21,7 @@ import freenet.keys.SSKBlock;
 import freenet.keys.SSKVerifyException;
 import freenet.support.Logger;
 import freenet.support.ShortBuffer;
+import freenet.support.WaitQueue;
 import freenet.support.io.NativeThread;
 
 /**
@@ -64,6 +65,8 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     private InsertTag forkedRequestTag;
     
     private int status = -1;
+    /** Threads waiting for the status to change, see waitForStatus(). */
+    private final WaitQueue statusWaiters = new WaitQueue();
     /** Still running */
     static final int NOT_FINISHED = -1;
     /** Successful insert */
@@ -102,7 +105,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     }
 
     void start() {
-    	node.executor.execute(this, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
+    	node.requestExecutor.execute(this, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
     }
     
 	@Override
@@ -478,7 +481,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 			synchronized(this) {
 				hasRecentlyCollided = true;
 				hasCollided = true;
-				notifyAll();
+				statusWaiters.wakeAll();
 			}
 			
 			// The node will now propagate the new data. There is no need to move to the next node yet.
@@ -520,7 +523,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     protected synchronized void forwardRejectedOverload() {
     	if(hasForwardedRejectedOverload) return;
     	hasForwardedRejectedOverload = true;
-   		notifyAll();
+   		statusWaiters.wakeAll();
 	}
     
     private void finish(int code, PeerNode next) {
@@ -540,7 +543,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     		
     		if(status != TIMED_OUT) {
     			status = code;
-    			notifyAll();
+    			statusWaiters.wakeAll();
     		}
         }
 
@@ -555,6 +558,19 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     public synchronized int getStatus() {
         return status;
     }
+
+    /** Block until the status has been set to something other than NOT_FINISHED, it might have
+     * changed, the thread is interrupted, or the timeout has passed. Parks rather than waiting on
+     * this so a virtual thread doesn't pin its carrier.
+     * @return True if the status has been set. */
+    public boolean waitForStatus(long timeout) {
+        synchronized(this) {
+            if(status != NOT_FINISHED) return true;
+            statusWaiters.add();
+        }
+        statusWaiters.park(this, timeout);
+        return getStatus() != NOT_FINISHED;
+    }
     
     @Override
     public synchronized short getHTL() {
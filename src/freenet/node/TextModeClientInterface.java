@@ -1173,7 +1173,7 @@ public class TextModeClientInterface implements Runnable {
         }
         if(n.peers.addPeer(pn))
             System.out.println("Added peer: "+pn);
-        n.peers.writePeersDarknetUrgent();
+        n.peers.writePeersUrgent(pn);
     }
 
 	/**
@@ -57,12 +57,24 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** What this tag currently adds to the RequestTracker's running counts, or null if it is
+	 * not running. LOCKING: Owned by the tracker, which accesses it with the lock on the map
+	 * the tag is in. */
+	RequestTracker.TagCounts counted;
+	/** Set when a change that affects the running counts has been made with the tag locked, 
+	 * so the tracker must be told after releasing the lock. See updateCountsIfNeeded(). */
+	private boolean mustUpdateCounts;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
+		this(source, realTimeFlag, uid, node.tracker);
+	}
+	
+	UIDTag(PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
 		createdTime = System.currentTimeMillis();
-		this.sourceRef = source == null ? null : source.myRef;
+		this.sourceRef = source == null ? null : source.getWeakRef();
 		wasLocal = source == null;
 		this.realTimeFlag = realTimeFlag;
-		this.tracker = node.tracker;
+		this.tracker = tracker;
 		this.uid = uid;
 		if(logMINOR)
 			Logger.minor(this, "Created "+this);
@@ -130,15 +142,21 @@ public abstract class UIDTag {
 	 */
 	public void removeFetchingOfferedKeyFrom(PeerNode next) {
 		boolean noRecordUnlock;
+		boolean canUnlock;
 		synchronized(this) {
 			if(fetchingOfferedKeyFrom == null) return;
 			fetchingOfferedKeyFrom.remove(next);
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			// mustUnlock() may have reassigned the tag to us.
+			updateCountsIfNeeded();
+			return;
+		}
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
@@ -161,6 +179,7 @@ public abstract class UIDTag {
 		if(logMINOR)
 			Logger.minor(this, "No longer routing to "+next+" on "+this, new Exception("debug"));
 		boolean noRecordUnlock;
+		boolean canUnlock;
 		synchronized(this) {
 			if(currentlyRoutingTo == null) return;
 			if(!currentlyRoutingTo.remove(next)) {
@@ -169,9 +188,13 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			updateCountsIfNeeded();
+			return;
+		}
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
@@ -213,8 +236,23 @@ public abstract class UIDTag {
 	 */
 	public abstract int expectedTransfersOut(boolean ignoreLocalVsRemote, int outwardTransfersPerInsert, boolean forAccept);
 	
-	public synchronized void setNotRoutedOnwards() {
-		this.notRoutedOnwards = true;
+	public void setNotRoutedOnwards() {
+		synchronized(this) {
+			if(notRoutedOnwards) return;
+			this.notRoutedOnwards = true;
+		}
+		tracker.updateCounts(this);
+	}
+	
+	/** Tell the tracker about a change to the running counts made inside mustUnlock() or 
+	 * similar, now that we no longer hold the lock on the tag. LOCKING: The tracker locks the 
+	 * map first and then the tag, so we must not be holding the lock on the tag. */
+	protected final void updateCountsIfNeeded() {
+		synchronized(this) {
+			if(!mustUpdateCounts) return;
+			mustUpdateCounts = false;
+		}
+		tracker.updateCounts(this);
 	}
 
 	private boolean reassigned;
@@ -228,9 +266,16 @@ public abstract class UIDTag {
 	}
 
 	/** Reassign the tag to us rather than its original sender. */
-	public synchronized void reassignToSelf() {
+	public void reassignToSelf() {
+		innerReassignToSelf();
+		updateCountsIfNeeded();
+	}
+	
+	private synchronized void innerReassignToSelf() {
 		if(wasLocal) return;
+		if(reassigned) return;
 		reassigned = true;
+		mustUpdateCounts = true;
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -279,7 +324,7 @@ public abstract class UIDTag {
 					else
 						Logger.error(this, "Unlocked handler but still routing to "+currentlyRoutingTo+" yet not reassigned on "+this, new Exception("debug"));
 				} else
-					reassignToSelf();
+					innerReassignToSelf();
 			}
 			return false;
 		}
@@ -300,7 +345,7 @@ public abstract class UIDTag {
 					// Fork succeeds can't happen for fetch-offered-keys.
 					Logger.error(this, "Unlocked handler but still fetching offered keys from "+fetchingOfferedKeyFrom+" yet not reassigned on "+this, new Exception("debug"));
 				else
-					reassignToSelf();
+					innerReassignToSelf();
 			}
 			return false;
 		}
@@ -324,12 +369,15 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			// Unlocking the handler changes the expected transfers.
+			mustUpdateCounts = true;
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
 			innerUnlock(noRecordUnlock);
 		else {
 			Logger.normal(this, "Cannot unlock yet in unlockHandler, still sending requests");
+			updateCountsIfNeeded();
 		}
 	}
 
@@ -394,8 +442,12 @@ public abstract class UIDTag {
 		}
 	}
 
-	public synchronized void setAccepted() {
-		accepted = true;
+	public void setAccepted() {
+		synchronized(this) {
+			if(accepted) return;
+			accepted = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	private boolean timedOutButContinued;
@@ -404,13 +456,21 @@ public abstract class UIDTag {
 	 * but can't terminate it yet. We will terminate the request if we have to
 	 * reroute it, and we count it towards the peer's limit, but we don't stop
 	 * messages to the request source. */
-	public synchronized void timedOutToHandlerButContinued() {
-		timedOutButContinued = true;
+	public void timedOutToHandlerButContinued() {
+		synchronized(this) {
+			if(timedOutButContinued) return;
+			timedOutButContinued = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	/** The handler disconnected or restarted. */
-	public synchronized void onRestartOrDisconnectSource() {
-		sourceRestarted = true;
+	public void onRestartOrDisconnectSource() {
+		synchronized(this) {
+			if(sourceRestarted) return;
+			sourceRestarted = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
@@ -440,7 +500,7 @@ public abstract class UIDTag {
 		if(reassigned) return false;
 		if(wasLocal) return false;
 		if(sourceRef == null) return false;
-		return sourceRef == pn.myRef;
+		return sourceRef == pn.getWeakRef();
 	}
 	
 	public synchronized void setWaitingForSlot() {
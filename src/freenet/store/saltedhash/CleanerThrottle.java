@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+/**
+ * Decides how long the Cleaner should pause between batches, from the latency of foreground
+ * requests (fetch and put) on the store. We keep a long term average of the latency while the
+ * Cleaner is idle, as the baseline. While it is running, if recent requests are much slower than
+ * that, it backs off quickly; if they are not, or there are no requests at all, it speeds up
+ * gradually. So a resize or rebuild runs flat out on an idle node, and gets out of the way on a
+ * busy one.
+ *
+ * Latency averages are updated without locking: losing the odd sample doesn't matter.
+ */
+class CleanerThrottle {
+
+	/** Longest pause between batches, per worker. */
+	static final long MAX_DELAY = 2000;
+	/** Pause to start with, and the step when backing off from zero. */
+	static final long INITIAL_DELAY = 100;
+	/** Requests slower than the baseline by this factor... */
+	static final int SLOWDOWN_FACTOR = 2;
+	/** ... and by at least this many nanoseconds, mean the Cleaner is getting in the way. */
+	static final long MIN_SLOWDOWN = 2 * 1000 * 1000;
+
+	/** Average latency while the Cleaner is idle, in nanoseconds, or -1 if unknown. */
+	private volatile long baseline = -1;
+	/** Average latency of recent requests, in nanoseconds, or -1 if unknown. */
+	private volatile long recent = -1;
+	/** Requests since the last call to delay(). */
+	private volatile int requests;
+	private volatile boolean cleaning;
+	/** Protected by (this). */
+	private long delay = INITIAL_DELAY;
+
+	/** Called after every foreground request. */
+	void onRequest(long nanos) {
+		if(nanos < 0) return;
+		requests++;
+		recent = average(recent, nanos, 3);
+		if(!cleaning)
+			baseline = average(baseline, nanos, 8);
+	}
+
+	private static long average(long average, long sample, int shift) {
+		if(average == -1) return sample;
+		return average + ((sample - average) >> shift);
+	}
+
+	synchronized void onStartCleaning() {
+		cleaning = true;
+		delay = INITIAL_DELAY;
+	}
+
+	void onStopCleaning() {
+		cleaning = false;
+	}
+
+	/** @return How long to pause, in milliseconds, after a batch. Called by each worker after
+	 * each batch, and adjusts the delay according to what has happened since the last call. */
+	synchronized long delay() {
+		int count = requests;
+		requests = 0;
+		long base = baseline;
+		// No requests before we started, so anything slower than MIN_SLOWDOWN is too slow.
+		if(base == -1) base = 0;
+		if(count > 0 && recent > Math.max(base * SLOWDOWN_FACTOR, base + MIN_SLOWDOWN)) {
+			// Back off.
+			delay = Math.min(MAX_DELAY, delay == 0 ? INITIAL_DELAY : delay * 2);
+		} else {
+			// Idle, or not hurting anyone: speed up.
+			delay = delay * 3 / 4;
+		}
+		return delay;
+	}
+
+}
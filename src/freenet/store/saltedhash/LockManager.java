@@ -80,7 +80,10 @@ public class LockManager {
 		try {
 			Condition cond = lockMap.remove(offset);
 			assert cond == condition;
-			cond.signal();
+			// Several threads may be waiting for this slot. Wake them all: the one that gets it
+			// will create a new Condition, which the rest would otherwise never be woken on
+			// until they time out.
+			cond.signalAll();
 		} finally {
 			entryLock.unlock();
 		}
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import freenet.support.Logger;
+
+/**
+ * Reads fixed length records at several positions in a file at once, on an Executor. Used to
+ * read the metadata for all the slots a key might be in which the slot filter can't rule out,
+ * so that on a device which can handle several requests at once (any SSD, RAID, or a disk
+ * with NCQ) the probes for a key cost about one access time rather than one each.
+ *
+ * Positional reads on a FileChannel are safe to do concurrently, so no locking is needed here
+ * beyond whatever the caller holds to stop the records changing.
+ */
+class ParallelProbeReader {
+
+	private final Executor executor;
+
+	ParallelProbeReader(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Read length bytes at each position. The caller's thread does one of the reads itself,
+	 * and waits for the rest.
+	 * @param positions Byte offsets in the file. Negative entries are skipped.
+	 * @return Flipped buffers, one per position. An entry is null if that position was skipped
+	 * or the read failed (e.g. beyond the end of the file); the caller should read it again the
+	 * normal way to get the error.
+	 */
+	ByteBuffer[] read(final FileChannel fc, long[] positions, final int length) {
+		final ByteBuffer[] results = new ByteBuffer[positions.length];
+		int count = 0;
+		int first = -1;
+		for(int i=0;i<positions.length;i++) {
+			if(positions[i] < 0) continue;
+			if(first == -1) first = i;
+			else count++;
+		}
+		if(first == -1) return results;
+		final CountDownLatch done = new CountDownLatch(count);
+		for(int i=first+1;i<positions.length;i++) {
+			if(positions[i] < 0) continue;
+			final int index = i;
+			final long position = positions[i];
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						results[index] = readFully(fc, position, length);
+					} finally {
+						done.countDown();
+					}
+				}
+
+			});
+		}
+		results[first] = readFully(fc, positions[first], length);
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		return results;
+	}
+
+	private ByteBuffer readFully(FileChannel fc, long position, int length) {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		try {
+			do {
+				int status = fc.read(buf, position + buf.position());
+				if(status == -1) return null;
+			} while(buf.hasRemaining());
+		} catch (IOException e) {
+			Logger.normal(this, "Parallel read failed at "+position+" : "+e, e);
+			return null;
+		}
+		buf.flip();
+		return buf;
+	}
+
+}
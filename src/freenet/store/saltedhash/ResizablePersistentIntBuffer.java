@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -20,6 +23,14 @@ import freenet.support.Ticker;
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
  * messy and expensive.
+ * 
+ * Hence memory mapping is optional (see setMemoryMapped()). When enabled, the file is
+ * mapped in segments of SEGMENT_INTS, so opening it doesn't read anything, and writing it
+ * only writes back the pages that have changed (MappedByteBuffer.force()) rather than the
+ * whole file. Since the data lives in the OS page cache, it also survives the node crashing,
+ * although not the OS crashing. Resizing maps the file again and leaves the old mappings to
+ * the garbage collector, which is acceptable since it is rare. The file format is the same
+ * either way, so the option can be changed freely.
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
@@ -29,8 +40,13 @@ public class ResizablePersistentIntBuffer {
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
+	/** The buffer, if not memory mapped. When we resize we write-lock and replace this. */
 	private int[] buffer;
+	/** The buffer, if memory mapped: little-endian views of consecutive segments of the file,
+	 * each SEGMENT_INTS long except the last. Replaced under the write lock when we resize. */
+	private IntBuffer[] segments;
+	/** The mapped segments, for force(). */
+	private MappedByteBuffer[] mapped;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -41,6 +57,12 @@ public class ResizablePersistentIntBuffer {
 	// FIXME is static the best way to do this? It seems simplest at least...
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
+	/** If true, newly opened buffers are memory mapped. */
+	private static boolean globalMemoryMapped = false;
+	static final int SEGMENT_SHIFT = 26;
+	/** Ints per mapped segment. Each mapping must be under 2GB. */
+	static final int SEGMENT_INTS = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_INTS - 1;
 	private Ticker ticker;
 	/** Is the buffer dirty? Protected by (this). */
 	private boolean dirty;
@@ -59,6 +81,17 @@ public class ResizablePersistentIntBuffer {
 		return globalPersistenceTime;
 	}
 	
+	/** Whether buffers opened after this call should be memory mapped. Only set on startup:
+	 * SaltedHashFreenetStore records in its config file whether the slot filter was actually
+	 * mapped, not this. */
+	public static synchronized void setMemoryMapped(boolean val) {
+		globalMemoryMapped = val;
+	}
+	
+	public static synchronized boolean isMemoryMapped() {
+		return globalMemoryMapped;
+	}
+	
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
 	 * its size.
 	 * @param f The filename.
@@ -66,25 +99,70 @@ public class ResizablePersistentIntBuffer {
 	 * @throws IOException 
 	 */
 	public ResizablePersistentIntBuffer(File f, int size) throws IOException {
+		this(f, size, isMemoryMapped());
+	}
+	
+	/** Create the buffer. Open the file, creating if necessary, read in the data or map it, and 
+	 * set its size.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 * @param memoryMapped If true, map the file rather than reading it into an array.
+	 * @throws IOException 
+	 */
+	public ResizablePersistentIntBuffer(File f, int size, boolean memoryMapped) throws IOException {
 		this.filename = f;
 		isNew = !f.exists();
 		this.raf = new RandomAccessFile(f, "rw");
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		channel = raf.getChannel();
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
 			raf.setLength(expectedLength);
-		readBuffer((int)Math.min(size, realLength/4));
-		if(realLength < expectedLength)
-			raf.setLength(expectedLength);
-		channel = raf.getChannel();
+		if(memoryMapped) {
+			if(realLength < expectedLength)
+				raf.setLength(expectedLength);
+			try {
+				map(size);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		} else {
+			buffer = new int[size];
+			readBuffer((int)Math.min(size, realLength/4));
+			if(realLength < expectedLength)
+				raf.setLength(expectedLength);
+		}
+	}
+	
+	/** Map the file, which must already be the right length, replacing any previous mapping.
+	 * Doesn't change anything if it fails. */
+	private void map(int size) throws IOException {
+		int count = (int)((((long)size) + SEGMENT_INTS - 1) >> SEGMENT_SHIFT);
+		MappedByteBuffer[] newMapped = new MappedByteBuffer[count];
+		IntBuffer[] newSegments = new IntBuffer[count];
+		for(int i=0;i<count;i++) {
+			long start = ((long)i) << SEGMENT_SHIFT;
+			int length = (int)Math.min(SEGMENT_INTS, size - start);
+			newMapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start*4, ((long)length)*4);
+			// Same byte order as Fields.intsToBytes(), so the file format doesn't change.
+			newSegments[i] = newMapped[i].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+		mapped = newMapped;
+		segments = newSegments;
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
 	 * is completely new. */
 	public void fill(int value) {
+		if(segments != null) {
+			for(IntBuffer segment : segments)
+				for(int i=0;i<segment.limit();i++)
+					segment.put(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			buffer[i] = value;
 	}
@@ -118,6 +196,8 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(segments != null)
+				return segments[offset >>> SEGMENT_SHIFT].get(offset & SEGMENT_MASK);
 			return buffer[offset];
 		} finally {
 			lock.readLock().unlock();
@@ -133,7 +213,12 @@ public class ResizablePersistentIntBuffer {
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
 			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
+			if(segments != null) {
+				segments[offset >>> SEGMENT_SHIFT].put(offset & SEGMENT_MASK, value);
+				// Already in the page cache, which is all the immediate write below achieves.
+				if(persistenceTime == -1) return;
+			} else
+				buffer[offset] = value;
 			if(persistenceTime == -1 && !noWrite) {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
 			} else if(persistenceTime > 0) {
@@ -248,6 +333,12 @@ public class ResizablePersistentIntBuffer {
 	}
 
 	private void writeBuffer() throws IOException {
+		if(mapped != null) {
+			// Only writes the dirty pages.
+			for(MappedByteBuffer buf : mapped)
+				buf.force();
+			return;
+		}
 		// FIXME do we need to do partial writes?
 		raf.seek(0);
 		int written = 0;
@@ -264,10 +355,34 @@ public class ResizablePersistentIntBuffer {
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			if(mapped != null) {
+				try {
+					writeBuffer();
+				} catch (IOException e) {
+					Logger.error(this, "Failed to write before resize on "+filename+" : "+e, e);
+					return;
+				}
+				try {
+					// The old mappings are unmapped when they are garbage collected. Until then
+					// truncating the file may fail on some platforms, but they won't be used again.
+					raf.setLength(((long)size) * 4);
+					map(size);
+					this.size = size;
+				} catch (IOException e) {
+					Logger.error(this, "Failed to change size or map during resize on "+filename+" : "+e, e);
+					// Keep using the old mapping, which must not extend past the end of the file.
+					try {
+						raf.setLength(((long)this.size) * 4);
+					} catch (IOException e1) {
+						Logger.error(this, "Failed to restore size after failed resize on "+filename+" : "+e1, e1);
+					}
+				}
+				return;
+			}
 			this.size = size;
 			buffer = Arrays.copyOf(buffer, size);
 			try {
-				raf.setLength(size * 4);
+				raf.setLength(((long)size) * 4);
 				writeBuffer();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
@@ -313,6 +428,11 @@ public class ResizablePersistentIntBuffer {
 	public boolean isNew() {
 		return isNew;
 	}
+
+	/** @return True if this buffer is memory mapped. */
+	public boolean isMapped() {
+		return mapped != null;
+	}
 	
 	public String toString() {
 		return filename.getPath();
@@ -320,6 +440,12 @@ public class ResizablePersistentIntBuffer {
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
+		if(segments != null) {
+			for(IntBuffer segment : segments)
+				for(int i=0;i<segment.limit();i++)
+					if(segment.get(i) == key) segment.put(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			if(buffer[i] == key) buffer[i] = value;
 	}
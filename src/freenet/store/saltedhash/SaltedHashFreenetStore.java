@@ -12,15 +12,17 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -80,6 +82,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private static final byte FLAG_DIRTY = 0x1;
 	private static final byte FLAG_REBUILD_BLOOM = 0x2;
+	/** The slot filter was memory mapped when the store was last opened. */
+	private static final byte FLAG_SLOT_FILTER_MAPPED = 0x4;
 
 	/** Alternative to a Bloom filter which allows us to know exactly which slots to check,
 	 * so radically reduces disk I/O even when there is a hit.
@@ -125,9 +129,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private long storeSize;
 	private int generation;
 	private int flags;
+	/** Number of batches of RESIZE_MEMORY_ENTRIES slots the Cleaner has finished in the resize (if
+	 * prevStoreSize != 0) or slot filter rebuild in progress, so it can carry on where it left off
+	 * after a restart. 0 if nothing is in progress. Protected by configLock. */
+	private long cleanerCheckpoint;
+	/** Paces the Cleaner according to how long fetch() and put() are taking. */
+	private final CleanerThrottle cleanerThrottle = new CleanerThrottle();
 
 	private boolean preallocate = true;
 	public static boolean NO_CLEANER_SLEEP = false;
+	/** If true, read the metadata for all the slots a key might be in at once, when the slot 
+	 * filter can't rule out more than one of them. */
+	static boolean PARALLEL_PROBES = true;
+	/** Set on start() if we have an Executor. Used for parallel probes and fetch(..., callback). */
+	private volatile Executor executor;
+	private volatile ParallelProbeReader probeReader;
 
 	/** If we have no space in this store, try writing it to the alternate store,
 	 * with the wrong store flag set. Note that we do not *read from* it, the caller
@@ -186,6 +202,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// If not already resizing, start resizing to the new store size.
 			prevStoreSize = storeSize;
 			storeSize = maxKeys;
+			cleanerCheckpoint = 0;
 			writeConfigFile();
 		}
 
@@ -221,6 +238,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.err.println("Datastore(" + name + ") is dirty.");
 
 		flags |= FLAG_DIRTY; // datastore is now dirty until flushAndClose()
+		if(slotFilter != null && slotFilter.isMapped())
+			flags |= FLAG_SLOT_FILTER_MAPPED;
+		else
+			flags &= ~FLAG_SLOT_FILTER_MAPPED;
 		writeConfigFile();
 
 		callback.setStore(this);
@@ -242,6 +263,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			if(prevStoreSize == 0)
+				cleanerCheckpoint = 0; // Start the rebuild from scratch.
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -259,6 +282,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(!slotFilterDisabled)
 			slotFilter.start(ticker);
+		
+		if(ticker != null) {
+			executor = ticker.getExecutor();
+			probeReader = new ParallelProbeReader(executor);
+		}
 
 		long curStoreFileSize = hdRAF.length();
 
@@ -309,6 +337,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
+		long startTime = System.nanoTime();
 
 		try {
 			int retry = 0;
@@ -363,9 +392,46 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 		} finally {
 			configLock.readLock().unlock();
+			cleanerThrottle.onRequest(System.nanoTime() - startTime);
 		}
 	}
 
+	/** Called when an asynchronous fetch completes. */
+	public interface FetchCallback<T extends StorableBlock> {
+		/** @param block The block, or null if it is not in the store. */
+		void onFetched(T block);
+		void onFailure(IOException e);
+	}
+
+	/**
+	 * Fetch a block without blocking the caller on disk I/O. The fetch runs on the Executor 
+	 * passed in to start(), or on the caller's thread if there isn't one yet. Parameters are as
+	 * for fetch(), and the callback is called on the thread that did the fetch.
+	 */
+	public void fetch(final byte[] routingKey, final byte[] fullKey, final boolean dontPromote, final boolean canReadClientCache, 
+			final boolean canReadSlashdotCache, final boolean ignoreOldBlocks, final BlockMetadata meta, final FetchCallback<T> cb) {
+		Runnable job = new Runnable() {
+
+			@Override
+			public void run() {
+				T block;
+				try {
+					block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+				} catch (IOException e) {
+					cb.onFailure(e);
+					return;
+				}
+				cb.onFetched(block);
+			}
+
+		};
+		Executor e = executor;
+		if(e == null)
+			job.run();
+		else
+			e.execute(job);
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -388,6 +454,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
 		Entry entry = null;
 		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
+		ByteBuffer[] prefetched = prefetchMetadata(offset, digestedKey);
 
 		for (int i = 0; i < offset.length; i++) {
 			if (logDEBUG)
@@ -395,7 +462,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			try {
 				if(storeFileOffsetReady == -1 || offset[i] < this.storeFileOffsetReady) {
-					entry = readEntry(offset[i], digestedKey, routingKey, withData);
+					entry = readEntry(offset[i], digestedKey, routingKey, withData, prefetched == null ? null : prefetched[i]);
 					if (entry != null)
 						return entry;
 				}
@@ -408,6 +475,32 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return null;
 	}
 
+	/**
+	 * If more than one of the slots for a key will have to be read from disk, i.e. the slot 
+	 * filter can't rule them out, read their metadata in parallel. The caller must hold the locks
+	 * on all the slots.
+	 * @return Metadata buffers for readEntry(), or null if there is nothing to gain.
+	 */
+	private ByteBuffer[] prefetchMetadata(long[] offset, byte[] digestedKey) {
+		ParallelProbeReader reader = probeReader;
+		if(reader == null || !PARALLEL_PROBES) return null;
+		long[] positions = new long[offset.length];
+		int count = 0;
+		for(int i=0;i<offset.length;i++) {
+			positions[i] = -1;
+			if(!(storeFileOffsetReady == -1 || offset[i] < this.storeFileOffsetReady)) continue;
+			if(!slotFilterDisabled && USE_SLOT_FILTER) {
+				int cache = slotFilter.get((int)offset[i]);
+				if((cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedKey)) continue;
+			}
+			positions[i] = Entry.METADATA_LENGTH * offset[i];
+			count++;
+		}
+		if(count < 2) return null;
+		if(logMINOR) Logger.minor(this, "Reading "+count+" slots in parallel");
+		return reader.read(metaFC, positions, Entry.METADATA_LENGTH);
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		put(block, data, header, overwrite, isOldBlock, false);
@@ -419,6 +512,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		if (logMINOR)
 			Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
+		long startTime = System.nanoTime();
 
 		try {
 			int retry = 0;
@@ -554,6 +648,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 		} finally {
 			configLock.readLock().unlock();
+			cleanerThrottle.onRequest(System.nanoTime() - startTime);
 		}
 	}
 
@@ -851,6 +946,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData) throws IOException {
+		return readEntry(offset, digestedRoutingKey, routingKey, withData, null);
+	}
+
+	/**
+	 * Read entry from disk, or from metadata already read by prefetchMetadata().
+	 * @param prefetchedMetadata The metadata for the slot, or null to read it.
+	 */
+	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData, ByteBuffer prefetchedMetadata) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		int cache = 0;
 		boolean validCache = false;
@@ -867,16 +970,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		ByteBuffer mbf = prefetchedMetadata;
+		if(mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
@@ -1172,16 +1277,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
-					if (((flags & FLAG_DIRTY) != 0) && 
+					boolean slotFilterLost = ((flags & FLAG_DIRTY) != 0) && 
 							// FIXME figure out a way to do this consistently!
 							// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
+							ResizablePersistentIntBuffer.getPersistenceTime() != -1 &&
+							// A mapped slot filter is in the page cache, so survives the node
+							// crashing. Only if the run which crashed actually mapped it, whatever
+							// the option is set to now.
+							(flags & FLAG_SLOT_FILTER_MAPPED) == 0;
+					if (slotFilterLost)
 						flags |= FLAG_REBUILD_BLOOM;
 
 					try {
 						raf.readInt(); // bloomFilterK
 						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpoint = raf.readLong();
+						// Recent changes to slots already rebuilt may have been lost.
+						if (slotFilterLost && prevStoreSize == 0)
+							cleanerCheckpoint = 0;
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1236,7 +1349,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(flags);
 			raf.writeInt(0); // bloomFilterK
 			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeLong(cleanerCheckpoint);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
@@ -1363,15 +1476,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+		/** Threads working on a resize or rebuild at once. */
+		private static final int CLEANER_THREADS = 4;
 
 		/**
 		 * Move old entries to new location and resize store
 		 */
 		private void resizeStore(final long _prevStoreSize, final boolean sleep) {
+			final long resumeFrom;
+			configLock.readLock().lock();
+			try {
+				resumeFrom = cleanerCheckpoint;
+			} finally {
+				configLock.readLock().unlock();
+			}
 			Logger.normal(this, "Starting datastore resize");
-			System.out.println("Resizing datastore "+name);
+			if(resumeFrom != 0)
+				System.out.println("Resuming resize of datastore "+name);
+			else
+				System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
+				/** Entries removed from their old slots, waiting to be written to new ones. 
+				 * Protected by itself. */
 				Deque<Entry> oldEntryList = new LinkedList<Entry>();
 
 				@Override
@@ -1379,12 +1506,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (resumeFrom == 0) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1417,9 +1546,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
+						synchronized(oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * CLEANER_THREADS)
+								oldEntryList.poll();
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
@@ -1431,18 +1562,34 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
-
 					// shrink data file to current size
 					if (storeSize < _prevStoreSize)
 						setStoreFileSize(Math.max(storeSize, entriesLeft));
 
 					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
+					// Don't hold the list lock while locking slots: another worker may be
+					// holding those slots and waiting for the list lock in process().
+					List<Entry> toResolve;
+					synchronized(oldEntryList) {
+						toResolve = new ArrayList<Entry>(oldEntryList);
+					}
+					List<Entry> resolved = new ArrayList<Entry>();
+					for (Entry entry : toResolve)
+						if (resolveOldEntry(entry))
+							resolved.add(entry);
+					synchronized(oldEntryList) {
+						oldEntryList.removeAll(resolved);
+					}
+
+					configLock.writeLock().lock();
+					try {
+						if (_prevStoreSize == prevStoreSize)
+							cleanerCheckpoint = batchesDone;
+						if (i++ % 16 == 0)
+							writeConfigFile();
+					} finally {
+						configLock.writeLock().unlock();
+					}
 
 					return _prevStoreSize == prevStoreSize;
 				}
@@ -1459,6 +1606,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						cleanerCheckpoint = 0;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1480,7 +1628,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, resumeFrom);
 		}
 		
 		/**
@@ -1488,16 +1636,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private void rebuildBloom(boolean sleep) {
 			if(slotFilterDisabled) return;
-			Logger.normal(this, "Start rebuilding slot filter (" + name + ")");
+			final long resumeFrom;
+			configLock.readLock().lock();
+			try {
+				resumeFrom = cleanerCheckpoint;
+			} finally {
+				configLock.readLock().unlock();
+			}
+			Logger.normal(this, "Start rebuilding slot filter (" + name + ")" + 
+					(resumeFrom != 0 ? " from batch " + resumeFrom : ""));
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
 				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (resumeFrom == 0) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1529,12 +1687,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
-					if (i++ % 1024 == 0) {
+					i++;
+					if (i % 1024 == 0) {
 						if(!slotFilterDisabled)
 							slotFilter.forceWrite();
+						// Everything up to here is now on disk, so we can resume from here.
+						configLock.writeLock().lock();
+						try {
+							if (prevStoreSize == 0)
+								cleanerCheckpoint = batchesDone;
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
+					if (i % 16 == 0)
+						writeConfigFile();
 					
 					return prevStoreSize == 0;
 				}
@@ -1550,6 +1717,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1563,60 +1731,168 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, resumeFrom);
 		}
 
 
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** Batches finished, in order, in the current pass. */
+		private volatile long batchesDone;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
-
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		/**
+		 * Run a processor over the whole store, RESIZE_MEMORY_ENTRIES slots at a time, on 
+		 * CLEANER_THREADS threads. The workers take the next batch from a shared cursor, so they
+		 * stay close together and the I/O is roughly sequential even on a disk. After each batch
+		 * processor.batch() is called, one thread at a time, with the number of entries left before 
+		 * the first batch that hasn't finished, since workers may finish out of order.
+		 * @param firstBatch The number of batches finished by an earlier pass, to start after.
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, long firstBatch) {
+			long batches = (storeSize + RESIZE_MEMORY_ENTRIES - 1) / RESIZE_MEMORY_ENTRIES;
+			if (firstBatch < 0 || firstBatch > batches) {
+				Logger.error(this, "Bogus checkpoint "+firstBatch+" of "+batches+" batches, starting from scratch");
+				firstBatch = 0;
 			}
+			Pass pass = new Pass(processor, storeSize, reverse, sleep, batches, firstBatch);
+			entriesTotal = storeSize;
+			entriesLeft = pass.entriesLeft(firstBatch);
+			batchesDone = firstBatch;
 
-			int i = 0;
 			processor.init();
+			cleanerThrottle.onStartCleaning();
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
+				NativeThread[] workers = new NativeThread[CLEANER_THREADS - 1];
+				for (int i = 0; i < workers.length; i++) {
+					// The Cleaner has already been reniced, so don't check.
+					workers[i] = new NativeThread(pass, "Store-" + name + "-Cleaner-" + (i+1), NativeThread.LOW_PRIORITY, true);
+					workers[i].setDaemon(true);
+					workers[i].start();
+				}
+				pass.run();
+				for (NativeThread worker : workers) {
+					while (true) {
+						try {
+							worker.join();
+							break;
+						} catch (InterruptedException e) {
+							// Make the others stop, then wait for them.
+							pass.fail();
+						}
 					}
+				}
+			} finally {
+				cleanerThrottle.onStopCleaning();
+			}
+			if (pass.failed() || shutdown)
+				processor.abort();
+			else
+				processor.finish();
+		}
+
+		/** One pass over the store by batchProcessEntries(). Runs on each worker thread. */
+		private class Pass implements Runnable {
+
+			private final BatchProcessor<T> processor;
+			private final long storeSize;
+			private final boolean sleep;
+			private final long batches;
+			private final long startOffset;
+			private final long step;
+			/** The next batch to hand out. Protected by (this). */
+			private long nextBatch;
+			/** Batches after batchesDone which have finished. Protected by (this). */
+			private final SortedSet<Long> finished = new TreeSet<Long>();
+			/** Protected by (this). */
+			private boolean failed;
+			private int batchCount;
+			/** processor.batch() is called with this held, so one thread at a time. */
+			private final Object batchLock = new Object();
+
+			Pass(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, long batches, long firstBatch) {
+				this.processor = processor;
+				this.storeSize = storeSize;
+				this.sleep = sleep;
+				this.batches = batches;
+				nextBatch = firstBatch;
+				if (!reverse) {
+					startOffset = 0;
+					step = RESIZE_MEMORY_ENTRIES;
+				} else {
+					startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
+					step = -RESIZE_MEMORY_ENTRIES;
+				}
+			}
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			/** @return The number of entries left when the first done batches have finished. */
+			long entriesLeft(long done) {
+				if (done == 0) return storeSize;
+				long lastOffset = startOffset + (done - 1) * step;
+				return step < 0 ? lastOffset : Math.max(storeSize - lastOffset - RESIZE_MEMORY_ENTRIES, 0);
+			}
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
-						return;
-					}
+			synchronized void fail() {
+				failed = true;
+			}
 
-					try {
-						if (sleep)
-							Thread.sleep(100);
-					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+			synchronized boolean failed() {
+				return failed;
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						long batch;
+						synchronized (this) {
+							if (failed || shutdown || nextBatch >= batches)
+								return;
+							batch = nextBatch++;
+						}
+						if (!batchProcessEntries(startOffset + batch * step, RESIZE_MEMORY_ENTRIES, processor)
+								|| shutdown) {
+							// The batch didn't finish, so it mustn't be counted as done, or a
+							// resumed pass would skip it. batchesDone stays before it.
+							fail();
+							return;
+						}
+						synchronized (this) {
+							if (failed)
+								return;
+							finished.add(batch);
+							long done = batchesDone;
+							while (finished.remove(done))
+								done++;
+							batchesDone = done;
+							entriesLeft = entriesLeft(done);
+							if (batchCount++ % 64 == 0)
+								System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
+								        + entriesTotal);
+						}
+						// Not inside (this), so the other workers can carry on while we write.
+						synchronized (batchLock) {
+							if (failed())
+								return;
+							if (!processor.batch(entriesLeft)) {
+								fail();
+								return;
+							}
+						}
+						if (sleep) {
+							long delay = cleanerThrottle.delay();
+							if (delay > 0)
+								Thread.sleep(delay);
+						}
 					}
+				} catch (InterruptedException e) {
+					fail();
+				} catch (Exception e) {
+					Logger.error(this, "Caught: "+e+" while shrinking", e);
+					fail();
 				}
-				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
-				processor.abort();
 			}
+
 		}
 
 		/**
@@ -1903,6 +2179,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerCheckpoint = 0;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
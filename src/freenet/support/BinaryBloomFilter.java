@@ -24,7 +24,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	protected BinaryBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, Hashing.RANDOM);
+	}
+
+	protected BinaryBloomFilter(int length, int k, Hashing hashing) {
+		super(length, k, hashing);
 		filter = ByteBuffer.allocate(this.length / 8);
 	}
 
@@ -38,7 +42,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected BinaryBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
+		this(file, length, k, Hashing.RANDOM);
+	}
+
+	protected BinaryBloomFilter(File file, int length, int k, Hashing hashing) throws IOException {
+		super(length, k, hashing);
 		if (!file.exists() || file.length() != length / 8)
 			needRebuild = true;
 
@@ -55,7 +63,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	}
 
 	public BinaryBloomFilter(ByteBuffer slice, int length, int k) {
-		super(length, k);
+		this(slice, length, k, Hashing.RANDOM);
+	}
+
+	public BinaryBloomFilter(ByteBuffer slice, int length, int k, Hashing hashing) {
+		super(length, k, hashing);
 		filter = slice;
 	}
 
@@ -87,9 +99,9 @@ public class BinaryBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new BinaryBloomFilter(tempFile, length, k);
+			forkedFilter = new BinaryBloomFilter(tempFile, length, k, hashing);
 		} catch (IOException e) {
-			forkedFilter = new BinaryBloomFilter(length, k);
+			forkedFilter = new BinaryBloomFilter(length, k, hashing);
 		} finally {
 			lock.writeLock().unlock();
 		}
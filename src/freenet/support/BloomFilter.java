@@ -18,6 +18,19 @@ public abstract class BloomFilter {
 	/** Number of hash functions */
 	protected final int k;
 	protected final int length;
+	protected final Hashing hashing;
+
+	/** How the bit positions for a key are chosen. This is part of the filter's format: a filter
+	 * must always be read with the hashing it was written with. */
+	public enum Hashing {
+		/** Positions from a MersenneTwister seeded with the key. Slow, but works for any key. Used
+		 * by filters written before DOUBLE existed. */
+		RANDOM,
+		/** Double hashing (Kirsch and Mitzenmacher) from bytes 8 to 23 of the key, which must
+		 * already be a uniform hash, such as a salted routing key. Keys shorter than 24 bytes
+		 * fall back to RANDOM. */
+		DOUBLE
+	}
 
 	protected transient ReadWriteLock lock = new ReentrantReadWriteLock();
 	
@@ -26,12 +39,16 @@ public abstract class BloomFilter {
 	}
 
 	public static BloomFilter createFilter(int length, int k, boolean counting) {
+		return createFilter(length, k, counting, Hashing.RANDOM);
+	}
+	
+	public static BloomFilter createFilter(int length, int k, boolean counting, Hashing hashing) {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
 		if (counting)
-			return new CountingBloomFilter(length, k);
+			return new CountingBloomFilter(length, k, hashing);
 		else
-			return new BinaryBloomFilter(length, k);
+			return new BinaryBloomFilter(length, k, hashing);
 	}
 	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
@@ -44,6 +61,10 @@ public abstract class BloomFilter {
 	}
 	
 	protected BloomFilter(int length, int k) {
+		this(length, k, Hashing.RANDOM);
+	}
+	
+	protected BloomFilter(int length, int k, Hashing hashing) {
 		if (length < 0) {
 			throw new IllegalArgumentException("Filter must have postitive or zero length");
 		}
@@ -63,15 +84,23 @@ public abstract class BloomFilter {
 
 		this.length = length;
 		this.k = k;
+		this.hashing = hashing;
 	}
 
 	//-- Core
 	public void addKey(byte[] key) {
-		Random hashes = getHashes(key);
 		lock.writeLock().lock();
 		try {
-			for (int i = 0; i < k; i++)
-				setBit(hashes.nextInt(length));
+			if (useDoubleHashing(key)) {
+				long hash = hash1(key);
+				long step = hash2(key);
+				for (int i = 0; i < k; i++, hash += step)
+					setBit(offset(hash));
+			} else {
+				Random hashes = getHashes(key);
+				for (int i = 0; i < k; i++)
+					setBit(hashes.nextInt(length));
+			}
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -87,12 +116,20 @@ public abstract class BloomFilter {
 	}
 
 	public boolean checkFilter(byte[] key) {
-		Random hashes = getHashes(key);
 		lock.readLock().lock();
 		try {
-			for (int i = 0; i < k; i++)
-				if (!getBit(hashes.nextInt(length)))
-					return false;
+			if (useDoubleHashing(key)) {
+				long hash = hash1(key);
+				long step = hash2(key);
+				for (int i = 0; i < k; i++, hash += step)
+					if (!getBit(offset(hash)))
+						return false;
+			} else {
+				Random hashes = getHashes(key);
+				for (int i = 0; i < k; i++)
+					if (!getBit(hashes.nextInt(length)))
+						return false;
+			}
 		} finally {
 			lock.readLock().unlock();
 		}
@@ -100,11 +137,18 @@ public abstract class BloomFilter {
 	}
 
 	public void removeKey(byte[] key) {
-		Random hashes = getHashes(key);
 		lock.writeLock().lock();
 		try {
-			for (int i = 0; i < k; i++)
-				unsetBit(hashes.nextInt(length));
+			if (useDoubleHashing(key)) {
+				long hash = hash1(key);
+				long step = hash2(key);
+				for (int i = 0; i < k; i++, hash += step)
+					unsetBit(offset(hash));
+			} else {
+				Random hashes = getHashes(key);
+				for (int i = 0; i < k; i++)
+					unsetBit(hashes.nextInt(length));
+			}
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -131,6 +175,26 @@ public abstract class BloomFilter {
 		return new MersenneTwister(key);
 	}
 
+	private boolean useDoubleHashing(byte[] key) {
+		return hashing == Hashing.DOUBLE && key.length >= 24;
+	}
+
+	// Not the first bytes, which KeyListenerIndex uses as a fingerprint: listeners which it
+	// matches would always agree on the first position.
+	private static long hash1(byte[] key) {
+		return Fields.bytesToLong(key, 8);
+	}
+
+	/** Odd, so the positions can't all be the same. */
+	private static long hash2(byte[] key) {
+		return Fields.bytesToLong(key, 16) | 1;
+	}
+
+	/** Map the top 32 bits of the hash onto [0, length) with a multiply rather than a division. */
+	private int offset(long hash) {
+		return (int) (((hash >>> 32) * length) >>> 32);
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
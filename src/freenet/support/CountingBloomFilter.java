@@ -30,7 +30,11 @@ public class CountingBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	public CountingBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, Hashing.RANDOM);
+	}
+
+	public CountingBloomFilter(int length, int k, Hashing hashing) {
+		super(length, k, hashing);
 		filter = ByteBuffer.allocate(this.length / 4);
 	}
 
@@ -44,7 +48,11 @@ public class CountingBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected CountingBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
+		this(file, length, k, Hashing.RANDOM);
+	}
+
+	protected CountingBloomFilter(File file, int length, int k, Hashing hashing) throws IOException {
+		super(length, k, hashing);
 		int fileLength = length / 4;
 		if (!file.exists() || file.length() != fileLength)
 			needRebuild = true;
@@ -62,7 +70,11 @@ public class CountingBloomFilter extends BloomFilter {
 	}
 
 	public CountingBloomFilter(int length, int k, byte[] buffer) {
-		super(length, k);
+		this(length, k, buffer, Hashing.RANDOM);
+	}
+
+	public CountingBloomFilter(int length, int k, byte[] buffer, Hashing hashing) {
+		super(length, k, hashing);
 		assert(buffer.length == length / 4);
 		filter = ByteBuffer.wrap(buffer);
 	}
@@ -112,9 +124,9 @@ public class CountingBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new CountingBloomFilter(tempFile, length, k);
+			forkedFilter = new CountingBloomFilter(tempFile, length, k, hashing);
 		} catch (IOException e) {
-			forkedFilter = new CountingBloomFilter(length, k);
+			forkedFilter = new CountingBloomFilter(length, k, hashing);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -127,6 +128,14 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected final ArrayBlockingQueue<byte[]> list;
 	protected long listBytes = 0;
 
+	/** If not null, log() only records the event here, and the FormatterThread formats it and
+	 * passes it on to list in batches. */
+	private LogEventRing ring;
+	/** Set when the FormatterThread has passed on everything after we closed. */
+	private volatile boolean formatterFinished;
+	/** Formatted lines are passed on in batches of about this many characters. */
+	private static final int FORMAT_BATCH_CHARS = 32 * 1024;
+
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
 	private long oldLogFilesDiskSpaceUsage = 0;
@@ -332,7 +341,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							maxWait = timeWaitingForSync + flush;
 						o = list.poll();
 						while(o == null) {
-							if (closed) {
+							if (closed && (ring == null || formatterFinished)) {
 								died = true;
 								break;
 							}
@@ -808,8 +817,100 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		wt.setDaemon(true);
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
+		if(ring != null) {
+			FormatterThread ft = new FormatterThread();
+			ft.setDaemon(true);
+			ft.start();
+		}
 		wt.start();
 	}
+
+	/**
+	 * Log asynchronously: log() just records the event in a preallocated ring buffer, and a
+	 * separate thread formats the events and passes them on to the writer thread in batches.
+	 * This takes the formatting and the lock on the backlog off the logging threads, which
+	 * matters when logging at MINOR or DEBUG. Must be called before start().
+	 * @param size The number of events the buffer can hold.
+	 * @param policy What to do when it is full.
+	 */
+	public void setAsync(int size, LogEventRing.FullPolicy policy) {
+		ring = new LogEventRing(size, policy);
+	}
+
+	/** Change what to do when the asynchronous buffer is full. Does nothing if we are not
+	 * logging asynchronously. */
+	public void setAsyncFullPolicy(LogEventRing.FullPolicy policy) {
+		LogEventRing r = ring;
+		if(r != null) r.setPolicy(policy);
+	}
+
+	/** Formats the events in the ring and passes them to the writer thread in batches. */
+	class FormatterThread extends Thread implements LogEventRing.Consumer {
+
+		private final StringBuilder sb = new StringBuilder(FORMAT_BATCH_CHARS + 4096);
+
+		FormatterThread() {
+			super("Log Formatter Thread");
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					int count = ring.drain(this, 1024);
+					long dropped = ring.takeDropped();
+					if(dropped > 0)
+						sb.append("GRRR: ERROR: Logging too fast, dropped ").append(dropped).append(" entries\n");
+					if(sb.length() >= FORMAT_BATCH_CHARS || (count == 0 && sb.length() > 0))
+						flush();
+					if(count == 0) {
+						if(closed && ring.isEmpty()) {
+							formatterFinished = true;
+							synchronized(list) {
+								list.notifyAll();
+							}
+							return;
+						}
+						ring.await(MILLISECONDS.toNanos(100));
+					}
+				} catch (OutOfMemoryError e) {
+					System.err.println(e.getClass());
+					System.err.println(e.getMessage());
+					e.printStackTrace();
+				} catch (Throwable t) {
+					System.err.println("FileLoggerHook log formatter caught " + t);
+					t.printStackTrace(System.err);
+				}
+			}
+		}
+
+		@Override
+		public void consume(LogEventRing.Event event) {
+			if(event.raw != null) {
+				flush();
+				try {
+					enqueue(event.raw);
+				} catch (UnsupportedEncodingException e) {
+					throw new Error(e);
+				}
+			} else {
+				appendLine(sb, event.time, event.c, event.hasSource, event.sourceHash, event.thread,
+						event.priority, event.msg, event.e);
+				if(sb.length() >= FORMAT_BATCH_CHARS) flush();
+			}
+		}
+
+		private void flush() {
+			if(sb.length() == 0) return;
+			try {
+				enqueue(sb.toString().getBytes(ENCODING));
+			} catch (UnsupportedEncodingException e) {
+				throw new Error(e);
+			}
+			sb.setLength(0);
+		}
+
+	}
 	
 	public FileLoggerHook(
 		boolean rotate,
@@ -923,8 +1024,28 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		if (closed)
 			return;
+
+		long now = System.currentTimeMillis();
+		String thread = Thread.currentThread().getName();
+		LogEventRing r = ring;
+		if(r != null) {
+			r.add(now, c, o, thread, priority, msg, e);
+			return;
+		}
 		
 		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		appendLine(sb, now, c, o != null, o == null ? 0 : o.hashCode(), thread, priority, msg, e);
+
+		try {
+			logString(sb.toString().getBytes(ENCODING));
+		} catch (UnsupportedEncodingException e1) {
+			throw new Error(e1);
+		}
+	}
+
+	/** Format a log line, and the stack trace if any. */
+	private void appendLine(StringBuilder sb, long now, Class<?> c, boolean hasSource, int sourceHash,
+			String thread, LogLevel priority, String msg, Throwable e) {
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,7 +1054,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
 					synchronized (this) {
 						myDate.setTime(now);
 						sb.append(df.format(myDate));
@@ -944,12 +1064,12 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!hasSource
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(sourceHash));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(thread);
 					break;
 				case PRIORITY :
 					sb.append(priority.name());
@@ -987,18 +1107,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
-
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
+		LogEventRing r = ring;
+		if(r != null)
+			r.add(b);
+		else
+			enqueue(b);
+	}
+
+	/** Add formatted lines to the backlog for the writer thread. */
+	private void enqueue(byte[] b) throws UnsupportedEncodingException {
 		synchronized (list) {
 			int sz = list.size();
 			if(!list.offer(b)) {
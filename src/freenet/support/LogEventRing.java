@@ -0,0 +1,217 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A bounded ring of preallocated log events, for FileLoggerHook's asynchronous mode. Any number
+ * of threads can add events without locking or allocating. A single consumer thread takes them
+ * in order and formats them, so formatting costs nothing on the logging thread.
+ *
+ * Each slot records the sequence number of the event last published into it, so the consumer
+ * can tell when the next slot is ready without a lock.
+ */
+public final class LogEventRing {
+
+	/** What to do when the ring is full. */
+	public enum FullPolicy {
+		/** Throw the event away and count it. The consumer logs how many were dropped. */
+		DROP,
+		/** Wait until the consumer has made space. */
+		BLOCK
+	}
+
+	/** One log event. Only the fields are stored, it is formatted later. */
+	static final class Event {
+		long time;
+		Class<?> c;
+		boolean hasSource;
+		int sourceHash;
+		String thread;
+		LogLevel priority;
+		String msg;
+		Throwable e;
+		/** If not null, an already formatted line, and the other fields are unused. */
+		byte[] raw;
+
+		void clear() {
+			c = null;
+			thread = null;
+			priority = null;
+			msg = null;
+			e = null;
+			raw = null;
+		}
+	}
+
+	/** Handles events as the consumer takes them. */
+	interface Consumer {
+		void consume(Event event);
+	}
+
+	private final Event[] slots;
+	private final int mask;
+	/** The sequence number published in each slot, or -1. */
+	private final AtomicLongArray published;
+	/** The next sequence number to claim. */
+	private final AtomicLong claimed = new AtomicLong();
+	/** The next sequence number the consumer will take. Only the consumer writes this. */
+	private volatile long consumed;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private volatile FullPolicy policy;
+	/** The consumer, if it is parked waiting for events. */
+	private volatile Thread sleeping;
+
+	/** The largest size which can be rounded up to a power of two without overflowing. */
+	public static final int MAX_SIZE = 1 << 30;
+
+	/** @param size The number of slots, at most MAX_SIZE. Rounded up to a power of two. */
+	public LogEventRing(int size, FullPolicy policy) {
+		if(size <= 0 || size > MAX_SIZE) throw new IllegalArgumentException();
+		int capacity = Integer.highestOneBit(size);
+		if(capacity < size) capacity <<= 1;
+		slots = new Event[capacity];
+		for(int i=0;i<capacity;i++)
+			slots[i] = new Event();
+		mask = capacity - 1;
+		published = new AtomicLongArray(capacity);
+		for(int i=0;i<capacity;i++)
+			published.set(i, -1);
+		this.policy = policy;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	public void setPolicy(FullPolicy policy) {
+		this.policy = policy;
+	}
+
+	public FullPolicy getPolicy() {
+		return policy;
+	}
+
+	/** Add an event which still needs formatting.
+	 * @return False if the ring was full and the event was dropped. */
+	boolean add(long time, Class<?> c, Object source, String thread, LogLevel priority, String msg, Throwable e) {
+		long seq = claim();
+		if(seq < 0) return false;
+		Event event = slots[(int) seq & mask];
+		event.time = time;
+		event.c = c;
+		event.hasSource = source != null;
+		event.sourceHash = source == null ? 0 : source.hashCode();
+		event.thread = thread;
+		event.priority = priority;
+		event.msg = msg;
+		event.e = e;
+		publish(seq);
+		return true;
+	}
+
+	/** Add an already formatted line.
+	 * @return False if the ring was full and the line was dropped. */
+	boolean add(byte[] raw) {
+		long seq = claim();
+		if(seq < 0) return false;
+		slots[(int) seq & mask].raw = raw;
+		publish(seq);
+		return true;
+	}
+
+	/** @return The sequence number of a free slot, or -1 if it is full and we are dropping. */
+	private long claim() {
+		boolean waited = false;
+		while(true) {
+			long seq = claimed.get();
+			if(seq - consumed >= slots.length) {
+				if(policy == FullPolicy.DROP) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				if(!waited) {
+					blocked.incrementAndGet();
+					waited = true;
+				}
+				wakeConsumer();
+				LockSupport.parkNanos(100*1000);
+				continue;
+			}
+			if(claimed.compareAndSet(seq, seq+1))
+				return seq;
+		}
+	}
+
+	private void publish(long seq) {
+		published.set((int) seq & mask, seq);
+		wakeConsumer();
+	}
+
+	private void wakeConsumer() {
+		Thread t = sleeping;
+		if(t != null) {
+			sleeping = null;
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Take events in order and pass them to the consumer. Only one thread may call this.
+	 * @param max The most events to take.
+	 * @return The number of events taken.
+	 */
+	int drain(Consumer consumer, int max) {
+		long next = consumed;
+		int count = 0;
+		while(count < max) {
+			int index = (int) next & mask;
+			if(published.get(index) != next) break;
+			Event event = slots[index];
+			consumer.consume(event);
+			event.clear();
+			next++;
+			count++;
+			// Free slots as we go, so blocked producers don't wait for the whole batch.
+			if((count & 63) == 0) consumed = next;
+		}
+		consumed = next;
+		return count;
+	}
+
+	/** Wait until there may be events to drain, or the timeout expires. Only the consumer thread
+	 * may call this. */
+	void await(long timeoutNanos) {
+		sleeping = Thread.currentThread();
+		// Check again after setting sleeping, so we can't miss a publish.
+		if(published.get((int) consumed & mask) == consumed) {
+			sleeping = null;
+			return;
+		}
+		LockSupport.parkNanos(this, timeoutNanos);
+		sleeping = null;
+	}
+
+	/** @return True if there are no events waiting for the consumer. */
+	boolean isEmpty() {
+		return claimed.get() == consumed;
+	}
+
+	/** @return The number of events dropped so far, and reset it to zero. */
+	long takeDropped() {
+		return dropped.getAndSet(0);
+	}
+
+	/** @return The number of times a thread had to wait because the ring was full. */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+}
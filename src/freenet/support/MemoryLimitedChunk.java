@@ -7,6 +7,7 @@ package freenet.support;
 public final class MemoryLimitedChunk {
     private final MemoryLimitedJobRunner memoryLimitedJobRunner;
     private long used;
+    private final long started = System.currentTimeMillis();
     MemoryLimitedChunk(MemoryLimitedJobRunner memoryLimitedJobRunner, long used) {
         this.memoryLimitedJobRunner = memoryLimitedJobRunner;
         if(used < 0) throw new IllegalArgumentException();
@@ -23,7 +24,7 @@ public final class MemoryLimitedChunk {
             released = used;
             used = 0;
         }
-        this.memoryLimitedJobRunner.deallocate(released, true);
+        this.memoryLimitedJobRunner.deallocate(released, true, System.currentTimeMillis() - started);
         return released;
     }
 
@@ -36,7 +37,7 @@ public final class MemoryLimitedChunk {
             used -= amount;
             finishedThread = (used == 0);
         }
-        this.memoryLimitedJobRunner.deallocate(amount, finishedThread);
+        this.memoryLimitedJobRunner.deallocate(amount, finishedThread, System.currentTimeMillis() - started);
         return amount;
     }
     
@@ -4,6 +4,10 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** Set by MemoryLimitedJobRunner when the job is queued. */
+    double completion;
+    long sequence;
+    long queuedTime;
     
     public MemoryLimitedJob(long initial) {
         this.initialAllocation = initial;
@@ -12,6 +16,14 @@ public abstract class MemoryLimitedJob {
     /** All memory limited jobs run at LOW_PRIORITY. This affects queueing. */
     public abstract int getPriority();
     
+    /** How close the request this job belongs to is to finishing, from 0.0 to 1.0. Within a
+     * priority, jobs for requests which are nearly finished go first, so they finish sooner and
+     * free their resources. Called once when the job is queued, possibly with the caller's
+     * locks held, so must not take any locks which might be held while queueing a job. */
+    public double getCompletion() {
+        return 0.0;
+    }
+    
     /** Start the job. Generally called by MemoryLimitedJobRunner, which schedules jobs within
      * the limited available resource (memory).
      * @param chunk The chunk of the scarce resource that has been allocated for this job. Can
@@ -1,40 +1,88 @@
 package freenet.support;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import freenet.node.PrioRunnable;
 import freenet.support.io.NativeThread;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
+ *
+ * Queued jobs start in order of priority, then the job whose request is closest to completion
+ * (MemoryLimitedJob.getCompletion()), then first come first served. If the first job doesn't fit
+ * yet, small jobs of the same priority can start in the memory that is left, up to MAX_OVERTAKES
+ * times. Jobs are also held back, unless nothing else is running, if they are bigger than half
+ * of the heap that was still free after the last garbage collection.
  * @author toad
  */
 public class MemoryLimitedJobRunner {
     
     public static final int THREAD_PRIORITY = NativeThread.LOW_PRIORITY;
+    /** Jobs no bigger than capacity / SMALL_JOB_DIVISOR can overtake a bigger job which doesn't fit. */
+    static final int SMALL_JOB_DIVISOR = 8;
+    /** How many small jobs can overtake the first job in the queue, before it waits for memory. */
+    static final int MAX_OVERTAKES = 16;
+    /** Number of buckets in the wait and run time histograms. Bucket 0 is under 1ms, bucket i is
+     * 2^(i-1) to 2^i ms, and the last bucket is everything longer. */
+    public static final int HISTOGRAM_BUCKETS = 20;
     public long capacity;
     /** The amount of some limited resource that is in use */
     private long counter;
-    /** The jobs we can't start yet. FIXME Always FIFO order? Small jobs first? Prioritised even? */
-    private final Deque<MemoryLimitedJob>[] jobs;
+    /** The jobs we can't start yet, by priority. */
+    private final PriorityQueue<MemoryLimitedJob>[] jobs;
     private final Executor executor;
     private int runningThreads;
     private int maxThreads;
     private boolean shutdown;
+    /** For first come first served among jobs which are otherwise equal. */
+    private long queuedJobs;
+    /** The job which is first in the queue but hasn't fitted yet, and how often it's been overtaken. */
+    private MemoryLimitedJob waitingJob;
+    private int overtaken;
+    /** Jobs which were held back because of the heap rather than the capacity. */
+    private long heapLimited;
+    private final long[] waitTimes = new long[HISTOGRAM_BUCKETS];
+    private final long[] runTimes = new long[HISTOGRAM_BUCKETS];
     
     private static boolean logMINOR;
     static {
         Logger.registerClass(MemoryLimitedJobRunner.class);
     }
+
+    private static final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+    static {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        }
+    }
     
+    private static final Comparator<MemoryLimitedJob> JOB_ORDER = new Comparator<MemoryLimitedJob>() {
+
+        @Override
+        public int compare(MemoryLimitedJob a, MemoryLimitedJob b) {
+            // Closest to completion first.
+            int cmp = Double.compare(b.completion, a.completion);
+            if(cmp != 0) return cmp;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+
+    };
+
     @SuppressWarnings("unchecked")
     public MemoryLimitedJobRunner(long capacity, int maxThreads, Executor executor, int priorities) {
         this.capacity = capacity;
         this.counter = 0;
-        this.jobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities];
+        this.jobs = (PriorityQueue<MemoryLimitedJob>[])new PriorityQueue<?>[priorities];
         for(int i=0;i<jobs.length;i++) 
-            jobs[i] = new ArrayDeque<MemoryLimitedJob>();
+            jobs[i] = new PriorityQueue<MemoryLimitedJob>(11, JOB_ORDER);
         this.executor = executor;
         this.maxThreads = maxThreads;
         
@@ -42,21 +90,29 @@ public class MemoryLimitedJobRunner {
     
     /** Run the job if the counter is below some threshold, otherwise queue it. Will ignore if 
      * shutting down. */
-    public synchronized void queueJob(final MemoryLimitedJob job) {
-        if(shutdown) return;
-        if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
-        if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
-        jobs[job.getPriority()].add(job);
-        maybeStartJobs();
+    public void queueJob(final MemoryLimitedJob job) {
+        // Outside the lock, the job may look at its request.
+        double completion = job.getCompletion();
+        synchronized(this) {
+            if(shutdown) return;
+            if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
+            if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority()+" completion "+completion);
+            job.completion = completion;
+            job.sequence = queuedJobs++;
+            job.queuedTime = System.currentTimeMillis();
+            jobs[job.getPriority()].add(job);
+            maybeStartJobs();
+        }
     }
 
-    synchronized void deallocate(long size, boolean finishedThread) {
+    synchronized void deallocate(long size, boolean finishedThread, long runTime) {
         if(size == 0) return; // Can't do anything, legal no-op.
         if(size < 0) throw new IllegalArgumentException();
         assert(size <= counter);
         counter -= size;
         if(finishedThread) {
             runningThreads--;
+            runTimes[histogramBucket(runTime)]++;
             if(shutdown) notifyAll();
         }
         maybeStartJobs();
@@ -64,24 +120,70 @@ public class MemoryLimitedJobRunner {
     
     private synchronized void maybeStartJobs() {
         if(shutdown) return;
-        while(true) {
+        while(runningThreads < maxThreads) {
             MemoryLimitedJob job = null;
             int prio = 0;
             for(;prio<jobs.length;prio++) {
-                job = jobs[prio].peekFirst();
+                job = jobs[prio].peek();
                 if(job != null) break;
             }
             if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
-                jobs[prio].removeFirst();
+            if(canStart(job)) {
+                jobs[prio].poll();
+                waitingJob = null;
                 startJob(job);
-            } else return;
+                continue;
+            }
+            // The best job doesn't fit yet. Use the memory that is left for small jobs at the
+            // same priority, but not so often that it never fits.
+            if(job != waitingJob) {
+                waitingJob = job;
+                overtaken = 0;
+                if(job.initialAllocation + counter <= capacity) heapLimited++;
+            }
+            if(overtaken >= MAX_OVERTAKES) return;
+            MemoryLimitedJob small = null;
+            for(MemoryLimitedJob j : jobs[prio]) {
+                if(j.initialAllocation <= capacity / SMALL_JOB_DIVISOR && canStart(j) &&
+                        (small == null || JOB_ORDER.compare(j, small) < 0))
+                    small = j;
+            }
+            if(small == null) return;
+            jobs[prio].remove(small);
+            overtaken++;
+            startJob(small);
         }
     }
+
+    private boolean canStart(MemoryLimitedJob job) {
+        if(job.initialAllocation + counter > capacity) return false;
+        // Always let one job run, so we don't stall.
+        if(counter == 0) return true;
+        return job.initialAllocation <= freeHeap() / 2;
+    }
+
+    /** @return Roughly how much more the heap can grow by, going by what was still in use after
+     * the last garbage collection. Counting garbage that hasn't been collected yet as used would
+     * hold jobs back whenever the young generation is nearly full, i.e. most of the time. Falls
+     * back to counting it if the JVM doesn't tell us. */
+    long freeHeap() {
+        Runtime r = Runtime.getRuntime();
+        long used = 0;
+        boolean known = false;
+        for(MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if(usage == null) continue;
+            used += usage.getUsed();
+            known = true;
+        }
+        if(!known) used = r.totalMemory() - r.freeMemory();
+        return r.maxMemory() - used;
+    }
     
     private synchronized void startJob(final MemoryLimitedJob job) {
         counter += job.initialAllocation;
         runningThreads++;
+        waitTimes[histogramBucket(System.currentTimeMillis() - job.queuedTime)]++;
         if(logMINOR) Logger.minor(this, "Starting job "+job);
         executor.execute(new PrioRunnable() {
 
@@ -100,11 +202,20 @@ public class MemoryLimitedJobRunner {
         });
     }
 
+    static int histogramBucket(long time) {
+        if(time <= 0) return 0;
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(time));
+    }
+
     /** For tests and stats. How much of the scarce resource is used right now? */
     long used() {
         return counter;
     }
 
+    public synchronized long getUsed() {
+        return counter;
+    }
+
     public synchronized void setMaxThreads(int val) {
         this.maxThreads = val;
         maybeStartJobs();
@@ -142,5 +253,26 @@ public class MemoryLimitedJobRunner {
         return runningThreads;
     }
 
-}
+    public synchronized int getQueuedJobs() {
+        int total = 0;
+        for(PriorityQueue<MemoryLimitedJob> queue : jobs)
+            total += queue.size();
+        return total;
+    }
+
+    public synchronized long getHeapLimited() {
+        return heapLimited;
+    }
+
+    /** @return How many jobs waited for each range of times, in milliseconds. See
+     * HISTOGRAM_BUCKETS. */
+    public synchronized long[] getWaitTimes() {
+        return waitTimes.clone();
+    }
+
+    /** @return How many jobs ran for each range of times, in milliseconds. See HISTOGRAM_BUCKETS. */
+    public synchronized long[] getRunTimes() {
+        return runTimes.clone();
+    }
 
+}
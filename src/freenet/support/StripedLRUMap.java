@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * A bounded LRU map split into several independent LRUMap's ("stripes") by key hash, so that
+ * threads working on different keys rarely contend for the same lock. Each stripe is limited to
+ * its share of the total size and evicts its own least recently pushed entries, so eviction is
+ * only approximately LRU overall.
+ *
+ * The stripes are safe maps (see LRUMap.createSafeMap()), since the keys may be chosen by an
+ * attacker. An attacker can at worst put all their keys in one stripe, which then behaves like
+ * a smaller LRUMap.
+ *
+ * LOCKING: Simple operations lock only the relevant stripe. For compound operations, e.g. get
+ * then push, synchronize on stripe(key), which is the lock LRUMap uses internally.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class StripedLRUMap<K extends Comparable<K>, V> {
+
+	private final LRUMap<K, V>[] stripes;
+	private final int mask;
+	private final int maxSizePerStripe;
+
+	/**
+	 * @param stripes The number of stripes. Will be rounded up to a power of 2.
+	 * @param maxSize The maximum total number of entries. Each stripe gets an equal share.
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLRUMap(int stripes, int maxSize) {
+		if(stripes < 1) throw new IllegalArgumentException();
+		int count = Integer.highestOneBit(stripes);
+		if(count < stripes) count <<= 1;
+		this.stripes = new LRUMap[count];
+		for(int i=0;i<count;i++)
+			this.stripes[i] = LRUMap.createSafeMap();
+		mask = count - 1;
+		maxSizePerStripe = Math.max(1, (maxSize + count - 1) / count);
+	}
+
+	/** The stripe containing the key. Synchronize on it for compound operations. */
+	public LRUMap<K, V> stripe(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h ^= (h >>> 8);
+		return stripes[h & mask];
+	}
+
+	public int stripeCount() {
+		return stripes.length;
+	}
+
+	public LRUMap<K, V> stripeAt(int i) {
+		return stripes[i];
+	}
+
+	public int maxSizePerStripe() {
+		return maxSizePerStripe;
+	}
+
+	public V get(K key) {
+		return stripe(key).get(key);
+	}
+
+	public boolean containsKey(K key) {
+		return stripe(key).containsKey(key);
+	}
+
+	/**
+	 * Add or update a mapping and move it to the most recently used position in its stripe. If
+	 * the stripe is then over its limit, the least recently pushed entries in it are dropped.
+	 * @return The previous value, or null.
+	 */
+	public V push(K key, V value) {
+		LRUMap<K, V> stripe = stripe(key);
+		synchronized(stripe) {
+			V old = stripe.push(key, value);
+			while(stripe.size() > maxSizePerStripe)
+				stripe.popKey();
+			return old;
+		}
+	}
+
+	public boolean removeKey(K key) {
+		return stripe(key).removeKey(key);
+	}
+
+	/** @return The total number of entries. Not atomic across stripes. */
+	public int size() {
+		int size = 0;
+		for(LRUMap<K, V> stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	public boolean isEmpty() {
+		for(LRUMap<K, V> stripe : stripes)
+			if(!stripe.isEmpty()) return false;
+		return true;
+	}
+
+	/** @return A snapshot of all the values, taken one stripe at a time, least recently pushed
+	 * first within each stripe. */
+	public List<V> values() {
+		ArrayList<V> values = new ArrayList<V>(size());
+		for(LRUMap<K, V> stripe : stripes) {
+			synchronized(stripe) {
+				Enumeration<V> e = stripe.values();
+				while(e.hasMoreElements())
+					values.add(e.nextElement());
+			}
+		}
+		return values;
+	}
+
+	public void clear() {
+		for(LRUMap<K, V> stripe : stripes)
+			stripe.clear();
+	}
+
+}
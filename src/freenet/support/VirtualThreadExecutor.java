@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor which runs every job on a new virtual thread, on Java 21 and later. Meant for the
+ * long-lived, mostly blocked request senders and handlers: a virtual thread costs a few hundred
+ * bytes plus the stack it actually uses, rather than a platform thread and its whole stack, so a
+ * node can have far more requests in flight.
+ *
+ * We still build for Java 7, so virtual threads are created through reflection. Check
+ * isAvailable() before creating one. Priorities are only counted, not applied: virtual threads
+ * all run at normal priority on the carrier threads, and can't be reniced.
+ *
+ * Before Java 24, blocking in Object.wait() pins a virtual thread to its carrier. So the main
+ * wait on the request path, MessageCore.waitFor(), parks instead. The remaining waits for state
+ * changes on the senders are short and rare by comparison.
+ */
+public class VirtualThreadExecutor implements Executor {
+
+	private static final ThreadFactory factory = makeFactory();
+
+	private final AtomicInteger[] runningThreads = new AtomicInteger[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final AtomicInteger totalRunning = new AtomicInteger();
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(VirtualThreadExecutor.class);
+	}
+
+	/** @return A factory for unnamed virtual threads, or null if this JVM doesn't have them. */
+	private static ThreadFactory makeFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (Exception e) {
+			// E.g. preview feature not enabled on Java 19/20.
+			Logger.normal(VirtualThreadExecutor.class, "Virtual threads not available: "+e);
+			return null;
+		}
+	}
+
+	/** @return True if the JVM supports virtual threads. */
+	public static boolean isAvailable() {
+		return factory != null;
+	}
+
+	/** @throws UnsupportedOperationException If virtual threads are not available. */
+	public VirtualThreadExecutor() {
+		if(factory == null)
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+		for(int i = 0; i < runningThreads.length; i++)
+			runningThreads[i] = new AtomicInteger();
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(final Runnable job, final String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(job instanceof PrioRunnable)
+			prio = ((PrioRunnable) job).getPriority();
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+		if(logMINOR)
+			Logger.minor(this, "Executing " + job + " as " + jobName + " at prio " + prio);
+		final AtomicInteger counter = runningThreads[prio - NativeThread.MIN_PRIORITY];
+		counter.incrementAndGet();
+		totalRunning.incrementAndGet();
+		Thread t = factory.newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + jobName, t);
+				} finally {
+					counter.decrementAndGet();
+					totalRunning.decrementAndGet();
+				}
+			}
+
+		});
+		t.setName(jobName);
+		t.start();
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[runningThreads.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = runningThreads[i].get();
+		return result;
+	}
+
+	/** There are never any idle threads. */
+	@Override
+	public int[] waitingThreads() {
+		return new int[runningThreads.length];
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return 0;
+	}
+
+	/** @return The number of jobs currently running. */
+	public int getRunningCount() {
+		return totalRunning.get();
+	}
+
+}
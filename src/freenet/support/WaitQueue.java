@@ -0,0 +1,63 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Threads waiting for some state, guarded by another object's lock, to change. Used instead of
+ * wait() and notifyAll() on that lock by code which may run on virtual threads: before Java 24
+ * a virtual thread in Object.wait() pins its carrier thread, but one parked with LockSupport
+ * doesn't.
+ *
+ * A waiter checks the state with the lock held and, if it has to wait, calls add() before
+ * releasing the lock, and then park(). Whoever changes the state calls wakeAll() instead of
+ * notifyAll(). A wake-up between add() and park() isn't lost, because park() returns at once if
+ * the thread has already been unparked.
+ *
+ * LOCKING: Synchronized on this, but only briefly, never while waiting.
+ */
+public final class WaitQueue {
+
+	private final ArrayList<Thread> waiters = new ArrayList<Thread>(1);
+
+	/** Register the current thread. Call with the state's lock held, then release it and call
+	 * park(). */
+	public synchronized void add() {
+		waiters.add(Thread.currentThread());
+	}
+
+	/**
+	 * Wait until woken by wakeAll(), interrupted, or the timeout has passed, then unregister the
+	 * current thread. Like wait(), it can also return early for no reason, so callers must check
+	 * the state again. Must be called after add(), without holding the state's lock.
+	 * @param blocker The object being waited on, for thread dumps.
+	 * @param timeout The maximum time to wait in milliseconds, or 0 to wait until woken.
+	 * @return False if the thread was interrupted. The interrupt flag is cleared, as it is when
+	 * wait() throws InterruptedException.
+	 */
+	public boolean park(Object blocker, long timeout) {
+		try {
+			if(timeout > 0)
+				LockSupport.parkNanos(blocker, MILLISECONDS.toNanos(timeout));
+			else
+				LockSupport.park(blocker);
+			return !Thread.interrupted();
+		} finally {
+			synchronized(this) {
+				waiters.remove(Thread.currentThread());
+			}
+		}
+	}
+
+	/** Wake every waiting thread. Call where notifyAll() would be, after changing the state. */
+	public synchronized void wakeAll() {
+		for(Thread waiter : waiters)
+			LockSupport.unpark(waiter);
+	}
+
+}
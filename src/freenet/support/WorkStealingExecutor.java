@@ -0,0 +1,448 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a bounded pool of threads for each priority, which queues jobs rather than
+ * starting a new thread for each one when they are all busy. PooledExecutor starts a thread
+ * whenever there isn't an idle one, so a burst of requests can create hundreds of threads at
+ * once.
+ *
+ * Each priority has its own pool, because a thread's niceness can only go down: a thread only
+ * ever runs jobs of the priority it was created for. Within a pool, each worker has a deque of
+ * jobs submitted by jobs it runs, and jobs from anywhere else go on a shared queue. A worker
+ * takes from its own deque first, then the shared queue, then steals from the other workers.
+ * Everything is taken oldest first, so jobs of the same priority run roughly in the order they
+ * were submitted.
+ *
+ * Freenet jobs often block, sometimes on other jobs. So the limit on threads per priority is
+ * soft: if the oldest queued job has waited longer than STARVATION_TIME with no thread free, the
+ * monitor thread adds one more, and so on every STARVATION_TIME until the queue moves. This
+ * avoids deadlock while turning a burst into a gradual ramp. Threads exit after TIMEOUT idle.
+ *
+ * Also keeps the number of jobs queued and how long they waited for each priority, for the
+ * statistics page.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	/** Default soft limit on threads for each priority. */
+	public static final int DEFAULT_MAX_THREADS = 64;
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+	/** If a job has been queued this long, start another thread even if over the limit. */
+	static final long STARVATION_TIME = 100;
+
+	private final Pool[] pools = new Pool[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreads;
+	private final AtomicBoolean monitorRunning = new AtomicBoolean();
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+	private static volatile boolean logMINOR;
+
+	public WorkStealingExecutor() {
+		this(DEFAULT_MAX_THREADS);
+	}
+
+	/** @param maxThreads Soft limit on the number of threads for each priority. */
+	public WorkStealingExecutor(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException();
+		this.maxThreads = maxThreads;
+		for(int i = 0; i < pools.length; i++)
+			pools[i] = new Pool(i + NativeThread.MIN_PRIORITY);
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	public void start() {
+		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Pool pool = pools[prio - NativeThread.MIN_PRIORITY];
+		Job job = new Job(runnable, jobName);
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).pool == pool)
+			((Worker) current).jobs.addLast(job);
+		else
+			pool.submitted.add(job);
+		pool.queued.incrementAndGet();
+		pool.signal(fromTicker);
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, pools[i].threads.get() - pools[i].idleCount.get());
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].idleCount.get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		int count = 0;
+		for(Pool pool : pools)
+			count += pool.idleCount.get();
+		return count;
+	}
+
+	/** @return The number of jobs waiting for a thread, for each priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, pools[i].queued.get());
+		return result;
+	}
+
+	/** @return The average time jobs have waited for a thread, in milliseconds, for each
+	 * priority, over the last few hundred jobs. */
+	public double[] averageWaitTimes() {
+		double[] result = new double[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].averageWait / 1000000.0;
+		return result;
+	}
+
+	/** @return The longest any job has waited for a thread, in milliseconds, for each
+	 * priority. */
+	public long[] maxWaitTimes() {
+		long[] result = new long[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].maxWait.get() / 1000000;
+		return result;
+	}
+
+	/** @return The number of jobs run, for each priority. */
+	public long[] jobsRun() {
+		long[] result = new long[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].started.get();
+		return result;
+	}
+
+	/** @return The number of jobs taken from another thread's deque. */
+	public long steals() {
+		long count = 0;
+		for(Pool pool : pools)
+			count += pool.steals.get();
+		return count;
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+		private final long queued = System.nanoTime();
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+		}
+	}
+
+	/** The threads and queues for one priority. */
+	private class Pool {
+		final int priority;
+		/** Jobs submitted from outside the pool. */
+		final ConcurrentLinkedQueue<Job> submitted = new ConcurrentLinkedQueue<Job>();
+		/** All live workers, to steal from. */
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Parked workers, most recently parked first. */
+		final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		/** Workers started or starting. */
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		final AtomicLong started = new AtomicLong();
+		final AtomicLong steals = new AtomicLong();
+		final AtomicLong maxWait = new AtomicLong();
+		/** Moving average of the wait time in nanoseconds. Updated without locking: losing the
+		 * odd sample doesn't matter. */
+		volatile long averageWait;
+
+		Pool(int priority) {
+			this.priority = priority;
+		}
+
+		/** A job has been queued: wake a worker, or start one if we are under the limit. */
+		void signal(boolean fromTicker) {
+			Worker worker = pollIdle();
+			if(worker != null) {
+				LockSupport.unpark(worker);
+				return;
+			}
+			while(true) {
+				int count = threads.get();
+				if(count >= maxThreads) {
+					startMonitor();
+					return;
+				}
+				if(threads.compareAndSet(count, count + 1)) break;
+			}
+			startWorker(fromTicker);
+		}
+
+		Worker pollIdle() {
+			Worker worker = idle.pollFirst();
+			if(worker != null) idleCount.decrementAndGet();
+			return worker;
+		}
+
+		/** Start a worker. The caller must have incremented threads already. */
+		void startWorker(boolean fromTicker) {
+			Ticker t = ticker;
+			if(t != null && (!fromTicker) && NativeThread.usingNativeCode() &&
+					priority > Thread.currentThread().getPriority()) {
+				// Get the ticker to create a thread for it with the right priority, since we can't.
+				t.queueTimedJob(new Runnable() {
+
+					@Override
+					public void run() {
+						newWorker(false).start();
+					}
+
+				}, "Start pooled thread for prio " + priority, 0, true, false);
+				return;
+			}
+			newWorker(!fromTicker).start();
+		}
+
+		private Worker newWorker(boolean dontCheckRenice) {
+			long threadNo = threadCounter.getAndIncrement();
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker worker = new Worker("Pooled thread awaiting work @" + threadNo + " for prio " + priority,
+					this, threadNo, dontCheckRenice);
+			worker.setDaemon(true);
+			workers.add(worker);
+			return worker;
+		}
+
+		/** @return A queued job, or null. Takes from the worker's own deque first, then the
+		 * shared queue, then the other workers. */
+		Job poll(Worker worker) {
+			Job job = worker.jobs.pollFirst();
+			if(job == null) job = submitted.poll();
+			if(job == null) {
+				Object[] others = workers.toArray();
+				if(others.length > 1) {
+					int offset = ThreadLocalRandom.current().nextInt(others.length);
+					for(int i = 0; i < others.length && job == null; i++) {
+						Worker other = (Worker) others[(i + offset) % others.length];
+						if(other == worker) continue;
+						job = other.jobs.pollFirst();
+						if(job != null) steals.incrementAndGet();
+					}
+				}
+			}
+			if(job != null) {
+				queued.decrementAndGet();
+				long wait = System.nanoTime() - job.queued;
+				started.incrementAndGet();
+				long avg = averageWait;
+				averageWait = avg + ((wait - avg) >> 8);
+				long max;
+				while(wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+					// Try again.
+				}
+			}
+			return job;
+		}
+
+		/** @return How long the oldest queued job has been waiting, in nanoseconds, or -1. */
+		long oldestWait(long now) {
+			long oldest = -1;
+			Job job = submitted.peek();
+			if(job != null) oldest = now - job.queued;
+			for(Worker worker : workers) {
+				job = worker.jobs.peekFirst();
+				if(job != null) oldest = Math.max(oldest, now - job.queued);
+			}
+			return oldest;
+		}
+
+		/** Called by the monitor. @return True if there are any jobs queued. */
+		boolean check(long now) {
+			if(queued.get() <= 0) return false;
+			Worker worker = pollIdle();
+			if(worker != null) {
+				// Shouldn't happen, but harmless.
+				LockSupport.unpark(worker);
+				return true;
+			}
+			if(oldestWait(now) >= MILLISECONDS.toNanos(STARVATION_TIME)) {
+				if(logMINOR)
+					Logger.minor(this, "Jobs starved at prio " + priority + ", adding thread " +
+							(threads.get() + 1));
+				threads.incrementAndGet();
+				startWorker(false);
+			}
+			return true;
+		}
+	}
+
+	private class Worker extends NativeThread {
+		final String defaultName;
+		final Pool pool;
+		final long threadNo;
+		/** Jobs submitted by jobs running on this thread. Taken oldest first by anyone. */
+		final ConcurrentLinkedDeque<Job> jobs = new ConcurrentLinkedDeque<Job>();
+
+		Worker(String defaultName, Pool pool, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, pool.priority, dontCheckRenice);
+			this.defaultName = defaultName;
+			this.pool = pool;
+			this.threadNo = threadNo;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			boolean exited = false;
+			try {
+				while(true) {
+					Job job = pool.poll(this);
+					if(job == null) {
+						job = waitForJob();
+						if(job == null) {
+							if(logMINOR)
+								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+							exited = true;
+							return;
+						}
+					}
+					// Run the job
+					try {
+						setName(job.name + "(" + threadNo + ")");
+						job.runnable.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running job " + job, t);
+					}
+					ranJobs++;
+				}
+			} finally {
+				if(!exited) pool.threads.decrementAndGet();
+				pool.workers.remove(this);
+				// Anything left over must be run by someone else. Only happens on an Error.
+				Job job;
+				while((job = jobs.pollFirst()) != null)
+					pool.submitted.add(job);
+			}
+		}
+
+		/** Park until there is a job. @return The job, or null if we have timed out and
+		 * should exit, in which case the thread count has been decremented. */
+		private Job waitForJob() {
+			setName(defaultName);
+			long deadline = System.nanoTime() + MILLISECONDS.toNanos(TIMEOUT);
+			while(true) {
+				pool.idle.addFirst(this);
+				pool.idleCount.incrementAndGet();
+				// A job queued before we were on the idle list wouldn't have woken us.
+				Job job = pool.poll(this);
+				if(job == null) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining > 0) LockSupport.parkNanos(this, remaining);
+				}
+				boolean signalled = true;
+				if(pool.idle.remove(this)) {
+					pool.idleCount.decrementAndGet();
+					signalled = false;
+				}
+				// Otherwise we were woken by signal(), which has already taken us off the list.
+				if(job == null) job = pool.poll(this);
+				if(job != null) {
+					// If we were woken for some other job, pass it on.
+					if(signalled && pool.queued.get() > 0) pool.signal(false);
+					return job;
+				}
+				if(System.nanoTime() - deadline >= 0) {
+					pool.threads.decrementAndGet();
+					// Don't leave a job stranded if it arrived while we were leaving.
+					if(pool.queued.get() > 0) pool.signal(false);
+					return null;
+				}
+			}
+		}
+	}
+
+	/** Start the monitor thread, if it isn't running. It stops when there is nothing left to
+	 * watch. */
+	private void startMonitor() {
+		if(!monitorRunning.compareAndSet(false, true)) return;
+		Thread monitor = new Thread("Executor starvation monitor") {
+
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(STARVATION_TIME / 2);
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					long now = System.nanoTime();
+					boolean busy = false;
+					for(Pool pool : pools)
+						if(pool.check(now)) busy = true;
+					if(!busy) {
+						monitorRunning.set(false);
+						// Re-check in case a job was queued as we were deciding to stop.
+						boolean again = false;
+						for(Pool pool : pools)
+							if(pool.queued.get() > 0) again = true;
+						if(!again || !monitorRunning.compareAndSet(false, true)) return;
+					}
+				}
+			}
+
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+}
@@ -0,0 +1,415 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+
+/**
+ * {@link Compressor} which splits the data into chunks and compresses each one separately with
+ * another codec, on all the cores. Compressing a big file with LZMA or bzip2 on one core takes
+ * hours; this is roughly as many times faster as there are cores, for a slightly worse ratio,
+ * since matches can't span chunks. Decompression is parallel too.
+ *
+ * Format, all big-endian: the metadata ID of the inner codec (short), the chunk size (int), then
+ * for each chunk its original length (int), its compressed length (int) and the output of the
+ * inner codec. Then an original length of 0 to mark the end. The chunk size is only a limit for
+ * decompression; all chunks but the last are normally that long.
+ *
+ * None of the memory used here goes through RealCompressor's accounting, so the chunks in flight
+ * are limited by one budget shared by every stream, sized from the heap.
+ */
+public class ChunkedCompressor implements Compressor {
+
+	/** As big as LZMA's dictionary and bigger than a bzip2 block, so bigger chunks would hardly
+	 * improve the ratio. */
+	public static final int DEFAULT_CHUNK_SIZE = 1024*1024;
+	/** Limits how much memory a hostile stream can make us allocate per chunk. */
+	static final int MAX_CHUNK_SIZE = DEFAULT_CHUNK_SIZE;
+	/** Incompressible data gets slightly bigger. */
+	static final int MAX_COMPRESSED_CHUNK_SIZE = MAX_CHUNK_SIZE * 2;
+
+	/** Bytes which the chunks in flight may use, between all streams. At least enough for one
+	 * chunk, so every stream can make progress however small the heap. */
+	static final int BUDGET = (int) Math.max(MAX_CHUNK_SIZE + MAX_COMPRESSED_CHUNK_SIZE,
+			Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16));
+	/** Taken before a chunk is submitted, and given back when it has been written out or
+	 * cancelled. */
+	static final Semaphore budget = new Semaphore(BUDGET);
+
+	private static ForkJoinPool pool;
+
+	/** Metadata ID of the codec for each chunk. */
+	private final short innerID;
+	private final int chunkSize;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ChunkedCompressor.class);
+	}
+
+	/** @param innerID The metadata ID of the codec to compress each chunk with. Looked up when
+	 * needed, as this is created along with the COMPRESSOR_TYPE's. */
+	ChunkedCompressor(short innerID, int chunkSize) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException();
+		this.innerID = innerID;
+		this.chunkSize = chunkSize;
+	}
+
+	private COMPRESSOR_TYPE getInner() throws IOException {
+		COMPRESSOR_TYPE inner = COMPRESSOR_TYPE.getCompressorByMetadataID(innerID);
+		if(inner == null || inner.compressor instanceof ChunkedCompressor)
+			throw new IOException("Unknown codec for chunks: "+innerID);
+		return inner;
+	}
+
+	/** Shared by all chunked streams, as the threads are idle most of the time. */
+	private static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+					new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					t.setName("Chunked compressor "+t.getPoolIndex());
+					// Background work, like the other compressor threads.
+					t.setPriority(Thread.MIN_PRIORITY);
+					t.setDaemon(true);
+					return t;
+				}
+
+			}, null, false);
+		}
+		return pool;
+	}
+
+	/** How many chunks one stream can have in flight: enough to keep every core busy while we
+	 * read and write. The budget limits how much memory they use. */
+	private static int maxInFlight() {
+		return getPool().getParallelism() * 2;
+	}
+
+	/** A chunk being worked on, and what it has taken from the budget. */
+	private static class Chunk {
+		final ForkJoinTask<byte[]> task;
+		/** Original length. */
+		final int length;
+		final int cost;
+
+		Chunk(ForkJoinTask<byte[]> task, int length, int cost) {
+			this.task = task;
+			this.length = length;
+			this.cost = cost;
+		}
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+			// It is essential that the close()'s throw if there is any problem.
+			is.close(); is = null;
+			os.close(); os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		COMPRESSOR_TYPE inner = getInner();
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeShort(innerID);
+		dos.writeInt(chunkSize);
+		long written = 6;
+		long read = 0;
+		ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+		try {
+			while(true) {
+				int length = (int) Math.min(chunkSize, maxReadLength - read);
+				byte[] chunk = length == 0 ? null : readChunk(is, length);
+				if(chunk != null) {
+					read += chunk.length;
+					// The chunk and its compressed copy.
+					int cost = chunk.length * 2;
+					// Write out our own chunks until there is room, so that we never wait for
+					// memory while holding some.
+					while(!budget.tryAcquire(cost)) {
+						if(inFlight.isEmpty()) {
+							budget.acquireUninterruptibly(cost);
+							break;
+						}
+						written = writeChunk(dos, inFlight.remove(), written, maxWriteLength);
+					}
+					boolean submitted = false;
+					try {
+						inFlight.add(new Chunk(getPool().submit(new CompressChunk(inner, chunk)), chunk.length, cost));
+						submitted = true;
+					} finally {
+						if(!submitted) budget.release(cost);
+					}
+				}
+				// Write out what's done, and wait if too much is in flight.
+				while(!inFlight.isEmpty() &&
+						(chunk == null || inFlight.size() >= maxInFlight() || inFlight.peek().task.isDone()))
+					written = writeChunk(dos, inFlight.remove(), written, maxWriteLength);
+				if(chunk == null) break;
+			}
+			dos.writeInt(0);
+			written += 4;
+			dos.flush();
+			if(written > maxWriteLength)
+				throw new CompressionOutputSizeException();
+			if(logMINOR) Logger.minor(this, "Read "+read+" written "+written);
+			return written;
+		} finally {
+			cancel(inFlight);
+		}
+	}
+
+	/** Write out a compressed chunk, once it's done.
+	 * @return The number of bytes written so far. */
+	private static long writeChunk(DataOutputStream dos, Chunk chunk, long written, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		byte[] compressed = join(chunk);
+		dos.writeInt(chunk.length);
+		dos.writeInt(compressed.length);
+		dos.write(compressed);
+		written += 8 + compressed.length;
+		if(written > maxWriteLength)
+			throw new CompressionOutputSizeException();
+		return written;
+	}
+
+	/** @return A chunk of up to length bytes, or null at the end of the stream. */
+	private static byte[] readChunk(InputStream is, int length) throws IOException {
+		byte[] buf = new byte[length];
+		int read = 0;
+		while(read < length) {
+			int x = is.read(buf, read, length - read);
+			if(x < 0) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			read += x;
+		}
+		if(read == 0) return null;
+		if(read == length) return buf;
+		byte[] chunk = new byte[read];
+		System.arraycopy(buf, 0, chunk, 0, read);
+		return chunk;
+	}
+
+	/** Waits for a chunk, gives back its memory, and rethrows whatever went wrong with it. */
+	private static byte[] join(Chunk chunk) throws IOException {
+		try {
+			return chunk.task.join();
+		} catch (WrappedIOException e) {
+			throw e.e;
+		} finally {
+			budget.release(chunk.cost);
+		}
+	}
+
+	/** Cancel the chunks we won't write out, and give back their memory. One that has already
+	 * started will finish in the background. */
+	private static void cancel(ArrayDeque<Chunk> inFlight) {
+		for(Chunk chunk : inFlight) {
+			chunk.task.cancel(false);
+			budget.release(chunk.cost);
+		}
+		inFlight.clear();
+	}
+
+	/** IOException's are checked, so they have to be wrapped to get out of a ForkJoinTask. */
+	private static class WrappedIOException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final IOException e;
+		WrappedIOException(IOException e) {
+			super(e);
+			this.e = e;
+		}
+	}
+
+	private static class CompressChunk extends RecursiveTask<byte[]> {
+
+		private static final long serialVersionUID = 1L;
+		private final Compressor codec;
+		private final byte[] chunk;
+
+		CompressChunk(Compressor codec, byte[] chunk) {
+			this.codec = codec;
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected byte[] compute() {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.length / 2);
+			try {
+				codec.compress(new ByteArrayInputStream(chunk), baos, chunk.length, Long.MAX_VALUE);
+			} catch (IOException e) {
+				throw new WrappedIOException(e);
+			}
+			return baos.toByteArray();
+		}
+
+	}
+
+	private static class DecompressChunk extends RecursiveTask<byte[]> {
+
+		private static final long serialVersionUID = 1L;
+		private final Compressor codec;
+		private final byte[] compressed;
+		private final int length;
+
+		DecompressChunk(Compressor codec, byte[] compressed, int length) {
+			this.codec = codec;
+			this.compressed = compressed;
+			this.length = length;
+		}
+
+		@Override
+		protected byte[] compute() {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+			try {
+				codec.decompress(new ByteArrayInputStream(compressed), baos, length, -1);
+			} catch (IOException e) {
+				// Including CompressionOutputSizeException: the chunk is longer than it says.
+				throw new WrappedIOException(new IOException("Chunk is corrupt: "+e, e));
+			}
+			if(baos.size() != length)
+				throw new WrappedIOException(new IOException("Chunk should be "+length+" bytes but is "+baos.size()));
+			return baos.toByteArray();
+		}
+
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+		try {
+			short codecID = dis.readShort();
+			COMPRESSOR_TYPE codec = COMPRESSOR_TYPE.getCompressorByMetadataID(codecID);
+			if(codec == null || codec.compressor instanceof ChunkedCompressor)
+				throw new IOException("Unknown codec for chunks: "+codecID);
+			int maxChunkSize = dis.readInt();
+			if(maxChunkSize <= 0 || maxChunkSize > MAX_CHUNK_SIZE)
+				throw new IOException("Bad chunk size "+maxChunkSize);
+			long total = 0;
+			long written = 0;
+			while(true) {
+				int length = dis.readInt();
+				if(length < 0 || length > maxChunkSize)
+					throw new IOException("Bad chunk length "+length);
+				if(length > 0) {
+					int compressedLength = dis.readInt();
+					if(compressedLength <= 0 || compressedLength > MAX_COMPRESSED_CHUNK_SIZE)
+						throw new IOException("Bad compressed chunk length "+compressedLength);
+					total += length;
+					if(total > maxLength) {
+						// The lengths tell us how big it is without decompressing anything.
+						if(maxCheckSizeBytes > 0)
+							throw new CompressionOutputSizeException(estimateSize(dis, total, compressedLength, maxLength + maxCheckSizeBytes));
+						throw new CompressionOutputSizeException();
+					}
+					// Taken before allocating anything, as the lengths may be hostile.
+					int cost = compressedLength + length;
+					while(!budget.tryAcquire(cost)) {
+						if(inFlight.isEmpty()) {
+							budget.acquireUninterruptibly(cost);
+							break;
+						}
+						written += writeChunk(os, inFlight.remove());
+					}
+					boolean submitted = false;
+					try {
+						byte[] compressed = new byte[compressedLength];
+						dis.readFully(compressed);
+						inFlight.add(new Chunk(getPool().submit(new DecompressChunk(codec, compressed, length)), length, cost));
+						submitted = true;
+					} finally {
+						if(!submitted) budget.release(cost);
+					}
+				}
+				while(!inFlight.isEmpty() &&
+						(length == 0 || inFlight.size() >= maxInFlight() || inFlight.peek().task.isDone()))
+					written += writeChunk(os, inFlight.remove());
+				if(length == 0) return written;
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated chunked stream", e);
+		} finally {
+			cancel(inFlight);
+		}
+	}
+
+	/** Write out a decompressed chunk, once it's done.
+	 * @return Its length. */
+	private static int writeChunk(OutputStream os, Chunk chunk) throws IOException {
+		byte[] data = join(chunk);
+		os.write(data);
+		return data.length;
+	}
+
+	/** Skip the rest of the chunks, adding up their lengths, up to maxSize. */
+	private static long estimateSize(DataInputStream dis, long total, int compressedLength, long maxSize) throws IOException {
+		try {
+			dis.skipBytes(compressedLength);
+			while(total <= maxSize) {
+				int length = dis.readInt();
+				if(length <= 0) break;
+				total += length;
+				dis.skipBytes(dis.readInt());
+			}
+		} catch (EOFException e) {
+			// Use what we have.
+		}
+		return total;
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+}
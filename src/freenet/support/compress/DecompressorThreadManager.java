@@ -5,6 +5,8 @@ package freenet.support.compress;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.TimeUtil;
 
@@ -13,8 +15,6 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.List;
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -22,20 +22,28 @@ import java.util.Queue;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+import freenet.support.io.RingBufferPipe;
 
 /** Creates and manages decompressor threads. This class is 
  * given all decompressors which should be applied to an
  * InputStream via addDecompressor. The decompressors will be
  * strung together and executed when the execute method is called.
+ * Each one runs on a pooled thread, and passes its output to the
+ * next through a {@link RingBufferPipe}.
  * This class also stores any errors which may arise.
  * @author sajack
 */
 public class DecompressorThreadManager {
 
+	/** Default size of the buffer between each stage of a fetch's post-processing. */
+	public static final int DEFAULT_BUFFER_SIZE = 256*1024;
+	private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
 	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	InputStream input;
 	final long maxLen;
+	private final Executor executor;
 	private boolean finished = false;
 	private Throwable error = null;
 
@@ -52,10 +60,12 @@ public class DecompressorThreadManager {
 	/** Creates a new DecompressorThreadManager
 	 * @param inputStream The stream that will be decompressed, if compressed
 	 * @param maxLen The maximum number of bytes to extract
+	 * @param executor Runs the decompressors. If null, each gets a new thread.
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+	public DecompressorThreadManager(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen, Executor executor) throws IOException {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
 		this.maxLen = maxLen;
+		this.executor = executor;
 		if(inputStream == null) {
 			IOException e = new IOException("Input stream may not be null");
 			onFailure(e);
@@ -65,18 +75,29 @@ public class DecompressorThreadManager {
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
+			RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+			DecompressorThread thread = new DecompressorThread(compressor, this, input, pipe.getOutputStream(), maxLen);
 			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			input = pipe.getInputStream();
 		}
 	}
 
+	/** @return The size of the buffer to use between each stage of a fetch's post-processing:
+	 * writing the data, decompressing it, and filtering it. */
+	public static int getBufferSize() {
+		return bufferSize;
+	}
+
+	public static void setBufferSize(int size) {
+		if(size <= 0) throw new IllegalArgumentException();
+		bufferSize = size;
+	}
+
 	/** Creates and executes a new thread for each decompressor,
 	 * chaining the output of the previous to the next.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute() throws Throwable {
 		if(error != null) throw error;
 		if(threads.isEmpty()) {
 			onFinish();
@@ -88,17 +109,18 @@ public class DecompressorThreadManager {
 				if(getError() != null) throw getError();
 				DecompressorThread threadRunnable = threads.remove();
 				if(threads.isEmpty()) threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
-				t.start();
-				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
+				if(executor != null) {
+					executor.execute(threadRunnable, "DecompressorThread"+count);
+				} else {
+					Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
+					t.start();
+				}
+				if(logMINOR) Logger.minor(this, "Started decompressor "+count);
 				count++;
 			}
-			output.close();
 		} catch(Throwable t) {
 			onFailure(t);
 			throw t;
-		} finally {
-			Closer.close(output);
 		}
 		return input;
 		
@@ -151,7 +173,7 @@ public class DecompressorThreadManager {
 	 * <code>DecompressorThreadManager</code>
 	 * @author sajack
 	 */
-	class DecompressorThread implements Runnable {
+	class DecompressorThread implements PrioRunnable {
 
 		/**The compressor whose decompress method will be invoked*/
 		final Compressor compressor;
@@ -166,7 +188,7 @@ public class DecompressorThreadManager {
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, OutputStream output, long maxLen) {
 			this.compressor = compressor;
 			this.input = new BufferedInputStream(input);
 			this.output = new BufferedOutputStream(output);
@@ -202,5 +224,10 @@ public class DecompressorThreadManager {
 		public void setLast() {
 			isLast = true;
 		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,399 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Compresses the same data with several codecs at once, and picks the best output the same way
+ * as trying them one after another would. The data is only read once: the caller's thread reads
+ * it and hands each chunk to every codec, each of which runs on its own thread.
+ *
+ * The codecs are tried in order of preference. Each one is skipped if it writes more than the
+ * best output so far. Otherwise it is chosen, and the rest are not tried, if its output is no
+ * bigger than minSize, or else it is chosen if it takes up fewer blocks than the best so far. As
+ * codecs finish, this is applied to the ones before the first still running. Since the best so
+ * far can only get smaller, any codec that writes more than it can be cancelled, and once a codec
+ * is chosen under minSize, the rest are.
+ */
+public class MultiCodecCompressor {
+
+	private static final int CHUNK_SIZE = 32768;
+	/** Chunks queued for each codec. The slowest codec holds up the reader. */
+	private static final int QUEUE_CHUNKS = 32;
+	/** Codecs may write a few bytes they don't count against maxWriteLength, e.g. LZMA's
+	 * properties, so allow for that before cancelling them. */
+	private static final int UNCOUNTED_BYTES = 16;
+	private static final byte[] EOF = new byte[0];
+
+	private final COMPRESSOR_TYPE[] codecs;
+	private final BucketFactory bf;
+	private final Executor executor;
+	private final long minSize;
+	private final long blockSize;
+
+	private final boolean[] finished;
+	/** Output of each codec, until it has been compared with the best so far. */
+	private final RandomAccessBucket[] results;
+	/** What each codec would compare to maxWriteLength. */
+	private final long[] written;
+	private final CodecInputStream[] inputs;
+	/** The first codec whose output hasn't been compared with the best so far. */
+	private int nextToCompare;
+	private long bestSize;
+	private long bestBlocks;
+	private int bestCodec = -1;
+	private RandomAccessBucket bestData;
+	/** A codec got under minSize, so we don't need the rest. */
+	private boolean chosen;
+	private IOException failure;
+	/** The best size so far, for the codecs that are still running to check against. */
+	private volatile long limit;
+	private boolean used;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(MultiCodecCompressor.class);
+	}
+
+	/**
+	 * @param codecs The codecs to try, in order of preference.
+	 * @param bf Used to create the buckets for the output.
+	 * @param executor Runs the codecs.
+	 * @param minSize If a codec gets the data down to this, don't bother with the ones after it.
+	 * @param blockSize The size of a block, for deciding whether output is smaller.
+	 */
+	public MultiCodecCompressor(COMPRESSOR_TYPE[] codecs, BucketFactory bf, Executor executor, long minSize, long blockSize) {
+		this.codecs = codecs.clone();
+		this.bf = bf;
+		this.executor = executor;
+		this.minSize = minSize;
+		this.blockSize = blockSize;
+		finished = new boolean[codecs.length];
+		results = new RandomAccessBucket[codecs.length];
+		written = new long[codecs.length];
+		inputs = new CodecInputStream[codecs.length];
+	}
+
+	/**
+	 * Compress the data with all the codecs, and pick the best. Can only be called once.
+	 * @param is The data. Will not be closed. Not read to the end if all the codecs are
+	 * cancelled first.
+	 * @param origSize The length of the data.
+	 * @return The index of the chosen codec, or -1 if none of them made the data any smaller.
+	 * @throws IOException If reading the data, or writing the output of any codec, failed. All
+	 * output is freed.
+	 */
+	public int compress(InputStream is, long origSize) throws IOException {
+		synchronized(this) {
+			if(used) throw new IllegalStateException("Already used");
+			used = true;
+			bestSize = origSize;
+			bestBlocks = origSize / blockSize;
+			limit = origSize;
+			for(int i=0;i<codecs.length;i++)
+				inputs[i] = new CodecInputStream();
+		}
+		final CountDownLatch done = new CountDownLatch(codecs.length);
+		for(int i=0;i<codecs.length;i++)
+			executor.execute(new CodecJob(i, origSize, done), "Compress with "+codecs[i]);
+		boolean success = false;
+		try {
+			byte[] buf = new byte[CHUNK_SIZE];
+			long read = 0;
+			while(read < origSize) {
+				int x = is.read(buf, 0, (int) Math.min(buf.length, origSize - read));
+				if(x < 0) break;
+				if(x == 0) continue;
+				read += x;
+				byte[] chunk = new byte[x];
+				System.arraycopy(buf, 0, chunk, 0, x);
+				if(!feed(chunk)) break; // Nobody left.
+			}
+			feed(EOF);
+			success = true;
+		} finally {
+			if(!success) {
+				for(int i=0;i<codecs.length;i++)
+					inputs[i].cancel();
+			}
+			boolean interrupted = false;
+			while(true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					// Can't leave the codecs writing to buckets we're about to free.
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(!success) freeAll();
+		}
+		synchronized(this) {
+			if(failure != null) {
+				freeAll();
+				throw failure;
+			}
+			return bestCodec;
+		}
+	}
+
+	/** @return The output of the chosen codec, or null. Caller must free it. */
+	public synchronized RandomAccessBucket getBestData() {
+		return bestData;
+	}
+
+	private synchronized void freeAll() {
+		for(int i=0;i<codecs.length;i++) {
+			if(results[i] != null) results[i].free();
+			results[i] = null;
+		}
+		if(bestData != null) bestData.free();
+		bestData = null;
+		bestCodec = -1;
+	}
+
+	/** Give a chunk to every codec still running.
+	 * @return False if they have all finished or been cancelled. */
+	private boolean feed(byte[] chunk) {
+		boolean any = false;
+		for(int i=0;i<codecs.length;i++) {
+			if(inputs[i].offer(chunk)) any = true;
+		}
+		return any;
+	}
+
+	/**
+	 * A codec finished.
+	 * @param result Its output, or null if it failed or was cancelled.
+	 * @param count What it would compare to maxWriteLength.
+	 * @param e Set if the output couldn't be written.
+	 */
+	private synchronized void onFinished(int codec, RandomAccessBucket result, long count, IOException e) {
+		finished[codec] = true;
+		results[codec] = result;
+		written[codec] = count;
+		if(e != null && failure == null) {
+			failure = e;
+			for(int i=0;i<codecs.length;i++)
+				inputs[i].cancel();
+		}
+		while(nextToCompare < codecs.length && finished[nextToCompare])
+			compare(nextToCompare++);
+		if(chosen) {
+			for(int i=nextToCompare;i<codecs.length;i++)
+				inputs[i].cancel();
+		}
+		limit = bestSize;
+	}
+
+	/** The same comparison InsertCompressor does after trying each codec. */
+	private void compare(int codec) {
+		RandomAccessBucket result = results[codec];
+		results[codec] = null;
+		if(result == null) return;
+		if(chosen || written[codec] > bestSize) {
+			if(logMINOR) Logger.minor(this, codecs[codec]+" can't beat the best so far");
+			result.free();
+			return;
+		}
+		long resultSize = result.size();
+		long resultBlocks = resultSize / blockSize;
+		if(resultSize <= minSize) {
+			if(logMINOR) Logger.minor(this, "New size "+resultSize+" smaller then minSize "+minSize);
+			chosen = true;
+		} else if(resultBlocks < bestBlocks) {
+			if(logMINOR) Logger.minor(this, "New size "+resultSize+" ("+resultBlocks+" blocks) better than old best "+bestSize+" ("+bestBlocks+" blocks)");
+		} else {
+			result.free();
+			return;
+		}
+		if(bestData != null) bestData.free();
+		bestData = result;
+		bestCodec = codec;
+		bestSize = resultSize;
+		bestBlocks = resultBlocks;
+	}
+
+	private class CodecJob implements PrioRunnable {
+
+		private final int codec;
+		private final long origSize;
+		private final CountDownLatch done;
+
+		CodecJob(int codec, long origSize, CountDownLatch done) {
+			this.codec = codec;
+			this.origSize = origSize;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			RandomAccessBucket result = null;
+			long count = -1;
+			IOException failed = null;
+			OutputStream os = null;
+			try {
+				result = bf.makeBucket(-1);
+				os = new LimitedOutputStream(result.getOutputStream(), inputs[codec]);
+				count = codecs[codec].compress(inputs[codec], os, origSize, Long.MAX_VALUE);
+				os.close();
+				os = null;
+			} catch (CancelledException e) {
+				if(logMINOR) Logger.minor(this, codecs[codec]+" cancelled");
+				count = -1;
+			} catch (CompressionOutputSizeException e) {
+				count = -1;
+			} catch (IOException e) {
+				Logger.error(this, "Compression failed with codec "+codecs[codec]+" : "+e, e);
+				failed = e;
+				count = -1;
+			} catch (Throwable t) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+codecs[codec]+" : "+t, t);
+				count = -1;
+			} finally {
+				Closer.close(os);
+				inputs[codec].cancel(); // Don't feed us any more.
+				if(count < 0 && result != null) {
+					result.free();
+					result = null;
+				}
+				onFinished(codec, result, count, failed);
+				done.countDown();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+	}
+
+	private static class CancelledException extends IOException {
+		private static final long serialVersionUID = 1L;
+		CancelledException() {
+			super("Cancelled");
+		}
+	}
+
+	/** Throws once the codec has been cancelled, or is sure to be skipped. */
+	private class LimitedOutputStream extends OutputStream {
+
+		private final OutputStream os;
+		private final CodecInputStream input;
+		private long count;
+
+		LimitedOutputStream(OutputStream os, CodecInputStream input) {
+			this.os = os;
+			this.input = input;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+			check();
+			os.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			count += length;
+			check();
+			os.write(buf, offset, length);
+		}
+
+		private void check() throws IOException {
+			if(input.cancelled || count > limit + UNCOUNTED_BYTES)
+				throw new CancelledException();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			os.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			os.close();
+		}
+
+	}
+
+	/** The chunks for one codec. */
+	private static class CodecInputStream extends InputStream {
+
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CHUNKS);
+		private byte[] current;
+		private int offset;
+		volatile boolean cancelled;
+
+		/** Called by the reader. Blocks if the codec is behind.
+		 * @return False if the codec doesn't want any more data. */
+		boolean offer(byte[] chunk) {
+			try {
+				while(!cancelled) {
+					if(queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) return true;
+				}
+			} catch (InterruptedException e) {
+				cancel();
+			}
+			return false;
+		}
+
+		void cancel() {
+			cancelled = true;
+			// Wake up the codec if it is waiting.
+			queue.clear();
+			queue.offer(EOF);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int length) throws IOException {
+			if(length == 0) return 0;
+			while(current == null || offset == current.length) {
+				if(cancelled) throw new CancelledException();
+				if(current == EOF) return -1;
+				try {
+					current = queue.take();
+				} catch (InterruptedException e) {
+					throw new CancelledException();
+				}
+				offset = 0;
+			}
+			if(cancelled) throw new CancelledException();
+			int x = Math.min(length, current.length - offset);
+			System.arraycopy(current, offset, buf, off, x);
+			offset += x;
+			return x;
+		}
+
+	}
+
+}
@@ -7,6 +7,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 
 import freenet.client.InsertException;
@@ -19,6 +20,9 @@ import freenet.support.io.NativeThread;
 public class RealCompressor {
     private final ExecutorService executorService;
     private ClientContext context;
+    /** Extra codecs that may run alongside the compressor threads, one per 128MB of RAM left
+     * over once each compressor thread has had its own. */
+    private final Semaphore codecSlots;
 
     private static volatile boolean logMINOR;
     static {
@@ -26,8 +30,23 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
+        int threads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(threads,
                                                             new CompressorThreadFactory());
+        this.codecSlots = new Semaphore(Math.max(0, getMaxRunningCodecs() - threads));
+    }
+
+    /**
+     * Reserve memory for running some codecs on other threads while a compression job runs.
+     * @return True if the caller may run that many extra codecs and must call
+     * releaseCodecSlots() afterwards, false if it must make do with its own thread.
+     */
+    public boolean tryAcquireCodecSlots(int count) {
+        return codecSlots.tryAcquire(count);
+    }
+
+    public void releaseCodecSlots(int count) {
+        codecSlots.release(count);
     }
 
     public void setClientContext(ClientContext context) {
@@ -104,6 +123,12 @@ public class RealCompressor {
         return maxRunningThreads;
     }
 
+    /** One codec per 128MB of RAM, however many cores there are. */
+    private static int getMaxRunningCodecs() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxMemory / (128 * 1024 * 1024)));
+    }
+
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
@@ -0,0 +1,257 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A bucket that stores data in pages of direct memory from a DirectMemoryArena, rather than on
+ * the heap like ArrayBucket. The pages go back to the arena when it is freed. Used by
+ * TempBucketFactory, which calls reserve() before writing and migrates the bucket to disk if
+ * there are no pages left.
+ */
+public class ArenaBucket implements RandomAccessBucket {
+
+	private final DirectMemoryArena arena;
+	private final int pageSize;
+	private ByteBuffer[] pages = new ByteBuffer[4];
+	private int pageCount;
+	private long size;
+	private boolean readOnly;
+	private boolean freed;
+
+	public ArenaBucket(DirectMemoryArena arena) {
+		this.arena = arena;
+		this.pageSize = arena.getPageSize();
+	}
+
+	/**
+	 * Make sure there are enough pages to hold the given number of bytes.
+	 * @return False if the arena ran out of pages. The bucket is unchanged apart from possibly
+	 * holding some more pages.
+	 */
+	public synchronized boolean reserve(long bytes) {
+		if(freed) return false;
+		long needed = (bytes + pageSize - 1) / pageSize;
+		if(needed > Integer.MAX_VALUE) return false;
+		while(pageCount < needed) {
+			ByteBuffer page = arena.allocate();
+			if(page == null) return false;
+			if(pageCount == pages.length)
+				pages = Arrays.copyOf(pages, pages.length * 2);
+			pages[pageCount++] = page;
+		}
+		return true;
+	}
+
+	private synchronized void append(byte[] buf, int offset, int length) throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(readOnly) throw new IOException("Read only");
+		if(!reserve(size + length))
+			throw new IOException("Out of direct memory for temp buckets");
+		while(length > 0) {
+			ByteBuffer page = pages[(int) (size / pageSize)];
+			int pageOffset = (int) (size % pageSize);
+			int toCopy = Math.min(length, pageSize - pageOffset);
+			page.position(pageOffset);
+			page.put(buf, offset, toCopy);
+			offset += toCopy;
+			length -= toCopy;
+			size += toCopy;
+			arena.stored(toCopy);
+		}
+	}
+
+	/** @return The number of bytes read, or -1 if pos is at the end. */
+	private synchronized int read(long pos, byte[] buf, int offset, int length) throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(pos >= size) return -1;
+		length = (int) Math.min(length, size - pos);
+		int read = 0;
+		while(read < length) {
+			ByteBuffer page = pages[(int) (pos / pageSize)];
+			int pageOffset = (int) (pos % pageSize);
+			int toCopy = Math.min(length - read, pageSize - pageOffset);
+			page.position(pageOffset);
+			page.get(buf, offset + read, toCopy);
+			read += toCopy;
+			pos += toCopy;
+		}
+		return read;
+	}
+
+	/**
+	 * Write the first length bytes to an OutputStream. If it is a file, the pages are written
+	 * directly from direct memory, without copying them onto the heap first.
+	 */
+	public synchronized void copyTo(OutputStream os, long length) throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(length > size) throw new IllegalArgumentException("Only have "+size+" bytes, not "+length);
+		if(os instanceof FileOutputStream) {
+			FileChannel channel = ((FileOutputStream) os).getChannel();
+			for(int i=0;length > 0;i++) {
+				ByteBuffer page = pages[i].duplicate();
+				page.clear();
+				page.limit((int) Math.min(length, pageSize));
+				length -= page.remaining();
+				while(page.hasRemaining())
+					channel.write(page);
+			}
+		} else {
+			byte[] buf = new byte[(int) Math.min(length, pageSize)];
+			long pos = 0;
+			while(pos < length) {
+				int read = read(pos, buf, 0, (int) Math.min(buf.length, length - pos));
+				os.write(buf, 0, read);
+				pos += read;
+			}
+		}
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(readOnly) throw new IOException("Read only");
+		// Like ArrayBucket, writing again replaces the contents.
+		arena.stored(-size);
+		size = 0;
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				append(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buf, int offset, int length) throws IOException {
+				append(buf, offset, length);
+			}
+
+		};
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return getOutputStreamUnbuffered();
+	}
+
+	@Override
+	public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		return new InputStream() {
+
+			private long pos;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int read = read(b, 0, 1);
+				return read <= 0 ? -1 : (b[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				int read = ArenaBucket.this.read(pos, buf, offset, length);
+				if(read > 0) pos += read;
+				return read;
+			}
+
+			@Override
+			public long skip(long n) {
+				if(n <= 0) return 0;
+				long skipped = Math.min(n, Math.max(0, size() - pos));
+				pos += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size() - pos));
+			}
+
+		};
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getInputStreamUnbuffered();
+	}
+
+	@Override
+	public String getName() {
+		return "ArenaBucket";
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	public synchronized void free() {
+		if(freed) return;
+		freed = true;
+		arena.stored(-size);
+		arena.free(pages, pageCount);
+		pages = null;
+		pageCount = 0;
+		size = 0;
+	}
+
+	/** @return The number of pages held, for tests. */
+	synchronized int getPageCount() {
+		return pageCount;
+	}
+
+	@Override
+	public RandomAccessBucket createShadow() {
+		return null;
+	}
+
+	@Override
+	public void onResume(ClientContext context) {
+		// Do nothing.
+	}
+
+	@Override
+	public void storeTo(DataOutputStream dos) {
+		// Should not be used for persistent requests.
+		throw new UnsupportedOperationException();
+	}
+
+	/** Copies the data onto the heap, because TempBucketFactory's in-RAM RandomAccessBuffer's are
+	 * ByteArrayRandomAccessBuffer's, and frees the pages. The size is unchanged so the RAM
+	 * accounting is the same either way. */
+	@Override
+	public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		byte[] buf = new byte[(int) size];
+		read(0, buf, 0, buf.length);
+		free();
+		return new ByteArrayRandomAccessBuffer(buf, 0, buf.length, true);
+	}
+
+}
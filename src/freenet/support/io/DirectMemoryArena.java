@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import freenet.support.Logger;
+
+/**
+ * A pool of fixed size pages of direct (off-heap) memory, for in-RAM temp buckets. Memory is
+ * allocated from the JVM in large slabs, which are split into pages. Freed pages go back on a
+ * free list and are reused; slabs are never given back, so after a burst of activity the memory
+ * stays allocated but does not add to the garbage collector's work.
+ *
+ * The capacity limits how many pages can be in use at once. It is normally the same as the
+ * TempBucketFactory's RAM limit, which is what decides when buckets move to disk; the arena
+ * refusing a page is a backstop.
+ */
+public class DirectMemoryArena {
+
+	public static final int DEFAULT_PAGE_SIZE = 8192;
+	public static final int DEFAULT_SLAB_SIZE = 1024*1024;
+
+	private final int pageSize;
+	private final int pagesPerSlab;
+	/** The most pages which may be in use at once. */
+	private int maxPages;
+	/** Pages which have been allocated from a slab but are not in use. */
+	private final ArrayDeque<ByteBuffer> freePages = new ArrayDeque<ByteBuffer>();
+	private int slabs;
+	private int pagesInUse;
+	/** Bytes actually stored in the pages in use, as reported by their users. */
+	private long bytesStored;
+	/** Times we couldn't hand out a page, because of the limit or because the JVM refused. */
+	private long failures;
+
+	public DirectMemoryArena(long capacity) {
+		this(capacity, DEFAULT_PAGE_SIZE, DEFAULT_SLAB_SIZE);
+	}
+
+	public DirectMemoryArena(long capacity, int pageSize, int slabSize) {
+		if(pageSize <= 0 || slabSize < pageSize || slabSize % pageSize != 0)
+			throw new IllegalArgumentException("Bad page size "+pageSize+" or slab size "+slabSize);
+		this.pageSize = pageSize;
+		this.pagesPerSlab = slabSize / pageSize;
+		setCapacity(capacity);
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/** Change the limit. Pages already in use are not affected. */
+	public synchronized void setCapacity(long capacity) {
+		maxPages = (int) Math.min(Integer.MAX_VALUE, Math.max(0, capacity / pageSize));
+	}
+
+	public synchronized long getCapacity() {
+		return (long) maxPages * pageSize;
+	}
+
+	/**
+	 * Take a page from the pool. The page is cleared: position 0, limit and capacity the page size.
+	 * Its contents are whatever was last written to it.
+	 * @return The page, or null if the arena is full.
+	 */
+	public synchronized ByteBuffer allocate() {
+		if(pagesInUse >= maxPages) {
+			failures++;
+			return null;
+		}
+		ByteBuffer page = freePages.pollFirst();
+		if(page == null) {
+			if(!allocateSlab()) {
+				failures++;
+				return null;
+			}
+			page = freePages.pollFirst();
+		}
+		pagesInUse++;
+		page.clear();
+		return page;
+	}
+
+	private boolean allocateSlab() {
+		ByteBuffer slab;
+		try {
+			slab = ByteBuffer.allocateDirect(pagesPerSlab * pageSize);
+		} catch (OutOfMemoryError e) {
+			// Direct memory is limited separately from the heap, by -XX:MaxDirectMemorySize.
+			Logger.error(this, "Unable to allocate direct memory for temp buckets, "+slabs+" slabs allocated so far: "+e);
+			return false;
+		}
+		for(int i=0;i<pagesPerSlab;i++) {
+			slab.limit((i+1) * pageSize);
+			slab.position(i * pageSize);
+			freePages.addLast(slab.slice());
+		}
+		slabs++;
+		return true;
+	}
+
+	/** Return pages to the pool. They must not be used afterwards. */
+	public synchronized void free(ByteBuffer[] pages, int count) {
+		for(int i=0;i<count;i++)
+			// Most recently used first, it is more likely to be in the CPU cache.
+			freePages.addFirst(pages[i]);
+		pagesInUse -= count;
+		assert(pagesInUse >= 0);
+	}
+
+	/** The users of the pages report how much they have stored, so we can measure fragmentation. */
+	synchronized void stored(long delta) {
+		bytesStored += delta;
+	}
+
+	public synchronized int getSlabs() {
+		return slabs;
+	}
+
+	/** @return The direct memory allocated, whether in use or not. */
+	public synchronized long getBytesAllocated() {
+		return (long) slabs * pagesPerSlab * pageSize;
+	}
+
+	public synchronized long getBytesInUse() {
+		return (long) pagesInUse * pageSize;
+	}
+
+	public synchronized long getBytesStored() {
+		return bytesStored;
+	}
+
+	public synchronized int getFreePages() {
+		return freePages.size();
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/** @return The fraction of the pages in use which is wasted because buckets don't fill their
+	 * last page. */
+	public synchronized double getFragmentation() {
+		if(pagesInUse == 0) return 0.0;
+		long inUse = (long) pagesInUse * pageSize;
+		return (double) (inUse - bytesStored) / inUse;
+	}
+
+	/** @return The fraction of the allocated direct memory which is in use. */
+	public synchronized double getOccupancy() {
+		if(slabs == 0) return 0.0;
+		return (double) pagesInUse / (slabs * pagesPerSlab);
+	}
+
+}
@@ -2,11 +2,19 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Iterator;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.LinkedHashSet;
 import java.util.Random;
 
@@ -19,6 +27,11 @@ import freenet.support.api.LockableRandomAccessBuffer;
  * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
  * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ... 
  * 
+ * Reads and writes use positional I/O on the FileChannel, so any number of threads can read and
+ * write the same file at once. The pool size is set from the process's file descriptor limit,
+ * and when a file has to be closed we prefer one which is used less often. Read-only files may
+ * optionally be memory mapped, after which reading them doesn't need a file descriptor at all.
+ * 
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
 public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
     
@@ -32,7 +45,12 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     static class FDTracker {
         private int maxOpenFDs;
         private int totalOpenFDs = 0;
+        /** Open but not locked, least recently used first. */
         private final LinkedHashSet<PooledFileRandomAccessBuffer> closables = new LinkedHashSet<PooledFileRandomAccessBuffer>();
+        /** Number of times we have opened a file. */
+        private long opens;
+        /** If true, map read-only files into memory. */
+        private volatile boolean mapReadOnly;
         FDTracker(int maxOpenFDs) {
             this.maxOpenFDs = maxOpenFDs;
         }
@@ -51,9 +69,100 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         synchronized int getClosableFDs() {
             return closables.size();
         }
+
+        synchronized int getMaxFDs() {
+            return maxOpenFDs;
+        }
+
+        synchronized long getOpens() {
+            return opens;
+        }
+
+        void setMapReadOnly(boolean map) {
+            mapReadOnly = map;
+        }
+
+        /** Choose a file to close. We look at the least recently used few, and take the one which
+         * has been used least, and halve the usage counts of the others, so a file which was busy
+         * a while ago doesn't stay open for ever. */
+        private synchronized PooledFileRandomAccessBuffer pollClosable() {
+            PooledFileRandomAccessBuffer best = null;
+            int i = 0;
+            for(PooledFileRandomAccessBuffer pool : closables) {
+                if(best == null || pool.uses < best.uses) {
+                    if(best != null) best.uses >>= 1;
+                    best = pool;
+                } else
+                    pool.uses >>= 1;
+                if(++i == EVICTION_CANDIDATES) break;
+            }
+            if(best != null) closables.remove(best);
+            return best;
+        }
+
+        /** We have run out of file descriptors, so don't try to use more than we have now.
+         * @return False if we can't reduce the limit any further. */
+        private synchronized boolean outOfFDs() {
+            int max = Math.max(MIN_OPEN_FDS / 2, totalOpenFDs - 1);
+            if(max >= maxOpenFDs) return false;
+            Logger.error(this, "Ran out of file descriptors with "+totalOpenFDs+" open temp files, limiting to "+max);
+            maxOpenFDs = max;
+            return true;
+        }
+    }
+
+    /** Number of least recently used files to consider closing. */
+    private static final int EVICTION_CANDIDATES = 8;
+    static final int MIN_OPEN_FDS = 100;
+    static final int MAX_OPEN_FDS = 4096;
+    /** Share of the process's file descriptor limit to use for temp files. The rest are for
+     * sockets, the datastore, plugins etc. */
+    static final int FD_LIMIT_DIVISOR = 4;
+    /** How many times a read or write will reopen the file and try again after another thread's
+     * interrupt closed the channel under it. */
+    static final int MAX_REOPEN_RETRIES = 5;
+
+    /** @return The size of the default pool: a share of the file descriptor limit if we can find
+     * it, otherwise MIN_OPEN_FDS. */
+    static int defaultMaxOpenFDs() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            // Only on some JVMs, and only on Unix, so use reflection.
+            Class<?> unix = Class.forName("com.sun.management.UnixOperatingSystemMXBean");
+            if(!unix.isInstance(os)) return MIN_OPEN_FDS;
+            long max = (Long) unix.getMethod("getMaxFileDescriptorCount").invoke(os);
+            return (int) Math.max(MIN_OPEN_FDS, Math.min(MAX_OPEN_FDS, max / FD_LIMIT_DIVISOR));
+        } catch (Throwable t) {
+            return MIN_OPEN_FDS;
+        }
     }
-    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(100);
+
+    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(defaultMaxOpenFDs());
     private final FDTracker fds;
+
+    /** Memory map read-only files. Mapped files can't be deleted on Windows until the mapping is
+     * garbage collected, so this is off by default. */
+    public static void setMapReadOnly(boolean map) {
+        DEFAULT_FDTRACKER.setMapReadOnly(map);
+    }
+
+    public static boolean isMappingReadOnly() {
+        return DEFAULT_FDTRACKER.mapReadOnly;
+    }
+
+    public static int getMaxOpenFDs() {
+        return DEFAULT_FDTRACKER.getMaxFDs();
+    }
+
+    public static int getOpenFDs() {
+        return DEFAULT_FDTRACKER.getOpenFDs();
+    }
+
+    /** @return The number of times a pooled file has been opened, including reopening it after it
+     * was closed to make room for another. */
+    public static long getFileOpens() {
+        return DEFAULT_FDTRACKER.getOpens();
+    }
     
     public final File file;
     private final boolean readOnly;
@@ -63,6 +172,12 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
      * LOCKING: Always take (this) last, i.e. after fds. */
     private transient RandomAccessFile raf;
+    /** raf's channel. Non-null only if open. Written with fds locked, read without. */
+    private transient volatile FileChannel channel;
+    /** If the file is read-only and mapping is enabled, the whole file. */
+    private transient volatile MappedByteBuffer mapped;
+    /** How often we have been locked, halved occasionally. LOCKING: Synchronized on fds. */
+    private transient int uses;
     private final long length;
     private boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the 
@@ -157,18 +272,76 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
+        MappedByteBuffer map = mapped;
+        if(map != null) {
+            if(fileOffset + length > this.length) throw new EOFException();
+            ByteBuffer b = map.duplicate();
+            b.position((int) fileOffset);
+            b.get(buf, bufOffset, length);
+            return;
+        }
         RAFLock lock = lockOpen();
         try {
-            // FIXME Use NIO! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.readFully(buf, bufOffset, length);
+            if(readOnly && fds.mapReadOnly && this.length > 0 && this.length <= Integer.MAX_VALUE) {
+                map = map();
+                if(map != null) {
+                    pread(fileOffset, buf, bufOffset, length);
+                    return;
+                }
+            }
+            ByteBuffer b = ByteBuffer.wrap(buf, bufOffset, length);
+            int retries = 0;
+            while(b.hasRemaining()) {
+                FileChannel c = channel;
+                try {
+                    if(c.read(b, fileOffset + b.position() - bufOffset) < 0)
+                        throw new EOFException();
+                } catch (ClosedByInterruptException e) {
+                    reopen(c);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // Another thread was interrupted while using the same channel, either during
+                    // our read (AsynchronousCloseException) or before it reopened the file.
+                    if(++retries > MAX_REOPEN_RETRIES) throw e;
+                    reopen(c);
+                }
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /** Map the whole file. Must be locked.
+     * @return The mapping, or null if we can't map it. */
+    private MappedByteBuffer map() {
+        synchronized(fds) {
+            if(mapped != null) return mapped;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } catch (IOException e) {
+                Logger.error(this, "Unable to map "+this+" : "+e, e);
+                fds.mapReadOnly = false;
+            }
+            return mapped;
+        }
+    }
+
+    /** A thread was interrupted while using the channel, which closes it for every thread. Open
+     * the file again, unless another thread already has. Must be locked. */
+    private void reopen(FileChannel closed) throws IOException {
+        synchronized(fds) {
+            if(channel != closed || this.closed) return;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+            channel = raf.getChannel();
+            fds.opens++;
+        }
+    }
+
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
@@ -177,10 +350,19 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         try {
             if(fileOffset + length > this.length)
                 throw new IOException("Length limit exceeded");
-            // FIXME Use NIO (which has proper pwrite, with concurrency)! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.write(buf, bufOffset, length);
+            ByteBuffer b = ByteBuffer.wrap(buf, bufOffset, length);
+            int retries = 0;
+            while(b.hasRemaining()) {
+                FileChannel c = channel;
+                try {
+                    c.write(b, fileOffset + b.position() - bufOffset);
+                } catch (ClosedByInterruptException e) {
+                    reopen(c);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if(++retries > MAX_REOPEN_RETRIES) throw e;
+                    reopen(c);
+                }
             }
         } finally {
             lock.unlock();
@@ -198,6 +380,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             // Potentially slow but only happens on close(). Plus the size of closables is bounded anyway by the fd limit.
             fds.closables.remove(this);
             closeRAF();
+            mapped = null;
         }
     }
 
@@ -221,14 +404,26 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 if(closed) throw new IOException("Already closed "+this);
                 if(raf != null) {
                     lockLevel++; // Already open, may or may not be already locked.
+                    uses++;
                     return lock;
                 } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
-                    raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                    try {
+                        raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                    } catch (FileNotFoundException e) {
+                        // Unfortunately this is how we find out we're out of file descriptors.
+                        if(file.exists() && e.getMessage() != null &&
+                                e.getMessage().contains("Too many open files") && fds.outOfFDs())
+                            continue;
+                        throw e;
+                    }
+                    channel = raf.getChannel();
                     lockLevel++;
+                    uses++;
                     fds.totalOpenFDs++;
+                    fds.opens++;
                     return lock;
                 } else {
-                    PooledFileRandomAccessBuffer closable = pollFirstClosable();
+                    PooledFileRandomAccessBuffer closable = fds.pollClosable();
                     if(closable != null) {
                         closable.closeRAF();
                         continue;
@@ -243,18 +438,6 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
     
-    private PooledFileRandomAccessBuffer pollFirstClosable() {
-        synchronized(fds) {
-            Iterator<PooledFileRandomAccessBuffer> it = fds.closables.iterator();
-            if (it.hasNext()) {
-                PooledFileRandomAccessBuffer first = it.next();
-                it.remove();
-                return first;
-            }
-            return null;
-        }
-    }
-
     /** Exposed for tests only. Used internally. Must be unlocked. */
     protected void closeRAF() {
         synchronized(fds) {
@@ -266,6 +449,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 Logger.error(this, "Error closing "+this+" : "+e, e);
             }
             raf = null;
+            channel = null;
             fds.totalOpenFDs--;
         }
     }
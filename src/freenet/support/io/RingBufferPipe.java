@@ -0,0 +1,169 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pipe between one writing thread and one reading thread, through a ring buffer. Replaces
+ * PipedInputStream/PipedOutputStream, which have a 1KB buffer by default and poll once a second
+ * when it is full or empty: here each side wakes the other as soon as there is data or space,
+ * and the buffer can be as big as needed to keep both sides busy.
+ *
+ * Closing the output stream gives the reader EOF once it has read everything. Closing the input
+ * stream makes any further writes fail, so a writer doesn't block forever on a dead reader.
+ */
+public class RingBufferPipe {
+
+	private final byte[] buf;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	/** Where the next byte will be read from. */
+	private int readPos;
+	/** Number of bytes in the buffer. */
+	private int count;
+	private boolean writerClosed;
+	private boolean readerClosed;
+
+	private final InputStream input = new PipeInputStream();
+	private final OutputStream output = new PipeOutputStream();
+
+	/** @param capacity The size of the buffer in bytes. */
+	public RingBufferPipe(int capacity) {
+		if(capacity <= 0) throw new IllegalArgumentException();
+		buf = new byte[capacity];
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public int capacity() {
+		return buf.length;
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			if(offset < 0 || length < 0 || offset + length > data.length)
+				throw new IndexOutOfBoundsException();
+			lock.lock();
+			try {
+				while(length > 0) {
+					while(count == buf.length && !readerClosed && !writerClosed)
+						notFull.await();
+					if(writerClosed) throw new IOException("Pipe closed");
+					if(readerClosed) throw new IOException("Read end closed");
+					int writePos = (readPos + count) % buf.length;
+					// Up to the end of the buffer or the start of the unread data.
+					int x = Math.min(length, Math.min(buf.length - count, buf.length - writePos));
+					System.arraycopy(data, offset, buf, writePos, x);
+					count += x;
+					offset += x;
+					length -= x;
+					notEmpty.signal();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				writerClosed = true;
+				notEmpty.signalAll();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int x = read(b, 0, 1);
+			if(x <= 0) return -1;
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if(offset < 0 || length < 0 || offset + length > data.length)
+				throw new IndexOutOfBoundsException();
+			if(length == 0) return 0;
+			lock.lock();
+			try {
+				while(count == 0 && !writerClosed && !readerClosed)
+					notEmpty.await();
+				if(readerClosed) throw new IOException("Pipe closed");
+				if(count == 0) return -1;
+				int read = 0;
+				// At most two copies, if the data wraps around.
+				while(count > 0 && read < length) {
+					int x = Math.min(length - read, Math.min(count, buf.length - readPos));
+					System.arraycopy(buf, readPos, data, offset + read, x);
+					readPos = (readPos + x) % buf.length;
+					count -= x;
+					read += x;
+				}
+				if(count == 0) readPos = 0; // Keep the next write contiguous.
+				notFull.signal();
+				return read;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			lock.lock();
+			try {
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				readerClosed = true;
+				count = 0;
+				notEmpty.signalAll();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+}
@@ -41,7 +41,7 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- ArrayBuckets (or ArenaBuckets, in direct memory, if enabled by setUseDirectMemory())
  * OR
  *	- FileBuckets
  * 
@@ -72,6 +72,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
 	private long maxRamUsed;
+	/** If not null, new in-RAM buckets are kept in direct memory from here rather than on the heap. */
+	private DirectMemoryArena arena;
+	private boolean useDirectMemory;
+	/** Number of in-RAM buckets and RandomAccessBuffer's migrated to disk. */
+	private long migrations;
+	private long bytesMigrated;
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
@@ -169,12 +175,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStreamUnbuffered();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						copyToDisk(toMigrate, os, size);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStreamUnbuffered();
 						try {
-						BucketTools.copyTo(toMigrate, temp, size);
+						copyToDisk(toMigrate, temp, size);
 						} finally {
 						temp.close();
 						}
@@ -199,11 +205,20 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
 			_hasFreed(size);
+			_hasMigrated(size);
 			return true;
 		}
 		
+		private void copyToDisk(Bucket from, OutputStream os, long size) throws IOException {
+			if(from instanceof ArenaBucket)
+				// Straight from direct memory to the file if possible.
+				((ArenaBucket) from).copyTo(os, size);
+			else
+				BucketTools.copyTo(from, os, size);
+		}
+		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ArrayBucket) || (currentBucket instanceof ArenaBucket);
 		}
 		
 		@Override
@@ -247,6 +262,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 						shouldMigrate = true;
 					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
+					else if(currentBucket instanceof ArenaBucket && !((ArenaBucket) currentBucket).reserve(futureSize))
+						shouldMigrate = true;
 					
 					if(shouldMigrate) {
 						if(logMINOR) {
@@ -575,8 +592,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return bytesInUse;
 	}
 	
+	private synchronized void _hasMigrated(long size) {
+		migrations++;
+		bytesMigrated += size;
+	}
+	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		if(arena != null)
+			arena.setCapacity(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -592,6 +616,35 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return maxRAMBucketSize;
 	}
 	
+	/** Keep new in-RAM buckets in direct memory rather than on the heap, or stop doing so. Buckets
+	 * already created are unaffected. The memory is kept for reuse even if this is turned off. */
+	public synchronized void setUseDirectMemory(boolean value) {
+		if(value) {
+			if(arena == null)
+				arena = new DirectMemoryArena(maxRamUsed);
+			useDirectMemory = true;
+		} else
+			useDirectMemory = false;
+	}
+	
+	public synchronized boolean isUsingDirectMemory() {
+		return useDirectMemory;
+	}
+	
+	/** @return The arena for in-RAM buckets in direct memory, or null if it has never been enabled. */
+	public synchronized DirectMemoryArena getArena() {
+		return arena;
+	}
+	
+	/** @return The number of in-RAM buckets and RandomAccessBuffer's migrated to disk. */
+	public synchronized long getMigrations() {
+		return migrations;
+	}
+	
+	public synchronized long getBytesMigrated() {
+		return bytesMigrated;
+	}
+	
 	public void setEncryption(boolean value) {
 	    reallyEncrypt = value;
 		underlyingDiskRAFFactory.enableCrypto(value);
@@ -625,11 +678,13 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public TempBucket makeBucket(long size, float factor, long increment) throws IOException {
 		RandomAccessBucket realBucket = null;
 		boolean useRAMBucket = false;
+		DirectMemoryArena useArena = null;
 		long now = System.currentTimeMillis();
 		
 		synchronized(this) {
 			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
 				useRAMBucket = true;
+				if(useDirectMemory) useArena = arena;
 			}
 			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
 				runningCleaner = true;
@@ -638,7 +693,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		if(useArena != null)
+			realBucket = new ArenaBucket(useArena);
+		else
+			realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -882,6 +940,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 hasMigrated = true;
             }
             migrate();
+            _hasMigrated(size);
             return true;
         }
 
@@ -0,0 +1,256 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import freenet.support.TestProperty;
+
+import junit.framework.TestCase;
+
+/** Check that TableFECCodec is interchangeable with OnionFECCodec (i.e. PureCode). */
+public class TableFECCodecTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final OnionFECCodec onion = new OnionFECCodec();
+    private final TableFECCodec table = new TableFECCodec();
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testEncodeSameAsOnion() {
+        Random r = new Random(1);
+        checkEncode(table, 128, 128, BLOCK_SIZE, r);
+        checkEncode(table, 2, 3, BLOCK_SIZE, r);
+        checkEncode(table, 1, 1, BLOCK_SIZE, r);
+        checkEncode(table, 253, 2, BLOCK_SIZE, r);
+        checkEncode(table, 5, 250, BLOCK_SIZE, r);
+        // Odd lengths, so some bytes are left over after the long words.
+        checkEncode(table, 10, 7, 4099, r);
+        checkEncode(table, 3, 3, 5, r);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(252)+2;
+            checkEncode(table, data, r.nextInt(255 - data)+1, BLOCK_SIZE, r);
+        }
+    }
+
+    public void testDecodeSameAsOnion() {
+        Random r = new Random(2);
+        checkDecode(table, 128, 128, BLOCK_SIZE, r);
+        checkDecode(table, 2, 3, BLOCK_SIZE, r);
+        checkDecode(table, 200, 55, BLOCK_SIZE, r);
+        checkDecode(table, 2, 253, BLOCK_SIZE, r);
+        checkDecode(table, 10, 7, 4099, r);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(252)+2;
+            checkDecode(table, data, r.nextInt(255 - data)+1, BLOCK_SIZE, r);
+        }
+    }
+
+    /** The result mustn't depend on how the work is split up, including uneven splits. */
+    public void testThreads() {
+        Random r = new Random(3);
+        for(int threads = 2; threads <= 4; threads++) {
+            TableFECCodec codec = new TableFECCodec(executor, threads);
+            checkEncode(codec, 128, 128, 32768, r);
+            checkDecode(codec, 128, 128, 32768, r);
+            checkEncode(codec, 20, 30, 32768 + 13, r);
+            checkDecode(codec, 20, 30, 32768 + 13, r);
+            // Smaller than a stripe, so done on one thread anyway.
+            checkDecode(codec, 20, 30, 100, r);
+        }
+    }
+
+    public void testDecodeAllDataMissing() {
+        Random r = new Random(4);
+        byte[][] data = randomBlocks(r, 100, BLOCK_SIZE);
+        byte[][] check = new byte[100][BLOCK_SIZE];
+        onion.encode(data, check, new boolean[100], BLOCK_SIZE);
+        byte[][] decoded = new byte[100][BLOCK_SIZE];
+        boolean[] checkPresent = new boolean[100];
+        Arrays.fill(checkPresent, true);
+        table.decode(decoded, check, new boolean[100], checkPresent, BLOCK_SIZE);
+        assertBlocksEqual(data, decoded);
+    }
+
+    public void testDecodeNotEnoughBlocks() {
+        Random r = new Random(5);
+        byte[][] data = randomBlocks(r, 10, BLOCK_SIZE);
+        byte[][] check = new byte[10][BLOCK_SIZE];
+        table.encode(data, check, new boolean[10], BLOCK_SIZE);
+        boolean[] dataPresent = new boolean[10];
+        boolean[] checkPresent = new boolean[10];
+        Arrays.fill(checkPresent, true);
+        checkPresent[3] = false;
+        try {
+            table.decode(data, check, dataPresent, checkPresent, BLOCK_SIZE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testInvert() {
+        Random r = new Random(6);
+        for(int size = 1; size < 64; size += 7) {
+            int[][] matrix = new int[size][size];
+            for(int[] row : matrix)
+                for(int j=0;j<size;j++) row[j] = r.nextInt(256);
+            int[][] original = new int[size][];
+            for(int i=0;i<size;i++) original[i] = matrix[i].clone();
+            try {
+                TableFECCodec.invert(matrix);
+            } catch (IllegalArgumentException e) {
+                continue; // Singular, unlikely but possible.
+            }
+            for(int i=0;i<size;i++) {
+                for(int j=0;j<size;j++) {
+                    int x = 0;
+                    for(int l=0;l<size;l++) x ^= TableFECCodec.mul(original[i][l], matrix[l][j]);
+                    assertEquals(i == j ? 1 : 0, x);
+                }
+            }
+        }
+    }
+
+    public void testGetCheckBlocksSameAsOnion() {
+        for(int data=1;data<256;data++) {
+            for(InsertContext.CompatibilityMode mode : InsertContext.CompatibilityMode.values())
+                assertEquals(onion.getCheckBlocks(data, mode), table.getCheckBlocks(data, mode));
+        }
+    }
+
+    private void checkEncode(TableFECCodec codec, int dataCount, int checkCount, int blockLength, Random r) {
+        byte[][] data = randomBlocks(r, dataCount, blockLength);
+        byte[][] expected = new byte[checkCount][blockLength];
+        onion.encode(data, expected, new boolean[checkCount], blockLength);
+        byte[][] check = new byte[checkCount][blockLength];
+        // Some already present, which must be left alone.
+        boolean[] checkPresent = new boolean[checkCount];
+        for(int i=0;i<checkCount;i+=3) {
+            checkPresent[i] = true;
+            check[i] = expected[i].clone();
+        }
+        codec.encode(data, check, checkPresent, blockLength);
+        assertBlocksEqual(expected, check);
+    }
+
+    private void checkDecode(TableFECCodec codec, int dataCount, int checkCount, int blockLength, Random r) {
+        byte[][] original = randomBlocks(r, dataCount, blockLength);
+        byte[][] check = new byte[checkCount][blockLength];
+        onion.encode(original, check, new boolean[checkCount], blockLength);
+        byte[][] data = copy(original);
+        boolean[] dataPresent = new boolean[dataCount];
+        boolean[] checkPresent = new boolean[checkCount];
+        Arrays.fill(dataPresent, true);
+        Arrays.fill(checkPresent, true);
+        int dropped = 0;
+        while(dropped < checkCount) {
+            int blockNo = r.nextInt(dataCount + checkCount);
+            if(blockNo < dataCount) {
+                if(!dataPresent[blockNo]) continue;
+                Arrays.fill(data[blockNo], (byte)0);
+                dataPresent[blockNo] = false;
+            } else {
+                blockNo -= dataCount;
+                if(!checkPresent[blockNo]) continue;
+                Arrays.fill(check[blockNo], (byte)0);
+                checkPresent[blockNo] = false;
+            }
+            dropped++;
+        }
+        byte[][] onionData = copy(data);
+        byte[][] onionCheck = copy(check);
+        boolean[] oldDataPresent = dataPresent.clone();
+        boolean[] oldCheckPresent = checkPresent.clone();
+        codec.decode(data, check, dataPresent, checkPresent, blockLength);
+        assertBlocksEqual(original, data);
+        assertTrue(Arrays.equals(oldDataPresent, dataPresent));
+        assertTrue(Arrays.equals(oldCheckPresent, checkPresent));
+        onion.decode(onionData, onionCheck, dataPresent, checkPresent, blockLength);
+        assertBlocksEqual(onionData, data);
+    }
+
+    private static byte[][] randomBlocks(Random r, int count, int blockLength) {
+        byte[][] blocks = new byte[count][blockLength];
+        for(byte[] block : blocks) r.nextBytes(block);
+        return blocks;
+    }
+
+    private static byte[][] copy(byte[][] blocks) {
+        byte[][] ret = new byte[blocks.length][];
+        for(int i=0;i<ret.length;i++) ret[i] = blocks[i].clone();
+        return ret;
+    }
+
+    private static void assertBlocksEqual(byte[][] expected, byte[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for(int i=0;i<expected.length;i++)
+            assertTrue("Block "+i+" differs", Arrays.equals(expected[i], actual[i]));
+    }
+
+    private static long time(FECCodec codec, boolean decode, byte[][] original, byte[][] originalCheck, int iterations) {
+        int k = original.length;
+        int m = originalCheck.length;
+        long total = 0;
+        for(int i=0;i<iterations;i++) {
+            byte[][] data = copy(original);
+            byte[][] check = copy(originalCheck);
+            long start = System.nanoTime();
+            if(decode) {
+                // Worst case: as many data blocks missing as possible.
+                boolean[] dataPresent = new boolean[k];
+                for(int j=m;j<k;j++) dataPresent[j] = true;
+                boolean[] checkPresent = new boolean[m];
+                Arrays.fill(checkPresent, true);
+                codec.decode(data, check, dataPresent, checkPresent, data[0].length);
+            } else {
+                codec.encode(data, check, new boolean[m], data[0].length);
+            }
+            total += System.nanoTime() - start;
+        }
+        return total / iterations;
+    }
+
+    /** Encode and decode time for a full size segment (128 + 128 blocks of 32KB), for both
+     * codecs, and for the table codec split across several threads. */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(7);
+        int blockLength = 32768;
+        int[][] sizes = new int[][] { { 128, 128 }, { 200, 55 }, { 2, 3 } };
+        for(int[] size : sizes) {
+            byte[][] data = randomBlocks(r, size[0], blockLength);
+            byte[][] check = new byte[size[1]][blockLength];
+            onion.encode(data, check, new boolean[size[1]], blockLength);
+            int iterations = size[0] < 10 ? 1000 : 5;
+            FECCodec[] codecs = new FECCodec[] { onion, table,
+                    new TableFECCodec(executor, 2), new TableFECCodec(executor, 4) };
+            String[] names = new String[] { "onion", "table", "table/2", "table/4" };
+            for(int round=0;round<3;round++) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(size[0]).append("+").append(size[1]).append(":");
+                for(int i=0;i<codecs.length;i++) {
+                    long encode = time(codecs[i], false, data, check, iterations);
+                    long decode = time(codecs[i], true, data, check, iterations);
+                    sb.append(" ").append(names[i]).append(" encode ").append(encode / 1000)
+                        .append("us decode ").append(decode / 1000).append("us;");
+                }
+                if(round == 2) System.out.println(sb);
+            }
+        }
+    }
+
+}
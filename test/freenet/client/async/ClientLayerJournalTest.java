@@ -0,0 +1,356 @@
+package freenet.client.async;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+public class ClientLayerJournalTest extends TestCase {
+
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private File dir;
+    private final byte[] salt = new byte[32];
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("journal", ".test");
+        dir.delete();
+        dir.mkdir();
+        new Random(0).nextBytes(salt);
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    private static byte[] key(int i) {
+        return ("request-"+i).getBytes();
+    }
+
+    private static byte[] payload(Random r, int length) {
+        byte[] buf = new byte[length];
+        r.nextBytes(buf);
+        return buf;
+    }
+
+    /** Check that the journal contains exactly the expected requests and commit. */
+    private void checkContents(File file, Map<ByteArrayWrapper, byte[]> expected, byte[] commit,
+            boolean damaged) throws IOException {
+        ClientLayerJournal.Contents contents = ClientLayerJournal.read(file, checker);
+        try {
+            assertTrue(Arrays.equals(salt, contents.salt));
+            assertEquals(damaged, contents.damaged);
+            assertEquals(expected.size(), contents.requests.size());
+            for(ClientLayerJournal.Record r : contents.requests) {
+                byte[] e = expected.get(new ByteArrayWrapper(r.key));
+                assertNotNull(e);
+                assertTrue(Arrays.equals(e, contents.readPayload(r)));
+            }
+            assertTrue(Arrays.equals(commit, contents.commit));
+        } finally {
+            contents.close();
+        }
+    }
+
+    private Set<ByteArrayWrapper> keys(Map<ByteArrayWrapper, byte[]> map) {
+        return new HashSet<ByteArrayWrapper>(map.keySet());
+    }
+
+    public void testWriteAndRead() throws IOException {
+        Random r = new Random(1);
+        File file = new File(dir, "client.dat.journal");
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        assertFalse(journal.isOpen());
+        journal.startRewrite(salt);
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        for(int i=0;i<3;i++) {
+            byte[] p = payload(r, 100 + i);
+            assertTrue(journal.put(key(i), p));
+            expected.put(new ByteArrayWrapper(key(i)), p);
+        }
+        journal.commit(new byte[] { 1 });
+        assertTrue(journal.isOpen());
+        assertFalse(journal.getBackupFilename().exists());
+        checkContents(file, expected, new byte[] { 1 }, false);
+        long length = journal.length();
+        // Unchanged: nothing written.
+        assertFalse(journal.put(key(0), expected.get(new ByteArrayWrapper(key(0)))));
+        assertEquals(length, journal.length());
+        // Changed, removed and added.
+        byte[] p = payload(r, 50);
+        assertTrue(journal.put(key(1), p));
+        expected.put(new ByteArrayWrapper(key(1)), p);
+        expected.remove(new ByteArrayWrapper(key(2)));
+        p = payload(r, 0);
+        assertTrue(journal.put(key(3), p));
+        expected.put(new ByteArrayWrapper(key(3)), p);
+        assertEquals(1, journal.retainOnly(keys(expected)));
+        journal.commit(new byte[] { 2 });
+        checkContents(file, expected, new byte[] { 2 }, false);
+        assertEquals(3, journal.size());
+        journal.close();
+        assertFalse(journal.isOpen());
+    }
+
+    /** A checkpoint interrupted by a crash is ignored, and isn't damage. */
+    public void testUncommittedIgnored() throws IOException {
+        Random r = new Random(2);
+        File file = new File(dir, "client.dat.journal");
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        journal.startRewrite(salt);
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        byte[] p = payload(r, 1000);
+        journal.put(key(0), p);
+        expected.put(new ByteArrayWrapper(key(0)), p);
+        journal.commit(new byte[0]);
+        journal.put(key(0), payload(r, 1000));
+        journal.put(key(1), payload(r, 1000));
+        journal.close();
+        checkContents(file, expected, new byte[0], false);
+        // Half written record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 500);
+        raf.close();
+        checkContents(file, expected, new byte[0], false);
+    }
+
+    public void testCorruption() throws IOException {
+        Random r = new Random(3);
+        File file = new File(dir, "client.dat.journal");
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        journal.startRewrite(salt);
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        byte[] p = payload(r, 1000);
+        journal.put(key(0), p);
+        expected.put(new ByteArrayWrapper(key(0)), p);
+        journal.commit(new byte[0]);
+        long good = journal.length();
+        journal.put(key(1), payload(r, 1000));
+        journal.commit(new byte[] { 1 });
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(good + 100);
+        int b = raf.read();
+        raf.seek(good + 100);
+        raf.write(b ^ 1);
+        raf.close();
+        // Everything up to the bad record.
+        checkContents(file, expected, new byte[0], true);
+    }
+
+    /** Rewriting keeps the previous file as the backup. */
+    public void testRewrite() throws IOException {
+        Random r = new Random(4);
+        File file = new File(dir, "client.dat.journal");
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        journal.startRewrite(salt);
+        Map<ByteArrayWrapper, byte[]> old = new HashMap<ByteArrayWrapper, byte[]>();
+        for(int i=0;i<5;i++) {
+            byte[] p = payload(r, 200);
+            journal.put(key(i), p);
+            old.put(new ByteArrayWrapper(key(i)), p);
+        }
+        journal.commit(new byte[0]);
+        journal.startRewrite(salt);
+        assertFalse(journal.isOpen());
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        byte[] p = payload(r, 200);
+        // Always written after a rewrite, even if the same.
+        assertTrue(journal.put(key(0), old.get(new ByteArrayWrapper(key(0)))));
+        expected.put(new ByteArrayWrapper(key(0)), old.get(new ByteArrayWrapper(key(0))));
+        journal.put(key(9), p);
+        expected.put(new ByteArrayWrapper(key(9)), p);
+        // Not committed yet.
+        checkContents(file, old, new byte[0], false);
+        journal.commit(new byte[] { 5 });
+        checkContents(file, expected, new byte[] { 5 }, false);
+        checkContents(journal.getBackupFilename(), old, new byte[0], false);
+        journal.close();
+    }
+
+    /** Update a few requests many times, compact, and carry on. Checkpoints run concurrently
+     * with compaction to exercise copying the records written meanwhile. */
+    public void testCompaction() throws Exception {
+        final Random r = new Random(5);
+        File file = new File(dir, "client.dat.journal");
+        final ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        journal.startRewrite(salt);
+        final Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        int iterations = TestProperty.EXTENSIVE ? 20 : 3;
+        byte[] commit = new byte[0];
+        for(int i=0;i<iterations;i++) {
+            while(!journal.shouldCompact()) {
+                checkpoint(journal, r, expected, 20);
+                if(journal.length() > ClientLayerJournal.MIN_COMPACT_LENGTH * 10) fail("Not compacting");
+            }
+            long before = journal.length();
+            final Exception[] failed = new Exception[1];
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        journal.compact();
+                    } catch (Exception e) {
+                        failed[0] = e;
+                    }
+                }
+
+            });
+            t.start();
+            for(int j=0;j<5;j++)
+                commit = checkpoint(journal, r, expected, 20);
+            t.join();
+            if(failed[0] != null) throw failed[0];
+            assertTrue(journal.length() < before);
+            assertTrue(journal.getBackupFilename().exists());
+            checkContents(file, expected, commit, false);
+            // Offsets and digests must have survived.
+            for(Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                assertFalse(journal.put(e.getKey().get(), e.getValue()));
+            commit = checkpoint(journal, r, expected, 20);
+            checkContents(file, expected, commit, false);
+        }
+        journal.close();
+    }
+
+    /** Compacting in the middle of a checkpoint must not commit any of it early, or lose
+     * requests which it has removed but not yet committed. */
+    public void testCompactionDuringCheckpoint() throws IOException {
+        Random r = new Random(6);
+        File file = new File(dir, "client.dat.journal");
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker);
+        journal.startRewrite(salt);
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<ByteArrayWrapper, byte[]>();
+        for(int i=0;i<5;i++) {
+            byte[] p = payload(r, 1000);
+            journal.put(key(i), p);
+            expected.put(new ByteArrayWrapper(key(i)), p);
+        }
+        journal.commit(new byte[] { 1 });
+        // Half a checkpoint: change one, add one, remove one.
+        Map<ByteArrayWrapper, byte[]> next = new HashMap<ByteArrayWrapper, byte[]>(expected);
+        byte[] p = payload(r, 1000);
+        journal.put(key(0), p);
+        next.put(new ByteArrayWrapper(key(0)), p);
+        p = payload(r, 1000);
+        journal.put(key(5), p);
+        next.put(new ByteArrayWrapper(key(5)), p);
+        next.remove(new ByteArrayWrapper(key(1)));
+        journal.retainOnly(keys(next));
+        assertTrue(journal.compact());
+        checkContents(file, expected, new byte[] { 1 }, false);
+        journal.commit(new byte[] { 2 });
+        checkContents(file, next, new byte[] { 2 }, false);
+        // Offsets must still be right for both the old and the new records.
+        for(Map.Entry<ByteArrayWrapper, byte[]> e : next.entrySet())
+            assertFalse(journal.put(e.getKey().get(), e.getValue()));
+        assertTrue(journal.compact());
+        checkContents(file, next, new byte[] { 2 }, false);
+        journal.close();
+    }
+
+    /** Change a few requests, add one, remove one. */
+    private byte[] checkpoint(ClientLayerJournal journal, Random r, Map<ByteArrayWrapper, byte[]> expected,
+            int count) throws IOException {
+        for(int i=0;i<3;i++) {
+            byte[] p = payload(r, 5000);
+            byte[] k = key(r.nextInt(count));
+            journal.put(k, p);
+            expected.put(new ByteArrayWrapper(k), p);
+        }
+        expected.remove(new ByteArrayWrapper(key(r.nextInt(count))));
+        journal.retainOnly(keys(expected));
+        byte[] commit = payload(r, 10);
+        journal.commit(commit);
+        return commit;
+    }
+
+    /** Something like a download: a few small fields and some opaque state. */
+    private static class FakeRequest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String identifier;
+        long fetchedBytes;
+        final byte[] state;
+        FakeRequest(int i, Random r) {
+            identifier = "request-"+i;
+            state = new byte[2048];
+            r.nextBytes(state);
+        }
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(o);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    /** Checkpoint time against queue size, rewriting everything as client.dat does, and with the
+     * journal, when 1% of the requests have changed. */
+    public void testBenchmarkCheckpoint() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(6);
+        for(int size : new int[] { 1000, 10000, 30000 }) {
+            FakeRequest[] requests = new FakeRequest[size];
+            for(int i=0;i<size;i++) requests[i] = new FakeRequest(i, r);
+            File full = new File(dir, "client.dat");
+            ClientLayerJournal journal = new ClientLayerJournal(new File(dir, "client.dat.journal"), checker);
+            journal.startRewrite(salt);
+            long fullTime = 0;
+            long journalTime = 0;
+            long initialLength = 0;
+            int rounds = 5;
+            for(int round=0;round<=rounds;round++) {
+                for(int i=0;i<size/100;i++)
+                    requests[r.nextInt(size)].fetchedBytes++;
+                long start = System.nanoTime();
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(full));
+                for(FakeRequest req : requests) {
+                    byte[] buf = serialize(req);
+                    checker.writeAndChecksum(os, buf, 0, buf.length);
+                }
+                os.close();
+                long mid = System.nanoTime();
+                for(FakeRequest req : requests)
+                    journal.put(req.identifier.getBytes(), serialize(req));
+                journal.commit(new byte[0]);
+                long end = System.nanoTime();
+                // First round is the initial rewrite.
+                if(round == 0) {
+                    initialLength = journal.length();
+                    continue;
+                }
+                fullTime += mid - start;
+                journalTime += end - mid;
+            }
+            System.out.println(size+" requests: full "+(fullTime / rounds / 1000000)+"ms, "+
+                    full.length() / 1024+"KB per checkpoint; journal "+(journalTime / rounds / 1000000)+"ms, "+
+                    (journal.length() - initialLength) / rounds / 1024+"KB per checkpoint");
+            journal.close();
+            FileUtil.removeAll(dir);
+            dir.mkdir();
+        }
+    }
+
+}
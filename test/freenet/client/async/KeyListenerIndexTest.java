@@ -0,0 +1,99 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class KeyListenerIndexTest extends TestCase {
+
+	public void testFingerprint() {
+		assertEquals(0x0102fe80, KeyListenerIndex.fingerprint(new byte[] { 1, 2, (byte) 0xfe, (byte) 0x80, 5 }));
+	}
+
+	public void testAddGetRemove() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		KeyListener a = mock(KeyListener.class);
+		KeyListener b = mock(KeyListener.class);
+		index.add(a, new int[] { 1, 2, 3, 3 });
+		index.add(b, new int[] { 3, 4 });
+		assertEquals(5, index.size());
+		assertEquals(list(a), get(index, 1));
+		assertEquals(list(a, b), get(index, 3));
+		assertEquals(list(), get(index, 5));
+		index.remove(a, new int[] { 1, 2, 3, 3 });
+		assertEquals(2, index.size());
+		assertEquals(list(), get(index, 1));
+		assertEquals(list(b), get(index, 3));
+	}
+
+	/** Lots of listeners with colliding keys, added and removed at random, checked against a map. */
+	public void testRandom() {
+		Random random = new Random(1234);
+		KeyListenerIndex index = new KeyListenerIndex();
+		Map<KeyListener, int[]> added = new HashMap<KeyListener, int[]>();
+		List<KeyListener> listeners = new ArrayList<KeyListener>();
+		for(int i=0;i<2000;i++) {
+			if(listeners.isEmpty() || random.nextInt(3) != 0) {
+				KeyListener l = mock(KeyListener.class);
+				int[] keys = new int[random.nextInt(200)];
+				for(int j=0;j<keys.length;j++)
+					// Not many distinct values, so several listeners share each one.
+					keys[j] = random.nextInt(4096) * 0x9E3779B9;
+				index.add(l, keys);
+				added.put(l, keys);
+				listeners.add(l);
+			} else {
+				KeyListener l = listeners.remove(random.nextInt(listeners.size()));
+				index.remove(l, added.remove(l));
+			}
+			if(i % 100 == 0) check(index, added);
+		}
+		check(index, added);
+		for(KeyListener l : listeners)
+			index.remove(l, added.remove(l));
+		assertEquals(0, index.size());
+		assertTrue(index.capacity() <= 64);
+	}
+
+	private static void check(KeyListenerIndex index, Map<KeyListener, int[]> added) {
+		Map<Integer, Set<KeyListener>> expected = new HashMap<Integer, Set<KeyListener>>();
+		int size = 0;
+		for(Map.Entry<KeyListener, int[]> e : added.entrySet()) {
+			for(int fp : e.getValue()) {
+				Set<KeyListener> s = expected.get(fp);
+				if(s == null) expected.put(fp, s = new HashSet<KeyListener>());
+				if(s.add(e.getKey())) size++;
+			}
+		}
+		assertEquals(size, index.size());
+		for(int v=0;v<4096;v++) {
+			Set<KeyListener> s = expected.get(v * 0x9E3779B9);
+			if(s == null) s = new HashSet<KeyListener>();
+			List<KeyListener> got = get(index, v * 0x9E3779B9);
+			assertEquals(s.size(), got.size());
+			assertEquals(s, new HashSet<KeyListener>(got));
+		}
+	}
+
+	private static List<KeyListener> get(KeyListenerIndex index, int fp) {
+		List<KeyListener> matches = new ArrayList<KeyListener>();
+		index.get(fp, matches);
+		return matches;
+	}
+
+	private static List<KeyListener> list(KeyListener... listeners) {
+		List<KeyListener> list = new ArrayList<KeyListener>();
+		for(KeyListener l : listeners)
+			list.add(l);
+		return list;
+	}
+
+}
@@ -0,0 +1,190 @@
+package freenet.client.async;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.TestProperty;
+
+public class KeyListenerTrackerTest extends TestCase {
+
+	private KeyListenerTracker tracker;
+	private Random random;
+
+	@Override
+	protected void setUp() {
+		tracker = new KeyListenerTracker(false, false, false, null, null, new byte[32], false);
+		random = new Random(1);
+	}
+
+	/** Wants a fixed set of keys. Can list them once ready is set. */
+	private class TestListener implements IndexedKeyListener {
+
+		final Key[] keys;
+		final Set<ByteArrayWrapper> salted = new HashSet<ByteArrayWrapper>();
+		private final int[] fingerprints;
+		boolean ready;
+		int asked;
+
+		TestListener(int count, boolean ready) {
+			keys = new Key[count];
+			fingerprints = new int[count];
+			for(int i=0;i<count;i++) {
+				keys[i] = randomKey();
+				byte[] saltedKey = tracker.saltKey(keys[i]);
+				salted.add(new ByteArrayWrapper(saltedKey));
+				fingerprints[i] = KeyListenerIndex.fingerprint(saltedKey);
+			}
+			this.ready = ready;
+		}
+
+		@Override
+		public int[] getKeyFingerprints() {
+			return ready ? fingerprints : null;
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			asked++;
+			return salted.contains(new ByteArrayWrapper(saltedKey));
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return probablyWantKey(key, saltedKey) ? getPriorityClass() : -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return new SendableGet[1];
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			return salted.remove(new ByteArrayWrapper(saltedKey));
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+		}
+
+		@Override
+		public long countKeys() {
+			return salted.size();
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Do nothing.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return salted.isEmpty();
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+	}
+
+	private Key randomKey() {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	public void testIndexed() {
+		TestListener a = new TestListener(100, true);
+		TestListener b = new TestListener(100, true);
+		tracker.addPendingKeys(a);
+		tracker.addPendingKeys(b);
+		assertEquals(200, tracker.countIndexedKeys());
+		assertEquals(0, tracker.countUnindexedListeners());
+		assertTrue(tracker.anyProbablyWantKey(a.keys[5], null));
+		assertEquals(1, tracker.requestsForKey(b.keys[7], null).length);
+		assertFalse(tracker.anyProbablyWantKey(randomKey(), null));
+		assertNull(tracker.requestsForKey(randomKey(), null));
+		// Only the listener which has the key is asked.
+		assertEquals(0, b.asked);
+		tracker.removePendingKeys(a);
+		assertEquals(100, tracker.countIndexedKeys());
+		assertFalse(tracker.anyProbablyWantKey(a.keys[5], null));
+	}
+
+	public void testIndexLater() {
+		TestListener a = new TestListener(100, false);
+		TestListener b = new TestListener(100, true);
+		tracker.addPendingKeys(a);
+		tracker.addPendingKeys(b);
+		assertEquals(100, tracker.countIndexedKeys());
+		assertEquals(1, tracker.countUnindexedListeners());
+		// Not yet indexed, so it is asked about every key.
+		assertTrue(tracker.anyProbablyWantKey(a.keys[0], null));
+		assertFalse(tracker.anyProbablyWantKey(b.keys[0], null));
+		assertEquals(2, a.asked);
+		a.ready = true;
+		tracker.indexPendingKeys(a);
+		assertEquals(200, tracker.countIndexedKeys());
+		assertEquals(0, tracker.countUnindexedListeners());
+		assertTrue(tracker.anyProbablyWantKey(a.keys[1], null));
+		assertTrue(tracker.anyProbablyWantKey(b.keys[1], null));
+		assertEquals(3, a.asked);
+		tracker.removePendingKeys(a);
+		tracker.removePendingKeys(b);
+		assertEquals(0, tracker.countIndexedKeys());
+		assertEquals(0, tracker.countUnindexedListeners());
+	}
+
+	/** The time to check a key with and without the index, against the number of downloads. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		for(int count : new int[] { 10, 100, 1000, 10000 }) {
+			Key[] offered = new Key[10000];
+			long[] times = new long[2];
+			for(int indexed=0;indexed<2;indexed++) {
+				setUp();
+				TestListener[] listeners = new TestListener[count];
+				for(int i=0;i<count;i++) {
+					listeners[i] = new TestListener(100, indexed == 1);
+					tracker.addPendingKeys(listeners[i]);
+				}
+				// Mostly keys nobody wants, like most offers and most blocks passing through.
+				for(int i=0;i<offered.length;i++)
+					offered[i] = i % 10 == 0 ? listeners[random.nextInt(count)].keys[random.nextInt(100)] : randomKey();
+				for(int pass=0;pass<2;pass++) {
+					long start = System.nanoTime();
+					int found = 0;
+					for(Key key : offered)
+						if(tracker.anyProbablyWantKey(key, null)) found++;
+					times[indexed] = System.nanoTime() - start;
+					assertEquals(offered.length / 10, found);
+				}
+			}
+			System.out.println(count+" downloads: scan "+(times[0] / offered.length / 1000)+"us, index "+
+					(times[1] / offered.length / 1000)+"us per key ("+
+					(offered.length * 1000000000L / Math.max(1, times[1]))+" keys/sec indexed)");
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private final BucketFactory bf = new ArrayBucketFactory();
+
+	private static FilteredContentCache.Key key(String name, String mimeType) throws MalformedURLException {
+		return new FilteredContentCache.Key(new FreenetURI("KSK@"+name), mimeType, null, false);
+	}
+
+	private static byte[] data(int length, int seed) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) seed);
+		return data;
+	}
+
+	public void testHitAndMiss() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1024);
+		FilteredContentCache.Key key = key("page", "text/html");
+		assertNull(cache.get(key, bf));
+		cache.put(key, new ArrayBucket(data(100, 1)), 150, cache.getInvalidations(), bf);
+		Bucket copy = cache.get(key, bf);
+		assertTrue(Arrays.equals(data(100, 1), BucketTools.toByteArray(copy)));
+		// The caller owns the copy.
+		copy.free();
+		copy = cache.get(key, bf);
+		assertEquals(100, copy.size());
+		// Anything else in the key is a different page.
+		assertNull(cache.get(key("page", "text/css"), bf));
+		assertNull(cache.get(new FilteredContentCache.Key(new FreenetURI("KSK@page"), "text/html", "UTF-8", false), bf));
+		assertNull(cache.get(new FilteredContentCache.Key(new FreenetURI("KSK@page"), "text/html", null, true), bf));
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(300, cache.getBytesSaved());
+		assertEquals(100, cache.getSize());
+		assertEquals(1, cache.getEntries());
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000);
+		for(int i=0;i<4;i++)
+			cache.put(key("page"+i, "text/html"), new ArrayBucket(data(250, i)), 250, 0, bf);
+		assertEquals(1000, cache.getSize());
+		// Use page 0, so page 1 is the oldest.
+		cache.get(key("page0", "text/html"), bf).free();
+		cache.put(key("page4", "text/html"), new ArrayBucket(data(200, 4)), 200, 0, bf);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(950, cache.getSize());
+		assertNull(cache.get(key("page1", "text/html"), bf));
+		assertNotNull(cache.get(key("page0", "text/html"), bf));
+		// Too big for the cache.
+		cache.put(key("big", "text/html"), new ArrayBucket(data(251, 5)), 251, 0, bf);
+		assertNull(cache.get(key("big", "text/html"), bf));
+		cache.setMaxSize(500);
+		assertTrue(cache.getSize() <= 500);
+	}
+
+	public void testClear() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1024);
+		FilteredContentCache.Key key = key("page", "text/html");
+		long invalidations = cache.getInvalidations();
+		cache.put(key, new ArrayBucket(data(100, 1)), 100, invalidations, bf);
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getEntries());
+		assertNull(cache.get(key, bf));
+		// Filtered before the settings changed, so not cached.
+		cache.put(key, new ArrayBucket(data(100, 1)), 100, invalidations, bf);
+		assertNull(cache.get(key, bf));
+		cache.put(key, new ArrayBucket(data(100, 1)), 100, cache.getInvalidations(), bf);
+		assertNotNull(cache.get(key, bf));
+	}
+
+	public void testDisabled() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(0);
+		FilteredContentCache.Key key = key("page", "text/html");
+		cache.put(key, new ArrayBucket(data(1, 1)), 1, 0, bf);
+		assertNull(cache.get(key, bf));
+		assertEquals(0, cache.getSize());
+	}
+
+}
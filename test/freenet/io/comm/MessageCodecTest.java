@@ -0,0 +1,300 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
+
+public class MessageCodecTest extends TestCase {
+
+	private static final MessageType allTypes = new MessageType("MessageCodecTestAllTypes", DMT.PRIORITY_LOW) {{
+		addField("boolean", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("float", Float.class);
+		addField("double", Double.class);
+		addField("string", String.class);
+		addField("shortBuffer", ShortBuffer.class);
+		addField("buffer", Buffer.class);
+		addField("bitArray", BitArray.class);
+		addField("doubles", double[].class);
+		addField("floats", float[].class);
+		addLinkedListField("list", Long.class);
+	}};
+
+	/** The old encoder: Serializer onto a DataOutputStream. */
+	private static byte[] legacyEncode(Message m) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for (String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static Object randomValue(Class<?> type, Random r) {
+		if(type == Boolean.class) return r.nextBoolean();
+		if(type == Byte.class) return (byte) r.nextInt();
+		if(type == Short.class) return (short) r.nextInt();
+		if(type == Integer.class) return r.nextInt();
+		if(type == Long.class) return r.nextLong();
+		if(type == Float.class) return r.nextFloat();
+		if(type == Double.class) return r.nextDouble();
+		if(type == String.class) return "test é中 " + r.nextInt();
+		if(type == ShortBuffer.class || type == Buffer.class || type == BitArray.class) {
+			// BitArray's must not be empty.
+			byte[] data = new byte[1 + r.nextInt(100)];
+			r.nextBytes(data);
+			if(type == ShortBuffer.class) return new ShortBuffer(data);
+			if(type == Buffer.class) return new Buffer(data);
+			return new BitArray(data);
+		}
+		if(type == double[].class) {
+			double[] d = new double[r.nextInt(10)];
+			for(int i=0;i<d.length;i++) d[i] = r.nextDouble();
+			return d;
+		}
+		if(type == float[].class) {
+			float[] f = new float[r.nextInt(10)];
+			for(int i=0;i<f.length;i++) f[i] = r.nextFloat();
+			return f;
+		}
+		return null;
+	}
+
+	/** @return A message with every field set randomly, or null if we can't generate one of the
+	 * field types. */
+	private static Message randomMessage(MessageType type, Random r) {
+		Message m = new Message(type);
+		for(String name : type.getOrderedFields()) {
+			Class<?> c = type.typeOf(name);
+			Object value;
+			if(c == java.util.LinkedList.class) {
+				java.util.LinkedList<Object> list = new java.util.LinkedList<Object>();
+				Class<?> elementType = type.getLinkedListTypes().get(name);
+				for(int i=0;i<r.nextInt(5);i++) {
+					Object o = randomValue(elementType, r);
+					if(o == null) return null;
+					list.add(o);
+				}
+				value = list;
+			} else {
+				value = randomValue(c, r);
+			}
+			if(value == null) return null;
+			m.set(name, value);
+		}
+		return m;
+	}
+
+	private static List<MessageType> dmtTypes() throws IllegalAccessException {
+		List<MessageType> types = new ArrayList<MessageType>();
+		for(Field f : DMT.class.getFields()) {
+			if(Modifier.isStatic(f.getModifiers()) && f.getType() == MessageType.class)
+				types.add((MessageType) f.get(null));
+		}
+		return types;
+	}
+
+	private static PeerContext makePeer() {
+		PeerContext peer = mock(PeerContext.class);
+		doReturn(new WeakReference<PeerContext>(peer)).when(peer).getWeakRef();
+		return peer;
+	}
+
+	public void testSameEncodingAsSerializer() throws Exception {
+		Random r = new Random(0xC0DEC);
+		int tested = 0;
+		List<MessageType> types = dmtTypes();
+		types.add(allTypes);
+		for(MessageType type : types) {
+			for(int i=0;i<10;i++) {
+				Message m = randomMessage(type, r);
+				if(m == null) break;
+				byte[] expected = legacyEncode(m);
+				assertTrue(type.getName(), Arrays.equals(expected, m.encodeToPacket()));
+				assertEquals(expected.length, m.getEncodedLength());
+				ByteBuffer buf = ByteBuffer.allocate(expected.length + 10);
+				buf.position(5);
+				m.encodeToPacket(buf);
+				assertEquals(5 + expected.length, buf.position());
+				assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buf.array(), 5, 5 + expected.length)));
+				tested++;
+			}
+		}
+		assertTrue(tested > 1000);
+	}
+
+	public void testRoundTrip() {
+		Random r = new Random(1);
+		PeerContext peer = makePeer();
+		for(int i=0;i<100;i++) {
+			Message m = randomMessage(allTypes, r);
+			byte[] buf = m.encodeToPacket();
+			Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0);
+			assertNotNull(decoded);
+			assertEquals(m.getBoolean("boolean"), decoded.getBoolean("boolean"));
+			assertEquals(m.getByte("byte"), decoded.getByte("byte"));
+			assertEquals(m.getShort("short"), decoded.getShort("short"));
+			assertEquals(m.getInt("int"), decoded.getInt("int"));
+			assertEquals(m.getLong("long"), decoded.getLong("long"));
+			assertEquals(m.getFloat("float"), decoded.getFloat("float"));
+			assertEquals(m.getDouble("double"), decoded.getDouble("double"));
+			assertEquals(m.getString("string"), decoded.getString("string"));
+			assertEquals(m.getObject("shortBuffer"), decoded.getObject("shortBuffer"));
+			assertTrue(Arrays.equals(m.getDoubleArray("doubles"), decoded.getDoubleArray("doubles")));
+			assertTrue(Arrays.equals(m.getFloatArray("floats"), decoded.getFloatArray("floats")));
+			assertEquals(m.getObject("list"), decoded.getObject("list"));
+			assertTrue(Arrays.equals(buf, decoded.encodeToPacket()));
+		}
+	}
+
+	public void testSubMessages() throws Exception {
+		Random r = new Random(2);
+		PeerContext peer = makePeer();
+		Message m = randomMessage(allTypes, r);
+		Message sub = DMT.createFNPAccepted(r.nextLong());
+		m.addSubMessage(sub);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.write(legacyEncode(m));
+		byte[] subBytes = legacyEncode(sub);
+		dos.writeShort(subBytes.length);
+		dos.write(subBytes);
+		byte[] buf = m.encodeToPacket();
+		assertTrue(Arrays.equals(baos.toByteArray(), buf));
+		Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0);
+		assertEquals(sub.getLong(DMT.UID), decoded.getSubMessage(DMT.FNPAccepted).getLong(DMT.UID));
+	}
+
+	public void testBoxedAndUnboxedAccess() {
+		Message m = new Message(allTypes);
+		assertFalse(m.isSet("long"));
+		assertNull(m.getObject("long"));
+		m.set("long", 42L);
+		assertTrue(m.isSet("long"));
+		assertEquals(Long.valueOf(42), m.getObject("long"));
+		assertTrue(m.fieldEquals("long", Long.valueOf(42)));
+		assertFalse(m.fieldEquals("long", Integer.valueOf(42)));
+		assertFalse(m.fieldEquals("int", Integer.valueOf(0)));
+		m.set("int", Integer.valueOf(7));
+		assertEquals(7, m.getInt("int"));
+		m.set("float", Float.NaN);
+		assertTrue(m.fieldEquals("float", Float.NaN));
+		try {
+			m.set("int", 5L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			m.getShort("short");
+			fail();
+		} catch (NullPointerException e) {
+			// Expected, as before: not set.
+		}
+		try {
+			m.encodeToPacket();
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected: not all fields set.
+		}
+		Message copy = m.cloneAndDropSubMessages();
+		m.set("long", 43L);
+		assertEquals(42L, copy.getLong("long"));
+	}
+
+	/** As with the HashMap, null is rejected and the field keeps its value. */
+	public void testSetNull() {
+		Message m = new Message(allTypes);
+		for(String field : new String[] { "long", "string" }) {
+			try {
+				m.set(field, (Object) null);
+				fail();
+			} catch (IncorrectTypeException e) {
+				// Expected.
+			}
+			assertFalse(m.isSet(field));
+		}
+		m.set("long", 42L);
+		m.set("string", "test");
+		for(String field : new String[] { "long", "string" }) {
+			try {
+				m.set(field, (Object) null);
+				fail();
+			} catch (IncorrectTypeException e) {
+				// Expected.
+			}
+			assertTrue(m.isSet(field));
+		}
+		assertEquals(42L, m.getLong("long"));
+		assertEquals("test", m.getString("string"));
+	}
+
+	/** Messages are big-endian on the wire, even in a little-endian buffer. */
+	public void testEncodeIntoLittleEndianBuffer() {
+		Message m = randomMessage(allTypes, new Random(3));
+		m.addSubMessage(DMT.createFNPAccepted(1234L));
+		ByteBuffer buf = ByteBuffer.allocate(m.getEncodedLength()).order(ByteOrder.LITTLE_ENDIAN);
+		m.encodeToPacket(buf);
+		assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+		assertTrue(Arrays.equals(m.encodeToPacket(), buf.array()));
+	}
+
+	/** Old encoding path (Serializer and DataOutputStream) against the codec, both allocating a
+	 * new byte[] and into a reused ByteBuffer. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(3);
+		Message[] messages = new Message[1000];
+		for(int i=0;i<messages.length;i++) {
+			byte[] routingKey = new byte[32];
+			r.nextBytes(routingKey);
+			messages[i] = DMT.createFNPCHKDataRequest(r.nextLong(), (short) 18, new NodeCHK(routingKey, (byte) 1));
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		for(int round=0;round<5;round++) {
+			int iterations = 1000000;
+			long count = 0;
+			long t1 = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				count += legacyEncode(messages[i % messages.length]).length;
+			long t2 = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				count += messages[i % messages.length].encodeToPacket().length;
+			long t3 = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				buf.clear();
+				messages[i % messages.length].encodeToPacket(buf);
+				count += buf.position();
+			}
+			long t4 = System.nanoTime();
+			System.out.println("Serializer: "+((t2-t1)/iterations)+"ns codec: "+((t3-t2)/iterations)+
+					"ns codec into ByteBuffer: "+((t4-t3)/iterations)+"ns ("+count+")");
+		}
+	}
+
+}
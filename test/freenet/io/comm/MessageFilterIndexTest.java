@@ -0,0 +1,244 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.TestProperty;
+
+public class MessageFilterIndexTest extends TestCase {
+
+	private static final MessageType typeA = new MessageType("MessageFilterIndexTestA", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static final MessageType typeB = new MessageType("MessageFilterIndexTestB", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static PeerContext makePeer() {
+		PeerContext peer = mock(PeerContext.class);
+		doReturn(new WeakReference<PeerContext>(peer)).when(peer).getWeakRef();
+		doReturn(true).when(peer).isConnected();
+		return peer;
+	}
+
+	private static Message makeMessage(MessageType type, PeerContext source, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		byte[] buf = m.encodeToPacket();
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, source, 0);
+	}
+
+	private static MessageFilter makeFilter(MessageType type, PeerContext source, Long uid, long timeout) {
+		MessageFilter f = MessageFilter.create().setTimeout(timeout);
+		if(type != null) f.setType(type);
+		if(source != null) f.setSource(source);
+		if(uid != null) f.setField(DMT.UID, uid.longValue());
+		return f;
+	}
+
+	public void testExactMatch() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter f1 = makeFilter(typeA, peer, 1L, 60000);
+		MessageFilter f2 = makeFilter(typeA, peer, 2L, 60000);
+		index.add(f1);
+		index.add(f2);
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long now = System.currentTimeMillis();
+		assertSame(f2, index.removeFirstMatch(makeMessage(typeA, peer, 2L), now, timedOut));
+		assertNull(index.removeFirstMatch(makeMessage(typeA, peer, 2L), now, timedOut));
+		assertNull(index.removeFirstMatch(makeMessage(typeB, peer, 1L), now, timedOut));
+		assertNull(index.removeFirstMatch(makeMessage(typeA, makePeer(), 1L), now, timedOut));
+		assertEquals(1, index.size());
+		assertSame(f1, index.removeFirstMatch(makeMessage(typeA, peer, 1L), now, timedOut));
+		assertEquals(0, index.size());
+		assertTrue(timedOut.isEmpty());
+	}
+
+	public void testEarliestTimeoutWinsAcrossWildcards() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter exact = makeFilter(typeA, peer, 1L, 60000);
+		MessageFilter anyUID = makeFilter(typeA, peer, null, 50000);
+		MessageFilter anySource = makeFilter(typeA, null, 1L, 40000);
+		MessageFilter anything = makeFilter(null, null, null, 70000);
+		index.add(exact);
+		index.add(anyUID);
+		index.add(anySource);
+		index.add(anything);
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long now = System.currentTimeMillis();
+		Message m = makeMessage(typeA, peer, 1L);
+		assertSame(anySource, index.removeFirstMatch(m, now, timedOut));
+		assertSame(anyUID, index.removeFirstMatch(m, now, timedOut));
+		assertSame(exact, index.removeFirstMatch(m, now, timedOut));
+		assertSame(anything, index.removeFirstMatch(m, now, timedOut));
+		assertNull(index.removeFirstMatch(m, now, timedOut));
+	}
+
+	public void testOrFilterMatchedOnce() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter a = makeFilter(typeA, peer, 1L, 60000);
+		MessageFilter b = makeFilter(typeB, peer, 1L, 60000);
+		a.or(b);
+		index.add(a);
+		assertEquals(1, index.size());
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long now = System.currentTimeMillis();
+		assertSame(a, index.removeFirstMatch(makeMessage(typeB, peer, 1L), now, timedOut));
+		assertEquals(0, index.size());
+		assertNull(index.removeFirstMatch(makeMessage(typeA, peer, 1L), now, timedOut));
+	}
+
+	public void testTimedOutRemoved() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter old = makeFilter(typeA, peer, null, 1000);
+		MessageFilter current = makeFilter(typeA, peer, 1L, 60000);
+		index.add(old);
+		index.add(current);
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long later = System.currentTimeMillis() + 10000;
+		assertSame(current, index.removeFirstMatch(makeMessage(typeA, peer, 1L), later, timedOut));
+		assertEquals(1, timedOut.size());
+		assertSame(old, timedOut.get(0));
+		assertEquals(0, index.size());
+	}
+
+	/** Timed out filters go on any message, not just one they could have matched. */
+	public void testTimedOutRemovedOnOtherMessage() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter old = makeFilter(typeB, peer, 2L, 1000);
+		MessageFilter oldOr = makeFilter(typeB, peer, 3L, 60000);
+		oldOr.or(makeFilter(typeB, peer, 4L, 1000));
+		MessageFilter current = makeFilter(typeB, peer, 5L, 60000);
+		index.add(old);
+		index.add(oldOr);
+		index.add(current);
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long later = System.currentTimeMillis() + 10000;
+		assertNull(index.removeFirstMatch(makeMessage(typeA, makePeer(), 1L), later, timedOut));
+		assertEquals(2, timedOut.size());
+		assertTrue(timedOut.contains(old));
+		assertTrue(timedOut.contains(oldOr));
+		assertEquals(1, index.size());
+		assertTrue(index.contains(current));
+	}
+
+	public void testIteratorRemove() {
+		PeerContext peer = makePeer();
+		MessageFilterIndex index = new MessageFilterIndex();
+		for(long i=0;i<10;i++)
+			index.add(makeFilter(typeA, peer, i, 60000));
+		for(Iterator<MessageFilter> it = index.iterator(); it.hasNext();) {
+			MessageFilter f = it.next();
+			if(((Long)f.getFieldValue(DMT.UID)).longValue() % 2 == 0)
+				it.remove();
+		}
+		assertEquals(5, index.size());
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long now = System.currentTimeMillis();
+		for(long i=0;i<10;i++) {
+			MessageFilter f = index.removeFirstMatch(makeMessage(typeA, peer, i), now, timedOut);
+			assertEquals(i % 2 == 1, f != null);
+		}
+		assertEquals(0, index.size());
+	}
+
+	/** Same results as scanning a list sorted by timeout, for a random mix of filters. */
+	public void testSameAsLinearScan() {
+		Random r = new Random(1234);
+		PeerContext[] peers = new PeerContext[4];
+		for(int i=0;i<peers.length;i++) peers[i] = makePeer();
+		MessageType[] types = new MessageType[] { typeA, typeB };
+		MessageFilterIndex index = new MessageFilterIndex();
+		LinkedList<MessageFilter> list = new LinkedList<MessageFilter>();
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long now = System.currentTimeMillis();
+		for(int i=0;i<2000;i++) {
+			MessageFilter f = makeFilter(r.nextInt(8) == 0 ? null : types[r.nextInt(types.length)],
+					r.nextInt(8) == 0 ? null : peers[r.nextInt(peers.length)],
+					r.nextInt(4) == 0 ? null : Long.valueOf(r.nextInt(50)), 10000 + r.nextInt(1000));
+			if(r.nextInt(10) == 0)
+				f.or(makeFilter(types[r.nextInt(types.length)], peers[r.nextInt(peers.length)],
+						Long.valueOf(r.nextInt(50)), f.getInitialTimeout()));
+			index.add(f);
+			addSorted(list, f);
+			if(r.nextBoolean()) {
+				Message m = makeMessage(types[r.nextInt(types.length)], peers[r.nextInt(peers.length)], r.nextInt(50));
+				assertSame(linearMatch(list, m, now), index.removeFirstMatch(m, now, timedOut));
+				assertEquals(list.size(), index.size());
+			}
+		}
+		assertTrue(timedOut.isEmpty());
+	}
+
+	private static void addSorted(LinkedList<MessageFilter> list, MessageFilter filter) {
+		ListIterator<MessageFilter> i = list.listIterator();
+		while(i.hasNext()) {
+			if(i.next().getTimeout() > filter.getTimeout()) {
+				i.previous();
+				break;
+			}
+		}
+		i.add(filter);
+	}
+
+	private static MessageFilter linearMatch(LinkedList<MessageFilter> list, Message m, long now) {
+		for(ListIterator<MessageFilter> i = list.listIterator(); i.hasNext();) {
+			MessageFilter f = i.next();
+			if(f.match(m, now) == MATCHED.MATCHED) {
+				i.remove();
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/** Matching cost against the number of pending filters, compared to scanning a list as
+	 * MessageCore used to. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		PeerContext[] peers = new PeerContext[50];
+		for(int i=0;i<peers.length;i++) peers[i] = makePeer();
+		for(int filters = 100; filters <= 25600; filters *= 4) {
+			MessageFilterIndex index = new MessageFilterIndex();
+			LinkedList<MessageFilter> list = new LinkedList<MessageFilter>();
+			Message[] messages = new Message[filters];
+			for(int i=0;i<filters;i++) {
+				PeerContext peer = peers[i % peers.length];
+				MessageFilter f = makeFilter(typeA, peer, Long.valueOf(i), 60000 + i);
+				index.add(f);
+				addSorted(list, f);
+				// Messages which don't match anything are the worst case for the list.
+				messages[i] = makeMessage(typeA, peer, i + filters);
+			}
+			ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+			long now = System.currentTimeMillis();
+			int iterations = Math.max(1000, 1000000 / filters);
+			long t1 = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				index.removeFirstMatch(messages[i % filters], now, timedOut);
+			long t2 = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				linearMatch(list, messages[i % filters], now);
+			long t3 = System.nanoTime();
+			System.out.println(filters+" filters: index "+((t2-t1)/iterations)+"ns/message, list "+
+					((t3-t2)/iterations)+"ns/message");
+		}
+	}
+
+}
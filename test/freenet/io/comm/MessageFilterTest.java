@@ -0,0 +1,65 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.WeakReference;
+
+import junit.framework.TestCase;
+
+public class MessageFilterTest extends TestCase {
+
+	private static final MessageType type = new MessageType("MessageFilterTest", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static PeerContext makePeer() {
+		PeerContext peer = mock(PeerContext.class);
+		doReturn(new WeakReference<PeerContext>(peer)).when(peer).getWeakRef();
+		doReturn(true).when(peer).isConnected();
+		return peer;
+	}
+
+	private static Message makeMessage(PeerContext source, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		byte[] buf = m.encodeToPacket();
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, source, 0);
+	}
+
+	private static MessageFilter makeFilter(PeerContext source, long uid, long timeout) {
+		return MessageFilter.create().setTimeout(timeout).setType(type).setSource(source).setField(DMT.UID, uid);
+	}
+
+	public void testWaitUntilDoneInterrupted() {
+		MessageFilter f = makeFilter(makePeer(), 1L, 60000);
+		Thread.currentThread().interrupt();
+		long start = System.currentTimeMillis();
+		f.waitUntilDone(start);
+		assertTrue(System.currentTimeMillis() - start < 10000);
+		// Cleared, as wait() would have.
+		assertFalse(Thread.interrupted());
+	}
+
+	public void testWaitUntilDoneWakesAllWaiters() throws InterruptedException {
+		PeerContext peer = makePeer();
+		final MessageFilter f = makeFilter(peer, 1L, 60000);
+		Thread[] waiters = new Thread[2];
+		for(int i=0;i<waiters.length;i++) {
+			waiters[i] = new Thread() {
+				@Override
+				public void run() {
+					f.waitUntilDone(System.currentTimeMillis());
+				}
+			};
+			waiters[i].start();
+		}
+		Thread.sleep(100);
+		f.setMessage(makeMessage(peer, 1L));
+		for(Thread waiter : waiters) {
+			waiter.join(10000);
+			assertFalse(waiter.isAlive());
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.Node;
+import freenet.node.ProgramDirectory;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+public class UdpSocketHandlerTest extends TestCase {
+
+	private File dir;
+	private Node node;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = new File("udpsockethandlertest");
+		FileUtil.removeAll(dir);
+		ProgramDirectory runDir = new ProgramDirectory();
+		runDir.move(dir.getPath());
+		node = mock(Node.class);
+		doReturn(runDir).when(node).runDir();
+		doReturn(TrafficClass.getDefault()).when(node).getTrafficClass();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	/** Counts packets, and checks they are the ones we sent. */
+	private static class CountingFilter implements IncomingPacketFilter {
+
+		private final byte[] expected;
+		private int received;
+		private int corrupt;
+
+		CountingFilter(byte[] expected) {
+			this.expected = expected;
+		}
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			boolean ok = length == expected.length &&
+				Arrays.equals(expected, Arrays.copyOfRange(buf, offset, offset + length));
+			synchronized(this) {
+				if(ok) received++;
+				else corrupt++;
+				notifyAll();
+			}
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+		synchronized boolean waitFor(int count, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while(received < count) {
+				long now = System.currentTimeMillis();
+				if(now >= end) return false;
+				wait(end - now);
+			}
+			return true;
+		}
+
+		synchronized int received() {
+			return received;
+		}
+
+	}
+
+	private UdpSocketHandler create(boolean batched) throws IOException {
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		UdpSocketHandler handler = batched ?
+				new NioUdpSocketHandler(0, localhost, node, 0, "test", new IOStatisticCollector()) :
+				new UdpSocketHandler(0, localhost, node, 0, "test", new IOStatisticCollector());
+		return handler;
+	}
+
+	private static Peer peerFor(UdpSocketHandler handler) throws IOException {
+		return new Peer(InetAddress.getByName("127.0.0.1"), handler.getPortNumber());
+	}
+
+	private static byte[] makePacket(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private void checkLoopback(boolean batched) throws Exception {
+		UdpSocketHandler sender = create(batched);
+		UdpSocketHandler receiver = create(batched);
+		byte[] data = makePacket(1000);
+		CountingFilter filter = new CountingFilter(data);
+		receiver.setLowLevelFilter(filter);
+		sender.setLowLevelFilter(new CountingFilter(data));
+		Thread t = new Thread(receiver);
+		t.setDaemon(true);
+		t.start();
+		try {
+			Peer destination = peerFor(receiver);
+			// Small enough not to overflow the socket buffers.
+			for(int i=0;i<50;i++) {
+				sender.sendPacket(data, destination, true);
+				if(i % 10 == 0) sender.flushSends();
+			}
+			sender.flushSends();
+			assertTrue(filter.waitFor(50, 10000));
+			assertEquals(0, filter.corrupt);
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+		t.join(5000);
+		assertFalse(t.isAlive());
+	}
+
+	public void testLoopback() throws Exception {
+		checkLoopback(false);
+	}
+
+	public void testLoopbackBatched() throws Exception {
+		checkLoopback(true);
+	}
+
+	/** Packets from the thread calling flushSends() are held until the next flush. */
+	public void testSendsQueuedUntilFlush() throws Exception {
+		UdpSocketHandler sender = create(true);
+		UdpSocketHandler receiver = create(true);
+		byte[] data = makePacket(100);
+		CountingFilter filter = new CountingFilter(data);
+		receiver.setLowLevelFilter(filter);
+		Thread t = new Thread(receiver);
+		t.setDaemon(true);
+		t.start();
+		try {
+			sender.flushSends();
+			Peer destination = peerFor(receiver);
+			for(int i=0;i<NioUdpSocketHandler.SEND_BATCH-1;i++)
+				sender.sendPacket(data, destination, true);
+			assertFalse(filter.waitFor(1, 200));
+			sender.flushSends();
+			assertTrue(filter.waitFor(NioUdpSocketHandler.SEND_BATCH-1, 10000));
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	private void benchmark(boolean batched) throws Exception {
+		UdpSocketHandler sender = create(batched);
+		UdpSocketHandler receiver = create(batched);
+		byte[] data = makePacket(1200);
+		CountingFilter filter = new CountingFilter(data);
+		receiver.setLowLevelFilter(filter);
+		Thread t = new Thread(receiver);
+		t.setDaemon(true);
+		t.start();
+		try {
+			Peer destination = peerFor(receiver);
+			int packets = 100000;
+			// Keep a window of packets in flight which fits in the receive buffer, so that
+			// nothing is dropped and we measure the whole path rather than the kernel dropping.
+			int window = 32;
+			long start = System.currentTimeMillis();
+			for(int i=0;i<packets;i++) {
+				if(i >= window && !filter.waitFor(i - window, 1000))
+					fail("Lost packets: sent "+i+" received "+filter.received());
+				sender.sendPacket(data, destination, true);
+				if(i % NioUdpSocketHandler.SEND_BATCH == 0) sender.flushSends();
+			}
+			sender.flushSends();
+			assertTrue(filter.waitFor(packets, 1000));
+			long end = System.currentTimeMillis();
+			System.out.println((batched ? "Batched: " : "Blocking: ")+(packets * 1000L / (end - start))+
+					" packets/sec");
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int i=0;i<3;i++) {
+			benchmark(false);
+			benchmark(true);
+		}
+	}
+
+}
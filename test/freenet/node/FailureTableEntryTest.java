@@ -0,0 +1,134 @@
+package freenet.node;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.StripedLRUMap;
+import freenet.support.TestProperty;
+
+public class FailureTableEntryTest extends TestCase {
+
+	private static PeerNode makePeer(long bootID) {
+		PeerNode peer = mock(PeerNode.class);
+		doReturn(new WeakReference<PeerNode>(peer)).when(peer).getWeakRef();
+		doReturn(bootID).when(peer).getBootID();
+		doReturn(0.5).when(peer).getLocation();
+		doReturn(true).when(peer).isConnected();
+		return peer;
+	}
+
+	private static NodeCHK makeKey(Random r) {
+		byte[] routingKey = new byte[32];
+		r.nextBytes(routingKey);
+		return new NodeCHK(routingKey, (byte) 1);
+	}
+
+	public void testTimeouts() {
+		PeerNode peer = makePeer(1);
+		PeerNode other = makePeer(2);
+		FailureTableEntry entry = new FailureTableEntry(makeKey(new Random(1)));
+		long now = System.currentTimeMillis();
+		entry.failedTo(peer, 1000, 2000, now, (short) 10);
+		assertEquals(now + 2000, entry.getTimeoutTime(peer, (short) 10, now, true));
+		assertEquals(now + 1000, entry.getTimeoutTime(peer, (short) 10, now, false));
+		// A timeout at a lower HTL doesn't count.
+		assertEquals(-1, entry.getTimeoutTime(peer, (short) 11, now, true));
+		assertEquals(-1, entry.getTimeoutTime(other, (short) 10, now, true));
+		assertTrue(entry.askedFromPeer(peer, now));
+		assertFalse(entry.askedFromPeer(other, now));
+		assertFalse(entry.isEmpty(now));
+	}
+
+	public void testRequestors() {
+		PeerNode peer = makePeer(1);
+		PeerNode other = makePeer(2);
+		FailureTableEntry entry = new FailureTableEntry(makeKey(new Random(2)));
+		long now = System.currentTimeMillis();
+		entry.addRequestor(peer, now, (short) 15);
+		entry.addRequestor(other, now, (short) 12);
+		assertTrue(entry.askedByPeer(peer, now));
+		assertTrue(entry.othersWant(null));
+		assertEquals(12, entry.minRequestorHTL((short) 18));
+		assertFalse(entry.askedByPeer(peer, now + FailureTableEntry.MAX_TIME_BETWEEN_REQUEST_AND_OFFER + 1));
+	}
+
+	/** Minimal peer for the heap benchmark: mocks record every call, which would swamp the
+	 * figures. */
+	private static class StubPeer implements PeerNodeUnlocked {
+
+		private final WeakReference<StubPeer> ref = new WeakReference<StubPeer>(this);
+		private final long bootID;
+
+		StubPeer(long bootID) {
+			this.bootID = bootID;
+		}
+
+		@Override
+		public double getLocation() {
+			return 0.5;
+		}
+
+		@Override
+		public long getBootID() {
+			return bootID;
+		}
+
+		@Override
+		public void offer(Key key) {
+			// Do nothing.
+		}
+
+		@Override
+		public WeakReference<? extends PeerNodeUnlocked> getWeakRef() {
+			return ref;
+		}
+
+		@Override
+		public String shortToString() {
+			return "stub";
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+	}
+
+	/** Heap used per entry in a full table, as FailureTable fills it for a request which failed
+	 * on one peer. */
+	public void testBenchmarkHeap() {
+		if(!TestProperty.BENCHMARK) return;
+		StubPeer[] peers = new StubPeer[20];
+		for(int i=0;i<peers.length;i++) peers[i] = new StubPeer(i);
+		Random r = new Random(3);
+		long now = System.currentTimeMillis();
+		for(int round=0;round<3;round++) {
+			long before = usedMemory();
+			StripedLRUMap<Key, FailureTableEntry> entries =
+				new StripedLRUMap<Key, FailureTableEntry>(FailureTable.STRIPES, FailureTable.MAX_ENTRIES);
+			for(int i=0;i<FailureTable.MAX_ENTRIES;i++) {
+				NodeCHK key = makeKey(r);
+				FailureTableEntry entry = new FailureTableEntry(key);
+				entry.failedTo(peers[i % peers.length], 1000, 1000, now, (short) 18);
+				entries.push(entry.key, entry);
+			}
+			long after = usedMemory();
+			System.out.println(entries.size()+" entries: "+((after - before) / entries.size())+" bytes per entry");
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0;i<3;i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,234 @@
+package freenet.node;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.support.TestProperty;
+
+public class PeerManagerTest extends TestCase {
+
+	private Node node;
+	private PeerManager peerManager;
+
+	@Override
+	protected void setUp() {
+		node = mock(Node.class);
+		peerManager = spy(new PeerManager(node, mock(SemiOrderedShutdownHook.class)));
+	}
+
+	private void setPeers(PeerNode[] peers) {
+		doReturn(peers).when(peerManager).connectedPeers();
+	}
+
+	/** A connected peer whose peers' locations are known. */
+	private static PeerNode makePeer(double loc, double[] peersLocs, boolean foaf, boolean backedOff) {
+		PeerNode peer = mock(PeerNode.class);
+		final PeerLocation location = new PeerLocation(Double.toString(loc));
+		if(peersLocs != null) location.updateLocation(Location.isValid(loc) ? loc : 0.0, peersLocs);
+		doReturn(loc).when(peer).getLocation();
+		doReturn(location.getPeersLocationArray()).when(peer).getPeersLocationArray();
+		doAnswer(new Answer<Double>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Double answer(InvocationOnMock invocation) {
+				Object[] args = invocation.getArguments();
+				return location.getClosestPeerLocation((Double) args[0], (Set<Double>) args[1]);
+			}
+		}).when(peer).getClosestPeerLocation(anyDouble(), any(Set.class));
+		doReturn(true).when(peer).isRoutable();
+		doReturn(foaf).when(peer).shallWeRouteAccordingToOurPeersLocation(anyInt());
+		doReturn(backedOff).when(peer).isRoutingBackedOff(anyLong(), anyBoolean());
+		return peer;
+	}
+
+	private PeerNode closerPeer(PeerNode source, Set<PeerNode> routedTo, double target, boolean ignoreSelf, double maxDistance, boolean useIndex) {
+		peerManager.useRoutingIndex = useIndex;
+		return peerManager.closerPeer(source, routedTo, target, ignoreSelf, false, -1, null, maxDistance, null, (short)10, 0, source == null, false, null, false, 0, false);
+	}
+
+	/** Going through the closest peers only must pick the same peer as looking at all of them. */
+	public void testSameChoice() {
+		Random r = new Random(1234);
+		int chosen = 0;
+		for(int round=0;round<2000;round++) {
+			PeerNode[] peers = new PeerNode[r.nextInt(30)];
+			for(int i=0;i<peers.length;i++) {
+				double[] peersLocs = null;
+				if(r.nextInt(4) != 0) {
+					peersLocs = new double[r.nextInt(10)];
+					for(int j=0;j<peersLocs.length;j++)
+						peersLocs[j] = Math.abs(RoutingIndexTest.randomLocation(r));
+				}
+				double loc = RoutingIndexTest.randomLocation(r);
+				if(!Location.isValid(loc)) loc = r.nextDouble();
+				peers[i] = makePeer(loc, peersLocs, r.nextInt(3) != 0, r.nextInt(3) == 0);
+				if(r.nextInt(10) == 0) doReturn(false).when(peers[i]).isRoutable();
+				if(r.nextInt(20) == 0) doReturn(true).when(peers[i]).isDisconnecting();
+			}
+			setPeers(peers);
+			doReturn(Math.abs(RoutingIndexTest.randomLocation(r))).when(node).getLocation();
+			for(int i=0;i<20;i++) {
+				PeerNode source = peers.length == 0 || r.nextBoolean() ? null : peers[r.nextInt(peers.length)];
+				Set<PeerNode> routedTo = new HashSet<PeerNode>();
+				for(int j=0;j<peers.length;j++)
+					if(r.nextInt(8) == 0) routedTo.add(peers[j]);
+				double target = r.nextInt(4) == 0 && peers.length > 0 ? peers[r.nextInt(peers.length)].getLocation() : Math.abs(RoutingIndexTest.randomLocation(r));
+				boolean ignoreSelf = r.nextBoolean();
+				double maxDistance = r.nextInt(3) == 0 ? r.nextDouble() / 2 : 2.0;
+				PeerNode expected = closerPeer(source, routedTo, target, ignoreSelf, maxDistance, false);
+				assertSame(expected, closerPeer(source, routedTo, target, ignoreSelf, maxDistance, true));
+				if(expected != null) chosen++;
+			}
+		}
+		// Make sure the test is testing something.
+		assertTrue(chosen > 10000);
+	}
+
+	/** Peers which can't be closer than the best one aren't looked at. */
+	public void testStopsEarly() {
+		PeerNode[] peers = new PeerNode[50];
+		for(int i=0;i<peers.length;i++)
+			peers[i] = makePeer(i / 50.0, new double[] { i / 50.0 + 0.001 }, true, false);
+		setPeers(peers);
+		assertSame(peers[10], closerPeer(null, new HashSet<PeerNode>(), 0.2011, true, 2.0, true));
+		verify(peers[30], never()).isRoutingBackedOff(anyLong(), anyBoolean());
+		verify(peers[30], never()).getClosestPeerLocation(anyDouble(), any(Set.class));
+		// But the location of the peer's peer can be closest.
+		assertSame(peers[10], closerPeer(null, new HashSet<PeerNode>(), 0.2009, true, 2.0, true));
+		// Backed off peers are only chosen if there is nothing else.
+		doReturn(true).when(peers[10]).isRoutingBackedOff(anyLong(), anyBoolean());
+		assertSame(peers[11], closerPeer(null, new HashSet<PeerNode>(), 0.2011, true, 2.0, true));
+	}
+
+	/** The index is rebuilt when the peers or any location changes. */
+	public void testRebuild() {
+		PeerNode[] peers = new PeerNode[] { makePeer(0.1, null, false, false), makePeer(0.2, null, false, false) };
+		RoutingIndex index = peerManager.getRoutingIndex(peers);
+		assertSame(index, peerManager.getRoutingIndex(peers));
+		assertNotSame(index, peerManager.getRoutingIndex(peers.clone()));
+		index = peerManager.getRoutingIndex(peers);
+		new PeerLocation("0.3").setLocation(0.4);
+		assertNotSame(index, peerManager.getRoutingIndex(peers));
+	}
+
+	/** Updating the index for just the peers that have changed gives the same index as
+	 * building it again. */
+	public void testIncrementalUpdate() {
+		Random r = new Random(4321);
+		PeerNode[] peers = new PeerNode[30];
+		long[] versions = new long[peers.length];
+		for(int i=0;i<peers.length;i++) {
+			peers[i] = mock(PeerNode.class);
+			relocate(peers[i], r, 0);
+		}
+		RoutingIndex index = new RoutingIndex(peers, 0);
+		for(int round=1;round<=200;round++) {
+			if(r.nextBoolean()) {
+				// Connected peers changed.
+				peers = peers.clone();
+				for(int i=0;i<peers.length;i++) {
+					if(r.nextInt(10) == 0) {
+						peers[i] = mock(PeerNode.class);
+						versions[i] = 0;
+						relocate(peers[i], r, 0);
+					}
+				}
+			}
+			// Swaps and FOAF updates.
+			for(int i=0;i<peers.length;i++)
+				if(r.nextInt(5) == 0) relocate(peers[i], r, ++versions[i]);
+			index = index.update(peers, round);
+			assertSame(index, index.update(peers, round));
+			assertSameEntries(new RoutingIndex(peers, round), index, r);
+		}
+	}
+
+	private static void relocate(PeerNode peer, Random r, long version) {
+		double[] peersLocs = null;
+		if(r.nextInt(4) != 0) {
+			peersLocs = new double[r.nextInt(10)];
+			for(int j=0;j<peersLocs.length;j++)
+				peersLocs[j] = Math.abs(RoutingIndexTest.randomLocation(r));
+		}
+		doReturn(RoutingIndexTest.randomLocation(r)).when(peer).getLocation();
+		doReturn(peersLocs).when(peer).getPeersLocationArray();
+		doReturn(version).when(peer).getLocationVersion();
+	}
+
+	/** Both indexes return the same peers at the same distances, ignoring the order of ties. */
+	static void assertSameEntries(RoutingIndex expected, RoutingIndex index, Random r) {
+		assertEquals(expected.size(), index.size());
+		for(int i=0;i<10;i++) {
+			double target = r.nextDouble();
+			assertEquals(walk(expected, target), walk(index, target));
+		}
+	}
+
+	private static List<String> walk(RoutingIndex index, double target) {
+		List<String> entries = new ArrayList<String>();
+		RoutingIndex.Walk walk = index.walk(target);
+		while(true) {
+			// The distance of the entry next() is about to return.
+			double distance = walk.lowerBound();
+			int i = walk.next();
+			if(i == -1) break;
+			entries.add(distance+" "+i);
+		}
+		Collections.sort(entries);
+		return entries;
+	}
+
+	/** The time to choose a peer with and without the index, against the number of peers. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(1);
+		for(int count : new int[] { 25, 100, 400, 1600 }) {
+			int calls = 200000 / count;
+			for(int pass=0;pass<2;pass++) {
+				// Mocks remember every call, so start again each pass.
+				PeerNode[] peers = new PeerNode[count];
+				for(int i=0;i<count;i++) {
+					double[] peersLocs = new double[20];
+					for(int j=0;j<peersLocs.length;j++)
+						peersLocs[j] = r.nextDouble();
+					peers[i] = makePeer(r.nextDouble(), peersLocs, true, r.nextInt(4) == 0);
+				}
+				setPeers(peers);
+				doReturn(r.nextDouble()).when(node).getLocation();
+				Set<PeerNode> routedTo = new HashSet<PeerNode>();
+				long[] times = new long[2];
+				for(int useIndex=0;useIndex<2;useIndex++) {
+					long start = System.nanoTime();
+					for(int i=0;i<calls;i++)
+						closerPeer(null, routedTo, r.nextDouble(), false, 2.0, useIndex == 1);
+					times[useIndex] = System.nanoTime() - start;
+				}
+				if(pass == 1)
+					System.out.println(count+" peers: full scan "+(times[0] / calls / 1000)+"us, index "+
+							(times[1] / calls / 1000)+"us per choice (mocked peers)");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package freenet.node;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+
+public class PeersFileTest extends TestCase {
+
+	private static PeerNode makePeer(String name) {
+		PeerNode pn = mock(DarknetPeerNode.class);
+		setName(pn, name);
+		return pn;
+	}
+
+	private static void setName(PeerNode pn, String name) {
+		doReturn(fieldSet(name)).when(pn).exportDiskFieldSet();
+	}
+
+	private static SimpleFieldSet fieldSet(String name) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("myName", name);
+		return fs;
+	}
+
+	private static String noderef(String name) {
+		return fieldSet(name).toOrderedString();
+	}
+
+	/** Only the peers which have changed are exported again. */
+	public void testOnlyChangedExported() {
+		PeersFile file = new PeersFile();
+		PeerNode a = makePeer("a");
+		PeerNode b = makePeer("b");
+		PeerNode[] peers = new PeerNode[] { a, b };
+		assertEquals(noderef("a")+noderef("b"), file.build(peers, DarknetPeerNode.class));
+		assertEquals(2, file.getExported());
+		// Nothing has changed.
+		assertNull(file.build(peers, DarknetPeerNode.class));
+		assertEquals(1, file.getUnchanged());
+		assertEquals(2, file.getReused());
+		setName(b, "c");
+		file.changed(b);
+		assertEquals(noderef("a")+noderef("c"), file.build(peers, DarknetPeerNode.class));
+		verify(a, times(1)).exportDiskFieldSet();
+		verify(b, times(2)).exportDiskFieldSet();
+		// A change we weren't told about is picked up by a refresh.
+		setName(a, "d");
+		assertNull(file.build(peers, DarknetPeerNode.class));
+		file.forceRefresh();
+		assertEquals(noderef("d")+noderef("c"), file.build(peers, DarknetPeerNode.class));
+		assertEquals(5, file.getExported());
+	}
+
+	/** Peers are written in the order given, new ones exported and removed ones dropped. */
+	public void testAddRemove() {
+		PeersFile file = new PeersFile();
+		PeerNode a = makePeer("a");
+		PeerNode b = makePeer("b");
+		PeerNode other = mock(OpennetPeerNode.class);
+		assertEquals(noderef("a"), file.build(new PeerNode[] { a, other }, DarknetPeerNode.class));
+		assertEquals(noderef("b")+noderef("a"), file.build(new PeerNode[] { b, a }, DarknetPeerNode.class));
+		assertEquals(noderef("b"), file.build(new PeerNode[] { b }, DarknetPeerNode.class));
+		assertEquals(noderef("a")+noderef("b"), file.build(new PeerNode[] { a, b }, DarknetPeerNode.class));
+		verify(a, times(2)).exportDiskFieldSet();
+		verify(b, times(1)).exportDiskFieldSet();
+	}
+
+}
@@ -0,0 +1,45 @@
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+
+import junit.framework.TestCase;
+import freenet.support.math.RunningAverage;
+
+public class RequestStarterTest extends TestCase {
+
+	private RequestStarter starter;
+
+	@Override
+	protected void setUp() {
+		starter = new RequestStarter(mock(NodeClientCore.class), mock(BaseRequestThrottle.class), "test",
+				mock(RunningAverage.class), mock(RunningAverage.class), false, false, false);
+	}
+
+	public void testTokens() {
+		starter.addTokens(1000, 100);
+		assertEquals(0.0, starter.getTokens(), 0.0);
+		starter.addTokens(1150, 100);
+		assertEquals(1.5, starter.getTokens(), 0.0001);
+		// The delay in force now applies to the whole interval.
+		starter.addTokens(1200, 50);
+		assertEquals(2.5, starter.getTokens(), 0.0001);
+		// Only a few can build up.
+		starter.addTokens(100000, 100);
+		assertEquals(RequestStarter.MAX_TOKENS, starter.getTokens(), 0.0);
+		// Clock going backwards adds nothing.
+		starter.addTokens(50000, 100);
+		assertEquals(RequestStarter.MAX_TOKENS, starter.getTokens(), 0.0);
+	}
+
+	public void testStats() {
+		starter.reportStarted(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, 100);
+		starter.reportStarted(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, 300);
+		starter.reportStarted(RequestStarter.INTERACTIVE_PRIORITY_CLASS, 10);
+		assertEquals(2, starter.getStarted(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		assertEquals(1, starter.getStarted(RequestStarter.INTERACTIVE_PRIORITY_CLASS));
+		assertEquals(0, starter.getStarted(RequestStarter.PREFETCH_PRIORITY_CLASS));
+		assertEquals(200.0, starter.getStartLatency(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS), 0.0001);
+		assertEquals(10.0, starter.getStartLatency(RequestStarter.INTERACTIVE_PRIORITY_CLASS), 0.0001);
+	}
+
+}
@@ -0,0 +1,297 @@
+package freenet.node;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.RequestTracker.CountedRequests;
+import freenet.support.TestProperty;
+
+public class RequestTrackerTest extends TestCase {
+
+	private RequestTracker tracker;
+	private PeerNode[] peers;
+	private HashMap<Long, UIDTag> tags;
+	private long nextUID;
+
+	@Override
+	protected void setUp() {
+		PeerManager peerManager = mock(PeerManager.class);
+		doReturn(new PeerNode[0]).when(peerManager).myPeers();
+		tracker = new RequestTracker(peerManager, null);
+		peers = new PeerNode[5];
+		for(int i=0;i<peers.length;i++) {
+			PeerNode peer = mock(PeerNode.class);
+			doReturn(new WeakReference<PeerNode>(peer)).when(peer).getWeakRef();
+			peers[i] = peer;
+		}
+		tags = new HashMap<Long, UIDTag>();
+	}
+
+	/** Create and lock a random tag. */
+	private UIDTag addTag(Random r) {
+		boolean ssk = r.nextBoolean();
+		boolean realTimeFlag = r.nextBoolean();
+		PeerNode source = r.nextInt(4) == 0 ? null : peers[r.nextInt(peers.length)];
+		long uid = nextUID++;
+		UIDTag tag;
+		switch(r.nextInt(3)) {
+		case 0:
+			tag = new RequestTag(ssk, source == null ? RequestTag.START.LOCAL : RequestTag.START.REMOTE, source, realTimeFlag, uid, tracker);
+			break;
+		case 1:
+			tag = new InsertTag(ssk, source == null ? InsertTag.START.LOCAL : InsertTag.START.REMOTE, source, realTimeFlag, uid, tracker);
+			break;
+		default:
+			if(source == null) source = peers[0];
+			tag = new OfferReplyTag(ssk, source, realTimeFlag, uid, tracker);
+		}
+		assertTrue(tracker.lockUID(tag));
+		tags.put(uid, tag);
+		return tag;
+	}
+
+	/** Change a random tag in a way that may affect how it is counted. */
+	private void changeTag(Random r) {
+		List<Long> running = new ArrayList<Long>();
+		tracker.addRunningUIDs(running);
+		if(running.isEmpty()) return;
+		UIDTag tag = tags.get(running.get(r.nextInt(running.size())));
+		PeerNode peer = peers[r.nextInt(peers.length)];
+		switch(r.nextInt(10)) {
+		case 0:
+			tag.setAccepted();
+			break;
+		case 1:
+			tag.setNotRoutedOnwards();
+			break;
+		case 2:
+			tag.addRoutedTo(peer, false);
+			break;
+		case 3:
+			if(tag.currentlyRoutingTo(peer)) {
+				tag.handlingTimeout(peer);
+				tag.removeRoutingTo(peer);
+			}
+			break;
+		case 4:
+			tag.unlockHandler();
+			break;
+		case 5:
+			tracker.onRestartOrDisconnect(peer);
+			break;
+		case 6:
+			tag.timedOutToHandlerButContinued();
+			break;
+		case 7:
+			tag.reassignToSelf();
+			break;
+		case 8:
+			if(tag instanceof RequestTag)
+				((RequestTag)tag).completedDownstreamTransfers();
+			else if(tag instanceof InsertTag)
+				((InsertTag)tag).startedSender();
+			break;
+		default:
+			if(tag instanceof InsertTag)
+				((InsertTag)tag).finishedSender();
+			else
+				tag.unlockHandler();
+		}
+	}
+
+	/** The tags in the given running* map, as countRequests() used to go through them. */
+	private List<UIDTag> runningTags(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		List<Long> running = new ArrayList<Long>();
+		tracker.addRunningUIDs(running);
+		List<UIDTag> list = new ArrayList<UIDTag>();
+		for(Long uid : running) {
+			UIDTag tag = tags.get(uid);
+			if(tag.isSSK() != ssk || tag.realTimeFlag != realTimeFlag || tag.isOfferReply() != offer) continue;
+			if(!offer && tag.isInsert() != insert) continue;
+			// Only offer replies don't have a separate local map.
+			if(local && !offer && !tag.wasLocal()) continue;
+			if(!local && tag.wasLocal()) continue;
+			list.add(tag);
+		}
+		return list;
+	}
+
+	/** Count requests by going through all of them, the way RequestTracker used to. */
+	private int[] recount(PeerNode source, boolean bySource, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		int[] counts = new int[6];
+		if(bySource && local && source != null) return counts;
+		for(UIDTag tag : runningTags(local, ssk, insert, offer, realTimeFlag)) {
+			if(bySource && tag.getSource() != source) continue;
+			int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+			int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+			counts[0]++;
+			counts[1] += in;
+			counts[2] += out;
+			if(tag.countAsSourceRestarted()) {
+				counts[3]++;
+				counts[4] += in;
+				counts[5] += out;
+			}
+		}
+		return counts;
+	}
+
+	private static int[] toArray(CountedRequests counter, CountedRequests counterSR) {
+		return new int[] { counter.total(), counter.expectedTransfersIn(), counter.expectedTransfersOut(),
+				counterSR.total(), counterSR.expectedTransfersIn(), counterSR.expectedTransfersOut() };
+	}
+
+	private void checkCounts(Random r) {
+		boolean local = r.nextBoolean();
+		boolean ssk = r.nextBoolean();
+		boolean insert = r.nextBoolean();
+		boolean offer = r.nextInt(3) == 0;
+		boolean realTimeFlag = r.nextBoolean();
+		int transfersPerInsert = r.nextInt(5);
+		boolean ignoreLocalVsRemote = r.nextBoolean();
+		CountedRequests counter = new CountedRequests();
+		CountedRequests counterSR = new CountedRequests();
+		tracker.countRequests(local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+		assertEquals(Arrays.toString(recount(null, false, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote)),
+				Arrays.toString(toArray(counter, counterSR)));
+		PeerNode source = r.nextInt(6) == 0 ? null : peers[r.nextInt(peers.length)];
+		counter = new CountedRequests();
+		counterSR = new CountedRequests();
+		tracker.countRequests(source, false, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+		assertEquals(Arrays.toString(recount(source, true, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote)),
+				Arrays.toString(toArray(counter, counterSR)));
+	}
+
+	public void testRandomChanges() {
+		Random r = new Random(1234);
+		for(int i=0;i<5000;i++) {
+			if(r.nextInt(3) == 0)
+				addTag(r);
+			else
+				changeTag(r);
+			checkCounts(r);
+		}
+		assertTrue(tracker.checkRunningCounts());
+	}
+
+	public void testByIncomingPeer() {
+		Random r = new Random(5678);
+		for(int i=0;i<2000;i++) {
+			if(r.nextInt(2) == 0)
+				addTag(r);
+			else
+				changeTag(r);
+		}
+		for(boolean local : new boolean[] { false, true }) {
+			Map<PeerNode, CountedRequests> counterMap = new HashMap<PeerNode, CountedRequests>();
+			tracker.countAllRequestsByIncomingPeer(false, local, false, false, false, false, 2, false, counterMap);
+			List<PeerNode> sources = new ArrayList<PeerNode>();
+			for(PeerNode peer : peers) sources.add(peer);
+			sources.add(null);
+			for(PeerNode source : sources) {
+				if(local && source != null) continue;
+				int[] expected = recount(source, true, local, false, false, false, false, 2, false);
+				CountedRequests counter = counterMap.get(source);
+				if(counter == null)
+					assertEquals(0, expected[0]);
+				else {
+					assertEquals(expected[0], counter.total());
+					assertEquals(expected[1], counter.expectedTransfersIn());
+					assertEquals(expected[2], counter.expectedTransfersOut());
+				}
+			}
+		}
+	}
+
+	/** Tags which are unlocked are no longer counted. */
+	public void testUnlock() {
+		RequestTag tag = new RequestTag(false, RequestTag.START.REMOTE, peers[0], false, nextUID++, tracker);
+		assertTrue(tracker.lockUID(tag));
+		tag.setAccepted();
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequests(peers[0], false, false, false, false, false, false, 1, false, counter, null);
+		assertEquals(1, counter.total());
+		assertEquals(1, counter.expectedTransfersIn());
+		assertEquals(1, counter.expectedTransfersOut());
+		tag.unlockHandler();
+		counter = new CountedRequests();
+		tracker.countRequests(peers[0], false, false, false, false, false, false, 1, false, counter, null);
+		assertEquals(0, counter.total());
+		counter = new CountedRequests();
+		tracker.countRequests(false, false, false, false, false, 1, false, counter, null);
+		assertEquals(0, counter.total());
+		assertTrue(tracker.checkRunningCounts());
+	}
+
+	/** The cost of the counting in shouldRejectRequest(), which counts all requests and those
+	 * from the source of the request, against the number of requests running. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(1);
+		for(int running : new int[] { 100, 1000, 10000, 50000 }) {
+			while(tags.size() < running) {
+				UIDTag tag = addTag(r);
+				tag.setAccepted();
+			}
+			int decisions = 2000000 / running + 100;
+			for(int pass=0;pass<2;pass++) {
+				long start = System.nanoTime();
+				for(int i=0;i<decisions;i++)
+					countForDecision(peers[i % peers.length], false);
+				long scanTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(int i=0;i<decisions*100;i++)
+					countForDecision(peers[i % peers.length], true);
+				long incrementalTime = (System.nanoTime() - start) / 100;
+				if(pass == 1)
+					System.out.println(running+" running requests: full scan "+(scanTime / decisions / 1000)+"us, incremental "+
+							(incrementalTime / decisions)+"ns per decision");
+			}
+		}
+	}
+
+	/** The counts taken by the two RunningRequestsSnapshot's in shouldRejectRequest(). */
+	private void countForDecision(PeerNode source, boolean incremental) {
+		for(boolean local : new boolean[] { true, false }) {
+			for(boolean ssk : new boolean[] { false, true }) {
+				for(int type=0;type<3;type++) {
+					if(local && type == 2) continue;
+					boolean insert = type == 1;
+					boolean offer = type == 2;
+					if(incremental) {
+						tracker.countRequests(local, ssk, insert, offer, false, 2, false, new CountedRequests(), new CountedRequests());
+						tracker.countRequests(source, false, local, ssk, insert, offer, false, 2, false, new CountedRequests(), new CountedRequests());
+					} else {
+						scan(null, false, local, ssk, insert, offer);
+						scan(source, true, local, ssk, insert, offer);
+					}
+				}
+			}
+		}
+	}
+
+	private int scan(PeerNode source, boolean bySource, boolean local, boolean ssk, boolean insert, boolean offer) {
+		// Like recount() but without building a list of UIDs first.
+		int total = 0;
+		for(UIDTag tag : tags.values()) {
+			if(tag.isSSK() != ssk || tag.realTimeFlag || tag.isOfferReply() != offer) continue;
+			if(!offer && tag.isInsert() != insert) continue;
+			if(local != tag.wasLocal()) continue;
+			if(bySource && tag.getSource() != source) continue;
+			total += tag.expectedTransfersIn(false, 2, true) + tag.expectedTransfersOut(false, 2, true);
+			if(tag.countAsSourceRestarted()) total++;
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,94 @@
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RoutingIndexTest extends TestCase {
+
+	/** The walk returns every location, each no closer than the last, and never further than
+	 * the lower bound it gave before. */
+	public void testWalkOrder() {
+		Random r = new Random(1234);
+		for(int round=0;round<1000;round++) {
+			int n = r.nextInt(20);
+			double[] loc = new double[n];
+			double[][] peersLocs = new double[n][];
+			int entries = 0;
+			for(int i=0;i<n;i++) {
+				loc[i] = randomLocation(r);
+				if(Location.isValid(loc[i])) entries++;
+				if(r.nextInt(4) != 0) {
+					peersLocs[i] = new double[r.nextInt(10)];
+					for(int j=0;j<peersLocs[i].length;j++)
+						peersLocs[i][j] = Math.abs(randomLocation(r));
+					entries += peersLocs[i].length;
+				}
+			}
+			RoutingIndex index = new RoutingIndex(null, 0, loc, peersLocs);
+			assertEquals(entries, index.size());
+			double target = r.nextInt(3) == 0 ? loc.length == 0 ? 0.0 : Math.abs(loc[0]) : r.nextDouble();
+			RoutingIndex.Walk walk = index.walk(target);
+			int[] seen = new int[n];
+			double last = Double.NEGATIVE_INFINITY;
+			int returned = 0;
+			while(true) {
+				double bound = walk.lowerBound();
+				int i = walk.next();
+				if(i == -1) {
+					assertEquals(Double.POSITIVE_INFINITY, bound);
+					break;
+				}
+				returned++;
+				seen[i]++;
+				if(!Location.isValid(loc[i]) && seen[i] == 1) continue;
+				double d = closestUnseen(i, seen[i], loc, peersLocs, target);
+				assertTrue(d >= bound);
+				assertTrue(d >= last - RoutingIndex.SLACK);
+				last = d;
+			}
+			assertEquals(entries + invalid(loc), returned);
+		}
+	}
+
+	private static int invalid(double[] loc) {
+		int count = 0;
+		for(double l : loc)
+			if(!Location.isValid(l)) count++;
+		return count;
+	}
+
+	/** The distance of the k'th closest location of peer i. */
+	private static double closestUnseen(int i, int k, double[] loc, double[][] peersLocs, double target) {
+		int count = (peersLocs[i] == null ? 0 : peersLocs[i].length) + (Location.isValid(loc[i]) ? 1 : 0);
+		double[] d = new double[count];
+		int x = 0;
+		if(Location.isValid(loc[i])) d[x++] = Location.distance(loc[i], target);
+		if(peersLocs[i] != null)
+			for(double l : peersLocs[i])
+				d[x++] = Location.distance(l, target);
+		Arrays.sort(d);
+		if(!Location.isValid(loc[i])) k--;
+		return d[k-1];
+	}
+
+	/** Mostly random, some on a coarse grid so there are ties, some at the ends, a few invalid. */
+	static double randomLocation(Random r) {
+		switch(r.nextInt(20)) {
+		case 0:
+			return 0.0;
+		case 1:
+			return 1.0;
+		case 2:
+			return -1.0;
+		case 3:
+		case 4:
+		case 5:
+			return r.nextInt(16) / 16.0;
+		default:
+			return r.nextDouble();
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package freenet.store.saltedhash;
+
+import junit.framework.TestCase;
+
+public class CleanerThrottleTest extends TestCase {
+
+	private static final long MS = 1000 * 1000;
+
+	/** With no requests at all, the Cleaner speeds up to full speed. */
+	public void testIdle() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		throttle.onStartCleaning();
+		long delay = CleanerThrottle.INITIAL_DELAY;
+		for(int i=0;i<50;i++) {
+			long next = throttle.delay();
+			assertTrue(next <= delay);
+			delay = next;
+		}
+		assertEquals(0, delay);
+	}
+
+	/** If requests get much slower once the Cleaner starts, it backs off, up to MAX_DELAY. */
+	public void testBackOff() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		for(int i=0;i<1000;i++)
+			throttle.onRequest(1 * MS);
+		throttle.onStartCleaning();
+		long delay = CleanerThrottle.INITIAL_DELAY;
+		for(int i=0;i<20;i++) {
+			for(int j=0;j<10;j++)
+				throttle.onRequest(20 * MS);
+			long next = throttle.delay();
+			assertTrue(next >= delay);
+			delay = next;
+		}
+		assertEquals(CleanerThrottle.MAX_DELAY, delay);
+		// Latency comes back down: speed up again.
+		for(int i=0;i<100;i++) {
+			for(int j=0;j<10;j++)
+				throttle.onRequest(1 * MS);
+			delay = throttle.delay();
+		}
+		assertEquals(0, delay);
+		throttle.onStopCleaning();
+	}
+
+	/** Requests which are a little slower than before are not a reason to back off. */
+	public void testSmallSlowdown() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		for(int i=0;i<1000;i++)
+			throttle.onRequest(10 * 1000);
+		throttle.onStartCleaning();
+		for(int i=0;i<50;i++) {
+			throttle.onRequest(500 * 1000);
+			throttle.delay();
+		}
+		assertEquals(0, throttle.delay());
+	}
+
+	/** The baseline only follows requests made while the Cleaner is idle. */
+	public void testBaselineNotRaisedWhileCleaning() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		for(int i=0;i<1000;i++)
+			throttle.onRequest(1 * MS);
+		throttle.onStartCleaning();
+		for(int i=0;i<10000;i++)
+			throttle.onRequest(20 * MS);
+		assertTrue(throttle.delay() > CleanerThrottle.INITIAL_DELAY);
+	}
+
+}
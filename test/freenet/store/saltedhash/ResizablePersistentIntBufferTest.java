@@ -0,0 +1,123 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private File tempDir;
+	private File file;
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+		file = new File(tempDir, "test.slotfilter");
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME);
+		FileUtil.removeAll(tempDir);
+	}
+
+	private static void fillRandom(ResizablePersistentIntBuffer buf, int[] expected, long seed) throws IOException {
+		Random r = new Random(seed);
+		for(int i=0;i<expected.length;i++) {
+			expected[i] = r.nextInt();
+			buf.put(i, expected[i]);
+		}
+	}
+
+	private static void check(ResizablePersistentIntBuffer buf, int[] expected, int length) {
+		for(int i=0;i<length;i++)
+			assertEquals(expected[i], buf.get(i));
+	}
+
+	private void checkPersist(boolean mappedBefore, boolean mappedAfter, int persistenceTime) throws IOException {
+		FileUtil.removeAll(file);
+		ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
+		int size = 10000;
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, size, mappedBefore);
+		assertTrue(buf.isNew());
+		int[] expected = new int[size];
+		fillRandom(buf, expected, size);
+		check(buf, expected, size);
+		buf.shutdown();
+		assertEquals(size * 4, file.length());
+		buf = new ResizablePersistentIntBuffer(file, size, mappedAfter);
+		assertFalse(buf.isNew());
+		check(buf, expected, size);
+		buf.shutdown();
+	}
+
+	/** Both modes use the same file format, and write out on shutdown. */
+	public void testPersist() throws IOException {
+		for(int persistenceTime : new int[] { -1, 0 }) {
+			checkPersist(false, false, persistenceTime);
+			checkPersist(true, true, persistenceTime);
+			checkPersist(false, true, persistenceTime);
+			checkPersist(true, false, persistenceTime);
+		}
+	}
+
+	/** A mapped buffer doesn't need to be written out to survive the node going away. */
+	public void testMappedAbort() throws IOException {
+		int size = 1000;
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, size, true);
+		int[] expected = new int[size];
+		fillRandom(buf, expected, 1);
+		buf.abort();
+		buf = new ResizablePersistentIntBuffer(file, size, true);
+		check(buf, expected, size);
+		buf.shutdown();
+	}
+
+	private void checkResize(boolean mapped) throws IOException {
+		FileUtil.removeAll(file);
+		int size = 1000;
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, size, mapped);
+		int[] expected = new int[size];
+		fillRandom(buf, expected, 2);
+		buf.resize(2000);
+		assertEquals(2000, buf.size());
+		assertEquals(8000, file.length());
+		check(buf, expected, size);
+		buf.put(1999, 7);
+		assertEquals(7, buf.get(1999));
+		buf.resize(500);
+		assertEquals(500, buf.size());
+		check(buf, expected, 500);
+		buf.shutdown();
+		buf = new ResizablePersistentIntBuffer(file, 500, !mapped);
+		check(buf, expected, 500);
+		buf.shutdown();
+	}
+
+	public void testResize() throws IOException {
+		checkResize(false);
+		checkResize(true);
+	}
+
+	private void checkFillAndReplace(boolean mapped) throws IOException {
+		FileUtil.removeAll(file);
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, 100, mapped);
+		buf.fill(3);
+		buf.put(10, 4);
+		buf.replaceAllEntries(3, 5);
+		for(int i=0;i<100;i++)
+			assertEquals(i == 10 ? 4 : 5, buf.get(i));
+		buf.shutdown();
+	}
+
+	public void testFillAndReplace() throws IOException {
+		checkFillAndReplace(false);
+		checkFillAndReplace(true);
+	}
+
+}
@@ -2,7 +2,10 @@ package freenet.store.saltedhash;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 import freenet.crypt.DSAGroup;
@@ -22,6 +25,7 @@ import freenet.keys.ClientSSK;
 import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
+import freenet.keys.KeyBlock;
 import freenet.keys.KeyDecodeException;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
@@ -35,8 +39,11 @@ import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
+import freenet.store.StorableBlock;
+import freenet.store.StoreCallback;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -70,6 +77,8 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 
 	@Override
 	protected void tearDown() {
+		SaltedHashFreenetStore.PARALLEL_PROBES = true;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
 		FileUtil.removeAll(tempDir);
 	}
 	
@@ -125,6 +134,209 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* Without a slot filter, every probe reads the metadata, so they are done in parallel. */
+	public void testParallelProbesCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkProbesCHK(true);
+		FileUtil.removeAll(tempDir);
+		checkProbesCHK(false);
+	}
+	
+	private void checkProbesCHK(boolean parallel) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		SaltedHashFreenetStore.PARALLEL_PROBES = parallel;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHK", store, weakPRNG, 200, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(ticker, true);
+
+		for(int i=0;i<50;i++)
+			store.put(encodeBlockCHK("test" + i).getBlock(), false);
+		for(int i=0;i<50;i++) {
+			String test = "test" + i;
+			ClientCHK key = encodeBlockCHK(test).getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		for(int i=0;i<50;i++) {
+			ClientCHK key = encodeBlockCHK("missing" + i).getClientKey();
+			assertNull(store.fetch(key.getNodeCHK(), false, false, null));
+		}
+		
+		saltStore.close();
+	}
+	
+	/* Grow and then shrink the store. The Cleaner moves every key, on several threads. */
+	public void testResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHK", store, weakPRNG, 1000, true, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+		saltStore.start(ticker, true);
+
+		int keys = 200;
+		for(int i=0;i<keys;i++)
+			store.put(encodeBlockCHK("test" + i).getBlock(), false);
+		
+		for(long size : new long[] { 3000, 2000 }) {
+			saltStore.setMaxKeys(size, true);
+			assertEquals(size, saltStore.getMaxKeys());
+			for(int i=0;i<keys;i++) {
+				String test = "test" + i;
+				ClientCHK key = encodeBlockCHK(test).getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				assertNotNull("Lost "+test+" resizing to "+size, verify);
+				assertEquals(test, decodeBlockCHK(verify, key));
+			}
+		}
+		
+		saltStore.close();
+	}
+	
+	private static class WaitingFetchCallback<T extends StorableBlock> implements SaltedHashFreenetStore.FetchCallback<T> {
+		
+		private boolean done;
+		private T block;
+		
+		@Override
+		public synchronized void onFetched(T block) {
+			this.block = block;
+			done = true;
+			notifyAll();
+		}
+		
+		@Override
+		public synchronized void onFailure(IOException e) {
+			done = true;
+			notifyAll();
+		}
+		
+		synchronized T waitFor() throws InterruptedException {
+			while(!done) wait();
+			return block;
+		}
+		
+	}
+	
+	public void testAsyncFetchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHK", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(ticker, true);
+
+		ClientCHKBlock block = encodeBlockCHK("test");
+		store.put(block.getBlock(), false);
+		ClientCHK key = block.getClientKey();
+		WaitingFetchCallback<CHKBlock> cb = new WaitingFetchCallback<CHKBlock>();
+		saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null, cb);
+		assertEquals("test", decodeBlockCHK(cb.waitFor(), key));
+		
+		cb = new WaitingFetchCallback<CHKBlock>();
+		ClientCHK missing = encodeBlockCHK("missing").getClientKey();
+		saltStore.fetch(missing.getRoutingKey(), missing.getNodeCHK().getFullKey(), false, false, false, false, null, cb);
+		assertNull(cb.waitFor());
+		
+		saltStore.close();
+	}
+	
+	/** Mixed workload: 10% puts, and fetches of which half are hits. 
+	 * @return Operations per second. */
+	private static <T extends KeyBlock> long runWorkload(final SaltedHashFreenetStore<T> saltStore, final List<T> blocks, int threads, final int opsPerThread) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		final AtomicLong failures = new AtomicLong();
+		for(int i=0;i<threads;i++) {
+			final int seed = i;
+			workers[i] = new Thread() {
+				
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					byte[] missing = new byte[32];
+					try {
+						for(int j=0;j<opsPerThread;j++) {
+							T block = blocks.get(r.nextInt(blocks.size()));
+							int op = r.nextInt(20);
+							if(op < 2) {
+								try {
+									saltStore.put(block, block.getRawData(), block.getRawHeaders(), false, false);
+								} catch (KeyCollisionException e) {
+									// Ignore.
+								}
+							} else if(op < 11) {
+								saltStore.fetch(block.getRoutingKey(), block.getFullKey(), false, false, false, false, null);
+							} else {
+								r.nextBytes(missing);
+								saltStore.fetch(missing, null, false, false, false, false, null);
+							}
+						}
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					}
+				}
+				
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : workers) t.start();
+		for(Thread t : workers) t.join();
+		long time = System.nanoTime() - start;
+		assertEquals(0, failures.get());
+		return threads * (long)opsPerThread * 1000L * 1000L * 1000L / time;
+	}
+	
+	private <T extends KeyBlock> void benchmark(String type, StoreCallback<T> store, List<T> blocks, int storeSize) throws IOException, InterruptedException {
+		for(boolean slotFilter : new boolean[] { false, true }) {
+			for(int round=0;round<2;round++) {
+				for(boolean parallel : new boolean[] { false, true }) {
+					SaltedHashFreenetStore.PARALLEL_PROBES = parallel;
+					File f = new File(tempDir, "saltstore-"+type+"-"+slotFilter);
+					SaltedHashFreenetStore<T> saltStore = SaltedHashFreenetStore.construct(f, "benchmark", store, weakPRNG, storeSize, slotFilter, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+					saltStore.start(ticker, true);
+					for(T block : blocks) {
+						try {
+							saltStore.put(block, block.getRawData(), block.getRawHeaders(), false, false);
+						} catch (KeyCollisionException e) {
+							// Ignore.
+						}
+					}
+					long opsPerSec = runWorkload(saltStore, blocks, 4, 2500);
+					saltStore.close();
+					if(round == 1)
+						System.out.println(type+(slotFilter ? " with" : " without")+" slot filter, "+
+								(parallel ? "parallel" : "sequential")+" probes: "+opsPerSec+" ops/sec");
+				}
+			}
+		}
+	}
+	
+	/** Store throughput for synthetic CHK and SSK workloads, with and without parallel probes. 
+	 * Note that the store files will mostly be in the OS cache, so this shows the CPU overhead of 
+	 * parallel probes; the gain is on a real device with a deep queue. */
+	public void testBenchmarkThroughput() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		List<CHKBlock> chks = new ArrayList<CHKBlock>();
+		for(int i=0;i<2000;i++)
+			chks.add(encodeBlockCHK("test" + i).getBlock());
+		benchmark("CHK", new CHKStore(), chks, 4000);
+		
+		PubkeyStore pk = new PubkeyStore();
+		new RAMFreenetStore<DSAPublicKey>(pk, 500);
+		GetPubkey pubkeyCache = new SimpleGetPubkey(pk);
+		RandomSource random = new DummyRandomSource(12345);
+		List<SSKBlock> ssks = new ArrayList<SSKBlock>();
+		for(int i=0;i<500;i++) {
+			ClientSSKBlock block = encodeBlockSSK("test" + i, random);
+			NodeSSK ssk = (NodeSSK) block.getClientKey().getNodeKey();
+			pubkeyCache.cacheKey(ssk.getPubKeyHash(), ssk.getPubKey(), false, false, false, false, false);
+			ssks.add((SSKBlock) block.getBlock());
+		}
+		benchmark("SSK", new SSKStore(pubkeyCache), ssks, 1000);
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -45,6 +45,7 @@ public class SaltedHashSlotFilterTest extends TestCase {
 
 	@Override
 	protected void tearDown() {
+		ResizablePersistentIntBuffer.setMemoryMapped(false);
 		FileUtil.removeAll(tempDir);
 	}
 	
@@ -97,6 +98,20 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	public void testCHKPresentMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		ResizablePersistentIntBuffer.setMemoryMapped(true);
+		checkCHKPresent(-1, TEST_COUNT, ACCEPTABLE_FALSE_POSITIVES, STORE_SIZE);
+		FileUtil.removeAll(tempDir);
+		checkCHKPresent(600*1000, TEST_COUNT, ACCEPTABLE_FALSE_POSITIVES, STORE_SIZE);
+	}
+	
+	public void testCHKPresentWithCloseMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		ResizablePersistentIntBuffer.setMemoryMapped(true);
+		checkCHKPresentWithClose(-1);
+		FileUtil.removeAll(tempDir);
+		checkCHKPresentWithClose(600*1000);
+	}
+	
 	public void testCHKPresentWithClose() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		checkCHKPresentWithClose(-1);
 		FileUtil.removeAll(tempDir);
@@ -203,6 +218,44 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/** A crash loses the slot filter if it wasn't memory mapped, even if it is mapped after the
+	 * restart. */
+	public void testCHKAbortThenSwitchToMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		ResizablePersistentIntBuffer.setPersistenceTime(600*1000);
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		// Write an empty slot filter, so the file says none of the keys are there.
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<TEST_COUNT;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+		}
+		// Abrupt abort before the slot filter is written.
+		saltStore.close(true);
+
+		ResizablePersistentIntBuffer.setMemoryMapped(true);
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<TEST_COUNT;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			ClientCHK key = block.getClientKey();
+			assertTrue(saltStore.probablyInStore(key.getRoutingKey()));
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
 	public void testCHKDelayedTurnOnSlotFilters() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		int delay = 1000;
 		ResizablePersistentIntBuffer.setPersistenceTime(delay);
@@ -301,6 +354,39 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/** Time to open a store, and to fetch keys which aren't in it, which is answered from the slot 
+	 * filter, with and without memory mapping. */
+	public void testBenchmarkFetchMiss() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		ResizablePersistentIntBuffer.setPersistenceTime(ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME);
+		int storeSize = 1000*1000;
+		int fetches = 1000*1000;
+		for(int round=0;round<3;round++) {
+			for(boolean mapped : new boolean[] { false, true }) {
+				ResizablePersistentIntBuffer.setMemoryMapped(mapped);
+				File f = new File(tempDir, "saltstore");
+				if(round == 0) FileUtil.removeAll(f);
+				CHKStore store = new CHKStore();
+				long start = System.nanoTime();
+				SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "benchmark", store, weakPRNG, storeSize, true, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+				saltStore.start(null, true);
+				long opened = System.nanoTime();
+				Random r = new Random(round);
+				byte[] routingKey = new byte[32];
+				int found = 0;
+				for(int i=0;i<fetches;i++) {
+					r.nextBytes(routingKey);
+					if(saltStore.fetch(routingKey, null, false, false, false, false, null) != null) found++;
+				}
+				long end = System.nanoTime();
+				saltStore.close();
+				assertEquals(0, found);
+				System.out.println((mapped ? "Mapped: " : "Heap: ")+"open "+((opened - start) / 1000000)+"ms, fetch miss "+
+						((end - opened) / fetches)+"ns");
+			}
+		}
+	}
+	
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -7,6 +7,7 @@ import java.util.Random;
 import java.util.Set;
 
 import junit.framework.TestCase;
+import freenet.support.BloomFilter.Hashing;
 
 public class BloomFilterTest extends TestCase {
 	private static final int FILTER_SIZE = 4 * 1024; // MUST be > PASS,
@@ -149,4 +150,74 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testCountingFilterPositiveDouble() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, true, Hashing.DOUBLE));
+	}
+
+	public void testBinaryFilterPositiveDouble() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, false, Hashing.DOUBLE));
+	}
+
+	public void testCountingFilterFalsePositiveDouble() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(BloomFilter.createFilter(FILTER_SIZE, K, true, Hashing.DOUBLE));
+	}
+
+	public void testBinaryFilterFalsePositiveDouble() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(BloomFilter.createFilter(FILTER_SIZE, K, false, Hashing.DOUBLE));
+	}
+
+	/** The hashing is part of the format, a filter read with the other hashing is useless. */
+	public void testHashingDiffers() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		byte[] buf = new byte[FILTER_SIZE / 4];
+		CountingBloomFilter filter = new CountingBloomFilter(FILTER_SIZE, K, buf, Hashing.DOUBLE);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		filter.addKey(key);
+		assertTrue(new CountingBloomFilter(FILTER_SIZE, K, buf, Hashing.DOUBLE).checkFilter(key));
+		assertFalse(new CountingBloomFilter(FILTER_SIZE, K, buf, Hashing.RANDOM).checkFilter(key));
+		// Too short to double hash.
+		byte[] shortKey = new byte[16];
+		rand.nextBytes(shortKey);
+		filter.addKey(shortKey);
+		assertTrue(new CountingBloomFilter(FILTER_SIZE, K, buf, Hashing.RANDOM).checkFilter(shortKey));
+	}
+
+	/** Checks per second and false positives for each hashing, at the sizes used for splitfiles. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		// 19 counters per key, as in SplitFileFetcherKeyListener's main filter.
+		int keys = 32768;
+		int length = keys * 19;
+		int K = (int) (19 * 0.7);
+		byte[][] added = new byte[keys][];
+		byte[][] others = new byte[keys * 4][];
+		for(int i=0;i<added.length;i++)
+			rand.nextBytes(added[i] = new byte[32]);
+		for(int i=0;i<others.length;i++)
+			rand.nextBytes(others[i] = new byte[32]);
+		for(Hashing hashing : Hashing.values()) {
+			for(int pass=0;pass<3;pass++) {
+				BloomFilter filter = BloomFilter.createFilter(length, K, true, hashing);
+				long start = System.nanoTime();
+				for(byte[] key : added)
+					filter.addKey(key);
+				long addTime = System.nanoTime() - start;
+				int falsePositives = 0;
+				start = System.nanoTime();
+				for(byte[] key : others)
+					if(filter.checkFilter(key)) falsePositives++;
+				long checkTime = System.nanoTime() - start;
+				if(pass == 2)
+					System.out.println(hashing+": "+(keys * 1000000000L / addTime)+" adds/sec, "+
+							(others.length * 1000000000L / checkTime)+" checks/sec, "+
+							falsePositives+" false positives in "+others.length);
+			}
+		}
+	}
 }
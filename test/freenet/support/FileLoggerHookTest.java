@@ -0,0 +1,140 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.Logger.LogLevel;
+import junit.framework.TestCase;
+
+public class FileLoggerHookTest extends TestCase {
+
+	/** Collects what is logged, so we can wait for the last line to arrive. */
+	private static class Output extends ByteArrayOutputStream {
+
+		synchronized String waitFor(String last, long timeout) throws InterruptedException, UnsupportedEncodingException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while(!toString("UTF-8").endsWith(last)) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) break;
+				wait(Math.min(wait, 100));
+			}
+			return toString("UTF-8");
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			super.write(b, off, len);
+			notifyAll();
+		}
+
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			// Ignore.
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// Ignore.
+		}
+
+	}
+
+	private static String logLines(FileLoggerHook hook, Output out, int lines) throws Exception {
+		hook.setMaxBacklogNotBusy(10);
+		hook.start();
+		for(int i=0;i<lines;i++)
+			hook.log(null, FileLoggerHookTest.class, "line "+i, null, i % 2 == 0 ? LogLevel.MINOR : LogLevel.DEBUG);
+		hook.log(null, FileLoggerHookTest.class, "failed", new Exception("test"), LogLevel.ERROR);
+		hook.log(null, FileLoggerHookTest.class, "done", null, LogLevel.NORMAL);
+		String s = out.waitFor("NORMAL: done\n", 10000);
+		hook.close();
+		// The stack traces differ, because they are logged from different places.
+		return s.replaceAll("\tat [^\n]*\n", "");
+	}
+
+	/** Logging asynchronously writes exactly what logging synchronously does. */
+	public void testAsyncSameOutput() throws Exception {
+		Output syncOut = new Output();
+		FileLoggerHook sync = new FileLoggerHook(syncOut, "c p: m", "", LogLevel.MINOR);
+		String expected = logLines(sync, syncOut, 1000);
+		assertTrue(expected.startsWith(FileLoggerHookTest.class.getName()+" MINOR: line 0\n"));
+		assertFalse(expected.contains("DEBUG"));
+		assertTrue(expected.contains("ERROR: failed\njava.lang.Exception: test\n"+FileLoggerHookTest.class.getName()+" NORMAL: done\n"));
+		Output asyncOut = new Output();
+		FileLoggerHook async = new FileLoggerHook(asyncOut, "c p: m", "", LogLevel.MINOR);
+		async.setAsync(4096, LogEventRing.FullPolicy.BLOCK);
+		assertEquals(expected, logLines(async, asyncOut, 1000));
+	}
+
+	/** When the buffer is full and we are dropping, the log says how much was lost. */
+	public void testAsyncDropReported() throws Exception {
+		Output out = new Output();
+		FileLoggerHook hook = new FileLoggerHook(out, "m", "", LogLevel.MINOR);
+		hook.setAsync(16, LogEventRing.FullPolicy.DROP);
+		// Not started, so nothing is taken from the buffer until it is.
+		for(int i=0;i<100;i++)
+			hook.log(null, FileLoggerHookTest.class, "line "+i, null, LogLevel.NORMAL);
+		hook.setMaxBacklogNotBusy(10);
+		hook.start();
+		String s = out.waitFor("entries\n", 10000);
+		assertTrue(s.startsWith("line 0\n"));
+		assertTrue(s.contains("line 15\n"));
+		assertFalse(s.contains("line 16\n"));
+		assertTrue(s.endsWith("dropped 84 entries\n"));
+		hook.close();
+	}
+
+	/** The time per log call at each level, logging synchronously and asynchronously, from
+	 * several threads at once, with the threshold at MINOR. Calls are made in bursts which fit in
+	 * the backlog, with time for it to be written in between, so this is the cost to the caller,
+	 * not how fast we can write. */
+	public void testBenchmarkLogCall() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int threads = 4;
+		final int burst = 2000;
+		int bursts = 20;
+		for(int pass=0;pass<2;pass++) {
+			for(final LogLevel level : new LogLevel[] { LogLevel.DEBUG, LogLevel.MINOR, LogLevel.NORMAL, LogLevel.ERROR }) {
+				long[] times = new long[2];
+				for(int async=0;async<2;async++) {
+					final FileLoggerHook hook = new FileLoggerHook(new NullOutputStream(), "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+					if(async == 1)
+						hook.setAsync(threads * burst, LogEventRing.FullPolicy.DROP);
+					hook.start();
+					final AtomicLong nanos = new AtomicLong();
+					for(int b=0;b<bursts;b++) {
+						Thread[] loggers = new Thread[threads];
+						for(int t=0;t<threads;t++) {
+							loggers[t] = new Thread() {
+								@Override
+								public void run() {
+									long start = System.nanoTime();
+									for(int i=0;i<burst;i++)
+										hook.log(this, FileLoggerHookTest.class, "Benchmark message", null, level);
+									nanos.addAndGet(System.nanoTime() - start);
+								}
+							};
+							loggers[t].start();
+						}
+						for(Thread t : loggers)
+							t.join();
+						Thread.sleep(100);
+					}
+					times[async] = nanos.get() / (bursts * threads * burst);
+					hook.close();
+				}
+				if(pass == 1)
+					System.out.println(level+": synchronous "+times[0]+"ns, asynchronous "+times[1]+
+							"ns per call ("+threads+" threads)");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package freenet.support;
+
+import java.util.Arrays;
+
+import freenet.support.Logger.LogLevel;
+import junit.framework.TestCase;
+
+public class LogEventRingTest extends TestCase {
+
+	/** Records the thread and time of each event, checking each thread's events arrive in order. */
+	private static class Checker implements LogEventRing.Consumer {
+
+		final long[] last;
+		long count;
+		boolean outOfOrder;
+
+		Checker(int threads) {
+			last = new long[threads];
+			Arrays.fill(last, -1);
+		}
+
+		@Override
+		public void consume(LogEventRing.Event event) {
+			int thread = Integer.parseInt(event.thread);
+			if(event.time <= last[thread]) outOfOrder = true;
+			last[thread] = event.time;
+			count++;
+		}
+
+	}
+
+	private static Thread[] startProducers(final LogEventRing ring, int threads, final int events) {
+		Thread[] producers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final String name = Integer.toString(t);
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<events;i++)
+						ring.add(i, LogEventRingTest.class, null, name, LogLevel.MINOR, "test", null);
+				}
+			};
+			producers[t].start();
+		}
+		return producers;
+	}
+
+	private static void drainUntilDone(LogEventRing ring, Thread[] producers, Checker checker) throws InterruptedException {
+		while(true) {
+			boolean alive = false;
+			for(Thread t : producers)
+				if(t.isAlive()) alive = true;
+			if(ring.drain(checker, 1000) == 0) {
+				if(!alive && ring.isEmpty()) break;
+				ring.await(1000*1000);
+			}
+		}
+		for(Thread t : producers)
+			t.join();
+	}
+
+	public void testSizeRoundedUp() {
+		assertEquals(128, new LogEventRing(100, LogEventRing.FullPolicy.DROP).capacity());
+		assertEquals(64, new LogEventRing(64, LogEventRing.FullPolicy.DROP).capacity());
+	}
+
+	/** Would overflow when rounded up to a power of two. */
+	public void testSizeTooLarge() {
+		try {
+			new LogEventRing(LogEventRing.MAX_SIZE + 1, LogEventRing.FullPolicy.DROP);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	/** Events come out in the order they went in. */
+	public void testSingleThread() {
+		LogEventRing ring = new LogEventRing(16, LogEventRing.FullPolicy.DROP);
+		for(int i=0;i<10;i++)
+			assertTrue(ring.add(i, null, null, "0", LogLevel.ERROR, "test", null));
+		assertTrue(ring.add(new byte[] { 1 }));
+		final StringBuilder sb = new StringBuilder();
+		assertEquals(11, ring.drain(new LogEventRing.Consumer() {
+			@Override
+			public void consume(LogEventRing.Event event) {
+				if(event.raw != null) sb.append("raw");
+				else sb.append(event.time);
+			}
+		}, 100));
+		assertEquals("0123456789raw", sb.toString());
+		assertTrue(ring.isEmpty());
+	}
+
+	/** When full, DROP throws away new events and counts them. */
+	public void testDrop() {
+		LogEventRing ring = new LogEventRing(8, LogEventRing.FullPolicy.DROP);
+		for(int i=0;i<8;i++)
+			assertTrue(ring.add(i, null, null, "0", LogLevel.ERROR, "test", null));
+		assertFalse(ring.add(8, null, null, "0", LogLevel.ERROR, "test", null));
+		assertFalse(ring.add(new byte[0]));
+		assertEquals(2, ring.takeDropped());
+		assertEquals(0, ring.takeDropped());
+		Checker checker = new Checker(1);
+		assertEquals(8, ring.drain(checker, 100));
+		assertEquals(7, checker.last[0]);
+		assertTrue(ring.add(9, null, null, "0", LogLevel.ERROR, "test", null));
+	}
+
+	/** Many threads logging at once: with DROP, nothing is lost without being counted. */
+	public void testConcurrentDrop() throws InterruptedException {
+		LogEventRing ring = new LogEventRing(64, LogEventRing.FullPolicy.DROP);
+		Checker checker = new Checker(4);
+		drainUntilDone(ring, startProducers(ring, 4, 50000), checker);
+		assertFalse(checker.outOfOrder);
+		assertEquals(4 * 50000, checker.count + ring.takeDropped());
+	}
+
+	/** Many threads logging at once: with BLOCK, nothing is lost. */
+	public void testConcurrentBlock() throws InterruptedException {
+		LogEventRing ring = new LogEventRing(64, LogEventRing.FullPolicy.BLOCK);
+		Checker checker = new Checker(4);
+		drainUntilDone(ring, startProducers(ring, 4, 50000), checker);
+		assertFalse(checker.outOfOrder);
+		assertEquals(4 * 50000, checker.count);
+		assertEquals(0, ring.takeDropped());
+		for(long l : checker.last)
+			assertEquals(49999, l);
+	}
+
+}
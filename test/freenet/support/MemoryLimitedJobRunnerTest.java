@@ -1,5 +1,8 @@
 package freenet.support;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import freenet.support.io.NativeThread;
@@ -324,6 +327,222 @@ public class MemoryLimitedJobRunnerTest extends TestCase {
         waitForZero(runner);
     }
 
+    /** Keeps the jobs until the test runs them, so which jobs were started is deterministic. */
+    static class DeferredExecutor implements Executor {
+        
+        final List<Runnable> jobs = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable job) {
+            jobs.add(job);
+        }
+
+        @Override
+        public void execute(Runnable job, String jobName) {
+            execute(job);
+        }
+
+        @Override
+        public void execute(Runnable job, String jobName, boolean fromTicker) {
+            execute(job);
+        }
+
+        @Override
+        public int[] waitingThreads() {
+            return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+        }
+
+        @Override
+        public int[] runningThreads() {
+            return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+        }
+
+        @Override
+        public int getWaitingThreadsCount() {
+            return 0;
+        }
+        
+        void runAll() {
+            while(!jobs.isEmpty())
+                jobs.remove(0).run();
+        }
+        
+    }
+    
+    /** Records the order jobs start in, and keeps the chunk until release() is called. */
+    static class OrderedJob extends MemoryLimitedJob {
+        
+        private final int priority;
+        private final double completion;
+        private final String name;
+        private final List<String> started;
+        private MemoryLimitedChunk chunk;
+        
+        OrderedJob(String name, long size, int priority, double completion, List<String> started) {
+            super(size);
+            this.name = name;
+            this.priority = priority;
+            this.completion = completion;
+            this.started = started;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+        
+        @Override
+        public double getCompletion() {
+            return completion;
+        }
+
+        @Override
+        public boolean start(MemoryLimitedChunk chunk) {
+            this.chunk = chunk;
+            started.add(name);
+            return false;
+        }
+        
+        void release() {
+            chunk.release();
+        }
+        
+    }
+    
+    public void testOrderByPriorityThenCompletion() {
+        // Lower numbers go first, like request priority classes.
+        final int HIGH = 1;
+        final int LOW = 2;
+        DeferredExecutor executor = new DeferredExecutor();
+        List<String> started = new ArrayList<String>();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 1, executor, 3);
+        OrderedJob first = new OrderedJob("first", 10, LOW, 0.0, started);
+        runner.queueJob(first);
+        OrderedJob[] jobs = new OrderedJob[] {
+                new OrderedJob("low-half", 10, LOW, 0.5, started),
+                new OrderedJob("high-none", 10, HIGH, 0.0, started),
+                new OrderedJob("low-none", 10, LOW, 0.0, started),
+                new OrderedJob("high-most", 10, HIGH, 0.9, started),
+                new OrderedJob("low-half-later", 10, LOW, 0.5, started),
+        };
+        for(OrderedJob job : jobs)
+            runner.queueJob(job);
+        assertEquals(jobs.length, runner.getQueuedJobs());
+        executor.runAll();
+        first.release();
+        for(int i=0;i<jobs.length;i++) {
+            executor.runAll();
+            assertEquals(i+2, started.size());
+            jobs[indexOf(jobs, started.get(i+1))].release();
+        }
+        String[] expected = new String[] { "first", "high-most", "high-none", "low-half", "low-half-later", "low-none" };
+        assertEquals(expected.length, started.size());
+        for(int i=0;i<expected.length;i++)
+            assertEquals(expected[i], started.get(i));
+        assertEquals(0, runner.used());
+        assertEquals(0, runner.getQueuedJobs());
+    }
+    
+    private static int indexOf(OrderedJob[] jobs, String name) {
+        for(int i=0;i<jobs.length;i++)
+            if(jobs[i].name.equals(name)) return i;
+        throw new IllegalArgumentException();
+    }
+    
+    public void testSmallJobsOvertake() {
+        DeferredExecutor executor = new DeferredExecutor();
+        List<String> started = new ArrayList<String>();
+        int prio = NativeThread.NORM_PRIORITY;
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(80, 100, executor, NativeThread.JAVA_PRIORITY_RANGE+1);
+        OrderedJob running = new OrderedJob("running", 50, prio, 0.0, started);
+        runner.queueJob(running);
+        OrderedJob big = new OrderedJob("big", 40, prio, 0.0, started);
+        runner.queueJob(big);
+        // Too big to overtake.
+        runner.queueJob(new OrderedJob("medium", 20, prio, 0.0, started));
+        int small = MemoryLimitedJobRunner.MAX_OVERTAKES + 1;
+        for(int i=0;i<small;i++)
+            runner.queueJob(new OrderedJob("small"+i, 1, prio, 0.0, started));
+        executor.runAll();
+        // Only MAX_OVERTAKES small jobs start ahead of the big job.
+        assertEquals(MemoryLimitedJobRunner.MAX_OVERTAKES + 1, started.size());
+        assertEquals("running", started.get(0));
+        for(int i=1;i<started.size();i++)
+            assertTrue(started.get(i).startsWith("small"));
+        assertEquals(50 + MemoryLimitedJobRunner.MAX_OVERTAKES, runner.used());
+        running.release();
+        executor.runAll();
+        assertEquals("big", started.get(MemoryLimitedJobRunner.MAX_OVERTAKES + 1));
+    }
+    
+    public void testHeapLimit() {
+        DeferredExecutor executor = new DeferredExecutor();
+        List<String> started = new ArrayList<String>();
+        int prio = NativeThread.NORM_PRIORITY;
+        final long[] freeHeap = new long[] { 100 };
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1000, 100, executor, NativeThread.JAVA_PRIORITY_RANGE+1) {
+            
+            @Override
+            long freeHeap() {
+                return freeHeap[0];
+            }
+            
+        };
+        // The first job always runs, even if it is bigger than the free heap.
+        OrderedJob first = new OrderedJob("first", 200, prio, 0.0, started);
+        runner.queueJob(first);
+        // The rest must fit in half the free heap.
+        runner.queueJob(new OrderedJob("fits", 50, prio, 0.0, started));
+        OrderedJob big = new OrderedJob("big", 60, prio, 0.0, started);
+        runner.queueJob(big);
+        executor.runAll();
+        assertEquals(2, started.size());
+        assertEquals(1, runner.getHeapLimited());
+        assertEquals(1, runner.getQueuedJobs());
+        freeHeap[0] = 120;
+        first.release();
+        executor.runAll();
+        assertEquals(3, started.size());
+        assertEquals("big", started.get(2));
+    }
+    
+    public void testFreeHeap() {
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1000, 100, new DeferredExecutor(), NativeThread.JAVA_PRIORITY_RANGE+1);
+        System.gc();
+        long free = runner.freeHeap();
+        assertTrue(free > 0);
+        assertTrue(free <= Runtime.getRuntime().maxMemory());
+    }
+    
+    public void testHistogramBucket() {
+        assertEquals(0, MemoryLimitedJobRunner.histogramBucket(-1));
+        assertEquals(0, MemoryLimitedJobRunner.histogramBucket(0));
+        assertEquals(1, MemoryLimitedJobRunner.histogramBucket(1));
+        assertEquals(2, MemoryLimitedJobRunner.histogramBucket(2));
+        assertEquals(2, MemoryLimitedJobRunner.histogramBucket(3));
+        assertEquals(11, MemoryLimitedJobRunner.histogramBucket(1024));
+        assertEquals(MemoryLimitedJobRunner.HISTOGRAM_BUCKETS - 1, MemoryLimitedJobRunner.histogramBucket(Long.MAX_VALUE));
+    }
+    
+    public void testHistograms() {
+        DeferredExecutor executor = new DeferredExecutor();
+        List<String> started = new ArrayList<String>();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 10, executor, NativeThread.JAVA_PRIORITY_RANGE+1);
+        OrderedJob job = new OrderedJob("job", 10, NativeThread.NORM_PRIORITY, 0.0, started);
+        runner.queueJob(job);
+        executor.runAll();
+        job.release();
+        assertEquals(1, sum(runner.getWaitTimes()));
+        assertEquals(1, sum(runner.getRunTimes()));
+    }
+    
+    private static long sum(long[] values) {
+        long total = 0;
+        for(long value : values)
+            total += value;
+        return total;
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
@@ -0,0 +1,112 @@
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class StripedLRUMapTest extends TestCase {
+
+	public void testPushGetRemove() {
+		StripedLRUMap<Integer, String> map = new StripedLRUMap<Integer, String>(8, 1000);
+		for(int i=0;i<100;i++)
+			assertNull(map.push(i, "a"+i));
+		assertEquals(100, map.size());
+		assertEquals("a5", map.push(5, "b5"));
+		assertEquals("b5", map.get(5));
+		assertTrue(map.containsKey(7));
+		assertTrue(map.removeKey(7));
+		assertFalse(map.removeKey(7));
+		assertNull(map.get(7));
+		assertEquals(99, map.size());
+		List<String> values = map.values();
+		assertEquals(99, values.size());
+		assertEquals(99, new HashSet<String>(values).size());
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	public void testStripesRoundedUp() {
+		StripedLRUMap<Integer, Integer> map = new StripedLRUMap<Integer, Integer>(5, 100);
+		assertEquals(8, map.stripeCount());
+		assertEquals(13, map.maxSizePerStripe());
+	}
+
+	/** Each stripe is bounded, and evicts its least recently pushed entries. */
+	public void testBounded() {
+		int stripes = 4;
+		int max = 100;
+		StripedLRUMap<Integer, Integer> map = new StripedLRUMap<Integer, Integer>(stripes, max);
+		Random r = new Random(1);
+		for(int i=0;i<10000;i++) {
+			int key = r.nextInt();
+			map.push(key, key);
+			assertTrue(map.size() <= max);
+		}
+		for(int i=0;i<stripes;i++)
+			assertEquals(max / stripes, map.stripeAt(i).size());
+		// Refresh one key, then push lots of others to the same stripe: it should be the last to go.
+		int kept = r.nextInt();
+		map.push(kept, kept);
+		LRUMap<Integer, Integer> stripe = map.stripe(kept);
+		int pushed = 0;
+		for(int key = 0; pushed < map.maxSizePerStripe() - 1; key++) {
+			if(key == kept || map.stripe(key) != stripe) continue;
+			map.push(key, key);
+			pushed++;
+		}
+		assertEquals(Integer.valueOf(kept), stripe.peekValue());
+		assertTrue(map.containsKey(kept));
+	}
+
+	private static long run(final StripedLRUMap<Integer, Integer> map, int threads, final int opsPerThread) throws InterruptedException {
+		final AtomicLong found = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int seed = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					long hits = 0;
+					for(int j=0;j<opsPerThread;j++) {
+						Integer key = r.nextInt(50000);
+						// Roughly what FailureTable does for every request: look up, sometimes update.
+						if(map.get(key) != null) hits++;
+						if(j % 4 == 0) {
+							LRUMap<Integer, Integer> stripe = map.stripe(key);
+							synchronized(stripe) {
+								Integer old = stripe.get(key);
+								map.push(key, old == null ? 1 : old + 1);
+							}
+						}
+					}
+					found.addAndGet(hits);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : workers) t.start();
+		for(Thread t : workers) t.join();
+		return System.nanoTime() - start;
+	}
+
+	/** Throughput with one stripe (i.e. a single lock, as FailureTable used to have) against
+	 * several, as the number of threads grows. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		int ops = 1000000;
+		for(int threads = 1; threads <= 16; threads *= 2) {
+			for(int round=0;round<2;round++) {
+				long single = run(new StripedLRUMap<Integer, Integer>(1, 20000), threads, ops / threads);
+				long striped = run(new StripedLRUMap<Integer, Integer>(16, 20000), threads, ops / threads);
+				if(round == 1)
+					System.out.println(threads+" threads: 1 stripe "+(single / ops)+"ns/op, 16 stripes "+
+							(striped / ops)+"ns/op");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package freenet.support;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.io.comm.DMT;
+import freenet.io.comm.DisconnectedException;
+import freenet.io.comm.Message;
+import freenet.io.comm.MessageCore;
+import freenet.io.comm.MessageFilter;
+import freenet.io.comm.MessageType;
+import freenet.node.PrioRunnable;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+/** Most of this only runs on Java 21 or later. waitFor() is checked on any JVM as it no longer
+ * uses Object.wait(). */
+public class VirtualThreadExecutorTest extends TestCase {
+
+	private static final MessageType testType = new MessageType("VirtualThreadExecutorTest", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static Message makeMessage(long uid) {
+		Message m = new Message(testType);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	/** A request: wait for a reply to a given UID, as RequestSender does. */
+	private static class Flow implements PrioRunnable {
+
+		private final MessageCore core;
+		private final long uid;
+		private final long timeout;
+		private final AtomicInteger waiting;
+		private final AtomicInteger replied;
+		private final CountDownLatch done;
+
+		Flow(MessageCore core, long uid, long timeout, AtomicInteger waiting, AtomicInteger replied,
+				CountDownLatch done) {
+			this.core = core;
+			this.uid = uid;
+			this.timeout = timeout;
+			this.waiting = waiting;
+			this.replied = replied;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			MessageFilter mf = MessageFilter.create().setType(testType).setField(DMT.UID, uid).setTimeout(timeout);
+			waiting.incrementAndGet();
+			try {
+				if(core.waitFor(mf, null) != null)
+					replied.incrementAndGet();
+			} catch (DisconnectedException e) {
+				// Not connected to anything.
+			} finally {
+				waiting.decrementAndGet();
+				done.countDown();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	}
+
+	public void testWaitForReplyAndTimeout() throws InterruptedException {
+		MessageCore core = new MessageCore(new PooledExecutor());
+		AtomicInteger waiting = new AtomicInteger();
+		AtomicInteger replied = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(2);
+		new Thread(new Flow(core, 1, 60000, waiting, replied, done)).start();
+		new Thread(new Flow(core, 2, 100, waiting, replied, done)).start();
+		while(waiting.get() < 2) Thread.sleep(10);
+		// Let them get into waitFor(), else the message goes to _unclaimed, which is also fine.
+		Thread.sleep(50);
+		core.checkFilters(makeMessage(1), null);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, replied.get());
+	}
+
+	public void testRunsJobs() throws InterruptedException {
+		if(!VirtualThreadExecutor.isAvailable()) return;
+		VirtualThreadExecutor executor = new VirtualThreadExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(100);
+		for(int i=0;i<100;i++) {
+			executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					done.countDown();
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.LOW_PRIORITY;
+				}
+
+			}, "test");
+		}
+		assertEquals(100, executor.runningThreads()[NativeThread.LOW_PRIORITY - NativeThread.MIN_PRIORITY]);
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		while(executor.getRunningCount() > 0) Thread.sleep(10);
+	}
+
+	public void testUnavailable() {
+		if(VirtualThreadExecutor.isAvailable()) return;
+		try {
+			new VirtualThreadExecutor();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+	}
+
+	private static long residentKB() {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while((line = br.readLine()) != null) {
+				if(line.startsWith("VmRSS:"))
+					return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+			}
+		} catch (IOException e) {
+			// Not Linux.
+		} finally {
+			Closer.close(br);
+		}
+		return -1;
+	}
+
+	/** Start many requests which wait for replies, answer them all, and report how many were
+	 * in flight at once and what that cost in threads and memory. */
+	private static String runFlows(Executor executor, int count) throws InterruptedException {
+		MessageCore core = new MessageCore(executor);
+		AtomicInteger waiting = new AtomicInteger();
+		AtomicInteger replied = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(count);
+		System.gc();
+		Runtime r = Runtime.getRuntime();
+		long heapBefore = r.totalMemory() - r.freeMemory();
+		long rssBefore = residentKB();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long start = System.nanoTime();
+		for(int i=0;i<count;i++)
+			executor.execute(new Flow(core, i, 120000, waiting, replied, done), "flow");
+		long deadline = System.currentTimeMillis() + 60000;
+		while(waiting.get() < count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		int peak = waiting.get();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		long heap = r.totalMemory() - r.freeMemory() - heapBefore;
+		long rss = residentKB() - rssBefore;
+		for(int i=0;i<count;i++)
+			core.checkFilters(makeMessage(i), null);
+		done.await(60, TimeUnit.SECONDS);
+		long time = System.nanoTime() - start;
+		return peak+" in flight, "+replied.get()+" replied, +"+threads+" platform threads, heap +"+
+			(heap / 1024)+"KB, RSS +"+rss+"KB, "+(time / 1000000)+"ms";
+	}
+
+	/** Compare thread pools with virtual threads for many blocked requests. Run on Java 21. */
+	public void testBenchmarkBlockedRequests() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		int count = 3000;
+		// Virtual first, as the pools keep their idle threads for a while afterwards.
+		if(VirtualThreadExecutor.isAvailable())
+			System.out.println("Virtual: "+runFlows(new VirtualThreadExecutor(), count));
+		System.out.println("Pooled: "+runFlows(new PooledExecutor(), count));
+	}
+
+}
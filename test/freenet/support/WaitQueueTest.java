@@ -0,0 +1,64 @@
+package freenet.support;
+
+import junit.framework.TestCase;
+
+public class WaitQueueTest extends TestCase {
+
+	public void testWakeAll() throws InterruptedException {
+		final WaitQueue queue = new WaitQueue();
+		final Object lock = new Object();
+		final boolean[] done = new boolean[1];
+		Thread[] waiters = new Thread[3];
+		for(int i=0;i<waiters.length;i++) {
+			waiters[i] = new Thread() {
+				@Override
+				public void run() {
+					while(true) {
+						synchronized(lock) {
+							if(done[0]) return;
+							queue.add();
+						}
+						queue.park(lock, 0);
+					}
+				}
+			};
+			waiters[i].start();
+		}
+		Thread.sleep(100);
+		synchronized(lock) {
+			done[0] = true;
+			queue.wakeAll();
+		}
+		for(Thread waiter : waiters) {
+			waiter.join(10000);
+			assertFalse(waiter.isAlive());
+		}
+	}
+
+	/** A wake-up between add() and park() is not lost. */
+	public void testWakeBeforePark() {
+		WaitQueue queue = new WaitQueue();
+		queue.add();
+		queue.wakeAll();
+		long start = System.currentTimeMillis();
+		assertTrue(queue.park(this, 60000));
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	public void testTimeout() {
+		WaitQueue queue = new WaitQueue();
+		queue.add();
+		// Returns without being woken.
+		assertTrue(queue.park(this, 100));
+	}
+
+	public void testInterrupted() {
+		WaitQueue queue = new WaitQueue();
+		queue.add();
+		Thread.currentThread().interrupt();
+		assertFalse(queue.park(this, 60000));
+		// Cleared, as wait() would have.
+		assertFalse(Thread.interrupted());
+	}
+
+}
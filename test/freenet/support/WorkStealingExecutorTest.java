@@ -0,0 +1,188 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static class Job implements PrioRunnable {
+
+		private final int priority;
+		private final CountDownLatch done;
+		private final long sleep;
+		volatile int ranAtPriority;
+
+		Job(int priority, CountDownLatch done, long sleep) {
+			this.priority = priority;
+			this.done = done;
+			this.sleep = sleep;
+		}
+
+		@Override
+		public void run() {
+			ranAtPriority = Thread.currentThread().getPriority();
+			try {
+				if(sleep > 0) Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				// Ignore.
+			} finally {
+				done.countDown();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+
+	}
+
+	private static int sum(int[] counts) {
+		int total = 0;
+		for(int c : counts) total += c;
+		return total;
+	}
+
+	/** Jobs run on threads of their own priority. */
+	public void testPriorities() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		executor.start();
+		int[] priorities = new int[] { NativeThread.MIN_PRIORITY, NativeThread.LOW_PRIORITY,
+				NativeThread.NORM_PRIORITY, NativeThread.HIGH_PRIORITY, NativeThread.MAX_PRIORITY };
+		CountDownLatch done = new CountDownLatch(priorities.length * 10);
+		Job[] jobs = new Job[priorities.length * 10];
+		for(int i=0;i<jobs.length;i++) {
+			jobs[i] = new Job(priorities[i % priorities.length], done, 0);
+			executor.execute(jobs[i], "test");
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(Job job : jobs)
+			assertEquals(job.priority, job.ranAtPriority);
+		long[] run = executor.jobsRun();
+		for(int prio : priorities)
+			assertEquals(10, run[prio - NativeThread.MIN_PRIORITY]);
+	}
+
+	/** A burst of jobs doesn't start a thread for each job, and all get run. The pool may grow
+	 * a little past the limit if the jobs are queued for long, e.g. on a slow machine. */
+	public void testBounded() throws InterruptedException {
+		int max = 3;
+		WorkStealingExecutor executor = new WorkStealingExecutor(max);
+		int count = 2000;
+		CountDownLatch done = new CountDownLatch(count);
+		int peak = 0;
+		for(int i=0;i<count;i++) {
+			executor.execute(new Job(NativeThread.NORM_PRIORITY, done, 0), "test");
+			peak = Math.max(peak, sum(executor.runningThreads()) + sum(executor.waitingThreads()));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue("Started "+peak+" threads", peak <= max * 3);
+		assertEquals(0, sum(executor.queuedJobs()));
+		assertEquals(count, executor.jobsRun()[NativeThread.NORM_PRIORITY - NativeThread.MIN_PRIORITY]);
+	}
+
+	/** Jobs which block until later jobs have run must not deadlock: the pool grows beyond the
+	 * limit if jobs are starved. */
+	public void testStarvation() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(4);
+		for(int i=0;i<3;i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					done.countDown();
+				}
+
+			}, "blocked");
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				release.countDown();
+				done.countDown();
+			}
+
+		}, "releaser");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(executor.maxWaitTimes()[NativeThread.NORM_PRIORITY - NativeThread.MIN_PRIORITY] >=
+				WorkStealingExecutor.STARVATION_TIME);
+	}
+
+	/** Jobs queued by a job go on the worker's own deque, and are stolen by idle workers. */
+	public void testSubmitFromJob() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		final int children = 100;
+		final CountDownLatch done = new CountDownLatch(children);
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for(int i=0;i<children;i++)
+					executor.execute(new Job(NativeThread.NORM_PRIORITY, done, 5), "child");
+				// Block the parent's thread until the children are done: others must steal them.
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+
+		}, "parent");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(executor.steals() > 0);
+	}
+
+	private static long runBurst(Executor executor, int bursts, int jobsPerBurst, final long sleep,
+			int[] peakThreads) throws InterruptedException {
+		long start = System.nanoTime();
+		int peak = 0;
+		for(int b=0;b<bursts;b++) {
+			CountDownLatch done = new CountDownLatch(jobsPerBurst);
+			int[] priorities = new int[] { NativeThread.HIGH_PRIORITY, NativeThread.NORM_PRIORITY,
+					NativeThread.LOW_PRIORITY };
+			for(int i=0;i<jobsPerBurst;i++) {
+				executor.execute(new Job(priorities[i % priorities.length], done, i % 10 == 0 ? sleep : 0), "burst");
+				if(i % 16 == 0)
+					peak = Math.max(peak, sum(executor.runningThreads()) + sum(executor.waitingThreads()));
+			}
+			while(!done.await(10, TimeUnit.MILLISECONDS))
+				peak = Math.max(peak, sum(executor.runningThreads()) + sum(executor.waitingThreads()));
+		}
+		peakThreads[0] = peak;
+		return System.nanoTime() - start;
+	}
+
+	/** Bursts of short jobs at several priorities, with a few which block for a while (e.g.
+	 * waiting for a peer), as during a request flood. Compare time taken and the number of
+	 * threads with PooledExecutor. */
+	public void testBenchmarkBursts() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		int bursts = 20;
+		int jobsPerBurst = 2000;
+		long sleep = 20;
+		for(int round=0;round<3;round++) {
+			int[] peakPooled = new int[1];
+			int[] peakStealing = new int[1];
+			long pooled = runBurst(new PooledExecutor(), bursts, jobsPerBurst, sleep, peakPooled);
+			WorkStealingExecutor stealing = new WorkStealingExecutor();
+			long ws = runBurst(stealing, bursts, jobsPerBurst, sleep, peakStealing);
+			double[] waits = stealing.averageWaitTimes();
+			System.out.println("Pooled: "+(pooled / 1000000)+"ms, "+peakPooled[0]+" threads; work stealing: "+
+					(ws / 1000000)+"ms, "+peakStealing[0]+" threads, average wait at norm priority "+
+					waits[NativeThread.NORM_PRIORITY - NativeThread.MIN_PRIORITY]+"ms");
+		}
+	}
+
+}
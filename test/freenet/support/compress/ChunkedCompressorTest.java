@@ -0,0 +1,206 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+public class ChunkedCompressorTest extends TestCase {
+
+	private static final int CHUNK_SIZE = 65536;
+
+	// Chunks of bzip2, as LZMA is just a stub in some test environments.
+	private final ChunkedCompressor compressor = new ChunkedCompressor(COMPRESSOR_TYPE.BZIP2.metadataID, CHUNK_SIZE);
+	private final Random random = new Random(5678);
+
+	/** Text with random runs in it. */
+	private byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		byte[] text = GzipCompressorTest.UNCOMPRESSED_DATA_1.getBytes();
+		int offset = 0;
+		while(offset < length) {
+			int run = Math.min(length - offset, 1 + random.nextInt(4096));
+			if(random.nextInt(100) < 30) {
+				byte[] buf = new byte[run];
+				random.nextBytes(buf);
+				System.arraycopy(buf, 0, data, offset, run);
+			} else {
+				for(int i=0;i<run;i++)
+					data[offset+i] = text[(offset+i+run) % text.length];
+			}
+			offset += run;
+		}
+		return data;
+	}
+
+	private byte[] compress(Compressor c, byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long written = c.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		assertEquals(os.size(), written);
+		return os.toByteArray();
+	}
+
+	private byte[] decompress(Compressor c, byte[] compressed, long maxLength) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long written = c.decompress(new ByteArrayInputStream(compressed), os, maxLength, -1);
+		assertEquals(os.size(), written);
+		return os.toByteArray();
+	}
+
+	public void testRoundTrip() throws IOException {
+		for(int length : new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 7 / 2 }) {
+			byte[] data = makeData(length);
+			byte[] compressed = compress(compressor, data);
+			assertTrue(Arrays.equals(data, decompress(compressor, compressed, length)));
+		}
+		assertBudgetReturned();
+	}
+
+	public void testCompressorType() throws InvalidCompressionCodecException {
+		assertEquals(COMPRESSOR_TYPE.CHUNKED, COMPRESSOR_TYPE.getCompressorByName("CHUNKED"));
+		assertEquals(COMPRESSOR_TYPE.CHUNKED, COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		assertFalse(Arrays.asList(COMPRESSOR_TYPE.getCompressorsArray(null, false)).contains(COMPRESSOR_TYPE.CHUNKED));
+		assertFalse(Arrays.asList(COMPRESSOR_TYPE.getCompressorsArray(null, true)).contains(COMPRESSOR_TYPE.CHUNKED));
+		assertEquals(3, COMPRESSOR_TYPE.getCompressorsArray(null, false).length);
+		assertEquals(COMPRESSOR_TYPE.CHUNKED, COMPRESSOR_TYPE.getCompressorsArray("GZIP,CHUNKED", false)[1]);
+	}
+
+	/** Any chunked stream can be decompressed, whatever the codec and chunk size. */
+	public void testDecompressOtherCodec() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 3);
+		ChunkedCompressor gzip = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP.metadataID, CHUNK_SIZE / 3);
+		assertTrue(Arrays.equals(data, decompress(compressor, compress(gzip, data), data.length)));
+	}
+
+	public void testMaxReadLength() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 3);
+		int length = CHUNK_SIZE + 100;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), os, length, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, length), decompress(compressor, os.toByteArray(), length)));
+	}
+
+	public void testMaxWriteLength() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 3);
+		int size = compress(compressor, data).length;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), os, data.length, size);
+		try {
+			compressor.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, size - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		assertBudgetReturned();
+	}
+
+	public void testMaxLength() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 3);
+		byte[] compressed = compress(compressor, data);
+		try {
+			decompress(compressor, compressed, data.length - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		try {
+			compressor.decompress(new ByteArrayInputStream(compressed), new ByteArrayOutputStream(), CHUNK_SIZE, data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(data.length, e.estimatedSize);
+		}
+	}
+
+	public void testByteArray() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 2);
+		byte[] compressed = compress(compressor, data);
+		byte[] output = new byte[data.length];
+		assertEquals(data.length, compressor.decompress(compressed, 0, compressed.length, output));
+		assertTrue(Arrays.equals(data, output));
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] data = makeData(CHUNK_SIZE * 2);
+		byte[] compressed = compress(compressor, data);
+		// Truncated.
+		try {
+			decompress(compressor, Arrays.copyOf(compressed, compressed.length - 10), data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Chunked chunks.
+		byte[] bad = compressed.clone();
+		bad[1] = (byte) COMPRESSOR_TYPE.CHUNKED.metadataID;
+		try {
+			decompress(compressor, bad, data.length);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Lies about the chunk length.
+		bad = compressed.clone();
+		bad[9]++;
+		try {
+			decompress(compressor, bad, data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Chunk size above the limit.
+		bad = compressed.clone();
+		bad[2] = 0x7f;
+		try {
+			decompress(compressor, bad, data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertBudgetReturned();
+	}
+
+	/** Every chunk gives back its memory, however the stream ends. */
+	private void assertBudgetReturned() {
+		assertEquals(ChunkedCompressor.BUDGET, ChunkedCompressor.budget.availablePermits());
+	}
+
+	/** Throughput and ratio of each codec with and without chunks. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(64*1024*1024);
+		for(COMPRESSOR_TYPE type : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW }) {
+			ChunkedCompressor chunked = new ChunkedCompressor(type.metadataID, ChunkedCompressor.DEFAULT_CHUNK_SIZE);
+			try {
+				System.out.println(type+": "+benchmark(type, data));
+				System.out.println(type+" in chunks: "+benchmark(chunked, data));
+			} catch (UnsupportedOperationException e) {
+				System.out.println(type+" not available: "+e);
+			}
+		}
+	}
+
+	private String benchmark(Compressor c, byte[] data) throws IOException {
+		long start = System.nanoTime();
+		byte[] compressed = compress(c, data);
+		long compressTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		byte[] output = decompress(c, compressed, data.length);
+		long decompressTime = System.nanoTime() - start;
+		assertTrue(Arrays.equals(data, output));
+		return "ratio "+(compressed.length * 1000L / data.length / 10.0)+"%, compress "+
+			(data.length * 1000L / compressTime)+"MB/s, decompress "+(data.length * 1000L / decompressTime)+"MB/s on "+
+			Runtime.getRuntime().availableProcessors()+" cores";
+	}
+
+}
@@ -0,0 +1,204 @@
+package freenet.support.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.client.filter.ContentFilter;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NullOutputStream;
+import freenet.support.io.RingBufferPipe;
+
+public class DecompressorThreadManagerTest extends TestCase {
+
+	private final Executor executor = new PooledExecutor();
+
+	private byte[] makeText(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(42);
+		String[] words = { "freenet ", "request ", "the ", "a ", "node ", "peer ", "block ", "insert ", "\n" };
+		int offset = 0;
+		while(offset < length) {
+			byte[] word = words[random.nextInt(words.length)].getBytes();
+			int x = Math.min(word.length, length - offset);
+			System.arraycopy(word, 0, data, offset, x);
+			offset += x;
+		}
+		return data;
+	}
+
+	private static byte[] compress(COMPRESSOR_TYPE type, byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		type.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		return os.toByteArray();
+	}
+
+	/** Reads a stream on another thread, as ClientGetWorkerThread does. */
+	private static class Reader extends Thread {
+		final InputStream is;
+		final OutputStream os;
+		final boolean filter;
+		Throwable error;
+
+		Reader(InputStream is, OutputStream os, boolean filter) {
+			this.is = is;
+			this.os = os;
+			this.filter = filter;
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream input = new BufferedInputStream(is);
+				if(filter) {
+					ContentFilter.filter(input, os, "text/plain", new URI("http://127.0.0.1:8888/"), null, null, null);
+				} else {
+					byte[] buf = new byte[32768];
+					int x;
+					while((x = input.read(buf)) > 0)
+						os.write(buf, 0, x);
+				}
+				os.close();
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				Closer.close(is);
+			}
+		}
+	}
+
+	/** Write the data in blocks, as a StreamGenerator does. */
+	private static void writeBlocks(byte[] data, OutputStream os) throws IOException {
+		for(int offset = 0; offset < data.length; offset += 32768)
+			os.write(data, offset, Math.min(32768, data.length - offset));
+		os.close();
+	}
+
+	/** A fetch: write, decompress with each codec in turn, then read or filter. */
+	private byte[] fetch(byte[] compressed, List<COMPRESSOR_TYPE> decompressors, long maxLen, boolean filter) throws Throwable {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		fetch(compressed, decompressors, maxLen, filter, os);
+		return os.toByteArray();
+	}
+
+	private void fetch(byte[] compressed, List<COMPRESSOR_TYPE> decompressors, long maxLen, boolean filter, OutputStream os) throws Throwable {
+		RingBufferPipe pipe = new RingBufferPipe(DecompressorThreadManager.getBufferSize());
+		DecompressorThreadManager manager = new DecompressorThreadManager(pipe.getInputStream(),
+				new ArrayList<COMPRESSOR_TYPE>(decompressors), maxLen, executor);
+		InputStream is = manager.execute();
+		Reader reader = new Reader(is, os, filter);
+		reader.start();
+		try {
+			writeBlocks(compressed, pipe.getOutputStream());
+		} catch (IOException e) {
+			// The decompressor gave up, see below.
+		}
+		manager.waitFinished();
+		reader.join();
+		if(reader.error != null) throw reader.error;
+	}
+
+	public void testChain() throws Throwable {
+		byte[] data = makeText(1000000);
+		// Decompressors are applied last first.
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, compress(COMPRESSOR_TYPE.GZIP, data));
+		List<COMPRESSOR_TYPE> decompressors = Arrays.asList(COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2);
+		assertTrue(Arrays.equals(data, fetch(compressed, decompressors, data.length, false)));
+		assertTrue(Arrays.equals(data, fetch(compressed, decompressors, data.length, true)));
+		List<COMPRESSOR_TYPE> none = new ArrayList<COMPRESSOR_TYPE>();
+		assertTrue(Arrays.equals(data, fetch(data, none, data.length, false)));
+	}
+
+	public void testTooBig() throws Throwable {
+		byte[] data = makeText(1000000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, data);
+		try {
+			fetch(compressed, Arrays.asList(COMPRESSOR_TYPE.GZIP), data.length / 2, false);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testCorrupt() throws Throwable {
+		byte[] data = makeText(1000000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, data);
+		for(int i=1000;i<2000;i++)
+			compressed[i] = 0;
+		try {
+			fetch(compressed, Arrays.asList(COMPRESSOR_TYPE.BZIP2), data.length, false);
+			fail();
+		} catch (Exception e) {
+			// Expected. The bzip2 codec can throw all sorts on bad data.
+		}
+	}
+
+	/** What the fetch path did before: a thread per stage, connected by java.io pipes. */
+	private void fetchWithPipes(byte[] compressed, final COMPRESSOR_TYPE decompressor, final long maxLen) throws Throwable {
+		PipedInputStream in = new PipedInputStream();
+		final PipedOutputStream out = new PipedOutputStream(in);
+		final PipedInputStream decompressed = new PipedInputStream();
+		final OutputStream decompressorOut = new BufferedOutputStream(new PipedOutputStream(decompressed));
+		final InputStream decompressorIn = new BufferedInputStream(in);
+		final Throwable[] error = new Throwable[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					decompressor.decompress(decompressorIn, decompressorOut, maxLen, maxLen * 4);
+					decompressorOut.close();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		};
+		t.start();
+		Reader reader = new Reader(decompressed, new NullOutputStream(), true);
+		reader.start();
+		writeBlocks(compressed, out);
+		t.join();
+		reader.join();
+		if(error[0] != null) throw error[0];
+		if(reader.error != null) throw reader.error;
+	}
+
+	/** Decompress and filter throughput for a big download. */
+	public void testBenchmark() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		int length = 64*1024*1024;
+		byte[] data = makeText(length);
+		byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, data);
+		List<COMPRESSOR_TYPE> gzip = Arrays.asList(COMPRESSOR_TYPE.GZIP);
+		for(int i=0;i<2;i++) {
+			long start = System.nanoTime();
+			fetchWithPipes(compressed, COMPRESSOR_TYPE.GZIP, length);
+			long pipesTime = System.nanoTime() - start;
+			System.out.println("Piped streams: "+(length * 1000L / pipesTime)+"MB/s");
+			for(int bufferSize : new int[] { 16*1024, 256*1024, 1024*1024 }) {
+				DecompressorThreadManager.setBufferSize(bufferSize);
+				start = System.nanoTime();
+				fetch(compressed, gzip, length, true, new NullOutputStream());
+				long time = System.nanoTime() - start;
+				System.out.println("Ring buffer of "+(bufferSize / 1024)+"KB: "+(length * 1000L / time)+"MB/s");
+			}
+			DecompressorThreadManager.setBufferSize(DecompressorThreadManager.DEFAULT_BUFFER_SIZE);
+		}
+	}
+
+}
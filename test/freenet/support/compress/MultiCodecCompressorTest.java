@@ -0,0 +1,172 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class MultiCodecCompressorTest extends TestCase {
+
+	// The LZMA codec is just a stub in some test environments, so stick to these.
+	private static final COMPRESSOR_TYPE[] CODECS = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+	private static final int BLOCK_SIZE = 32768;
+
+	private final Executor executor = new PooledExecutor();
+	private final Random random = new Random(1234);
+
+	/** A bit of everything: random runs, which gzip does badly on, and text. */
+	private byte[] makeData(int length, int randomPercent) {
+		byte[] data = new byte[length];
+		byte[] text = GzipCompressorTest.UNCOMPRESSED_DATA_1.getBytes();
+		int offset = 0;
+		while(offset < length) {
+			int run = Math.min(length - offset, 1 + random.nextInt(4096));
+			if(random.nextInt(100) < randomPercent) {
+				byte[] buf = new byte[run];
+				random.nextBytes(buf);
+				System.arraycopy(buf, 0, data, offset, run);
+			} else {
+				for(int i=0;i<run;i++)
+					data[offset+i] = text[(offset+i) % text.length];
+			}
+			offset += run;
+		}
+		return data;
+	}
+
+	private static class Choice {
+		final int codec;
+		final byte[] data;
+		Choice(int codec, byte[] data) {
+			this.codec = codec;
+			this.data = data;
+		}
+	}
+
+	/** What InsertCompressor does without MultiCodecCompressor. */
+	private Choice compressSerially(COMPRESSOR_TYPE[] codecs, byte[] data, long minSize) throws IOException {
+		int bestCodec = -1;
+		byte[] best = null;
+		long bestSize = data.length;
+		long bestBlocks = data.length / BLOCK_SIZE;
+		for(int i=0;i<codecs.length;i++) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			try {
+				codecs[i].compress(new ByteArrayInputStream(data), os, data.length, bestSize);
+			} catch (CompressionOutputSizeException e) {
+				continue;
+			}
+			byte[] result = os.toByteArray();
+			long blocks = result.length / BLOCK_SIZE;
+			if(result.length <= minSize) {
+				return new Choice(i, result);
+			}
+			if(blocks < bestBlocks) {
+				bestCodec = i;
+				best = result;
+				bestSize = result.length;
+				bestBlocks = blocks;
+			}
+		}
+		return new Choice(bestCodec, best);
+	}
+
+	private Choice compressInParallel(COMPRESSOR_TYPE[] codecs, byte[] data, long minSize) throws IOException {
+		MultiCodecCompressor compressor = new MultiCodecCompressor(codecs, new ArrayBucketFactory(), executor, minSize, BLOCK_SIZE);
+		int codec = compressor.compress(new ByteArrayInputStream(data), data.length);
+		RandomAccessBucket result = compressor.getBestData();
+		if(codec < 0) {
+			assertNull(result);
+			return new Choice(codec, null);
+		}
+		byte[] buf = BucketTools.toByteArray(result);
+		result.free();
+		return new Choice(codec, buf);
+	}
+
+	private void checkSameChoice(COMPRESSOR_TYPE[] codecs, byte[] data, long minSize) throws IOException {
+		Choice serial = compressSerially(codecs, data, minSize);
+		Choice parallel = compressInParallel(codecs, data, minSize);
+		assertEquals(serial.codec, parallel.codec);
+		assertTrue(Arrays.equals(serial.data, parallel.data));
+	}
+
+	public void testSameChoiceAsSerial() throws IOException {
+		COMPRESSOR_TYPE[] reversed = { COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.GZIP };
+		for(int percent : new int[] { 0, 30, 60, 90, 100 }) {
+			for(int length : new int[] { 100, 40000, 300000 }) {
+				byte[] data = makeData(length, percent);
+				checkSameChoice(CODECS, data, BLOCK_SIZE);
+				checkSameChoice(reversed, data, BLOCK_SIZE);
+				// Never small enough, so all of them are compared.
+				checkSameChoice(CODECS, data, 0);
+				checkSameChoice(reversed, data, 0);
+			}
+		}
+	}
+
+	public void testFitsInOneBlock() throws IOException {
+		byte[] data = makeData(200000, 0);
+		Choice parallel = compressInParallel(CODECS, data, BLOCK_SIZE);
+		assertEquals(0, parallel.codec);
+		assertTrue(parallel.data.length <= BLOCK_SIZE);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(os.toByteArray(), parallel.data));
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[300000];
+		random.nextBytes(data);
+		assertEquals(-1, compressInParallel(CODECS, data, BLOCK_SIZE).codec);
+	}
+
+	public void testReadFailure() {
+		final byte[] data = makeData(300000, 50);
+		InputStream is = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] buf, int offset, int length) {
+				if(pos > data.length / 2) throw new IllegalStateException("Test");
+				return super.read(buf, offset, length);
+			}
+		};
+		MultiCodecCompressor compressor = new MultiCodecCompressor(CODECS, new ArrayBucketFactory(), executor, BLOCK_SIZE, BLOCK_SIZE);
+		try {
+			compressor.compress(is, data.length);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		} catch (IOException e) {
+			fail();
+		}
+		assertNull(compressor.getBestData());
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(32*1024*1024, 40);
+		for(int i=0;i<2;i++) {
+			long start = System.nanoTime();
+			Choice serial = compressSerially(CODECS, data, BLOCK_SIZE);
+			long serialTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			Choice parallel = compressInParallel(CODECS, data, BLOCK_SIZE);
+			long parallelTime = System.nanoTime() - start;
+			assertEquals(serial.codec, parallel.codec);
+			System.out.println("Serial: "+(serialTime / 1000000)+"ms, parallel: "+(parallelTime / 1000000)+"ms on "+
+					Runtime.getRuntime().availableProcessors()+" cores");
+		}
+	}
+
+}
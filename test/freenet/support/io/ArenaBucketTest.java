@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+
+public class ArenaBucketTest extends BucketTestBase {
+	// Small pages, so most tests cross page boundaries.
+	private DirectMemoryArena arena = new DirectMemoryArena(1024*1024, 16, 256);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new ArenaBucket(arena);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+		assertEquals(0, arena.getBytesInUse());
+		assertEquals(0, arena.getBytesStored());
+	}
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static void write(Bucket bucket, byte[] data) throws IOException {
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+	}
+
+	public void testPagesReused() throws IOException {
+		ArenaBucket a = new ArenaBucket(arena);
+		write(a, randomData(40));
+		assertEquals(3, a.getPageCount());
+		assertEquals(48, arena.getBytesInUse());
+		assertEquals(40, arena.getBytesStored());
+		assertEquals(1, arena.getSlabs());
+		assertEquals(13, arena.getFreePages());
+		assertEquals(8.0 / 48, arena.getFragmentation(), 0.0001);
+		a.free();
+		assertEquals(0, arena.getBytesInUse());
+		assertEquals(16, arena.getFreePages());
+		ArenaBucket b = new ArenaBucket(arena);
+		write(b, randomData(256));
+		assertEquals(1, arena.getSlabs());
+		assertEquals(1.0, arena.getOccupancy(), 0.0001);
+		b.free();
+	}
+
+	public void testFull() throws IOException {
+		arena = new DirectMemoryArena(64, 16, 32);
+		ArenaBucket a = new ArenaBucket(arena);
+		assertTrue(a.reserve(64));
+		assertEquals(2, arena.getSlabs());
+		ArenaBucket b = new ArenaBucket(arena);
+		assertFalse(b.reserve(1));
+		assertEquals(1, arena.getFailures());
+		try {
+			write(b, new byte[1]);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		a.free();
+		assertTrue(b.reserve(1));
+		b.free();
+	}
+
+	public void testCopyTo() throws IOException {
+		byte[] data = randomData(1000);
+		ArenaBucket a = new ArenaBucket(arena);
+		write(a, data);
+		// To a file, through its channel.
+		File f = File.createTempFile("arenabucket", ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(f);
+			fos.write(1);
+			a.copyTo(fos, 999);
+			fos.close();
+			byte[] read = new byte[1000];
+			DataInputStream dis = new DataInputStream(new FileInputStream(f));
+			dis.readFully(read);
+			assertEquals(-1, dis.read());
+			dis.close();
+			assertEquals(1, read[0]);
+			assertTrue(Arrays.equals(Arrays.copyOf(data, 999), Arrays.copyOfRange(read, 1, 1000)));
+		} finally {
+			f.delete();
+		}
+		// To anything else.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		a.copyTo(baos, 1000);
+		assertTrue(Arrays.equals(data, baos.toByteArray()));
+		freeBucket(a);
+	}
+
+}
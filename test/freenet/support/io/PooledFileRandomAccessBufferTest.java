@@ -1,10 +1,12 @@
 package freenet.support.io;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
 
+import freenet.support.TestProperty;
 import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
 import freenet.support.io.PooledFileRandomAccessBuffer.FDTracker;
 
@@ -283,6 +285,159 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
-    // FIXME more tests???
+    /** When a file has to be closed, we close the least used of the few least recently used,
+     * not simply the least recently used. */
+    public void testEvictsLeastUsed() throws IOException {
+        fds.setMaxFDs(2);
+        PooledFileRandomAccessBuffer a = construct(1024);
+        PooledFileRandomAccessBuffer b = construct(1024);
+        for(int i=0;i<5;i++)
+            a.lockOpen().unlock();
+        b.lockOpen().unlock();
+        // a is the least recently used, but b is used less.
+        PooledFileRandomAccessBuffer c = construct(1024);
+        assertTrue(a.isOpen());
+        assertFalse(b.isOpen());
+        assertTrue(c.isOpen());
+        assertEquals(2, fds.getOpenFDs());
+        assertEquals(3, fds.getOpens());
+        a.free();
+        b.free();
+        c.free();
+    }
+    
+    /** A mapped read-only file can be read after its file descriptor has been closed. */
+    public void testMapReadOnly() throws IOException {
+        int sz = 65536;
+        byte[] data = new byte[sz];
+        new Random(1154).nextBytes(data);
+        File f = File.createTempFile("test", ".tmp", base);
+        PooledFileRandomAccessBuffer w = new PooledFileRandomAccessBuffer(f, false, sz, null, -1, false, fds);
+        w.pwrite(0, data, 0, sz);
+        w.close();
+        fds.setMapReadOnly(true);
+        PooledFileRandomAccessBuffer r = new PooledFileRandomAccessBuffer(f, true, sz, null, -1, true, fds);
+        byte[] buf = new byte[100];
+        r.pread(1000, buf, 0, buf.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 1100), buf));
+        r.closeRAF();
+        assertEquals(0, fds.getOpenFDs());
+        long opens = fds.getOpens();
+        buf = new byte[sz];
+        r.pread(0, buf, 0, sz);
+        assertTrue(Arrays.equals(data, buf));
+        assertEquals(opens, fds.getOpens());
+        assertFalse(r.isOpen());
+        try {
+            r.pread(sz - 10, buf, 0, 11);
+            fail();
+        } catch (EOFException e) {
+            // Expected.
+        }
+        r.close();
+        try {
+            r.pread(0, buf, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        r.free();
+    }
+    
+    /** Many threads reading and writing different parts of the same file at once. */
+    public void testConcurrentPositionalIO() throws Exception {
+        final int threads = 8;
+        final int block = 4096;
+        final int blocks = 64;
+        final PooledFileRandomAccessBuffer raf = construct(threads * blocks * block);
+        final Throwable[] failed = new Throwable[1];
+        Thread[] workers = new Thread[threads];
+        for(int t=0;t<threads;t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        byte[] buf = new byte[block];
+                        byte[] check = new byte[block];
+                        for(int i=0;i<blocks;i++) {
+                            long offset = ((long) i * threads + thread) * block;
+                            random.nextBytes(buf);
+                            raf.pwrite(offset, buf, 0, block);
+                            raf.pread(offset, check, 0, block);
+                            assertTrue(Arrays.equals(buf, check));
+                        }
+                    } catch (Throwable e) {
+                        synchronized(failed) {
+                            failed[0] = e;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for(Thread t : workers)
+            t.join();
+        assertNull(failed[0]);
+        raf.free();
+    }
+    
+    /** Simulates many splitfile fetches at once: each has its own file, and a few threads write
+     * and read random blocks across all of them, with a small and a large pool of file
+     * descriptors. */
+    public void testBenchmarkManyFetches() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final int files = 300;
+        final int block = 32768;
+        final int blocksPerFile = 8;
+        final int threads = 8;
+        final int operations = 20000;
+        for(int pass=0;pass<2;pass++) {
+            for(int maxFDs : new int[] { 100, PooledFileRandomAccessBuffer.defaultMaxOpenFDs() }) {
+                fds = new FDTracker(maxFDs);
+                final PooledFileRandomAccessBuffer[] storages = new PooledFileRandomAccessBuffer[files];
+                for(int i=0;i<files;i++)
+                    storages[i] = construct(block * blocksPerFile);
+                long opens = fds.getOpens();
+                Thread[] workers = new Thread[threads];
+                for(int t=0;t<threads;t++) {
+                    final int thread = t;
+                    workers[t] = new Thread() {
+                        @Override
+                        public void run() {
+                            Random random = new Random(thread);
+                            byte[] buf = new byte[block];
+                            try {
+                                for(int i=0;i<operations/threads;i++) {
+                                    PooledFileRandomAccessBuffer storage = storages[random.nextInt(files)];
+                                    long offset = (long) random.nextInt(blocksPerFile) * block;
+                                    // Mostly blocks arriving, sometimes decoding a segment.
+                                    if(random.nextInt(4) == 0)
+                                        storage.pread(offset, buf, 0, block);
+                                    else
+                                        storage.pwrite(offset, buf, 0, block);
+                                }
+                            } catch (IOException e) {
+                                throw new Error(e);
+                            }
+                        }
+                    };
+                }
+                long start = System.nanoTime();
+                for(Thread t : workers)
+                    t.start();
+                for(Thread t : workers)
+                    t.join();
+                long time = System.nanoTime() - start;
+                opens = fds.getOpens() - opens;
+                for(PooledFileRandomAccessBuffer storage : storages)
+                    storage.free();
+                if(pass == 1)
+                    System.out.println(files+" fetches, "+maxFDs+" fds: "+(operations * 1000L * 1000 * 1000 / time)+
+                            " blocks/sec, "+opens+" reopens");
+            }
+        }
+    }
     
 }
@@ -0,0 +1,110 @@
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RingBufferPipeTest extends TestCase {
+
+	/** Writes data in random sized pieces, then closes. */
+	private static class Writer extends Thread {
+		final OutputStream os;
+		final byte[] data;
+		final long seed;
+		IOException error;
+
+		Writer(OutputStream os, byte[] data, long seed) {
+			this.os = os;
+			this.data = data;
+			this.seed = seed;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random(seed);
+			try {
+				int offset = 0;
+				while(offset < data.length) {
+					int x = Math.min(data.length - offset, random.nextInt(5000));
+					if(x == 1) os.write(data[offset]);
+					else os.write(data, offset, x);
+					offset += x;
+				}
+				os.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	public void testTransfer() throws IOException, InterruptedException {
+		Random random = new Random(1);
+		for(int capacity : new int[] { 1, 7, 4096, 65536 }) {
+			byte[] data = new byte[200000];
+			random.nextBytes(data);
+			RingBufferPipe pipe = new RingBufferPipe(capacity);
+			Writer writer = new Writer(pipe.getOutputStream(), data, capacity);
+			writer.start();
+			InputStream is = pipe.getInputStream();
+			byte[] read = new byte[data.length];
+			int offset = 0;
+			while(true) {
+				int x;
+				if(random.nextInt(10) == 0) {
+					x = is.read();
+					if(x >= 0) read[offset] = (byte) x;
+					x = x < 0 ? -1 : 1;
+				} else {
+					x = is.read(read, offset, Math.min(read.length - offset, 1 + random.nextInt(6000)));
+				}
+				if(x < 0) break;
+				assertTrue(x > 0);
+				offset += x;
+				if(offset == read.length) {
+					assertEquals(-1, is.read());
+					break;
+				}
+			}
+			writer.join();
+			assertNull(writer.error);
+			assertTrue(Arrays.equals(data, read));
+		}
+	}
+
+	public void testEOF() throws IOException {
+		RingBufferPipe pipe = new RingBufferPipe(16);
+		pipe.getOutputStream().write(new byte[] { 1, 2, 3 });
+		pipe.getOutputStream().close();
+		byte[] buf = new byte[10];
+		assertEquals(3, pipe.getInputStream().read(buf));
+		assertEquals(-1, pipe.getInputStream().read(buf));
+		try {
+			pipe.getOutputStream().write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** The writer must not be stuck if the reader gives up. */
+	public void testReaderClosed() throws IOException, InterruptedException {
+		RingBufferPipe pipe = new RingBufferPipe(16);
+		Writer writer = new Writer(pipe.getOutputStream(), new byte[100000], 2);
+		writer.start();
+		pipe.getInputStream().close();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNotNull(writer.error);
+		try {
+			pipe.getInputStream().read();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -133,6 +133,56 @@ public class TempBucketTest extends TestSuite {
 		}
 		
 		// Do a bigger read, verify contents.
+		public void testDirectMemoryMigration() throws IOException {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 65536, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+			tbf.setUseDirectMemory(true);
+			DirectMemoryArena arena = tbf.getArena();
+			
+			TempBucket bucket = (TempBucket) tbf.makeBucket(20000);
+			assertTrue(bucket.getUnderlying() instanceof ArenaBucket);
+			assertTrue(bucket.isRAMBucket());
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			byte[] data = new byte[20000];
+			new Random(90).nextBytes(data);
+			os.write(data);
+			assertEquals(20000, arena.getBytesStored());
+			assertEquals(3 * arena.getPageSize(), arena.getBytesInUse());
+			assertEquals(20000, tbf.getRamUsed());
+			InputStream is = bucket.getInputStream();
+			assertTrue(bucket.migrateToDisk());
+			assertFalse(bucket.isRAMBucket());
+			// The pages have gone back to the arena.
+			assertEquals(0, arena.getBytesInUse());
+			assertEquals(0, tbf.getRamUsed());
+			assertEquals(1, tbf.getMigrations());
+			assertEquals(20000, tbf.getBytesMigrated());
+			byte[] readTo = new byte[20000];
+			new DataInputStream(is).readFully(readTo);
+			for(int i=0;i<readTo.length;i++)
+				assertTrue(readTo[i] == data[i]);
+			is.close();
+			os.close();
+			bucket.free();
+			
+			// And are reused.
+			long allocated = arena.getBytesAllocated();
+			bucket = (TempBucket) tbf.makeBucket(100);
+			os = bucket.getOutputStreamUnbuffered();
+			os.write(data, 0, 100);
+			os.close();
+			assertTrue(bucket.isRAMBucket());
+			assertEquals(arena.getPageSize(), arena.getBytesInUse());
+			assertEquals(allocated, arena.getBytesAllocated());
+			bucket.free();
+			assertEquals(0, arena.getBytesInUse());
+			assertEquals(0, arena.getBytesStored());
+			
+			tbf.setUseDirectMemory(false);
+			bucket = (TempBucket) tbf.makeBucket(100);
+			assertTrue(bucket.getUnderlying() instanceof ArrayBucket);
+			bucket.free();
+		}
+		
 		public void testBigConversionWhileReading() throws IOException {
 			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
 			
@@ -163,8 +213,13 @@ public class TempBucketTest extends TestSuite {
 		private TempBucketFactory tbf;
 
 		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted) throws IOException {
+			this(maxRamSize, maxTotalRamSize, encrypted, false);
+		}
+
+		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted, boolean directMemory) throws IOException {
 			fg = new FilenameGenerator(weakPRNG, false, null, "junit");
 			tbf = new TempBucketFactory(exec, fg, maxRamSize, maxTotalRamSize, weakPRNG, encrypted, MIN_DISK_SPACE, secret);
+			tbf.setUseDirectMemory(directMemory);
 
 			canOverwrite = false;
 		}
@@ -210,6 +265,18 @@ public class TempBucketTest extends TestSuite {
 		}
 	}
 
+	public static class RealTempBucketTest_64k_128k_D extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_128k_D() throws IOException {
+			super(64 * 1024, 128 * 1024, false, true);
+		}
+	}
+
+	public static class RealTempBucketTest_64k_128k_DT extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_128k_DT() throws IOException {
+			super(64 * 1024, 128 * 1024, true, true);
+		}
+	}
+
     public TempBucketTest() {
 		super("TempBucketTest");
 		addTest(new TestSuite(RealTempBucketTest_8_16_F.class));
@@ -217,6 +284,8 @@ public class TempBucketTest extends TestSuite {
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_128k_D.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_128k_DT.class));
 		addTest(new TestSuite(TempBucketMigrationTest.class));
 	}
 
@@ -227,6 +296,8 @@ public class TempBucketTest extends TestSuite {
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_D.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_DT.class));
 		suite.addTest(new TestSuite(TempBucketMigrationTest.class));
 		return suite;
 	}